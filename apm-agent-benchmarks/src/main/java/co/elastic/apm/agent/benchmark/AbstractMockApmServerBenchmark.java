@@ -77,18 +77,20 @@ public class AbstractMockApmServerBenchmark extends AbstractBenchmark {
 
         server.start();
         int port = ((InetSocketAddress) server.getListenerInfo().get(0).getAddress()).getPort();
+        SimpleSource configuration = new SimpleSource()
+            .add(CoreConfiguration.SERVICE_NAME, "benchmark")
+            .add(CoreConfiguration.INSTRUMENT, Boolean.toString(isApmEnabled()))
+            .add("active", Boolean.toString(isApmEnabled()))
+            .add("api_request_size", "10mb")
+            .add("capture_headers", "false")
+//             .add("profiling_inferred_spans", "true")
+//             .add("profiling_interval", "10s")
+            .add("classes_excluded_from_instrumentation", "java.*,com.sun.*,sun.*")
+            .add("server_urls", "http://localhost:" + port);
+        addAgentConfiguration(configuration);
         tracer = new ElasticApmTracerBuilder()
             .configurationRegistry(ConfigurationRegistry.builder()
-                .addConfigSource(new SimpleSource()
-                    .add(CoreConfiguration.SERVICE_NAME, "benchmark")
-                    .add(CoreConfiguration.INSTRUMENT, Boolean.toString(apmEnabled))
-                    .add("active", Boolean.toString(apmEnabled))
-                    .add("api_request_size", "10mb")
-                    .add("capture_headers", "false")
-//                     .add("profiling_inferred_spans", "true")
-//                     .add("profiling_interval", "10s")
-                    .add("classes_excluded_from_instrumentation", "java.*,com.sun.*,sun.*")
-                    .add("server_urls", "http://localhost:" + port))
+                .addConfigSource(configuration)
                 .optionProviders(ServiceLoader.load(ConfigurationOptionProvider.class))
                 .build())
             .buildAndStart();
@@ -96,6 +98,18 @@ public class AbstractMockApmServerBenchmark extends AbstractBenchmark {
 
     }
 
+    protected boolean isApmEnabled() {
+        return apmEnabled;
+    }
+
+    /**
+     * Allows benchmarks to add to or to override the configuration of the agent
+     *
+     * @param configuration the configuration of the agent
+     */
+    protected void addAgentConfiguration(SimpleSource configuration) {
+    }
+
     @TearDown
     public void tearDown() throws ExecutionException, InterruptedException {
         Thread.sleep(1000);
@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.impl.sampling.ConstantSampler;
+import co.elastic.apm.agent.impl.transaction.StackFrame;
+import co.elastic.apm.agent.impl.transaction.TraceContext;
+import co.elastic.apm.agent.matcher.WildcardMatcher;
+import co.elastic.apm.agent.objectpool.ObjectPool;
+import co.elastic.apm.agent.objectpool.impl.ListBasedObjectPool;
+import co.elastic.apm.agent.profiler.CallTree;
+import co.elastic.apm.agent.profiler.asyncprofiler.JfrParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building call trees out of the stack traces of a recorded JFR file,
+ * without the overhead of parsing the file and correlating the stack traces with activation events.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class CallTreeBenchmark extends AbstractMockApmServerBenchmark {
+
+    private static final int MAX_STACK_DEPTH = 256;
+
+    private final List<List<StackTrace>> stackTracesByThread = new ArrayList<>();
+    private ObjectPool<CallTree> callTreePool;
+    private ObjectPool<CallTree.Root> rootPool;
+    private byte[] rootContext;
+
+    public CallTreeBenchmark() {
+        super(true);
+    }
+
+    public static void main(String[] args) throws Exception {
+        run(CallTreeBenchmark.class);
+    }
+
+    @Setup
+    public void setUpCallTreeBenchmark() throws Exception {
+        final JfrParser jfrParser = new JfrParser();
+        jfrParser.parse(new File(getClass().getClassLoader().getResource("apm-traces.jfr").toURI()),
+            Collections.<WildcardMatcher>emptyList(),
+            WildcardMatcher.matchAllList());
+        final Map<Long, List<StackTrace>> stackTraces = new HashMap<>();
+        jfrParser.consumeStackTraces((threadId, stackTraceId, nanoTime, allocatedBytes) -> {
+            List<StackFrame> stackFrames = new ArrayList<>();
+            jfrParser.resolveStackTrace(stackTraceId, true, stackFrames, MAX_STACK_DEPTH);
+            if (!stackFrames.isEmpty()) {
+                stackTraces.computeIfAbsent(threadId, id -> new ArrayList<>()).add(new StackTrace(stackFrames, nanoTime));
+            }
+        });
+        jfrParser.resetState();
+        for (List<StackTrace> stackTracesOfThread : stackTraces.values()) {
+            stackTracesOfThread.sort(Comparator.comparingLong(stackTrace -> stackTrace.nanoTime));
+            stackTracesByThread.add(stackTracesOfThread);
+        }
+
+        callTreePool = ListBasedObjectPool.ofRecyclable(Integer.MAX_VALUE, CallTree::new);
+        rootPool = ListBasedObjectPool.ofRecyclable(1, () -> new CallTree.Root(tracer));
+        TraceContext traceContext = TraceContext.with64BitId(tracer);
+        traceContext.asRootSpan(ConstantSampler.of(true));
+        rootContext = traceContext.serialize();
+    }
+
+    @Benchmark
+    public int buildCallTrees() {
+        int count = 0;
+        for (int i = 0, size = stackTracesByThread.size(); i < size; i++) {
+            List<StackTrace> stackTraces = stackTracesByThread.get(i);
+            CallTree.Root root = CallTree.createRoot(rootPool, rootContext, null, stackTraces.get(0).nanoTime);
+            for (int j = 0, traces = stackTraces.size(); j < traces; j++) {
+                StackTrace stackTrace = stackTraces.get(j);
+                root.addStackTrace(tracer, stackTrace.stackFrames, stackTrace.nanoTime, callTreePool, 0);
+            }
+            root.end(callTreePool, 0);
+            count += root.getCount();
+            root.recycle(callTreePool);
+            rootPool.recycle(root);
+        }
+        return count;
+    }
+
+    private static class StackTrace {
+        private final List<StackFrame> stackFrames;
+        private final long nanoTime;
+
+        private StackTrace(List<StackFrame> stackFrames, long nanoTime) {
+            this.stackFrames = stackFrames;
+            this.nanoTime = nanoTime;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.context.Request;
+import co.elastic.apm.agent.impl.sampling.ConstantSampler;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.TraceContext;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.report.ApmServerClient;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the serialization of realistic transactions and spans,
+ * whose DB statement and request body are recorded in pooled {@link CharBuffer}s.
+ * <p>
+ * The {@code ascii} payloads can be written via the fast path of {@link DslJsonSerializer},
+ * whereas the {@code escaped} payloads contain characters which have to be escaped or encoded and fall back to the regular string serialization.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class DslJsonSerializerBenchmark extends AbstractBenchmark {
+
+    private static final String ASCII_STATEMENT = "SELECT o.id, o.created, o.status, c.name, c.email FROM orders o " +
+        "INNER JOIN customers c ON o.customer_id = c.id WHERE o.status = 'SHIPPED' AND o.created > ? ORDER BY o.created DESC LIMIT 50";
+    private static final String ESCAPED_STATEMENT = "SELECT \"o\".\"id\", \"o\".\"created\", \"c\".\"name\" FROM \"orders\" \"o\" " +
+        "INNER JOIN \"customers\" \"c\" ON \"o\".\"customer_id\" = \"c\".\"id\" WHERE \"c\".\"name\" LIKE 'Müller%'";
+    private static final String ASCII_BODY = "amount=42.00&currency=EUR&items=4711,4712,4713&shipping=express&coupon=SUMMER20&note=leave at the door";
+    private static final String ESCAPED_BODY = "{\"amount\": 42.00, \"currency\": \"€\", \"items\": [4711, 4712, 4713], " +
+        "\"shipping\": \"express\", \"note\": \"leave at the door\\nring twice\"}";
+
+    @Param({"ascii", "escaped"})
+    public String payload;
+
+    private DslJsonSerializer serializer;
+    private Transaction transaction;
+    private Span span;
+
+    public static void main(String[] args) throws Exception {
+        run(DslJsonSerializerBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        ElasticApmTracer tracer = new ElasticApmTracerBuilder().build();
+        serializer = new DslJsonSerializer(tracer.getConfig(StacktraceConfiguration.class), new ApmServerClient(tracer.getConfig(ReporterConfiguration.class)));
+        serializer.setOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        final boolean ascii = "ascii".equals(payload);
+
+        transaction = new Transaction(tracer).start(TraceContext.asRoot(), null, -1, ConstantSampler.of(true), null);
+        transaction.withName("OrderController#placeOrder").withType("request").withResult("HTTP 2xx");
+        final Request request = transaction.getContext().getRequest();
+        request.withMethod("POST").withHttpVersion("1.1");
+        request.addHeader("Content-Type", ascii ? "application/x-www-form-urlencoded" : "application/json");
+        request.addHeader("User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:78.0) Gecko/20100101 Firefox/78.0");
+        request.getUrl().withProtocol("https").withHostname("shop.example.com").withPort(443).withPathname("/api/orders");
+        final CharBuffer bodyBuffer = request.withBodyBuffer();
+        bodyBuffer.append(ascii ? ASCII_BODY : ESCAPED_BODY);
+        bodyBuffer.flip();
+        transaction.getContext().getResponse().withStatusCode(201).withFinished(true);
+
+        span = transaction.createSpan().withName("SELECT FROM orders").withType("db").withSubtype("postgresql").withAction("query");
+        span.getContext().getDb().withInstance("shop").withType("sql").withUser("shop");
+        final CharBuffer statementBuffer = span.getContext().getDb().withStatementBuffer();
+        statementBuffer.append(ascii ? ASCII_STATEMENT : ESCAPED_STATEMENT);
+        statementBuffer.flip();
+    }
+
+    @Benchmark
+    public int serializeTransaction() throws IOException {
+        serializer.serializeTransactionNdJson(transaction);
+        final int size = serializer.getBufferSize();
+        serializer.flush();
+        return size;
+    }
+
+    @Benchmark
+    public int serializeSpan() throws IOException {
+        serializer.serializeSpanNdJson(span);
+        final int size = serializer.getBufferSize();
+        serializer.flush();
+        return size;
+    }
+}
@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the heap memory the tracer retains per virtual thread.
+ * <p>
+ * Starts a million virtual threads which are parked while a transaction is active on them,
+ * after the transaction has been deactivated again, and after only looking up the active span.
+ * The memory is compared against virtual threads which don't interact with the tracer at all.
+ * Requires Java 21 (or Java 19 with {@code --enable-preview}) and a large heap, for example
+ * {@code java -Xmx4g -cp apm-agent-benchmarks/target/benchmarks.jar co.elastic.apm.agent.benchmark.VirtualThreadMemoryBenchmark}
+ * </p>
+ */
+public class VirtualThreadMemoryBenchmark {
+
+    private static final int THREADS = 1_000_000;
+
+    private enum Mode {
+        /**
+         * Doesn't interact with the tracer, which serves as the baseline
+         */
+        BASELINE,
+        /**
+         * Only looks up the active span, which happens for example in every instrumented executor
+         */
+        GET_ACTIVE,
+        /**
+         * The transaction is active while the virtual thread is parked
+         */
+        ACTIVE_WHILE_PARKED,
+        /**
+         * The transaction is activated and deactivated before the virtual thread is parked
+         */
+        DEACTIVATED_BEFORE_PARKING
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Method startVirtualThread = Thread.class.getMethod("startVirtualThread", Runnable.class);
+        final ElasticApmTracer tracer = new ElasticApmTracerBuilder().buildAndStart();
+        final Transaction transaction = tracer.startRootTransaction(null).withName("benchmark");
+        // warm up
+        measure(startVirtualThread, tracer, transaction, Mode.ACTIVE_WHILE_PARKED);
+        final long baseline = measure(startVirtualThread, tracer, transaction, Mode.BASELINE);
+        for (Mode mode : Mode.values()) {
+            final long usedBytes = measure(startVirtualThread, tracer, transaction, mode);
+            System.out.printf("%-27s %8.2f MiB per million virtual threads (%d bytes per virtual thread on top of the baseline)%n",
+                mode, usedBytes / 1024.0 / 1024.0 * 1_000_000 / THREADS, (usedBytes - baseline) / THREADS);
+        }
+        transaction.end();
+        tracer.stop();
+    }
+
+    private static long measure(Method startVirtualThread, final ElasticApmTracer tracer, final Transaction transaction, final Mode mode) throws Exception {
+        final CountDownLatch parked = new CountDownLatch(THREADS);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>(THREADS);
+        final long usedBefore = getUsedHeap();
+        for (int i = 0; i < THREADS; i++) {
+            threads.add((Thread) startVirtualThread.invoke(null, (Runnable) () -> {
+                switch (mode) {
+                    case GET_ACTIVE:
+                        tracer.getActive();
+                        break;
+                    case ACTIVE_WHILE_PARKED:
+                        transaction.activate();
+                        break;
+                    case DEACTIVATED_BEFORE_PARKING:
+                        transaction.activate().deactivate();
+                        break;
+                    default:
+                        break;
+                }
+                parked.countDown();
+                awaitUninterruptibly(release);
+                if (mode == Mode.ACTIVE_WHILE_PARKED) {
+                    transaction.deactivate();
+                }
+            }));
+        }
+        parked.await();
+        final long usedBytes = getUsedHeap() - usedBefore;
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return usedBytes;
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        while (true) {
+            try {
+                latch.await();
+                return;
+            } catch (InterruptedException ignore) {
+            }
+        }
+    }
+
+    private static long getUsedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,95 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark;
+
+import co.elastic.apm.agent.matcher.WildcardMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares trying a list of {@link WildcardMatcher}s one after another with a {@linkplain WildcardMatcher#compile(List) compiled} list,
+ * using URL patterns like the ones typically configured in {@code ignore_urls}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class WildcardMatcherBenchmark extends AbstractBenchmark {
+
+    @Param({"4", "16", "64", "256"})
+    public int patterns;
+
+    private List<WildcardMatcher> matchers;
+    private List<WildcardMatcher> compiledMatchers;
+    private final String matchingUrl = "/static/vendor/jquery.min.woff2";
+    private final String nonMatchingUrl = "/api/v1/customers/4711/orders";
+
+    public static void main(String[] args) throws Exception {
+        run(WildcardMatcherBenchmark.class);
+    }
+
+    @Setup
+    public void setUp() {
+        matchers = new ArrayList<>(patterns);
+        for (int i = 0; matchers.size() < patterns; i++) {
+            matchers.add(WildcardMatcher.valueOf("/internal/service-" + i + "/*"));
+            matchers.add(WildcardMatcher.valueOf("*.ext" + i));
+            matchers.add(WildcardMatcher.valueOf("*health-check-" + i + "*"));
+            matchers.add(WildcardMatcher.valueOf("/exact/path/" + i));
+        }
+        // the matching pattern comes last so that the loop has to try all other patterns
+        matchers.set(patterns - 1, WildcardMatcher.valueOf("*.woff2"));
+        compiledMatchers = WildcardMatcher.compile(matchers);
+    }
+
+    @Benchmark
+    public WildcardMatcher loopMatching() {
+        return WildcardMatcher.anyMatch(matchers, matchingUrl);
+    }
+
+    @Benchmark
+    public WildcardMatcher loopNonMatching() {
+        return WildcardMatcher.anyMatch(matchers, nonMatchingUrl);
+    }
+
+    @Benchmark
+    public WildcardMatcher compiledMatching() {
+        return WildcardMatcher.anyMatch(compiledMatchers, matchingUrl);
+    }
+
+    @Benchmark
+    public WildcardMatcher compiledNonMatching() {
+        return WildcardMatcher.anyMatch(compiledMatchers, nonMatchingUrl);
+    }
+}
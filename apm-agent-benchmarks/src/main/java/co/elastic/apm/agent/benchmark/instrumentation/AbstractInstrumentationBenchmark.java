@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.instrumentation;
+
+import co.elastic.apm.agent.benchmark.AbstractMockApmServerBenchmark;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base class for benchmarks which measure the overhead of a single instrumentation per operation.
+ * <p>
+ * Each benchmark is executed in every {@link AgentMode}, in a separate fork.
+ * Compare the results of {@link AgentMode#ACTIVE} and {@link AgentMode#UNSAMPLED} with {@link AgentMode#INACTIVE}
+ * to get the latency overhead per operation
+ * and the allocation overhead per operation ({@code gc.alloc.rate.norm} reported by the {@link org.openjdk.jmh.profile.GCProfiler}).
+ * </p>
+ * <p>
+ * Run all instrumentation benchmarks via
+ * {@code java -jar apm-agent-benchmarks/target/benchmarks.jar -prof gc "co.elastic.apm.agent.benchmark.instrumentation.*"}
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public abstract class AbstractInstrumentationBenchmark extends AbstractMockApmServerBenchmark {
+
+    public enum AgentMode {
+        /**
+         * The agent is neither active nor instrumenting, which serves as the baseline
+         */
+        INACTIVE,
+        /**
+         * All transactions are sampled, so that spans are recorded and reported
+         */
+        ACTIVE,
+        /**
+         * No transaction is sampled, so that only the trace context is created and propagated
+         */
+        UNSAMPLED
+    }
+
+    @Param({"INACTIVE", "ACTIVE", "UNSAMPLED"})
+    public AgentMode agentMode;
+
+    public AbstractInstrumentationBenchmark() {
+        super(true);
+    }
+
+    @Override
+    protected boolean isApmEnabled() {
+        return agentMode != AgentMode.INACTIVE;
+    }
+
+    @Override
+    protected void addAgentConfiguration(SimpleSource configuration) {
+        if (agentMode == AgentMode.UNSAMPLED) {
+            configuration.add("transaction_sample_rate", "0");
+        }
+    }
+
+    /**
+     * Starts and activates a transaction as the parent of the instrumented operation
+     *
+     * @return the transaction or {@code null} if the agent is {@link AgentMode#INACTIVE}
+     */
+    @Nullable
+    protected Transaction startTransaction() {
+        Transaction transaction = tracer.startRootTransaction(getClass().getClassLoader());
+        if (transaction != null) {
+            transaction.withName("benchmark").activate();
+        }
+        return transaction;
+    }
+
+    protected void endTransaction(@Nullable Transaction transaction) {
+        if (transaction != null) {
+            transaction.deactivate().end();
+        }
+    }
+}
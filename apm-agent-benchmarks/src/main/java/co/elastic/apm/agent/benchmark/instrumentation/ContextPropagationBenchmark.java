@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.instrumentation;
+
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the throughput of {@link CompletableFuture} chains for the different strategies of propagating the active context
+ * to the tasks of an executor (see the {@code executor_context_propagation} configuration option).
+ * <p>
+ * Every async stage of a chain is a task which is submitted to the executor,
+ * so that the context is captured and restored once per stage.
+ * With the {@code map} strategy, that's a put into and a remove from the global weak map,
+ * whereas the {@code wrapper} strategy allocates a wrapper per stage.
+ * </p>
+ * <p>
+ * The {@code contextPropagation} parameter does not have an effect if the agent is {@link AgentMode#INACTIVE}.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ContextPropagationBenchmark extends AbstractInstrumentationBenchmark {
+
+    private static final int STAGES = 4;
+
+    @Param({"map", "wrapper"})
+    public String contextPropagation;
+
+    private ExecutorService executor;
+
+    public static void main(String[] args) throws RunnerException {
+        run(ContextPropagationBenchmark.class);
+    }
+
+    @Override
+    public void setUp(Blackhole blackhole) throws IOException {
+        super.setUp(blackhole);
+        // created after the agent has been initialized so that the executor is instrumented
+        executor = Executors.newFixedThreadPool(STAGES);
+    }
+
+    @Override
+    protected void addAgentConfiguration(SimpleSource configuration) {
+        super.addAgentConfiguration(configuration);
+        configuration.add("executor_context_propagation", contextPropagation);
+        // the executors are part of the JDK which is excluded by default in the benchmarks
+        configuration.add("classes_excluded_from_instrumentation", "");
+    }
+
+    @Benchmark
+    public Object completableFutureChain() {
+        Transaction transaction = startTransaction();
+        try {
+            CompletableFuture<Integer> future = CompletableFuture.supplyAsync(() -> tracer.getActive() != null ? 1 : 0, executor);
+            for (int i = 1; i < STAGES; i++) {
+                future = future.thenApplyAsync(previous -> previous + (tracer.getActive() != null ? 1 : 0), executor);
+            }
+            return future.join();
+        } finally {
+            endTransaction(transaction);
+        }
+    }
+
+    @Benchmark
+    public Object completableFutureChainCommonPool() {
+        Transaction transaction = startTransaction();
+        try {
+            CompletableFuture<Integer> future = CompletableFuture.supplyAsync(() -> tracer.getActive() != null ? 1 : 0);
+            for (int i = 1; i < STAGES; i++) {
+                future = future.thenApplyAsync(previous -> previous + (tracer.getActive() != null ? 1 : 0));
+            }
+            return future.join();
+        } finally {
+            endTransaction(transaction);
+        }
+    }
+
+    @Override
+    @TearDown
+    public void tearDown() throws ExecutionException, InterruptedException {
+        executor.shutdown();
+        super.tearDown();
+    }
+}
@@ -0,0 +1,95 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.instrumentation;
+
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures the overhead of propagating the active context to a task which is executed by an {@link ExecutorService}.
+ */
+public class ExecutorInstrumentationBenchmark extends AbstractInstrumentationBenchmark {
+
+    private ExecutorService executor;
+    private Runnable runnable;
+    private Callable<Object> callable;
+
+    public static void main(String[] args) throws RunnerException {
+        run(ExecutorInstrumentationBenchmark.class);
+    }
+
+    @Override
+    public void setUp(final Blackhole blackhole) throws IOException {
+        super.setUp(blackhole);
+        // created after the agent has been initialized so that the executor is instrumented
+        executor = Executors.newSingleThreadExecutor();
+        runnable = () -> blackhole.consume(tracer.getActive());
+        callable = () -> tracer.getActive();
+    }
+
+    @Override
+    protected void addAgentConfiguration(SimpleSource configuration) {
+        super.addAgentConfiguration(configuration);
+        // the executors are part of the JDK which is excluded by default in the benchmarks
+        configuration.add("classes_excluded_from_instrumentation", "");
+    }
+
+    @Benchmark
+    public Object submitRunnable() throws ExecutionException, InterruptedException {
+        Transaction transaction = startTransaction();
+        try {
+            return executor.submit(runnable).get();
+        } finally {
+            endTransaction(transaction);
+        }
+    }
+
+    @Benchmark
+    public Object submitCallable() throws ExecutionException, InterruptedException {
+        Transaction transaction = startTransaction();
+        try {
+            return executor.submit(callable).get();
+        } finally {
+            endTransaction(transaction);
+        }
+    }
+
+    @Override
+    @TearDown
+    public void tearDown() throws ExecutionException, InterruptedException {
+        executor.shutdown();
+        super.tearDown();
+    }
+}
@@ -0,0 +1,97 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.instrumentation;
+
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import io.undertow.Undertow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Measures the overhead of creating an exit span and propagating the trace context for outgoing {@link HttpURLConnection} requests.
+ * The requests are sent to a local server which responds with an empty body.
+ */
+public class HttpUrlConnectionInstrumentationBenchmark extends AbstractInstrumentationBenchmark {
+
+    private final byte[] buffer = new byte[1024];
+    private Undertow targetServer;
+    private URL url;
+
+    public static void main(String[] args) throws RunnerException {
+        run(HttpUrlConnectionInstrumentationBenchmark.class);
+    }
+
+    @Override
+    public void setUp(Blackhole blackhole) throws IOException {
+        targetServer = Undertow.builder()
+            .addHttpListener(0, "127.0.0.1")
+            .setHandler(exchange -> exchange.setStatusCode(200).endExchange())
+            .build();
+        targetServer.start();
+        int port = ((InetSocketAddress) targetServer.getListenerInfo().get(0).getAddress()).getPort();
+        url = new URL("http://127.0.0.1:" + port + "/");
+        super.setUp(blackhole);
+    }
+
+    @Override
+    protected void addAgentConfiguration(SimpleSource configuration) {
+        super.addAgentConfiguration(configuration);
+        // HttpURLConnection and its implementations are part of the JDK which is excluded by default in the benchmarks
+        configuration.add("classes_excluded_from_instrumentation", "");
+    }
+
+    @Benchmark
+    public int sendRequest() throws IOException {
+        Transaction transaction = startTransaction();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            int responseCode = connection.getResponseCode();
+            try (InputStream is = connection.getInputStream()) {
+                while (is.read(buffer) != -1) {
+                }
+            }
+            return responseCode;
+        } finally {
+            endTransaction(transaction);
+        }
+    }
+
+    @Override
+    @TearDown
+    public void tearDown() throws ExecutionException, InterruptedException {
+        super.tearDown();
+        targetServer.stop();
+    }
+}
@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.instrumentation;
+
+import co.elastic.apm.agent.benchmark.sql.BlackholeConnection;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Measures the overhead of capturing a JDBC statement.
+ * The statements are executed on a {@link BlackholeConnection} which does not perform any I/O.
+ */
+public class JdbcInstrumentationBenchmark extends AbstractInstrumentationBenchmark {
+
+    private BlackholeConnection connection;
+
+    public static void main(String[] args) throws RunnerException {
+        run(JdbcInstrumentationBenchmark.class);
+    }
+
+    @Override
+    public void setUp(Blackhole blackhole) throws IOException {
+        super.setUp(blackhole);
+        connection = BlackholeConnection.INSTANCE;
+        connection.init(blackhole);
+    }
+
+    @Benchmark
+    public ResultSet executePreparedStatement() throws SQLException {
+        Transaction transaction = startTransaction();
+        try {
+            PreparedStatement preparedStatement = connection.prepareStatement("SELECT * FROM ELASTIC_APM WHERE foo=?");
+            preparedStatement.setInt(1, 1);
+            return preparedStatement.executeQuery();
+        } finally {
+            endTransaction(transaction);
+        }
+    }
+
+    @Benchmark
+    public ResultSet executeStatement() throws SQLException {
+        Transaction transaction = startTransaction();
+        try {
+            return connection.createStatement().executeQuery("SELECT * FROM ELASTIC_APM WHERE foo=1");
+        } finally {
+            endTransaction(transaction);
+        }
+    }
+
+    /**
+     * The baseline for the other benchmarks, as starting and ending the transaction is part of every benchmark
+     */
+    @Benchmark
+    public void transactionOnly() {
+        endTransaction(startTransaction());
+    }
+}
@@ -0,0 +1,180 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.instrumentation;
+
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import kafka.server.KafkaServerStartable;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+
+import javax.net.ServerSocketFactory;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Measures the overhead of the Kafka instrumentation when sending and when consuming records.
+ * <p>
+ * The records are sent to an embedded, single-node broker, so that {@link KafkaProducer#send} succeeds just like in production.
+ * The segments of the topic are small and deleted quickly, so that the benchmark doesn't fill up the disk.
+ * The consumer side is measured by iterating over {@link ConsumerRecords} which are created up-front,
+ * which creates a transaction for each record.
+ * </p>
+ */
+public class KafkaInstrumentationBenchmark extends AbstractInstrumentationBenchmark {
+
+    private static final String TOPIC = "benchmark";
+    private Path zookeeperDir;
+    private Path kafkaDir;
+    private ZooKeeperServer zookeeper;
+    private ServerCnxnFactory zookeeperConnections;
+    private KafkaServerStartable broker;
+    private KafkaProducer<String, String> producer;
+    private ConsumerRecords<String, String> consumerRecords;
+
+    public static void main(String[] args) throws RunnerException {
+        run(KafkaInstrumentationBenchmark.class);
+    }
+
+    @Override
+    public void setUp(Blackhole blackhole) throws IOException {
+        super.setUp(blackhole);
+        String bootstrapServers = startBroker();
+        Properties properties = new Properties();
+        properties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
+        properties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        properties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        producer = new KafkaProducer<>(properties);
+        // blocks until the topic has been auto-created, so that the measured sends don't wait for the cluster metadata
+        producer.partitionsFor(TOPIC);
+
+        List<ConsumerRecord<String, String>> records = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            records.add(new ConsumerRecord<>(TOPIC, 0, i, "key", "value"));
+        }
+        consumerRecords = new ConsumerRecords<>(Collections.singletonMap(new TopicPartition(TOPIC, 0), records));
+    }
+
+    private String startBroker() throws IOException {
+        zookeeperDir = Files.createTempDirectory("zookeeper-");
+        kafkaDir = Files.createTempDirectory("kafka-");
+        zookeeper = new ZooKeeperServer(zookeeperDir.toFile(), zookeeperDir.toFile(), 2000);
+        zookeeperConnections = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), 16);
+        try {
+            zookeeperConnections.startup(zookeeper);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+
+        int kafkaPort = getAvailablePort();
+        Properties properties = new Properties();
+        properties.put("broker.id", "0");
+        properties.put("zookeeper.connect", "127.0.0.1:" + zookeeperConnections.getLocalPort());
+        properties.put("listeners", "PLAINTEXT://127.0.0.1:" + kafkaPort);
+        properties.put("log.dirs", kafkaDir.toString());
+        properties.put("num.partitions", "1");
+        properties.put("offsets.topic.replication.factor", "1");
+        properties.put("log.segment.bytes", Integer.toString(1024 * 1024));
+        properties.put("log.retention.bytes", Integer.toString(10 * 1024 * 1024));
+        properties.put("log.retention.check.interval.ms", "1000");
+        broker = KafkaServerStartable.fromProps(properties);
+        broker.startup();
+        return "127.0.0.1:" + kafkaPort;
+    }
+
+    private static int getAvailablePort() throws IOException {
+        try (ServerSocket socket = ServerSocketFactory.getDefault().createServerSocket(0, 1, InetAddress.getByName("localhost"))) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Benchmark
+    public Future<?> send() {
+        Transaction transaction = startTransaction();
+        try {
+            return producer.send(new ProducerRecord<>(TOPIC, "key", "value"));
+        } finally {
+            endTransaction(transaction);
+        }
+    }
+
+    /**
+     * Iterates over 10 records, so the overhead per record is a tenth of the difference to the baseline
+     */
+    @Benchmark
+    public void consume(Blackhole blackhole) {
+        for (ConsumerRecord<String, String> record : consumerRecords) {
+            blackhole.consume(record);
+        }
+    }
+
+    @Override
+    @TearDown
+    public void tearDown() throws ExecutionException, InterruptedException {
+        producer.close();
+        broker.shutdown();
+        broker.awaitShutdown();
+        zookeeperConnections.shutdown();
+        zookeeper.shutdown();
+        deleteRecursively(kafkaDir);
+        deleteRecursively(zookeeperDir);
+        super.tearDown();
+    }
+
+    private static void deleteRecursively(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths
+                .sorted(Comparator.reverseOrder())
+                .map(Path::toFile)
+                .forEach(File::delete);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.instrumentation;
+
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.runner.RunnerException;
+import org.slf4j.MDC;
+import org.stagemonitor.configuration.source.SimpleSource;
+
+import javax.annotation.Nullable;
+
+/**
+ * Measures the overhead of adding and removing the trace, transaction and span ids to and from the MDC
+ * whenever a transaction or span is activated and deactivated.
+ */
+public class LogCorrelationInstrumentationBenchmark extends AbstractInstrumentationBenchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        run(LogCorrelationInstrumentationBenchmark.class);
+    }
+
+    @Override
+    protected void addAgentConfiguration(SimpleSource configuration) {
+        super.addAgentConfiguration(configuration);
+        configuration.add("enable_log_correlation", "true");
+    }
+
+    @Benchmark
+    @Nullable
+    public Object activateTransaction() {
+        Transaction transaction = startTransaction();
+        try {
+            return MDC.get("trace.id");
+        } finally {
+            endTransaction(transaction);
+        }
+    }
+
+    @Benchmark
+    @Nullable
+    public Object activateSpan() {
+        Transaction transaction = startTransaction();
+        try {
+            if (transaction != null) {
+                Span span = transaction.createSpan().withName("span").activate();
+                try {
+                    return MDC.get("span.id");
+                } finally {
+                    span.deactivate().end();
+                }
+            }
+            return null;
+        } finally {
+            endTransaction(transaction);
+        }
+    }
+}
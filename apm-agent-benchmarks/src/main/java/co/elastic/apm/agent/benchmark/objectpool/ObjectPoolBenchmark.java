@@ -29,6 +29,7 @@ import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.objectpool.ObjectPool;
+import co.elastic.apm.agent.objectpool.impl.MagazineObjectPool;
 import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
 import co.elastic.apm.agent.objectpool.impl.ThreadLocalObjectPool;
 import org.agrona.concurrent.ManyToManyConcurrentArrayQueue;
@@ -41,7 +42,10 @@ import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
 
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -56,9 +60,37 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
     private ObjectPool<Transaction> threadLocalObjectPool;
     private ObjectPool<Transaction> jctoolsQueueObjectPool;
     private ObjectPool<Transaction> jctoolsAtomicQueueObjectPool;
+    private ObjectPool<Transaction> magazineObjectPool;
 
     public static void main(String[] args) throws RunnerException {
-        run(ObjectPoolBenchmark.class);
+        if (args.length > 0 && "scaling".equals(args[0])) {
+            runScaling();
+        } else {
+            run(ObjectPoolBenchmark.class);
+        }
+    }
+
+    /**
+     * Compares how the default pool ({@link #testJctoolsAtomicQueueObjectPool()}) and the {@link MagazineObjectPool}
+     * scale from one thread up to the number of available processors.
+     * The thread count of the runner options overrides the {@link Threads} annotations.
+     */
+    public static void runScaling() throws RunnerException {
+        final int maxThreads = Runtime.getRuntime().availableProcessors();
+        int threads = 1;
+        while (true) {
+            new Runner(new OptionsBuilder()
+                .include(ObjectPoolBenchmark.class.getSimpleName() + ".test(JctoolsAtomicQueue|Magazine)ObjectPool")
+                .threads(threads)
+                .measurementTime(TimeValue.seconds(1))
+                .warmupTime(TimeValue.seconds(1))
+                .build())
+                .run();
+            if (threads >= maxThreads) {
+                return;
+            }
+            threads = Math.min(threads * 2, maxThreads);
+        }
     }
 
     @Setup
@@ -69,6 +101,7 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         jctoolsAtomicQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new MpmcAtomicArrayQueue<>(256), true, () -> new Transaction(tracer));
         agronaQueueObjectPool = QueueBasedObjectPool.ofRecyclable(new ManyToManyConcurrentArrayQueue<>(256), true, () -> new Transaction(tracer));
         threadLocalObjectPool = new ThreadLocalObjectPool<>(64, true, () -> new Transaction(tracer));
+        magazineObjectPool = MagazineObjectPool.ofRecyclable(256, 16, () -> new Transaction(tracer));
     }
 
     @TearDown
@@ -122,4 +155,12 @@ public class ObjectPoolBenchmark extends AbstractBenchmark {
         return transaction;
     }
 
+    @Benchmark
+    @Threads(8)
+    public Transaction testMagazineObjectPool() {
+        Transaction transaction = magazineObjectPool.createInstance();
+        magazineObjectPool.recycle(transaction);
+        return transaction;
+    }
+
 }
@@ -0,0 +1,205 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.regression;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The metrics of a single JMH benchmark which are relevant for detecting regressions in the overhead of the agent:
+ * the primary metric (throughput or time per operation) and the allocations per operation, as reported by the GC profiler.
+ */
+class BenchmarkMetrics {
+
+    static final String PRIMARY_METRIC = "primary";
+    static final String ALLOCATION_METRIC = "gc.alloc.rate.norm";
+
+    /**
+     * The benchmark method, including its parameters, for example {@code JdbcInstrumentationBenchmark.executeStatement:agentMode=ACTIVE}
+     */
+    private final String key;
+    /**
+     * The JMH mode, for example {@code thrpt} or {@code avgt}
+     */
+    private final String mode;
+    private final Map<String, Metric> metrics = new LinkedHashMap<>();
+
+    private BenchmarkMetrics(String key, String mode) {
+        this.key = key;
+        this.mode = mode;
+    }
+
+    /**
+     * Parses a benchmark of a JMH result file ({@code -rf json})
+     * or of a baseline file which has been created by {@link #toJson()}.
+     */
+    static BenchmarkMetrics parse(JsonNode benchmark) {
+        final String mode = benchmark.get("mode").textValue();
+        final BenchmarkMetrics result = new BenchmarkMetrics(getKey(benchmark), mode);
+        result.metrics.put(PRIMARY_METRIC, Metric.parse(benchmark.get("primaryMetric"), !"thrpt".equals(mode)));
+        final JsonNode secondaryMetrics = benchmark.get("secondaryMetrics");
+        if (secondaryMetrics != null) {
+            for (Iterator<Map.Entry<String, JsonNode>> it = secondaryMetrics.fields(); it.hasNext(); ) {
+                final Map.Entry<String, JsonNode> entry = it.next();
+                // JMH prefixes the names of secondary metrics with a non-ASCII character, which might have been stripped
+                if (entry.getKey().endsWith(ALLOCATION_METRIC)) {
+                    result.metrics.put(ALLOCATION_METRIC, Metric.parse(entry.getValue(), true));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String getKey(JsonNode benchmark) {
+        final String benchmarkName = benchmark.get("benchmark").textValue();
+        final StringBuilder key = new StringBuilder(benchmarkName.substring(benchmarkName.lastIndexOf('.', benchmarkName.lastIndexOf('.') - 1) + 1));
+        final JsonNode params = benchmark.get("params");
+        if (params != null) {
+            final Map<String, String> sortedParams = new TreeMap<>();
+            for (Iterator<Map.Entry<String, JsonNode>> it = params.fields(); it.hasNext(); ) {
+                final Map.Entry<String, JsonNode> param = it.next();
+                sortedParams.put(param.getKey(), param.getValue().asText());
+            }
+            char separator = ':';
+            for (Map.Entry<String, String> param : sortedParams.entrySet()) {
+                key.append(separator).append(param.getKey()).append('=').append(param.getValue());
+                separator = ',';
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Serializes the metrics in a format which is compatible with the JMH result format,
+     * leaving out everything that is not needed to compare against a baseline.
+     */
+    ObjectNode toJson() {
+        final ObjectNode benchmark = JsonNodeFactory.instance.objectNode();
+        final int paramsIndex = key.indexOf(':');
+        benchmark.put("benchmark", paramsIndex < 0 ? key : key.substring(0, paramsIndex));
+        benchmark.put("mode", mode);
+        if (paramsIndex >= 0) {
+            final ObjectNode params = benchmark.putObject("params");
+            for (String param : key.substring(paramsIndex + 1).split(",")) {
+                final int equalsIndex = param.indexOf('=');
+                params.put(param.substring(0, equalsIndex), param.substring(equalsIndex + 1));
+            }
+        }
+        benchmark.set("primaryMetric", metrics.get(PRIMARY_METRIC).toJson());
+        final Metric allocation = metrics.get(ALLOCATION_METRIC);
+        if (allocation != null) {
+            benchmark.putObject("secondaryMetrics").set(ALLOCATION_METRIC, allocation.toJson());
+        }
+        return benchmark;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    Map<String, Metric> getMetrics() {
+        return metrics;
+    }
+
+    static class Metric {
+        private final double score;
+        private final double scoreError;
+        private final String scoreUnit;
+        private final double[] samples;
+        private final boolean lowerIsBetter;
+
+        private Metric(double score, double scoreError, String scoreUnit, double[] samples, boolean lowerIsBetter) {
+            this.score = score;
+            this.scoreError = scoreError;
+            this.scoreUnit = scoreUnit;
+            this.samples = samples;
+            this.lowerIsBetter = lowerIsBetter;
+        }
+
+        private static Metric parse(JsonNode metric, boolean lowerIsBetter) {
+            final List<Double> samples = new ArrayList<>();
+            final JsonNode rawData = metric.get("rawData");
+            if (rawData != null) {
+                for (JsonNode fork : rawData) {
+                    for (JsonNode iteration : fork) {
+                        samples.add(iteration.doubleValue());
+                    }
+                }
+            }
+            final double[] samplesArray = new double[samples.size()];
+            for (int i = 0; i < samplesArray.length; i++) {
+                samplesArray[i] = samples.get(i);
+            }
+            final JsonNode scoreError = metric.get("scoreError");
+            return new Metric(metric.get("score").doubleValue(),
+                scoreError != null && scoreError.isNumber() ? scoreError.doubleValue() : Double.NaN,
+                metric.get("scoreUnit").textValue(), samplesArray, lowerIsBetter);
+        }
+
+        private ObjectNode toJson() {
+            final ObjectNode metric = JsonNodeFactory.instance.objectNode();
+            metric.put("score", score);
+            if (!Double.isNaN(scoreError)) {
+                metric.put("scoreError", scoreError);
+            }
+            metric.put("scoreUnit", scoreUnit);
+            // a single fork as the number of forks is irrelevant for the comparison
+            final ArrayNode fork = metric.putArray("rawData").addArray();
+            for (double sample : samples) {
+                fork.add(sample);
+            }
+            return metric;
+        }
+
+        double getScore() {
+            return score;
+        }
+
+        double getScoreError() {
+            return scoreError;
+        }
+
+        String getScoreUnit() {
+            return scoreUnit;
+        }
+
+        double[] getSamples() {
+            return samples;
+        }
+
+        boolean isLowerBetter() {
+            return lowerIsBetter;
+        }
+    }
+}
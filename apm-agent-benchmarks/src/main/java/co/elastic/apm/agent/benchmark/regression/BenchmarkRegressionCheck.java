@@ -0,0 +1,228 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.regression;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares the results of a JMH run against a baseline which is stored in the repository
+ * and fails if the overhead of the agent has regressed.
+ * <p>
+ * A metric has regressed if it is significantly worse than the baseline according to a {@link MannWhitneyUTest}
+ * on the measurement iterations and if the difference of the scores exceeds a relative threshold.
+ * The threshold makes sure that small but consistent differences,
+ * which are expected when running on a different machine or JDK, don't fail the check.
+ * Both the primary metric and the allocations per operation ({@code -prof gc}) are checked.
+ * </p>
+ * <p>
+ * Usage:
+ * <pre>
+ * java -cp apm-agent-benchmarks/target/benchmarks.jar co.elastic.apm.agent.benchmark.regression.BenchmarkRegressionCheck \
+ *     store &lt;jmh-result.json&gt; &lt;baseline.json&gt;
+ * java -cp apm-agent-benchmarks/target/benchmarks.jar co.elastic.apm.agent.benchmark.regression.BenchmarkRegressionCheck \
+ *     compare &lt;jmh-result.json&gt; &lt;baseline.json&gt; [max-regression-percent (default 5)] [significance-level (default 0.01)]
+ * </pre>
+ * The JMH result file is created by running the benchmarks with {@code -rf json -rff <jmh-result.json>}.
+ * The {@code compare} command exits with status {@code 1} if at least one metric has regressed
+ * or if a benchmark of the baseline is missing in the results.
+ * Therefore, the results have to be created with the same benchmark selection as the baseline.
+ * </p>
+ */
+public class BenchmarkRegressionCheck {
+
+    private static final double DEFAULT_MAX_REGRESSION_PERCENT = 5;
+    private static final double DEFAULT_SIGNIFICANCE_LEVEL = 0.01;
+    /**
+     * Differences in allocations below one byte per operation are caused by the benchmark infrastructure,
+     * not by the agent, and are ignored regardless of how big they are in relative terms
+     */
+    private static final double MIN_ALLOCATION_DIFFERENCE = 1;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final double maxRegressionPercent;
+    private final double significanceLevel;
+
+    BenchmarkRegressionCheck(double maxRegressionPercent, double significanceLevel) {
+        this.maxRegressionPercent = maxRegressionPercent;
+        this.significanceLevel = significanceLevel;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: (store|compare) <jmh-result.json> <baseline.json> [max-regression-percent] [significance-level]");
+            System.exit(2);
+        }
+        final BenchmarkRegressionCheck check = new BenchmarkRegressionCheck(
+            args.length > 3 ? Double.parseDouble(args[3]) : DEFAULT_MAX_REGRESSION_PERCENT,
+            args.length > 4 ? Double.parseDouble(args[4]) : DEFAULT_SIGNIFICANCE_LEVEL);
+        final File results = new File(args[1]);
+        final File baseline = new File(args[2]);
+        if ("store".equals(args[0])) {
+            check.storeBaseline(results, baseline);
+            System.out.println("Stored baseline " + baseline);
+        } else if ("compare".equals(args[0])) {
+            if (check.compare(results, baseline, System.out) > 0) {
+                System.exit(1);
+            }
+        } else {
+            System.err.println("Unknown command " + args[0]);
+            System.exit(2);
+        }
+    }
+
+    void storeBaseline(File jmhResults, File baselineFile) throws IOException {
+        final ObjectNode baseline = objectMapper.createObjectNode();
+        baseline.putObject("meta")
+            .put("jdk_version", System.getProperty("java.version"))
+            .put("os_name", System.getProperty("os.name"))
+            .put("os_version", System.getProperty("os.version"))
+            .put("created_at", Instant.now().toString());
+        final ArrayNode benchmarks = baseline.putArray("benchmarks");
+        for (BenchmarkMetrics benchmark : readJmhResults(jmhResults).values()) {
+            benchmarks.add(benchmark.toJson());
+        }
+        final File parent = baselineFile.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(baselineFile, baseline);
+    }
+
+    /**
+     * Compares the JMH results against the baseline and prints a report
+     *
+     * @return the number of regressed metrics plus the number of benchmarks of the baseline which are missing in the results
+     */
+    int compare(File jmhResults, File baselineFile, PrintStream out) throws IOException {
+        final JsonNode baselineJson = objectMapper.readTree(baselineFile);
+        final Map<String, BenchmarkMetrics> baseline = readBenchmarks(baselineJson.get("benchmarks"));
+        final Map<String, BenchmarkMetrics> current = readJmhResults(jmhResults);
+
+        out.printf("Comparing %s against baseline %s (%s)%n", jmhResults, baselineFile, baselineJson.get("meta"));
+        out.printf("A metric has regressed if it's more than %s%% worse with a significance level of %s%n%n", maxRegressionPercent, significanceLevel);
+        out.printf("%-10s %-18s %14s %14s %10s %8s  %s%n", "RESULT", "METRIC", "BASELINE", "CURRENT", "CHANGE", "P(WORSE)", "BENCHMARK");
+        int regressions = 0;
+        for (BenchmarkMetrics benchmark : current.values()) {
+            final BenchmarkMetrics baselineBenchmark = baseline.get(benchmark.getKey());
+            for (Map.Entry<String, BenchmarkMetrics.Metric> entry : benchmark.getMetrics().entrySet()) {
+                final BenchmarkMetrics.Metric metric = entry.getValue();
+                final BenchmarkMetrics.Metric baselineMetric = baselineBenchmark != null ? baselineBenchmark.getMetrics().get(entry.getKey()) : null;
+                if (baselineMetric == null) {
+                    out.printf("%-10s %-18s %14s %14s %10s %8s  %s%n", "NEW", entry.getKey(), "-",
+                        formatScore(metric), "-", "-", benchmark.getKey());
+                    continue;
+                }
+                final Result result = compare(entry.getKey(), baselineMetric, metric);
+                if (result == Result.REGRESSED) {
+                    regressions++;
+                }
+                out.printf("%-10s %-18s %14s %14s %9.1f%% %8.4f  %s%n", result, entry.getKey(), formatScore(baselineMetric),
+                    formatScore(metric), getChangePercent(baselineMetric, metric), getPValueWorse(baselineMetric, metric), benchmark.getKey());
+            }
+        }
+        int missing = 0;
+        for (BenchmarkMetrics baselineBenchmark : baseline.values()) {
+            if (!current.containsKey(baselineBenchmark.getKey())) {
+                missing++;
+                out.printf("%-10s %-18s %14s %14s %10s %8s  %s%n", "MISSING", "-", "-", "-", "-", "-", baselineBenchmark.getKey());
+            }
+        }
+        out.printf("%n%s%n", regressions == 0 ? "No regressions" : regressions + " regressed metric(s)");
+        if (missing > 0) {
+            out.printf("%s benchmark(s) of the baseline are missing, make sure to run the same benchmarks the baseline has been recorded with%n", missing);
+        }
+        return regressions + missing;
+    }
+
+    enum Result {
+        OK, IMPROVED, REGRESSED
+    }
+
+    Result compare(String metricName, BenchmarkMetrics.Metric baseline, BenchmarkMetrics.Metric current) {
+        final double difference = Math.abs(current.getScore() - baseline.getScore());
+        if (BenchmarkMetrics.ALLOCATION_METRIC.equals(metricName) && difference < MIN_ALLOCATION_DIFFERENCE) {
+            return Result.OK;
+        }
+        if (difference <= Math.abs(baseline.getScore()) * maxRegressionPercent / 100) {
+            return Result.OK;
+        }
+        if (isWorse(baseline, current) && getPValueWorse(baseline, current) < significanceLevel) {
+            return Result.REGRESSED;
+        }
+        if (!isWorse(baseline, current) && getPValueWorse(current, baseline) < significanceLevel) {
+            return Result.IMPROVED;
+        }
+        return Result.OK;
+    }
+
+    private static boolean isWorse(BenchmarkMetrics.Metric baseline, BenchmarkMetrics.Metric current) {
+        return baseline.isLowerBetter() ? current.getScore() > baseline.getScore() : current.getScore() < baseline.getScore();
+    }
+
+    /**
+     * Returns the p-value for the hypothesis that the samples of {@code current} are worse than the samples of {@code baseline}
+     */
+    private static double getPValueWorse(BenchmarkMetrics.Metric baseline, BenchmarkMetrics.Metric current) {
+        if (baseline.isLowerBetter()) {
+            return MannWhitneyUTest.pValueGreater(current.getSamples(), baseline.getSamples());
+        } else {
+            return MannWhitneyUTest.pValueGreater(baseline.getSamples(), current.getSamples());
+        }
+    }
+
+    private static double getChangePercent(BenchmarkMetrics.Metric baseline, BenchmarkMetrics.Metric current) {
+        if (baseline.getScore() == 0) {
+            return current.getScore() == 0 ? 0 : Double.POSITIVE_INFINITY;
+        }
+        return (current.getScore() - baseline.getScore()) / Math.abs(baseline.getScore()) * 100;
+    }
+
+    private static String formatScore(BenchmarkMetrics.Metric metric) {
+        return String.format("%.2f %s", metric.getScore(), metric.getScoreUnit());
+    }
+
+    private Map<String, BenchmarkMetrics> readJmhResults(File jmhResults) throws IOException {
+        return readBenchmarks(objectMapper.readTree(jmhResults));
+    }
+
+    private static Map<String, BenchmarkMetrics> readBenchmarks(JsonNode benchmarks) {
+        final Map<String, BenchmarkMetrics> result = new LinkedHashMap<>();
+        for (JsonNode benchmark : benchmarks) {
+            final BenchmarkMetrics metrics = BenchmarkMetrics.parse(benchmark);
+            result.put(metrics.getKey(), metrics);
+        }
+        return result;
+    }
+}
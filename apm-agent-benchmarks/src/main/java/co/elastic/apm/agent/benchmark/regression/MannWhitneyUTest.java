@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.regression;
+
+import java.util.Arrays;
+
+/**
+ * A one-sided Mann-Whitney U test, using the normal approximation with tie and continuity correction.
+ * <p>
+ * As opposed to a t-test, this test does not assume the samples to be normally distributed,
+ * which makes it robust against the outliers that are common in benchmark iterations,
+ * for example due to JIT compilation or GC pauses.
+ * </p>
+ */
+class MannWhitneyUTest {
+
+    private MannWhitneyUTest() {
+    }
+
+    /**
+     * Returns the probability of observing samples in {@code x} which are at least as much greater than the samples in {@code y},
+     * under the null hypothesis that both samples are drawn from the same distribution.
+     *
+     * @param x the samples which are suspected to be greater
+     * @param y the samples to compare against
+     * @return the p-value of the one-sided test, {@code 1} if there's no variance across both samples
+     */
+    static double pValueGreater(double[] x, double[] y) {
+        final int n1 = x.length;
+        final int n2 = y.length;
+        if (n1 == 0 || n2 == 0) {
+            return 1;
+        }
+        final int n = n1 + n2;
+        final double[] all = new double[n];
+        System.arraycopy(x, 0, all, 0, n1);
+        System.arraycopy(y, 0, all, n1, n2);
+        Arrays.sort(all);
+
+        double rankSumX = 0;
+        for (double value : x) {
+            rankSumX += averageRank(all, value);
+        }
+        final double u = rankSumX - n1 * (n1 + 1) / 2.0;
+        final double mean = n1 * (double) n2 / 2;
+        final double variance = n1 * (double) n2 / 12 * ((n + 1) - tieCorrection(all) / (n * (n - 1.0)));
+        if (variance <= 0) {
+            return 1;
+        }
+        final double z = (u - mean - 0.5) / Math.sqrt(variance);
+        return 1 - standardNormalCdf(z);
+    }
+
+    /**
+     * Returns the 1-based rank of the value, averaged over all values which are equal to it
+     */
+    private static double averageRank(double[] sorted, double value) {
+        int first = Arrays.binarySearch(sorted, value);
+        int last = first;
+        while (first > 0 && sorted[first - 1] == value) {
+            first--;
+        }
+        while (last < sorted.length - 1 && sorted[last + 1] == value) {
+            last++;
+        }
+        return (first + last) / 2.0 + 1;
+    }
+
+    /**
+     * Returns {@code sum(t^3 - t)}, where {@code t} is the number of values in each group of ties
+     */
+    private static double tieCorrection(double[] sorted) {
+        double correction = 0;
+        int i = 0;
+        while (i < sorted.length) {
+            int ties = 1;
+            while (i + ties < sorted.length && sorted[i + ties] == sorted[i]) {
+                ties++;
+            }
+            correction += (double) ties * ties * ties - ties;
+            i += ties;
+        }
+        return correction;
+    }
+
+    static double standardNormalCdf(double z) {
+        return 0.5 * erfc(-z / Math.sqrt(2));
+    }
+
+    /**
+     * Complementary error function with a fractional error of less than 1.2E-7
+     * (see Numerical Recipes, 6.2 Incomplete Gamma Function, Error Function)
+     */
+    private static double erfc(double x) {
+        final double z = Math.abs(x);
+        final double t = 1 / (1 + 0.5 * z);
+        final double result = t * Math.exp(-z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418
+            + t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587
+            + t * (-0.82215223 + t * 0.17087277)))))))));
+        return x >= 0 ? result : 2 - result;
+    }
+}
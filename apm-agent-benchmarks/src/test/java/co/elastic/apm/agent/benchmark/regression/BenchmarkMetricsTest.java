@@ -0,0 +1,139 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.regression;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BenchmarkMetricsTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void testParseJmhResult() {
+        BenchmarkMetrics benchmark = BenchmarkMetrics.parse(createJmhResult());
+
+        assertThat(benchmark.getKey()).isEqualTo("JdbcInstrumentationBenchmark.executeStatement:agentMode=ACTIVE,statements=10");
+        assertThat(benchmark.getMetrics()).containsOnlyKeys(BenchmarkMetrics.PRIMARY_METRIC, BenchmarkMetrics.ALLOCATION_METRIC);
+
+        BenchmarkMetrics.Metric primary = benchmark.getMetrics().get(BenchmarkMetrics.PRIMARY_METRIC);
+        assertThat(primary.getScore()).isEqualTo(1234.5);
+        assertThat(primary.getScoreError()).isEqualTo(12.3);
+        assertThat(primary.getScoreUnit()).isEqualTo("ops/s");
+        assertThat(primary.getSamples()).containsExactly(1230, 1240, 1235, 1233);
+        assertThat(primary.isLowerBetter()).isFalse();
+
+        BenchmarkMetrics.Metric allocation = benchmark.getMetrics().get(BenchmarkMetrics.ALLOCATION_METRIC);
+        assertThat(allocation.getScore()).isEqualTo(96);
+        assertThat(allocation.getScoreError()).isNaN();
+        assertThat(allocation.getScoreUnit()).isEqualTo("B/op");
+        assertThat(allocation.getSamples()).containsExactly(96, 96, 96, 96);
+        assertThat(allocation.isLowerBetter()).isTrue();
+    }
+
+    @Test
+    void testRoundTrip() throws Exception {
+        BenchmarkMetrics benchmark = BenchmarkMetrics.parse(createJmhResult());
+
+        // serialize to a string to make sure the baseline survives being stored in a file
+        JsonNode json = objectMapper.readTree(objectMapper.writeValueAsString(benchmark.toJson()));
+        assertThat(json.has("secondaryMetrics")).isTrue();
+        assertThat(json.get("secondaryMetrics").size()).isEqualTo(1);
+        BenchmarkMetrics roundTripped = BenchmarkMetrics.parse(json);
+
+        assertThat(roundTripped.getKey()).isEqualTo(benchmark.getKey());
+        assertThat(roundTripped.getMetrics()).containsOnlyKeys(BenchmarkMetrics.PRIMARY_METRIC, BenchmarkMetrics.ALLOCATION_METRIC);
+        for (String metricName : benchmark.getMetrics().keySet()) {
+            BenchmarkMetrics.Metric expected = benchmark.getMetrics().get(metricName);
+            BenchmarkMetrics.Metric actual = roundTripped.getMetrics().get(metricName);
+            assertThat(actual.getScore()).isEqualTo(expected.getScore());
+            if (Double.isNaN(expected.getScoreError())) {
+                assertThat(actual.getScoreError()).isNaN();
+            } else {
+                assertThat(actual.getScoreError()).isEqualTo(expected.getScoreError());
+            }
+            assertThat(actual.getScoreUnit()).isEqualTo(expected.getScoreUnit());
+            assertThat(actual.getSamples()).containsExactly(expected.getSamples());
+            assertThat(actual.isLowerBetter()).isEqualTo(expected.isLowerBetter());
+        }
+    }
+
+    @Test
+    void testRoundTripWithoutParamsAndSecondaryMetrics() {
+        ObjectNode jmhResult = createJmhResult();
+        jmhResult.remove("params");
+        jmhResult.remove("secondaryMetrics");
+        jmhResult.put("mode", "avgt");
+        BenchmarkMetrics benchmark = BenchmarkMetrics.parse(jmhResult);
+        assertThat(benchmark.getKey()).isEqualTo("JdbcInstrumentationBenchmark.executeStatement");
+
+        BenchmarkMetrics roundTripped = BenchmarkMetrics.parse(benchmark.toJson());
+
+        assertThat(roundTripped.getKey()).isEqualTo(benchmark.getKey());
+        assertThat(roundTripped.getMetrics()).containsOnlyKeys(BenchmarkMetrics.PRIMARY_METRIC);
+        assertThat(roundTripped.getMetrics().get(BenchmarkMetrics.PRIMARY_METRIC).isLowerBetter()).isTrue();
+    }
+
+    /**
+     * A trimmed down JMH result ({@code -rf json}) of a run with two forks and the GC profiler ({@code -prof gc})
+     */
+    private ObjectNode createJmhResult() {
+        ObjectNode benchmark = objectMapper.createObjectNode();
+        benchmark.put("jmhVersion", "1.23");
+        benchmark.put("benchmark", "co.elastic.apm.agent.benchmark.sql.JdbcInstrumentationBenchmark.executeStatement");
+        benchmark.put("mode", "thrpt");
+        benchmark.put("forks", 2);
+        // JMH preserves the declaration order of the parameters, which is not necessarily sorted
+        benchmark.putObject("params")
+            .put("statements", "10")
+            .put("agentMode", "ACTIVE");
+        ObjectNode primaryMetric = benchmark.putObject("primaryMetric");
+        primaryMetric.put("score", 1234.5);
+        primaryMetric.put("scoreError", 12.3);
+        primaryMetric.put("scoreUnit", "ops/s");
+        ArrayNode rawData = primaryMetric.putArray("rawData");
+        rawData.addArray().add(1230.0).add(1240.0);
+        rawData.addArray().add(1235.0).add(1233.0);
+        ObjectNode secondaryMetrics = benchmark.putObject("secondaryMetrics");
+        ObjectNode allocationRate = secondaryMetrics.putObject("\u00b7gc.alloc.rate");
+        allocationRate.put("score", 115.2);
+        allocationRate.put("scoreError", 1.1);
+        allocationRate.put("scoreUnit", "MB/sec");
+        ObjectNode allocationRateNorm = secondaryMetrics.putObject("\u00b7gc.alloc.rate.norm");
+        allocationRateNorm.put("score", 96.0);
+        // JMH writes "NaN" as a string if the error can't be computed
+        allocationRateNorm.put("scoreError", "NaN");
+        allocationRateNorm.put("scoreUnit", "B/op");
+        ArrayNode allocationRawData = allocationRateNorm.putArray("rawData");
+        allocationRawData.addArray().add(96.0).add(96.0);
+        allocationRawData.addArray().add(96.0).add(96.0);
+        return benchmark;
+    }
+}
@@ -0,0 +1,160 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.regression;
+
+import co.elastic.apm.agent.benchmark.regression.BenchmarkRegressionCheck.Result;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Path;
+
+import static co.elastic.apm.agent.benchmark.regression.BenchmarkMetrics.ALLOCATION_METRIC;
+import static co.elastic.apm.agent.benchmark.regression.BenchmarkMetrics.PRIMARY_METRIC;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BenchmarkRegressionCheckTest {
+
+    private static final double[] BASELINE = {99, 101, 100, 98, 102, 100, 99, 101, 100, 100};
+    private static final double[] SLIGHTLY_HIGHER = {102, 104, 103, 101, 105, 103, 102, 104, 103, 103};
+    private static final double[] HIGHER = {119, 121, 120, 118, 122, 120, 119, 121, 120, 120};
+    private static final double[] LOWER = {79, 81, 80, 78, 82, 80, 79, 81, 80, 80};
+    private static final double[] NOISY_LOWER = {40, 120, 60, 130, 50, 110, 70, 125, 45, 115};
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final BenchmarkRegressionCheck check = new BenchmarkRegressionCheck(5, 0.01);
+
+    @Test
+    void testThroughput() {
+        assertThat(compare("thrpt", BASELINE, LOWER)).isEqualTo(Result.REGRESSED);
+        assertThat(compare("thrpt", BASELINE, HIGHER)).isEqualTo(Result.IMPROVED);
+        assertThat(compare("thrpt", BASELINE, BASELINE)).isEqualTo(Result.OK);
+    }
+
+    @Test
+    void testAverageTime() {
+        assertThat(compare("avgt", BASELINE, HIGHER)).isEqualTo(Result.REGRESSED);
+        assertThat(compare("avgt", BASELINE, LOWER)).isEqualTo(Result.IMPROVED);
+        assertThat(compare("avgt", BASELINE, BASELINE)).isEqualTo(Result.OK);
+    }
+
+    @Test
+    void testSignificantChangeBelowThreshold() {
+        assertThat(MannWhitneyUTest.pValueGreater(SLIGHTLY_HIGHER, BASELINE)).isLessThan(0.01);
+        assertThat(compare("thrpt", BASELINE, SLIGHTLY_HIGHER)).isEqualTo(Result.OK);
+        assertThat(compare("avgt", BASELINE, SLIGHTLY_HIGHER)).isEqualTo(Result.OK);
+    }
+
+    @Test
+    void testChangeAboveThresholdWhichIsNotSignificant() {
+        assertThat(compare("thrpt", BASELINE, NOISY_LOWER)).isEqualTo(Result.OK);
+        assertThat(compare("avgt", BASELINE, NOISY_LOWER)).isEqualTo(Result.OK);
+    }
+
+    @Test
+    void testAllocations() {
+        BenchmarkMetrics.Metric baseline = allocationMetric(new double[]{0.1, 0.1, 0.1, 0.1, 0.1, 0.1, 0.1, 0.1, 0.1, 0.1});
+        BenchmarkMetrics.Metric belowOneByte = allocationMetric(new double[]{0.9, 0.9, 0.9, 0.9, 0.9, 0.9, 0.9, 0.9, 0.9, 0.9});
+        assertThat(check.compare(ALLOCATION_METRIC, baseline, belowOneByte)).isEqualTo(Result.OK);
+
+        assertThat(check.compare(ALLOCATION_METRIC, allocationMetric(BASELINE), allocationMetric(HIGHER))).isEqualTo(Result.REGRESSED);
+        assertThat(check.compare(ALLOCATION_METRIC, allocationMetric(BASELINE), allocationMetric(LOWER))).isEqualTo(Result.IMPROVED);
+    }
+
+    @Test
+    void testCompareFiles(@TempDir Path tempDir) throws Exception {
+        File baselineResults = tempDir.resolve("baseline-result.json").toFile();
+        File baseline = tempDir.resolve("baseline.json").toFile();
+        File currentResults = tempDir.resolve("current-result.json").toFile();
+        writeJmhResults(baselineResults, BASELINE);
+        check.storeBaseline(baselineResults, baseline);
+
+        writeJmhResults(currentResults, BASELINE);
+        assertThat(check.compare(currentResults, baseline, new PrintStream(new ByteArrayOutputStream()))).isZero();
+
+        writeJmhResults(currentResults, LOWER);
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        assertThat(check.compare(currentResults, baseline, new PrintStream(report))).isEqualTo(1);
+        assertThat(report.toString()).contains("REGRESSED").contains("1 regressed metric(s)");
+    }
+
+    @Test
+    void testMissingBenchmark(@TempDir Path tempDir) throws Exception {
+        File baselineResults = tempDir.resolve("baseline-result.json").toFile();
+        File baseline = tempDir.resolve("baseline.json").toFile();
+        File currentResults = tempDir.resolve("current-result.json").toFile();
+        writeJmhResults(baselineResults, BASELINE);
+        check.storeBaseline(baselineResults, baseline);
+
+        objectMapper.writeValue(currentResults, objectMapper.createArrayNode());
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        assertThat(check.compare(currentResults, baseline, new PrintStream(report))).isEqualTo(1);
+        assertThat(report.toString()).contains("MISSING").contains("1 benchmark(s) of the baseline are missing");
+    }
+
+    private Result compare(String mode, double[] baseline, double[] current) {
+        return check.compare(PRIMARY_METRIC,
+            BenchmarkMetrics.parse(createBenchmark(mode, baseline)).getMetrics().get(PRIMARY_METRIC),
+            BenchmarkMetrics.parse(createBenchmark(mode, current)).getMetrics().get(PRIMARY_METRIC));
+    }
+
+    private BenchmarkMetrics.Metric allocationMetric(double[] samples) {
+        ObjectNode benchmark = createBenchmark("thrpt", BASELINE);
+        benchmark.putObject("secondaryMetrics").set("\u00b7" + ALLOCATION_METRIC, createMetric(samples, "B/op"));
+        return BenchmarkMetrics.parse(benchmark).getMetrics().get(ALLOCATION_METRIC);
+    }
+
+    private void writeJmhResults(File file, double[] samples) throws Exception {
+        ArrayNode results = objectMapper.createArrayNode();
+        results.add(createBenchmark("thrpt", samples));
+        objectMapper.writeValue(file, results);
+    }
+
+    private ObjectNode createBenchmark(String mode, double[] samples) {
+        ObjectNode benchmark = objectMapper.createObjectNode();
+        benchmark.put("benchmark", "co.elastic.apm.agent.benchmark.ContinuousBenchmark.benchmarkWithApm");
+        benchmark.put("mode", mode);
+        benchmark.set("primaryMetric", createMetric(samples, "thrpt".equals(mode) ? "ops/s" : "us/op"));
+        return benchmark;
+    }
+
+    private ObjectNode createMetric(double[] samples, String unit) {
+        ObjectNode metric = objectMapper.createObjectNode();
+        double sum = 0;
+        ArrayNode fork = metric.putArray("rawData").addArray();
+        for (double sample : samples) {
+            sum += sample;
+            fork.add(sample);
+        }
+        metric.put("score", sum / samples.length);
+        metric.put("scoreUnit", unit);
+        return metric;
+    }
+}
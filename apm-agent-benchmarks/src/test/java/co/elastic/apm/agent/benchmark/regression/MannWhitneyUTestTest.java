@@ -0,0 +1,82 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.benchmark.regression;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * The reference values have been computed with the normal approximation, including the tie and continuity correction,
+ * which is also used by {@code scipy.stats.mannwhitneyu(x, y, alternative='greater', method='asymptotic')}.
+ */
+class MannWhitneyUTestTest {
+
+    @Test
+    void testSeparatedSamples() {
+        double[] lower = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        double[] higher = {11, 12, 13, 14, 15, 16, 17, 18, 19, 20};
+        assertThat(MannWhitneyUTest.pValueGreater(higher, lower)).isCloseTo(9.13359e-5, within(1e-6));
+        assertThat(MannWhitneyUTest.pValueGreater(lower, higher)).isCloseTo(0.9999326, within(1e-6));
+    }
+
+    @Test
+    void testOverlappingSamples() {
+        double[] x = {102.1, 98.7, 105.3, 101.9, 99.4, 104.8, 103.2, 100.6, 106.1, 102.7};
+        double[] y = {99.8, 97.2, 101.4, 98.1, 100.3, 96.9, 102.5, 99.1, 98.6, 100.9};
+        assertThat(MannWhitneyUTest.pValueGreater(x, y)).isCloseTo(0.0056648, within(1e-6));
+    }
+
+    @Test
+    void testTies() {
+        assertThat(MannWhitneyUTest.pValueGreater(new double[]{1, 2, 2, 3, 3, 3}, new double[]{1, 1, 2, 2, 3}))
+            .isCloseTo(0.1667352, within(1e-6));
+    }
+
+    @Test
+    void testIdenticalSamples() {
+        double[] samples = {1, 2, 3, 4, 5};
+        assertThat(MannWhitneyUTest.pValueGreater(samples, samples)).isCloseTo(0.5422350, within(1e-6));
+    }
+
+    @Test
+    void testNoVariance() {
+        assertThat(MannWhitneyUTest.pValueGreater(new double[]{5, 5, 5}, new double[]{5, 5, 5})).isEqualTo(1);
+    }
+
+    @Test
+    void testEmptySamples() {
+        assertThat(MannWhitneyUTest.pValueGreater(new double[0], new double[]{1, 2, 3})).isEqualTo(1);
+        assertThat(MannWhitneyUTest.pValueGreater(new double[]{1, 2, 3}, new double[0])).isEqualTo(1);
+    }
+
+    @Test
+    void testStandardNormalCdf() {
+        assertThat(MannWhitneyUTest.standardNormalCdf(0)).isCloseTo(0.5, within(1e-7));
+        assertThat(MannWhitneyUTest.standardNormalCdf(1.959964)).isCloseTo(0.975, within(1e-6));
+        assertThat(MannWhitneyUTest.standardNormalCdf(-1.959964)).isCloseTo(0.025, within(1e-6));
+    }
+}
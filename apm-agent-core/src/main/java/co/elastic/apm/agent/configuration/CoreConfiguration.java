@@ -27,13 +27,12 @@ package co.elastic.apm.agent.configuration;
 import co.elastic.apm.agent.bci.ElasticApmAgent;
 import co.elastic.apm.agent.bci.methodmatching.MethodMatcher;
 import co.elastic.apm.agent.bci.methodmatching.configuration.MethodMatcherValueConverter;
-import co.elastic.apm.agent.configuration.converter.ListValueConverter;
 import co.elastic.apm.agent.configuration.converter.TimeDuration;
 import co.elastic.apm.agent.configuration.converter.TimeDurationValueConverter;
 import co.elastic.apm.agent.configuration.validation.RegexValidator;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
-import co.elastic.apm.agent.matcher.WildcardMatcherValueConverter;
+import co.elastic.apm.agent.matcher.WildcardMatcherListValueConverter;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
 import org.stagemonitor.configuration.converter.MapValueConverter;
@@ -174,6 +173,54 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .addValidator(isInRange(0d, 1d))
         .buildWithDefault(1.0);
 
+    private final ConfigurationOption<Double> sampleRateLimit = ConfigurationOption.doubleOption()
+        .key("transaction_sample_rate_limit")
+        .tags("added[1.18.0]", "performance")
+        .configurationCategory(CORE_CATEGORY)
+        .description("When set to a value greater than 0, the agent ignores <<config-transaction-sample-rate>>\n" +
+            "and instead continuously adjusts the sample rate so that about this many transactions are sampled per second.\n" +
+            "This keeps the overhead of the agent and the load on the APM Server constant, regardless of traffic spikes.\n" +
+            "\n" +
+            "When <<config-tail-sampling-enabled>> is active,\n" +
+            "the sampling decision is made when the transaction has ended, which is when its name is known.\n" +
+            "In that case, the limit applies to each transaction name separately,\n" +
+            "so that a high-throughput endpoint, like a health check, can't take away the budget of rarely called endpoints.")
+        .dynamic(true)
+        .addValidator(isInRange(0d, Double.MAX_VALUE))
+        .buildWithDefault(0d);
+
+    private final ConfigurationOption<Boolean> tailSamplingEnabled = ConfigurationOption.booleanOption()
+        .key("tail_sampling_enabled")
+        .tags("added[1.18.0]", "performance")
+        .configurationCategory(CORE_CATEGORY)
+        .description("By default, the sampling decision is made when a transaction starts, based on <<config-transaction-sample-rate>>.\n" +
+            "Therefore, slow or failed transactions are just as likely to be dropped as fast and successful ones.\n" +
+            "\n" +
+            "When enabled, the agent records all transactions which are started by this service (as opposed to transactions\n" +
+            "which continue a trace started by an upstream service) and buffers their spans until the transaction ends.\n" +
+            "The transaction and its spans are then reported if at least one of the following is true:\n" +
+            "\n" +
+            " - The transaction took longer than <<config-tail-sampling-latency-threshold>>.\n" +
+            " - An error has been captured within the transaction.\n" +
+            " - The transaction has been sampled based on <<config-transaction-sample-rate>>.\n" +
+            "\n" +
+            "Otherwise, the spans are discarded and the transaction is reported as an unsampled transaction.\n" +
+            "This allows for lowering the sample rate without losing the most interesting transactions.\n" +
+            "\n" +
+            "NOTE: As the sampling decision is not known when calling downstream services,\n" +
+            "downstream services always treat the trace as sampled.\n" +
+            "Also, this increases the overhead of the agent compared to only recording a fraction of the transactions.")
+        .dynamic(true)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<TimeDuration> tailSamplingLatencyThreshold = TimeDurationValueConverter.durationOption("ms")
+        .key("tail_sampling_latency_threshold")
+        .tags("added[1.18.0]", "performance")
+        .configurationCategory(CORE_CATEGORY)
+        .description("When <<config-tail-sampling-enabled>> is active, transactions taking at least this long are always reported, including their spans.")
+        .dynamic(true)
+        .buildWithDefault(TimeDuration.of("500ms"));
+
     private final ConfigurationOption<Integer> transactionMaxSpans = ConfigurationOption.integerOption()
         .key("transaction_max_spans")
         .configurationCategory(CORE_CATEGORY)
@@ -186,7 +233,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(500);
 
     private final ConfigurationOption<List<WildcardMatcher>> sanitizeFieldNames = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("sanitize_field_names")
         .configurationCategory(CORE_CATEGORY)
         .description("Sometimes it is necessary to sanitize the data sent to Elastic APM,\n" +
@@ -214,7 +261,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         )
         .dynamic(true)
         .tags("security")
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcher.compile(Arrays.asList(
             WildcardMatcher.valueOf("password"),
             WildcardMatcher.valueOf("passwd"),
             WildcardMatcher.valueOf("pwd"),
@@ -228,7 +275,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             WildcardMatcher.valueOf("authorization"),
             // HTTP response header which can contain session ids
             WildcardMatcher.valueOf("set-cookie")
-        ));
+        )));
 
     private final ConfigurationOption<Collection<String>> disabledInstrumentations = ConfigurationOption.stringsOption()
         .key("disable_instrumentations")
@@ -244,7 +291,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(Collections.<String>singleton("experimental"));
 
     private final ConfigurationOption<List<WildcardMatcher>> unnestExceptions = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("unnest_exceptions")
         .configurationCategory(CORE_CATEGORY)
         .description("When reporting exceptions,\n" +
@@ -257,7 +304,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(Collections.singletonList(WildcardMatcher.valueOf("(?-i)*Nested*Exception")));
 
     private final ConfigurationOption<List<WildcardMatcher>> ignoreExceptions = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("ignore_exceptions")
         .tags("added[1.11.0]")
         .configurationCategory(CORE_CATEGORY)
@@ -348,7 +395,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(true);
 
     private final ConfigurationOption<List<WildcardMatcher>> classesExcludedFromInstrumentation = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("classes_excluded_from_instrumentation")
         .configurationCategory(CORE_CATEGORY)
         .description("Use to exclude specific classes from being instrumented. In order to exclude entire packages, \n" +
@@ -359,7 +406,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(Collections.<WildcardMatcher>emptyList());
 
     private final ConfigurationOption<List<WildcardMatcher>> defaultClassesExcludedFromInstrumentation = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("classes_excluded_from_instrumentation_default")
         .configurationCategory(CORE_CATEGORY)
         .tags("internal")
@@ -367,7 +414,7 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             "\n" +
             WildcardMatcher.DOCUMENTATION)
         .dynamic(false)
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcher.compile(Arrays.asList(
             WildcardMatcher.valueOf("(?-i)org.infinispan*"),
             WildcardMatcher.valueOf("(?-i)org.apache.xerces*"),
             WildcardMatcher.valueOf("(?-i)org.jboss.as.*"),
@@ -375,10 +422,10 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             WildcardMatcher.valueOf("(?-i)org.eclipse.jdt.ecj*"),
             WildcardMatcher.valueOf("(?-i)org.wildfly.extension.*"),
             WildcardMatcher.valueOf("(?-i)org.wildfly.security*")
-        ));
+        )));
 
     private final ConfigurationOption<List<WildcardMatcher>> methodsExcludedFromInstrumentation = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("methods_excluded_from_instrumentation")
         .configurationCategory(CORE_CATEGORY)
         .tags("internal")
@@ -386,9 +433,9 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             "\n" +
             WildcardMatcher.DOCUMENTATION)
         .dynamic(true)
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcher.compile(Arrays.asList(
             WildcardMatcher.valueOf("(?-i)_persistence_*")
-        ));
+        )));
 
     private final ConfigurationOption<List<MethodMatcher>> traceMethods = ConfigurationOption
         .builder(MethodMatcherValueConverter.LIST, List.class)
@@ -482,6 +529,51 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             "the higher of both thresholds will determine which spans will be discarded.")
         .buildWithDefault(TimeDuration.of("0ms"));
 
+    private final ConfigurationOption<Boolean> spanCompressionEnabled = ConfigurationOption.booleanOption()
+        .key("span_compression_enabled")
+        .tags("added[1.18.0]", "performance")
+        .configurationCategory(CORE_CATEGORY)
+        .description("Setting this option to true will enable span compression.\n" +
+            "\n" +
+            "Span compression reduces the collection, processing, and storage overhead, and removes clutter from the UI.\n" +
+            "The tradeoff is that some information such as DB statements of all the compressed spans will not be collected.\n" +
+            "\n" +
+            "Consecutive sibling exit spans, such as the queries of an N+1 query pattern, are merged into a single composite span\n" +
+            "which records the number of compressed spans and the sum of their durations.\n" +
+            "Spans are only compressed if they have the same type, subtype and destination,\n" +
+            "if they don't propagate the trace context to downstream services and if no error has been captured for them.\n" +
+            "\n" +
+            "See <<config-span-compression-exact-match-max-duration>> and <<config-span-compression-same-kind-max-duration>>\n" +
+            "for the spans which are eligible for compression.")
+        .dynamic(true)
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<TimeDuration> spanCompressionExactMatchMaxDuration = TimeDurationValueConverter.durationOption("ms")
+        .key("span_compression_exact_match_max_duration")
+        .tags("added[1.18.0]", "performance")
+        .configurationCategory(CORE_CATEGORY)
+        .description("Consecutive spans that are exact match and that are under this threshold will be compressed into a single composite span.\n" +
+            "This reduces the collection, processing, and storage overhead, and removes clutter from the UI.\n" +
+            "The tradeoff is that the DB statements of all the compressed spans will not be collected.\n" +
+            "\n" +
+            "Two spans are considered exact matches if they have the same name, DB statement, type, subtype and destination.")
+        .dynamic(true)
+        .buildWithDefault(TimeDuration.of("50ms"));
+
+    private final ConfigurationOption<TimeDuration> spanCompressionSameKindMaxDuration = TimeDurationValueConverter.durationOption("ms")
+        .key("span_compression_same_kind_max_duration")
+        .tags("added[1.18.0]", "performance")
+        .configurationCategory(CORE_CATEGORY)
+        .description("Consecutive spans to the same destination that are under this threshold will be compressed into a single composite span.\n" +
+            "This reduces the collection, processing, and storage overhead, and removes clutter from the UI.\n" +
+            "The tradeoff is that the DB statements of all the compressed spans will not be collected.\n" +
+            "\n" +
+            "Two spans are considered to be of the same kind if they have the same type, subtype and destination,\n" +
+            "the name of the composite span is then changed to `Calls to <destination>`.\n" +
+            "Setting this option to `0ms` disables compressing spans of the same kind.")
+        .dynamic(true)
+        .buildWithDefault(TimeDuration.of("0ms"));
+
     private final ConfigurationOption<Boolean> centralConfig = ConfigurationOption.booleanOption()
         .key("central_config")
         .tags("added[1.8.0]")
@@ -522,6 +614,20 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             "See `integration-tests/external-plugin-test` for an example plugin.")
         .build();
 
+    private final ConfigurationOption<ObjectPoolType> objectPoolType = ConfigurationOption.enumOption(ObjectPoolType.class)
+        .key("object_pool_type")
+        .tags("added[1.18.0]", "performance")
+        .configurationCategory(CORE_CATEGORY)
+        .description("The type of object pool used to recycle transactions, spans and errors.\n" +
+            "\n" +
+            " - `queue`: all application threads share a single bounded queue.\n" +
+            " - `magazine`: each thread caches a few objects in thread-local magazines which are exchanged with a shared queue in batches.\n" +
+            "   This reduces the contention on the shared queue on machines with many cores,\n" +
+            "   at the expense of slightly more objects being retained by the agent.\n" +
+            "\n" +
+            "This option is case-insensitive.")
+        .buildWithDefault(ObjectPoolType.QUEUE);
+
     private final ConfigurationOption<Boolean> useElasticTraceparentHeader = ConfigurationOption.booleanOption()
         .key("use_elastic_traceparent_header")
         .tags("added[1.14.0]")
@@ -615,6 +721,18 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         return sampleRate;
     }
 
+    public ConfigurationOption<Double> getSampleRateLimit() {
+        return sampleRateLimit;
+    }
+
+    public boolean isTailSamplingEnabled() {
+        return tailSamplingEnabled.get();
+    }
+
+    public TimeDuration getTailSamplingLatencyThreshold() {
+        return tailSamplingLatencyThreshold.get();
+    }
+
     public int getTransactionMaxSpans() {
         return transactionMaxSpans.get();
     }
@@ -623,6 +741,10 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         return sanitizeFieldNames.get();
     }
 
+    public ConfigurationOption<List<WildcardMatcher>> getSanitizeFieldNamesOption() {
+        return sanitizeFieldNames;
+    }
+
     public Collection<String> getDisabledInstrumentations() {
         return disabledInstrumentations.get();
     }
@@ -699,6 +821,18 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         return spanMinDuration.get();
     }
 
+    public boolean isSpanCompressionEnabled() {
+        return spanCompressionEnabled.get();
+    }
+
+    public TimeDuration getSpanCompressionExactMatchMaxDuration() {
+        return spanCompressionExactMatchMaxDuration.get();
+    }
+
+    public TimeDuration getSpanCompressionSameKindMaxDuration() {
+        return spanCompressionSameKindMaxDuration.get();
+    }
+
     /*
      * Makes sure to not initialize ConfigurationOption, which would initialize the logger
      */
@@ -724,6 +858,10 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
         }
     }
 
+    public ObjectPoolType getObjectPoolType() {
+        return objectPoolType.get();
+    }
+
     @Nullable
     public String getPluginsDir() {
         @Nullable
@@ -763,4 +901,20 @@ public class CoreConfiguration extends ConfigurationOptionProvider {
             return name().toLowerCase();
         }
     }
+
+    public enum ObjectPoolType {
+        /**
+         * A single bounded queue shared by all threads
+         */
+        QUEUE,
+        /**
+         * Thread-local magazines in front of a shared depot
+         */
+        MAGAZINE;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
 }
@@ -26,10 +26,9 @@ package co.elastic.apm.agent.configuration;
 
 import co.elastic.apm.agent.bci.VisibleForAdvice;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
-import co.elastic.apm.agent.matcher.WildcardMatcherValueConverter;
+import co.elastic.apm.agent.matcher.WildcardMatcherListValueConverter;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
-import org.stagemonitor.configuration.converter.ListValueConverter;
 
 import java.util.Collections;
 import java.util.List;
@@ -60,7 +59,7 @@ public class MessagingConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(Boolean.TRUE);
 
     private final ConfigurationOption<List<WildcardMatcher>> ignoreMessageQueues = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("ignore_message_queues")
         .configurationCategory(MESSAGING_CATEGORY)
         .description("Used to filter out specific messaging queues/topics from being traced. \n" +
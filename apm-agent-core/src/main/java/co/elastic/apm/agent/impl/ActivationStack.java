@@ -0,0 +1,103 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * The stack of the spans which are activated on a thread.
+ * <p>
+ * As opposed to an {@link java.util.ArrayDeque}, which allocates 16 slots upfront, this stack starts small and grows on demand,
+ * as spans are rarely nested deeply.
+ * That matters when there are a lot of threads, for example when an application runs each request on its own virtual thread.
+ * </p>
+ * <p>
+ * Not thread safe, as a stack is only ever accessed by the thread it belongs to.
+ * </p>
+ */
+class ActivationStack {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final boolean virtualThread;
+    private AbstractSpan<?>[] spans = new AbstractSpan<?>[INITIAL_CAPACITY];
+    private int size;
+
+    ActivationStack(boolean virtualThread) {
+        this.virtualThread = virtualThread;
+    }
+
+    void push(AbstractSpan<?> span) {
+        if (size == spans.length) {
+            spans = Arrays.copyOf(spans, size * 2);
+        }
+        spans[size++] = span;
+    }
+
+    /**
+     * Removes and returns the top of the stack
+     *
+     * @return the top of the stack or {@code null} if the stack is empty
+     */
+    @Nullable
+    AbstractSpan<?> pop() {
+        if (size == 0) {
+            return null;
+        }
+        final AbstractSpan<?> span = spans[--size];
+        spans[size] = null;
+        return span;
+    }
+
+    /**
+     * @return the top of the stack (the span which has been activated most recently) or {@code null} if the stack is empty
+     */
+    @Nullable
+    AbstractSpan<?> peek() {
+        return size == 0 ? null : spans[size - 1];
+    }
+
+    /**
+     * @return the bottom of the stack (the span which has been activated first) or {@code null} if the stack is empty
+     */
+    @Nullable
+    AbstractSpan<?> peekLast() {
+        return size == 0 ? null : spans[0];
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return whether the stack belongs to a virtual thread
+     */
+    boolean isVirtualThread() {
+        return virtualThread;
+    }
+}
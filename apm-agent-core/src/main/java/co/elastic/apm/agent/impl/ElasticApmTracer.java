@@ -28,8 +28,10 @@ import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.configuration.ServiceNameUtil;
 import co.elastic.apm.agent.context.LifecycleListener;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
+import co.elastic.apm.agent.impl.sampling.AdaptiveSampler;
 import co.elastic.apm.agent.impl.sampling.ProbabilitySampler;
 import co.elastic.apm.agent.impl.sampling.Sampler;
+import co.elastic.apm.agent.impl.stacktrace.StackTraceFactory;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
 import co.elastic.apm.agent.impl.transaction.BinaryHeaderGetter;
@@ -47,6 +49,7 @@ import co.elastic.apm.agent.report.ReporterConfiguration;
 import co.elastic.apm.agent.sdk.weakmap.WeakMapSupplier;
 import co.elastic.apm.agent.util.DependencyInjectingServiceLoader;
 import co.elastic.apm.agent.util.ExecutorUtils;
+import co.elastic.apm.agent.util.ThreadUtils;
 import com.blogspot.mydailyjava.weaklockfree.WeakConcurrentMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -55,8 +58,6 @@ import org.stagemonitor.configuration.ConfigurationOptionProvider;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nullable;
-import java.util.ArrayDeque;
-import java.util.Deque;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -85,12 +86,9 @@ public class ElasticApmTracer implements Tracer {
     // Maintains a stack of all the activated spans
     // This way its easy to retrieve the bottom of the stack (the transaction)
     // Also, the caller does not have to keep a reference to the previously active span, as that is maintained by the stack
-    private final ThreadLocal<Deque<AbstractSpan<?>>> activeStack = new ThreadLocal<Deque<AbstractSpan<?>>>() {
-        @Override
-        protected Deque<AbstractSpan<?>> initialValue() {
-            return new ArrayDeque<AbstractSpan<?>>();
-        }
-    };
+    // The stack is only allocated when a span is activated for the first time on a thread.
+    // On virtual threads, it's discarded as soon as it's empty again so that idle virtual threads don't retain it.
+    private final ThreadLocal<ActivationStack> activeStack = new ThreadLocal<ActivationStack>();
 
     private final CoreConfiguration coreConfiguration;
     private final List<ActivationListener> activationListeners;
@@ -135,13 +133,15 @@ public class ElasticApmTracer implements Tracer {
         // we are assuming that we don't need as many errors as spans or transactions
         errorPool = poolFactory.createErrorPool(maxPooledElements / 2, this);
 
-        sampler = ProbabilitySampler.of(coreConfiguration.getSampleRate().get());
-        coreConfiguration.getSampleRate().addChangeListener(new ConfigurationOption.ChangeListener<Double>() {
+        sampler = createSampler();
+        ConfigurationOption.ChangeListener<Double> samplerChangeListener = new ConfigurationOption.ChangeListener<Double>() {
             @Override
             public void onChange(ConfigurationOption<?> configurationOption, Double oldValue, Double newValue) {
-                sampler = ProbabilitySampler.of(newValue);
+                sampler = createSampler();
             }
-        });
+        };
+        coreConfiguration.getSampleRate().addChangeListener(samplerChangeListener);
+        coreConfiguration.getSampleRateLimit().addChangeListener(samplerChangeListener);
         this.activationListeners = DependencyInjectingServiceLoader.load(ActivationListener.class, this);
         reporter.scheduleMetricReporting(metricRegistry, configurationRegistry.getConfig(ReporterConfiguration.class).getMetricsIntervalMs(), this);
 
@@ -150,6 +150,14 @@ public class ElasticApmTracer implements Tracer {
         assert assertionsEnabled = true;
     }
 
+    private Sampler createSampler() {
+        double sampleRateLimit = coreConfiguration.getSampleRateLimit().get();
+        if (sampleRateLimit > 0) {
+            return AdaptiveSampler.of(sampleRateLimit);
+        }
+        return ProbabilitySampler.of(coreConfiguration.getSampleRate().get());
+    }
+
     @Override
     @Nullable
     public Transaction startRootTransaction(@Nullable ClassLoader initiatingClassLoader) {
@@ -235,7 +243,8 @@ public class ElasticApmTracer implements Tracer {
     @Override
     @Nullable
     public Transaction currentTransaction() {
-        final AbstractSpan<?> bottomOfStack = activeStack.get().peekLast();
+        final ActivationStack stack = activeStack.get();
+        final AbstractSpan<?> bottomOfStack = stack != null ? stack.peekLast() : null;
         return bottomOfStack != null ? bottomOfStack.getTransaction() : null;
     }
 
@@ -263,6 +272,14 @@ public class ElasticApmTracer implements Tracer {
      * @see #startSpan(TraceContext.ChildContextCreator, Object)
      */
     public <T> Span startSpan(TraceContext.ChildContextCreator<T> childContextCreator, T parentContext, long epochMicros) {
+        if (parentContext instanceof AbstractSpan<?>) {
+            AbstractSpan<?> parent = (AbstractSpan<?>) parentContext;
+            Transaction transaction = parent.getTransaction();
+            // avoids recording the context of spans which are dropped anyway, the children of dropped spans are dropped as well
+            if (transaction != null && ((parent instanceof Span && parent.isNoop()) || transaction.isSpanLimitReached())) {
+                return createSpan().startNoop(parent, transaction, epochMicros);
+            }
+        }
         return createSpan().start(childContextCreator, parentContext, epochMicros);
     }
 
@@ -316,6 +333,10 @@ public class ElasticApmTracer implements Tracer {
                 error.setTransactionType(currentTransaction.getType());
                 error.setTransactionSampled(currentTransaction.isSampled());
             }
+            Transaction parentTransaction = parent != null ? parent.getTransaction() : currentTransaction;
+            if (parentTransaction != null) {
+                parentTransaction.onErrorCaptured();
+            }
             if (parent != null) {
                 error.asChildOf(parent);
                 // don't discard spans leading up to an error, otherwise they'd point to an invalid parent
@@ -346,6 +367,10 @@ public class ElasticApmTracer implements Tracer {
             }
         }
         if (!transaction.isNoop()) {
+            flushBufferedSpan(transaction);
+            if (transaction.isTailSamplingPending()) {
+                endTailSampling(transaction);
+            }
             // we do report non-sampled transactions (without the context)
             reporter.report(transaction);
         } else {
@@ -353,7 +378,25 @@ public class ElasticApmTracer implements Tracer {
         }
     }
 
+    private void endTailSampling(Transaction transaction) {
+        List<Span> bufferedSpans = transaction.endTailSampling(coreConfiguration.getTailSamplingLatencyThreshold().getMillis() * 1000);
+        boolean keep = transaction.isSampled();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Tail-based sampling {} transaction {} with {} spans", keep ? "keeps" : "discards", transaction, bufferedSpans.size());
+        }
+        for (int i = 0, size = bufferedSpans.size(); i < size; i++) {
+            Span span = bufferedSpans.get(i);
+            if (keep) {
+                reporter.report(span);
+            } else {
+                span.decrementReferences();
+            }
+        }
+        bufferedSpans.clear();
+    }
+
     public void endSpan(Span span) {
+        flushBufferedSpan(span);
         if (!span.isSampled()) {
             span.decrementReferences();
             return;
@@ -371,10 +414,33 @@ public class ElasticApmTracer implements Tracer {
             span.decrementReferences();
             return;
         }
+        // a buffered span may only be reported when its parent ends, possibly on another thread
+        captureStackTrace(span);
+        AbstractSpan<?> parent = span.getParent();
+        if (parent != null && coreConfiguration.isSpanCompressionEnabled()
+            && parent.compressOrBuffer(span,
+            coreConfiguration.getSpanCompressionExactMatchMaxDuration().getMillis() * 1000,
+            coreConfiguration.getSpanCompressionSameKindMaxDuration().getMillis() * 1000)) {
+            return;
+        }
         reportSpan(span);
     }
 
-    private void reportSpan(Span span) {
+    /**
+     * Reports the child span which has been buffered for compression before its parent is reported
+     */
+    private void flushBufferedSpan(AbstractSpan<?> parent) {
+        if (coreConfiguration.isSpanCompressionEnabled() || parent.hasBufferedSpan()) {
+            parent.flushBufferedSpan();
+        }
+    }
+
+    /**
+     * Reports an ended span which has not been discarded.
+     *
+     * @param span the span to report
+     */
+    public void reportSpan(Span span) {
         AbstractSpan<?> parent = span.getParent();
         if (parent != null && parent.isDiscarded()) {
             logger.warn("Reporting a child of an discarded span. The current span '{}' will not be shown in the UI. Consider deactivating span_min_duration.", span);
@@ -385,13 +451,28 @@ public class ElasticApmTracer implements Tracer {
         }
         // makes sure that parents are also non-discardable
         span.setNonDiscardable();
+        captureStackTrace(span);
+        if (transaction != null && transaction.bufferOrDiscardSpan(span)) {
+            return;
+        }
+        reporter.report(span);
+    }
+
+    /**
+     * Captures the stack trace of a slow span, unless it already has one.
+     * <p>
+     * Has to be called on the thread which has ended the span so that the frames point to the span's call site.
+     * </p>
+     */
+    private void captureStackTrace(Span span) {
         long spanFramesMinDurationMs = stacktraceConfiguration.getSpanFramesMinDurationMs();
-        if (spanFramesMinDurationMs != 0 && span.isSampled() && span.getStackFrames() == null) {
+        int stackTraceLimit = stacktraceConfiguration.getStackTraceLimit();
+        if (spanFramesMinDurationMs != 0 && stackTraceLimit != 0 && span.isSampled()
+            && span.getStackFrames() == null && span.getStacktrace() == null && span.getStackTraceElements() == null) {
             if (span.getDurationMs() >= spanFramesMinDurationMs) {
-                span.withStacktrace(new Throwable());
+                StackTraceFactory.ForCurrentVM.INSTANCE.captureStackTrace(span, stackTraceLimit);
             }
         }
-        reporter.report(span);
     }
 
     public void endError(ErrorCapture error) {
@@ -406,6 +487,24 @@ public class ElasticApmTracer implements Tracer {
         spanPool.recycle(span);
     }
 
+    /**
+     * Recycles multiple transactions at once, see {@link ObjectPool#recycleAll(List)}
+     *
+     * @param transactions the transactions which are no longer referenced
+     */
+    public void recycleTransactions(List<Transaction> transactions) {
+        transactionPool.recycleAll(transactions);
+    }
+
+    /**
+     * Recycles multiple spans at once, see {@link ObjectPool#recycleAll(List)}
+     *
+     * @param spans the spans which are no longer referenced
+     */
+    public void recycleSpans(List<Span> spans) {
+        spanPool.recycleAll(spans);
+    }
+
     public void recycle(ErrorCapture error) {
         errorPool.recycle(error);
     }
@@ -444,7 +543,8 @@ public class ElasticApmTracer implements Tracer {
     @Override
     @Nullable
     public AbstractSpan<?> getActive() {
-        return activeStack.get().peek();
+        final ActivationStack stack = activeStack.get();
+        return stack != null ? stack.peek() : null;
     }
 
     @Nullable
@@ -648,7 +748,12 @@ public class ElasticApmTracer implements Tracer {
                 logger.warn("Exception while calling {}#beforeActivate", activationListeners.get(i).getClass().getSimpleName(), t);
             }
         }
-        activeStack.get().push(span);
+        ActivationStack stack = activeStack.get();
+        if (stack == null) {
+            stack = new ActivationStack(ThreadUtils.isVirtual(Thread.currentThread()));
+            activeStack.set(stack);
+        }
+        stack.push(span);
     }
 
     public void deactivate(AbstractSpan<?> span) {
@@ -656,8 +761,11 @@ public class ElasticApmTracer implements Tracer {
             logger.debug("Deactivating {} on thread {}", span, Thread.currentThread().getId());
         }
         try {
-            final Deque<AbstractSpan<?>> stack = activeStack.get();
-            assertIsActive(span, stack.poll());
+            final ActivationStack stack = activeStack.get();
+            assertIsActive(span, stack != null ? stack.pop() : null);
+            if (stack != null && stack.isEmpty() && stack.isVirtualThread()) {
+                activeStack.remove();
+            }
             List<ActivationListener> activationListeners = getActivationListeners();
             for (int i = 0, size = activationListeners.size(); i < size; i++) {
                 try {
@@ -78,6 +78,7 @@ public class ElasticApmTracerBuilder {
     @Nullable
     private final String agentArguments;
 
+    @Nullable
     private ObjectPoolFactory objectPoolFactory;
 
     private final List<LifecycleListener> extraLifecycleListeners;
@@ -91,7 +92,6 @@ public class ElasticApmTracerBuilder {
         this.ephemeralId = UUID.randomUUID().toString();
         LoggingConfiguration.init(getConfigSources(agentArguments), ephemeralId);
         logger = LoggerFactory.getLogger(getClass());
-        objectPoolFactory = new ObjectPoolFactory();
         extraLifecycleListeners = new ArrayList<>();
     }
 
@@ -159,6 +159,10 @@ public class ElasticApmTracerBuilder {
             reporter = new ReporterFactory().createReporter(configurationRegistry, apmServerClient, metaData);
         }
 
+        if (objectPoolFactory == null) {
+            objectPoolFactory = new ObjectPoolFactory(configurationRegistry.getConfig(CoreConfiguration.class).getObjectPoolType());
+        }
+
         ElasticApmTracer tracer = new ElasticApmTracer(configurationRegistry, reporter, objectPoolFactory, apmServerClient, metaData);
         lifecycleListeners.addAll(DependencyInjectingServiceLoader.load(LifecycleListener.class, tracer));
         lifecycleListeners.addAll(extraLifecycleListeners);
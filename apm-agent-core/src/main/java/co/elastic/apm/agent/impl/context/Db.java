@@ -245,6 +245,15 @@ public class Db implements Recyclable {
             statementBuffer != null;
     }
 
+    /**
+     * @param other the context of another span
+     * @return whether both contexts have the same {@link #getStatement() statement} and {@link #getStatementBuffer() statement buffer} content
+     */
+    public boolean hasSameStatement(Db other) {
+        return (statement == null ? other.statement == null : statement.equals(other.statement))
+            && (statementBuffer == null ? other.statementBuffer == null : statementBuffer.equals(other.statementBuffer));
+    }
+
     public void copyFrom(Db other) {
         instance = other.instance;
         statement = other.statement;
@@ -32,19 +32,44 @@ import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
 import co.elastic.apm.agent.report.processor.Processor;
 import co.elastic.apm.agent.util.PotentiallyMultiValuedMap;
+import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import static co.elastic.apm.agent.impl.context.AbstractContext.REDACTED_CONTEXT_STRING;
 
 /**
  * Sanitizes web-related fields according to the {@link CoreConfiguration#sanitizeFieldNames} setting
+ * <p>
+ * As the number of distinct header, cookie and form field names is typically small,
+ * whether a field name is sensitive is cached,
+ * so that sanitizing a field usually is a hash lookup instead of matching all {@link WildcardMatcher}s.
+ * </p>
  */
 public class SanitizingWebProcessor implements Processor {
 
-    private final CoreConfiguration config;
+    /**
+     * Limits the memory consumption in case field names are high-cardinality, for example user-provided form fields.
+     * Once the limit is reached, the cache is cleared,
+     * so that high-cardinality names which have been seen early don't permanently take the place of frequently used header names.
+     */
+    static final int MAX_CACHED_FIELD_NAMES = 1024;
+
+    private volatile SensitiveFieldNameCache cache;
 
     public SanitizingWebProcessor(ConfigurationRegistry configurationRegistry) {
-        config = configurationRegistry.getConfig(CoreConfiguration.class);
+        final ConfigurationOption<List<WildcardMatcher>> sanitizeFieldNames = configurationRegistry.getConfig(CoreConfiguration.class).getSanitizeFieldNamesOption();
+        cache = new SensitiveFieldNameCache(sanitizeFieldNames.get());
+        sanitizeFieldNames.addChangeListener(new ConfigurationOption.ChangeListener<List<WildcardMatcher>>() {
+            @Override
+            public void onChange(ConfigurationOption<?> configurationOption, List<WildcardMatcher> oldValue, List<WildcardMatcher> newValue) {
+                // replacing instead of clearing the cache avoids that a concurrent lookup caches a decision based on the old value
+                cache = new SensitiveFieldNameCache(newValue);
+            }
+        });
     }
 
     @Override
@@ -81,8 +106,35 @@ public class SanitizingWebProcessor implements Processor {
         }
     }
 
-    private boolean isSensitive(String key) {
-        assert config != null;
-        return WildcardMatcher.anyMatch(config.getSanitizeFieldNames(), key) != null;
+    // visible for testing
+    boolean isSensitive(String key) {
+        return cache.isSensitive(key);
+    }
+
+    // visible for testing
+    int getCachedFieldNames() {
+        return cache.decisions.size();
+    }
+
+    private static class SensitiveFieldNameCache {
+        private final List<WildcardMatcher> sanitizeFieldNames;
+        private final ConcurrentMap<String, Boolean> decisions = new ConcurrentHashMap<>();
+
+        private SensitiveFieldNameCache(List<WildcardMatcher> sanitizeFieldNames) {
+            this.sanitizeFieldNames = sanitizeFieldNames;
+        }
+
+        private boolean isSensitive(String key) {
+            Boolean sensitive = decisions.get(key);
+            if (sensitive == null) {
+                sensitive = WildcardMatcher.anyMatch(sanitizeFieldNames, key) != null;
+                // the size check is racy so the cache may slightly exceed the limit
+                if (decisions.size() >= MAX_CACHED_FIELD_NAMES) {
+                    decisions.clear();
+                }
+                decisions.put(key, sensitive);
+            }
+            return sensitive;
+        }
     }
 }
@@ -25,10 +25,9 @@
 package co.elastic.apm.agent.impl.context.web;
 
 import co.elastic.apm.agent.matcher.WildcardMatcher;
-import co.elastic.apm.agent.matcher.WildcardMatcherValueConverter;
+import co.elastic.apm.agent.matcher.WildcardMatcherListValueConverter;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
-import org.stagemonitor.configuration.converter.ListValueConverter;
 
 import java.util.Arrays;
 import java.util.Collections;
@@ -39,7 +38,7 @@ public class WebConfiguration extends ConfigurationOptionProvider {
     private static final String HTTP_CATEGORY = "HTTP";
 
     private final ConfigurationOption<List<WildcardMatcher>> captureContentTypes = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("capture_body_content_types")
         .configurationCategory(HTTP_CATEGORY)
         .tags("added[1.5.0]", "performance")
@@ -49,15 +48,15 @@ public class WebConfiguration extends ConfigurationOptionProvider {
             "\n" +
             WildcardMatcher.DOCUMENTATION)
         .dynamic(true)
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcher.compile(Arrays.asList(
             WildcardMatcher.valueOf("application/x-www-form-urlencoded*"),
             WildcardMatcher.valueOf("text/*"),
             WildcardMatcher.valueOf("application/json*"),
             WildcardMatcher.valueOf("application/xml*")
-        ));
+        )));
 
     private final ConfigurationOption<List<WildcardMatcher>> ignoreUrls = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("ignore_urls")
         .configurationCategory(HTTP_CATEGORY)
         .description("Used to restrict requests to certain URLs from being instrumented.\n" +
@@ -70,7 +69,7 @@ public class WebConfiguration extends ConfigurationOptionProvider {
             "NOTE: All errors that are captured during a request to an ignored URL are still sent to the APM Server regardless of " +
             "this setting.")
         .dynamic(true)
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcher.compile(Arrays.asList(
             WildcardMatcher.valueOf("/VAADIN/*"),
             WildcardMatcher.valueOf("/heartbeat*"),
             WildcardMatcher.valueOf("/favicon.ico"),
@@ -84,9 +83,9 @@ public class WebConfiguration extends ConfigurationOptionProvider {
             WildcardMatcher.valueOf("*.svg"),
             WildcardMatcher.valueOf("*.woff"),
             WildcardMatcher.valueOf("*.woff2")
-        ));
+        )));
     private final ConfigurationOption<List<WildcardMatcher>> ignoreUserAgents = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("ignore_user_agents")
         .configurationCategory(HTTP_CATEGORY)
         .description("Used to restrict requests from certain User-Agents from being instrumented.\n" +
@@ -116,7 +115,7 @@ public class WebConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(false);
 
     private final ConfigurationOption<List<WildcardMatcher>> urlGroups = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("url_groups")
         .configurationCategory(HTTP_CATEGORY)
         .description("This option is only considered, when `use_path_as_transaction_name` is active.\n" +
@@ -0,0 +1,209 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.impl.transaction.Id;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This implementation of {@link Sampler} targets a fixed number of sampled transactions per second,
+ * regardless of the throughput of the service.
+ * <p>
+ * The throughput is measured in windows of one second.
+ * At the end of each window, the sampling probability for the next window is adjusted to
+ * {@code targetPerSecond / throughput}, where the throughput is exponentially smoothed across windows.
+ * In order to cope with sudden traffic spikes within a window,
+ * at most twice the target number of transactions are sampled per window.
+ * </p>
+ * <p>
+ * When the transaction name is known at the time of the sampling decision
+ * (see {@link #isSampled(Id, CharSequence)}), each transaction name has its own budget.
+ * That way, a high-throughput endpoint, like a health check, does not take away the budget of rarely called endpoints.
+ * The number of distinct transaction names is limited by {@link #MAX_TRANSACTION_NAMES}.
+ * Additional transaction names, and names which don't find a free slot within {@link #MAX_PROBES}, share a single budget.
+ * </p>
+ * <p>
+ * All counters are updated lock-free.
+ * Just like {@link ProbabilitySampler}, the random part of the {@link Id} is used to make the probabilistic decision.
+ * </p>
+ */
+public class AdaptiveSampler implements Sampler {
+
+    static final int MAX_TRANSACTION_NAMES = 1024;
+    /**
+     * Bounds the cost of looking up a name which is not known, once the table has (almost) filled up
+     */
+    static final int MAX_PROBES = 16;
+    static final long WINDOW_MS = 1000;
+    /**
+     * The weight of the most recent window when smoothing the throughput, if exactly one window has elapsed
+     */
+    private static final double SMOOTHING_FACTOR = 0.5;
+
+    private final double targetPerSecond;
+    /**
+     * Caps the number of sampled transactions within a window, in case of a sudden spike in throughput
+     */
+    private final long maxSampledPerWindow;
+    private final Budget defaultBudget;
+    private final Budget overflowBudget;
+    private final AtomicReferenceArray<Budget> transactionNameBudgets = new AtomicReferenceArray<>(MAX_TRANSACTION_NAMES);
+
+    AdaptiveSampler(double targetPerSecond, long nowMs) {
+        this.targetPerSecond = targetPerSecond;
+        this.maxSampledPerWindow = Math.max(1, (long) Math.ceil(2 * targetPerSecond * WINDOW_MS / 1000));
+        this.defaultBudget = new Budget("", nowMs);
+        this.overflowBudget = new Budget("", nowMs);
+    }
+
+    /**
+     * @param targetPerSecond the targeted number of sampled transactions per second
+     * @return a sampler which samples about {@code targetPerSecond} transactions per second (per transaction name, if known)
+     */
+    public static AdaptiveSampler of(double targetPerSecond) {
+        return new AdaptiveSampler(targetPerSecond, System.currentTimeMillis());
+    }
+
+    @Override
+    public boolean isSampled(Id traceId) {
+        return defaultBudget.isSampled(traceId, System.currentTimeMillis());
+    }
+
+    /**
+     * Makes the sampling decision based on the budget of the provided transaction name.
+     *
+     * @param traceId         the trace id
+     * @param transactionName the name of the transaction
+     * @return the sampling decision
+     */
+    public boolean isSampled(Id traceId, CharSequence transactionName) {
+        return isSampled(traceId, transactionName, System.currentTimeMillis());
+    }
+
+    boolean isSampled(Id traceId, CharSequence transactionName, long nowMs) {
+        return getBudget(transactionName, nowMs).isSampled(traceId, nowMs);
+    }
+
+    boolean isSampled(Id traceId, long nowMs) {
+        return defaultBudget.isSampled(traceId, nowMs);
+    }
+
+    /**
+     * Looks up the budget via open addressing, which avoids allocating a {@link String} for the lookup.
+     */
+    private Budget getBudget(CharSequence transactionName, long nowMs) {
+        final int mask = MAX_TRANSACTION_NAMES - 1;
+        final int hash = hash(transactionName);
+        for (int i = 0; i < MAX_PROBES; i++) {
+            final int index = (hash + i) & mask;
+            Budget budget = transactionNameBudgets.get(index);
+            if (budget == null) {
+                final Budget newBudget = new Budget(transactionName.toString(), nowMs);
+                if (transactionNameBudgets.compareAndSet(index, null, newBudget)) {
+                    return newBudget;
+                }
+                // another thread has claimed the slot in the meantime
+                budget = transactionNameBudgets.get(index);
+            }
+            if (budget.transactionName.contentEquals(transactionName)) {
+                return budget;
+            }
+        }
+        return overflowBudget;
+    }
+
+    /**
+     * Same as {@link String#hashCode()}, but for any {@link CharSequence}
+     */
+    private static int hash(CharSequence charSequence) {
+        int hash = 0;
+        for (int i = 0, length = charSequence.length(); i < length; i++) {
+            hash = 31 * hash + charSequence.charAt(i);
+        }
+        // spread the higher bits, as only the lower bits are used to determine the index
+        return hash ^ (hash >>> 16);
+    }
+
+    double getSamplingRate(CharSequence transactionName, long nowMs) {
+        return getBudget(transactionName, nowMs).getSamplingRate();
+    }
+
+    double getSamplingRate() {
+        return defaultBudget.getSamplingRate();
+    }
+
+    private class Budget {
+        private final String transactionName;
+        private final AtomicLong windowStartMs;
+        private final AtomicLong seenInWindow = new AtomicLong();
+        private final AtomicLong sampledInWindow = new AtomicLong();
+        /**
+         * The smoothed number of transactions per second, or a negative value if not measured yet
+         */
+        private volatile double throughput = -1;
+        /**
+         * See {@link ProbabilitySampler}, starts with sampling everything until the throughput has been measured
+         */
+        private volatile long higherBound = Long.MAX_VALUE;
+
+        private Budget(String transactionName, long nowMs) {
+            this.transactionName = transactionName;
+            this.windowStartMs = new AtomicLong(nowMs);
+        }
+
+        private boolean isSampled(Id traceId, long nowMs) {
+            final long windowStart = windowStartMs.get();
+            if (nowMs - windowStart >= WINDOW_MS && windowStartMs.compareAndSet(windowStart, nowMs)) {
+                // only one thread wins the race to adjust the sampling rate
+                adjust(nowMs - windowStart);
+            }
+            seenInWindow.incrementAndGet();
+            final long leastSignificantBits = traceId.getLeastSignificantBits();
+            final long higherBound = this.higherBound;
+            return leastSignificantBits > -higherBound && leastSignificantBits < higherBound
+                && sampledInWindow.incrementAndGet() <= maxSampledPerWindow;
+        }
+
+        private void adjust(long windowDurationMs) {
+            final double windowThroughput = seenInWindow.getAndSet(0) * 1000d / windowDurationMs;
+            sampledInWindow.set(0);
+            final double previousThroughput = this.throughput;
+            // the previous throughput decays with each elapsed window, so that the sampling rate recovers quickly after idle periods
+            final double previousWeight = Math.pow(1 - SMOOTHING_FACTOR, (double) windowDurationMs / WINDOW_MS);
+            final double throughput = previousThroughput < 0
+                ? windowThroughput
+                : (1 - previousWeight) * windowThroughput + previousWeight * previousThroughput;
+            this.throughput = throughput;
+            final double samplingRate = throughput <= targetPerSecond ? 1 : targetPerSecond / throughput;
+            higherBound = samplingRate >= 1 ? Long.MAX_VALUE : (long) (Long.MAX_VALUE * samplingRate);
+        }
+
+        private double getSamplingRate() {
+            return (double) higherBound / Long.MAX_VALUE;
+        }
+    }
+}
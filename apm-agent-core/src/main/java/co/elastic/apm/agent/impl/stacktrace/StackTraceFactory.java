@@ -0,0 +1,157 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.stacktrace;
+
+import co.elastic.apm.agent.impl.transaction.Span;
+import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * A {@link StackTraceFactory} is responsible for capturing the stack trace of the current thread for a {@link Span}.
+ */
+public interface StackTraceFactory {
+
+    /**
+     * Captures the stack trace of the current thread.
+     *
+     * @param span      the span to attach the stack trace to
+     * @param maxFrames the maximum number of frames, after omitting the agent's and the {@linkplain StackTraceFilter#isExcluded excluded} frames.
+     *                  {@code -1} means all frames.
+     */
+    void captureStackTrace(Span span, int maxFrames);
+
+    /**
+     * Redirects to the the best {@link StackTraceFactory} strategy for the current VM
+     */
+    enum ForCurrentVM implements StackTraceFactory {
+
+        /**
+         * The singleton instance
+         */
+        INSTANCE;
+
+        /**
+         * The best {@link StackTraceFactory} for the current VM
+         */
+        private final StackTraceFactory dispatcher;
+
+        ForCurrentVM() {
+            StackTraceFactory stackTraceFactory;
+            try {
+                stackTraceFactory = ForJava9CompatibleVM.make();
+            } catch (NoClassDefFoundError | Exception ignore) {
+                stackTraceFactory = ForLegacyVM.INSTANCE;
+            }
+            dispatcher = stackTraceFactory;
+        }
+
+        @Override
+        public void captureStackTrace(Span span, int maxFrames) {
+            dispatcher.captureStackTrace(span, maxFrames);
+        }
+    }
+
+    /**
+     * A {@link StackTraceFactory} for legacy VMs which captures a {@link Throwable}.
+     * <p>
+     * The stack trace is only materialized when serializing the span, which happens on the reporter thread.
+     * However, filling in the stack trace always walks the entire stack.
+     * </p>
+     */
+    enum ForLegacyVM implements StackTraceFactory {
+
+        /**
+         * The singleton instance
+         */
+        INSTANCE;
+
+        @Override
+        public void captureStackTrace(Span span, int maxFrames) {
+            span.withStacktrace(new Throwable());
+        }
+    }
+
+    /**
+     * A {@link StackTraceFactory} for Java 9+ VMs which uses a {@link StackWalker}.
+     * <p>
+     * As the stack is walked lazily, only the frames up to the limit are visited and converted to {@link StackTraceElement}s.
+     * </p>
+     */
+    @IgnoreJRERequirement
+    class ForJava9CompatibleVM implements StackTraceFactory {
+
+        /**
+         * The {@link StackWalker} instance
+         * <p>
+         * This is stored in a {@link Object} reference as opposed to a {@link StackWalker} reference so that reflectively
+         * inspecting the instance variables of this class, does not lead to {@link ClassNotFoundException}s on non Java 9 capable VMs
+         * </p>
+         */
+        private final Object stackWalker;
+
+        private ForJava9CompatibleVM(Object stackWalker) {
+            this.stackWalker = stackWalker;
+        }
+
+        static StackTraceFactory make() throws Exception {
+            Class.forName("java.lang.StackWalker");
+            return new ForJava9CompatibleVM(StackWalker.getInstance());
+        }
+
+        @Override
+        public void captureStackTrace(Span span, final int maxFrames) {
+            StackTraceElement[] stackTrace = ((StackWalker) stackWalker).walk(new Function<Stream<StackWalker.StackFrame>, StackTraceElement[]>() {
+                @Override
+                public StackTraceElement[] apply(Stream<StackWalker.StackFrame> stackFrames) {
+                    return collect(stackFrames.iterator(), maxFrames);
+                }
+            });
+            span.withStackTraceElements(stackTrace);
+        }
+
+        private static StackTraceElement[] collect(Iterator<StackWalker.StackFrame> stackFrames, int maxFrames) {
+            List<StackTraceElement> stackTrace = new ArrayList<>(maxFrames >= 0 ? maxFrames : 64);
+            boolean topMostAgentFramesSkipped = false;
+            while (stackFrames.hasNext() && (maxFrames < 0 || stackTrace.size() < maxFrames)) {
+                StackWalker.StackFrame stackFrame = stackFrames.next();
+                String className = stackFrame.getClassName();
+                // only skip the top most agent frames
+                if (!topMostAgentFramesSkipped && StackTraceFilter.isAgentFrame(className)) {
+                    continue;
+                }
+                topMostAgentFramesSkipped = true;
+                if (!StackTraceFilter.isExcluded(className, stackFrame.getFileName())) {
+                    stackTrace.add(stackFrame.toStackTraceElement());
+                }
+            }
+            return stackTrace.toArray(new StackTraceElement[0]);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.stacktrace;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Determines which stack frames are omitted when capturing and serializing stack traces.
+ */
+public final class StackTraceFilter {
+
+    private static final String AGENT_PACKAGE = "co.elastic.apm";
+    private static final Collection<String> excludedStackFrames = Arrays.asList("java.lang.reflect", "com.sun", "sun.", "jdk.internal.");
+
+    private StackTraceFilter() {
+    }
+
+    /**
+     * The top most stack frames of the agent itself are skipped, as they are not relevant to the user
+     *
+     * @param className the name of the class of the stack frame
+     * @return {@code true} if the frame belongs to the agent
+     */
+    public static boolean isAgentFrame(String className) {
+        return className.startsWith(AGENT_PACKAGE);
+    }
+
+    /**
+     * @param className the name of the class of the stack frame
+     * @param fileName  the file name of the stack frame
+     * @return {@code true} if the frame should be omitted
+     */
+    public static boolean isExcluded(String className, @Nullable String fileName) {
+        // file name is a required field
+        if (fileName == null) {
+            return true;
+        }
+        for (String excludedStackFrame : excludedStackFrames) {
+            if (className.startsWith(excludedStackFrame)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -95,6 +95,14 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
      */
     @Nullable
     private LongList childIds;
+    /**
+     * The last ended child span which is eligible for compression and has not been reported yet.
+     * Guarded by {@code this}.
+     *
+     * @see CoreConfiguration#isSpanCompressionEnabled()
+     */
+    @Nullable
+    private volatile Span bufferedSpan;
 
     public int getReferenceCount() {
         return references.get();
@@ -325,6 +333,7 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
         discardRequested = false;
         isExit = false;
         childIds = null;
+        bufferedSpan = null;
     }
 
     public Span createSpan() {
@@ -420,12 +429,17 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
             beforeEnd(epochMicros);
             this.finished = true;
             afterEnd();
-        } else {
+        } else if (!isNoop()) {
             logger.warn("End has already been called: {}", this);
             assert false;
         }
     }
 
+    /**
+     * @return {@code true} if this span or transaction is not recorded and will never be reported
+     */
+    public abstract boolean isNoop();
+
     protected abstract void beforeEnd(long epochMicros);
 
     protected abstract void afterEnd();
@@ -493,6 +507,70 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
         }
     }
 
+    /**
+     * Compresses an ended child span into the buffered sibling span or buffers the child span
+     * so that subsequently ending siblings can be compressed into it.
+     * <p>
+     * If the child span can't be compressed or buffered, the buffered sibling span is reported,
+     * as only consecutive siblings are compressed.
+     * </p>
+     *
+     * @param child                 an ended child span of this span
+     * @param exactMatchMaxDuration the max duration of spans which are compressed with the exact match strategy, in microseconds
+     * @param sameKindMaxDuration   the max duration of spans which are compressed with the same kind strategy, in microseconds
+     * @return {@code true} if the child span has been compressed or buffered and must not be reported by the caller
+     */
+    public boolean compressOrBuffer(Span child, long exactMatchMaxDuration, long sameKindMaxDuration) {
+        Span toReport = null;
+        boolean compressed = false;
+        boolean buffered = false;
+        synchronized (this) {
+            Span sibling = bufferedSpan;
+            if (finished) {
+                // the buffered span is reported when this span ends
+            } else if (!child.isCompressionEligible()) {
+                toReport = sibling;
+                bufferedSpan = null;
+            } else if (sibling != null && sibling.tryToCompress(child, exactMatchMaxDuration, sameKindMaxDuration)) {
+                compressed = true;
+            } else {
+                toReport = sibling;
+                bufferedSpan = child;
+                buffered = true;
+            }
+        }
+        if (toReport != null) {
+            tracer.reportSpan(toReport);
+        }
+        if (compressed) {
+            child.decrementReferences();
+        }
+        return compressed || buffered;
+    }
+
+    /**
+     * Reports the buffered child span, if any.
+     * Must be called after this span has been {@link #finished}.
+     */
+    public void flushBufferedSpan() {
+        Span toReport;
+        synchronized (this) {
+            toReport = bufferedSpan;
+            bufferedSpan = null;
+        }
+        if (toReport != null) {
+            tracer.reportSpan(toReport);
+        }
+    }
+
+    /**
+     * @return {@code true} if there might be a buffered child span,
+     * can only be relied upon if no child spans end concurrently
+     */
+    public boolean hasBufferedSpan() {
+        return bufferedSpan != null;
+    }
+
     public void incrementReferences() {
         int referenceCount = references.incrementAndGet();
         if (logger.isDebugEnabled()) {
@@ -518,6 +596,30 @@ public abstract class AbstractSpan<T extends AbstractSpan<T>> implements Recycla
         }
     }
 
+    /**
+     * Decrements the reference count of this span by {@code count} but, other than {@link #decrementReferences()},
+     * does not recycle it when the count drops to zero.
+     * Also, a {@link Span} does not decrement the references of its {@link Transaction}.
+     * <p>
+     * This allows to collect the spans and transactions which are no longer referenced and to recycle them in bulk,
+     * see {@link RecyclingBatch}.
+     * </p>
+     *
+     * @param count the number of references to release
+     * @return {@code true} if the last reference has been released and the caller is responsible for recycling this span
+     */
+    boolean decrementReferencesWithoutRecycling(int count) {
+        int referenceCount = references.addAndGet(-count);
+        if (logger.isDebugEnabled()) {
+            logger.debug("decrement references to {} by {} ({})", this, count, referenceCount);
+            if (logger.isTraceEnabled()) {
+                logger.trace("decrementing references at",
+                    new RuntimeException("This is an expected exception. Is just used to record where the reference count has been decremented."));
+            }
+        }
+        return referenceCount == 0;
+    }
+
     protected abstract void recycle();
 
     /**
@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import co.elastic.apm.agent.objectpool.Recyclable;
+
+import javax.annotation.Nullable;
+
+/**
+ * Represents consecutive sibling spans which have been compressed into a single span,
+ * see {@link co.elastic.apm.agent.configuration.CoreConfiguration#isSpanCompressionEnabled()}
+ */
+public class Composite implements Recyclable {
+
+    public static final String EXACT_MATCH = "exact_match";
+    public static final String SAME_KIND = "same_kind";
+
+    /**
+     * The number of compressed spans this composite span represents
+     */
+    private int count;
+
+    /**
+     * The sum of the durations of all compressed spans, in microseconds
+     */
+    private long sum;
+
+    /**
+     * A string value indicating which compression strategy was used,
+     * either {@link #EXACT_MATCH} or {@link #SAME_KIND}
+     */
+    @Nullable
+    private String compressionStrategy;
+
+    void init(long duration, String compressionStrategy) {
+        this.count = 1;
+        this.sum = duration;
+        this.compressionStrategy = compressionStrategy;
+    }
+
+    void add(long duration) {
+        count++;
+        sum += duration;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the sum of the durations of all compressed spans, in microseconds
+     */
+    public long getSum() {
+        return sum;
+    }
+
+    /**
+     * @return the sum of the durations of all compressed spans, in milliseconds
+     */
+    public double getSumMs() {
+        return sum / AbstractSpan.MS_IN_MICROS;
+    }
+
+    @Nullable
+    public String getCompressionStrategy() {
+        return compressionStrategy;
+    }
+
+    public boolean hasContent() {
+        return count > 0;
+    }
+
+    @Override
+    public void resetState() {
+        count = 0;
+        sum = 0;
+        compressionStrategy = null;
+    }
+}
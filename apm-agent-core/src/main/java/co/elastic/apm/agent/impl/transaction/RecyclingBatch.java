@@ -0,0 +1,140 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the reference decrements of spans and transactions which have been reported
+ * and recycles the ones which are no longer referenced in bulk, once {@link #flush()} is called.
+ * <p>
+ * Consecutive spans of the same transaction are common,
+ * which is why the decrements of the transaction's references are coalesced into a single atomic operation.
+ * </p>
+ * <p>
+ * Not thread safe, should be owned by a single thread, like the reporter thread.
+ * </p>
+ */
+public class RecyclingBatch {
+
+    /**
+     * Limits the memory the lists may retain and bounds the time a no longer referenced object is kept out of the pool
+     */
+    static final int MAX_BATCH_SIZE = 256;
+
+    private final List<Span> spans = new ArrayList<Span>();
+    private final List<Transaction> transactions = new ArrayList<Transaction>();
+    @Nullable
+    private ElasticApmTracer tracer;
+    @Nullable
+    private Transaction pendingTransaction;
+    private int pendingTransactionReferences;
+
+    /**
+     * Same as {@link Span#decrementReferences()}, except that the span and its transaction are recycled on {@link #flush()}
+     *
+     * @param span the span to release a reference of
+     */
+    public void decrementReferences(Span span) {
+        setTracer(span.tracer);
+        final Transaction transaction = span.getTransaction();
+        if (transaction != null) {
+            decrementReferencesLater(transaction);
+        }
+        if (span.decrementReferencesWithoutRecycling(1)) {
+            spans.add(span);
+            flushIfFull(spans);
+        }
+    }
+
+    /**
+     * Same as {@link Transaction#decrementReferences()}, except that the transaction is recycled on {@link #flush()}
+     *
+     * @param transaction the transaction to release a reference of
+     */
+    public void decrementReferences(Transaction transaction) {
+        setTracer(transaction.tracer);
+        decrementReferencesLater(transaction);
+    }
+
+    private void decrementReferencesLater(Transaction transaction) {
+        if (transaction != pendingTransaction) {
+            applyPendingTransactionReferences();
+            pendingTransaction = transaction;
+        }
+        pendingTransactionReferences++;
+    }
+
+    private void applyPendingTransactionReferences() {
+        if (pendingTransaction != null) {
+            if (pendingTransaction.decrementReferencesWithoutRecycling(pendingTransactionReferences)) {
+                transactions.add(pendingTransaction);
+            }
+            pendingTransaction = null;
+            pendingTransactionReferences = 0;
+            flushIfFull(transactions);
+        }
+    }
+
+    private void setTracer(ElasticApmTracer tracer) {
+        // all objects of a batch have to be returned to the pools of the same tracer
+        if (this.tracer != tracer) {
+            flush();
+            this.tracer = tracer;
+        }
+    }
+
+    private void flushIfFull(List<?> list) {
+        if (list.size() >= MAX_BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Releases all pending references and recycles the spans and transactions which are no longer referenced.
+     */
+    public void flush() {
+        applyPendingTransactionReferences();
+        if (tracer != null) {
+            // spans are recycled first as they may still point to their transaction
+            if (!spans.isEmpty()) {
+                tracer.recycleSpans(spans);
+            }
+            if (!transactions.isEmpty()) {
+                tracer.recycleTransactions(transactions);
+            }
+        }
+        spans.clear();
+        transactions.clear();
+    }
+
+    int getPendingObjects() {
+        return spans.size() + transactions.size() + pendingTransactionReferences;
+    }
+}
@@ -69,11 +69,22 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
     @Nullable
     private Throwable stacktrace;
     @Nullable
+    private StackTraceElement[] stackTraceElements;
+    @Nullable
     private AbstractSpan<?> parent;
     @Nullable
     private Transaction transaction;
     @Nullable
     private List<StackFrame> stackFrames;
+    /**
+     * Set if other spans have been compressed into this span
+     */
+    private final Composite composite = new Composite();
+    /**
+     * Whether this span is a stand-in for a span which is dropped as the transaction's span limit has been reached,
+     * see {@link #startNoop}
+     */
+    private boolean noop;
 
     /**
      * If a span is non-discardable, all the spans leading up to it are non-discardable as well
@@ -107,13 +118,8 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
     private Span start(long epochMicros) {
         if (transaction != null) {
             SpanCount spanCount = transaction.getSpanCount();
-            if (transaction.isSpanLimitReached()) {
-                if (epochMicros - lastSpanMaxWarningTimestamp > MAX_LOG_INTERVAL_MICRO_SECS) {
-                    lastSpanMaxWarningTimestamp = epochMicros;
-                    logger.warn("Max spans ({}) for transaction {} has been reached. For this transaction and possibly others, further spans will be dropped. See config param 'transaction_max_spans'.",
-                        tracer.getConfig(CoreConfiguration.class).getTransactionMaxSpans(), transaction);
-                }
-                logger.debug("Span exceeds transaction_max_spans {}", this);
+            if (noop || transaction.isSpanLimitReached()) {
+                onSpanLimitReached(transaction, epochMicros);
                 traceContext.setRecorded(false);
                 spanCount.getDropped().incrementAndGet();
             }
@@ -135,6 +141,44 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
         return this;
     }
 
+    private void onSpanLimitReached(Transaction transaction, long epochMicros) {
+        if (epochMicros - lastSpanMaxWarningTimestamp > MAX_LOG_INTERVAL_MICRO_SECS) {
+            lastSpanMaxWarningTimestamp = epochMicros;
+            logger.warn("Max spans ({}) for transaction {} has been reached. For this transaction and possibly others, further spans will be dropped. See config param 'transaction_max_spans'.",
+                tracer.getConfig(CoreConfiguration.class).getTransactionMaxSpans(), transaction);
+        }
+        logger.debug("Span exceeds transaction_max_spans {}", this);
+    }
+
+    /**
+     * Starts this span as a stand-in for a span which is dropped as the span limit of the transaction has been reached.
+     * <p>
+     * In contrast to a regular span, the trace context is derived from the parent without consulting a
+     * {@link TraceContext.ChildContextCreator} and it is not recorded,
+     * so that instrumentations don't populate the context and the span is discarded when ending it.
+     * The trace context can still be propagated to downstream services.
+     * As the span is timed like any other span, its self time is tracked in the breakdown metrics under its own type.
+     * </p>
+     *
+     * @param parent      the parent of the dropped span
+     * @param transaction the transaction whose span limit has been reached
+     * @param epochMicros the start timestamp of the span in microseconds after epoch, or {@code -1} for now
+     * @return {@code this}, for chaining
+     */
+    public Span startNoop(AbstractSpan<?> parent, Transaction transaction, long epochMicros) {
+        noop = true;
+        traceContext.asChildOf(parent.getTraceContext());
+        traceContext.setRecorded(false);
+        this.parent = parent;
+        this.transaction = transaction;
+        return start(epochMicros);
+    }
+
+    @Override
+    public boolean isNoop() {
+        return noop;
+    }
+
     @Override
     protected void onAfterStart() {
         super.onAfterStart();
@@ -208,6 +252,21 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
         return stacktrace;
     }
 
+    /**
+     * Returns the stack trace of this span, which has either been captured as a {@link Throwable} or as {@link StackTraceElement}s.
+     *
+     * @return the stack trace of this span, or {@code null} if no stack trace has been captured
+     */
+    @Nullable
+    public StackTraceElement[] getStackTraceElements() {
+        if (stackTraceElements != null) {
+            return stackTraceElements;
+        } else if (stacktrace != null) {
+            return stacktrace.getStackTrace();
+        }
+        return null;
+    }
+
     @Nullable
     public String getType() {
         return type;
@@ -239,25 +298,121 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
         }
         if (parent != null) {
             parent.onChildEnd(epochMicros);
-            parent.decrementReferences();
         }
     }
 
     @Override
     protected void afterEnd() {
+        // the parent may only be recycled after this span has been buffered for compression or reported
+        final AbstractSpan<?> parent = this.parent;
         this.tracer.endSpan(this);
+        if (parent != null) {
+            parent.decrementReferences();
+        }
+    }
+
+    /**
+     * A span is eligible for compression if it's an exit span whose context has not been propagated,
+     * and no error has been captured for it, as errors and downstream services point to its id.
+     *
+     * @return whether this span may be compressed with its siblings
+     */
+    boolean isCompressionEligible() {
+        return isExit() && isDiscardable() && isSampled();
+    }
+
+    /**
+     * Tries to compress an ended sibling span into this span.
+     *
+     * @param sibling               the next ended sibling span
+     * @param exactMatchMaxDuration the max duration of spans which are compressed with the exact match strategy, in microseconds
+     * @param sameKindMaxDuration   the max duration of spans which are compressed with the same kind strategy, in microseconds
+     * @return {@code true} if the sibling has been compressed into this span and must not be reported
+     */
+    boolean tryToCompress(Span sibling, long exactMatchMaxDuration, long sameKindMaxDuration) {
+        if (!isSameKind(sibling)) {
+            return false;
+        }
+        final String compressionStrategy = composite.getCompressionStrategy();
+        if (compressionStrategy == null) {
+            if (duration <= exactMatchMaxDuration && sibling.duration <= exactMatchMaxDuration && isExactMatch(sibling)) {
+                composite.init(duration, Composite.EXACT_MATCH);
+            } else if (duration <= sameKindMaxDuration && sibling.duration <= sameKindMaxDuration) {
+                composite.init(duration, Composite.SAME_KIND);
+                name.setLength(0);
+                name.append("Calls to ");
+                StringBuilder resource = context.getDestination().getService().getResource();
+                if (resource.length() > 0) {
+                    name.append(resource);
+                } else {
+                    name.append(type);
+                    if (subtype != null) {
+                        name.append('/').append(subtype);
+                    }
+                }
+            } else {
+                return false;
+            }
+        } else if (Composite.EXACT_MATCH.equals(compressionStrategy)) {
+            if (sibling.duration > exactMatchMaxDuration || !isExactMatch(sibling)) {
+                return false;
+            }
+        } else if (sibling.duration > sameKindMaxDuration) {
+            return false;
+        }
+        composite.add(sibling.duration);
+        duration = Math.max(duration, sibling.getTimestamp() + sibling.duration - getTimestamp());
+        return true;
+    }
+
+    private boolean isSameKind(Span other) {
+        return equals(type, other.type)
+            && equals(subtype, other.subtype)
+            && contentEquals(context.getDestination().getService().getResource(), other.context.getDestination().getService().getResource());
+    }
+
+    private boolean isExactMatch(Span other) {
+        return contentEquals(name, other.name)
+            && context.getDb().hasSameStatement(other.context.getDb());
+    }
+
+    private static boolean equals(@Nullable String s1, @Nullable String s2) {
+        return s1 == null ? s2 == null : s1.equals(s2);
+    }
+
+    private static boolean contentEquals(StringBuilder sb1, StringBuilder sb2) {
+        if (sb1.length() != sb2.length()) {
+            return false;
+        }
+        for (int i = 0, length = sb1.length(); i < length; i++) {
+            if (sb1.charAt(i) != sb2.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return information about the spans which have been compressed into this span,
+     * see {@link Composite#hasContent()}
+     */
+    public Composite getComposite() {
+        return composite;
     }
 
     @Override
     public void resetState() {
         super.resetState();
         context.resetState();
+        composite.resetState();
         stacktrace = null;
+        stackTraceElements = null;
         type = null;
         subtype = null;
         action = null;
         parent = null;
         transaction = null;
+        noop = false;
         // recycling this array list by clear()-ing it doesn't seem worth it
         // it's used in the context of profiling-inferred spans which entails allocations anyways
         // when trying to recycle this list by clearing it, we increase the static memory overhead of the agent
@@ -275,6 +430,15 @@ public class Span extends AbstractSpan<Span> implements Recyclable {
         return this;
     }
 
+    /**
+     * @param stackTraceElements the already filtered and truncated stack trace of this span
+     * @return {@code this}, for chaining
+     */
+    public Span withStackTraceElements(StackTraceElement[] stackTraceElements) {
+        this.stackTraceElements = stackTraceElements;
+        return this;
+    }
+
     @Override
     public void incrementReferences() {
         if (transaction != null) {
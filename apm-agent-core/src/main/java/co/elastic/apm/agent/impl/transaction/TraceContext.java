@@ -225,12 +225,28 @@ public class TraceContext implements Recyclable {
     private final Id parentId = Id.new64BitId();
     private final Id transactionId = Id.new64BitId();
     private final StringBuilder outgoingTextHeader = new StringBuilder(TEXT_HEADER_EXPECTED_LENGTH);
+    /**
+     * Caches the {@link #outgoingTextHeader} so that propagating the trace context to multiple downstream calls,
+     * or setting both the W3C and the Elastic header, does not allocate a new {@link String} each time.
+     * <p>
+     * Racy lazy initialization is fine as {@link String}s are immutable and computing the value is idempotent.
+     * </p>
+     */
+    @Nullable
+    private String outgoingTextHeaderValue;
     private byte flags;
     private boolean discardable = true;
     // weakly referencing to avoid CL leaks in case of leaked spans
     @Nullable
     private WeakReference<ClassLoader> applicationClassLoader;
     private final List<String> tracestate = new ArrayList<>(1);
+    /**
+     * Caches the joined {@link #tracestate} header values.
+     * Child contexts reference the joined value of their parent,
+     * so that the values are only joined once per trace context and not on every propagation.
+     */
+    @Nullable
+    private String outgoingTracestate;
 
     final CoreConfiguration coreConfiguration;
 
@@ -425,9 +441,9 @@ public class TraceContext implements Recyclable {
         clock.init(parent.clock);
         serviceName = parent.serviceName;
         applicationClassLoader = parent.applicationClassLoader;
-        List<String> parentTracestate = parent.tracestate;
-        for (int i = 0, size = parentTracestate.size(); i < size; i++) {
-            tracestate.add(parentTracestate.get(i));
+        String parentTracestate = parent.getOutgoingTracestate();
+        if (parentTracestate != null) {
+            tracestate.add(parentTracestate);
         }
         onMutation();
     }
@@ -445,6 +461,8 @@ public class TraceContext implements Recyclable {
         serviceName = null;
         applicationClassLoader = null;
         tracestate.clear();
+        outgoingTextHeaderValue = null;
+        outgoingTracestate = null;
     }
 
     /**
@@ -501,6 +519,7 @@ public class TraceContext implements Recyclable {
         } else {
             flags &= ~FLAG_RECORDED;
         }
+        onMutation();
     }
 
     void setNonDiscardable() {
@@ -529,18 +548,41 @@ public class TraceContext implements Recyclable {
      * @param <C>          the header carrier type, for example - an HTTP request
      */
     <C> void propagateTraceContext(C carrier, TextHeaderSetter<C> headerSetter) {
-        headerSetter.setHeader(W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, getOutgoingTraceParentTextHeader().toString(), carrier);
+        String traceparent = getOutgoingTraceParentTextHeaderValue();
+        headerSetter.setHeader(W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME, traceparent, carrier);
         if (coreConfiguration.isElasticTraceparentHeaderEnabled()) {
-            headerSetter.setHeader(ELASTIC_TRACE_PARENT_TEXTUAL_HEADER_NAME, getOutgoingTraceParentTextHeader().toString(), carrier);
+            headerSetter.setHeader(ELASTIC_TRACE_PARENT_TEXTUAL_HEADER_NAME, traceparent, carrier);
         }
-        if (tracestate.size() == 1) {
-            headerSetter.setHeader(TRACESTATE_HEADER_NAME, tracestate.get(0), carrier);
-        } else if (!tracestate.isEmpty()) {
-            String tracestateHeaderValue = TextTracestateAppender.instance().join(tracestate, coreConfiguration.getTracestateSizeLimit());
+        String tracestateHeaderValue = getOutgoingTracestate();
+        if (tracestateHeaderValue != null) {
             headerSetter.setHeader(TRACESTATE_HEADER_NAME, tracestateHeaderValue, carrier);
         }
     }
 
+    /**
+     * Returns the value of the {@code tracestate} header for downstream services.
+     * <p>
+     * Multiple incoming {@code tracestate} headers are joined, respecting {@link CoreConfiguration#getTracestateSizeLimit()}.
+     * The result is cached so that subsequent calls don't allocate.
+     * </p>
+     *
+     * @return the value of the {@code tracestate} header, or {@code null} if there is none
+     */
+    @Nullable
+    String getOutgoingTracestate() {
+        if (tracestate.isEmpty()) {
+            return null;
+        } else if (tracestate.size() == 1) {
+            return tracestate.get(0);
+        }
+        String joined = outgoingTracestate;
+        if (joined == null) {
+            joined = TextTracestateAppender.instance().join(tracestate, coreConfiguration.getTracestateSizeLimit());
+            outgoingTracestate = joined;
+        }
+        return joined;
+    }
+
     /**
      * Sets Trace context binary headers, using this context as parent, on the provided carrier using the provided setter
      *
@@ -563,6 +605,19 @@ public class TraceContext implements Recyclable {
         return headerBufferFilled;
     }
 
+    /**
+     * Returns the value of the {@code traceparent} header for downstream services as a {@link String},
+     * which is cached until this trace context is mutated.
+     */
+    String getOutgoingTraceParentTextHeaderValue() {
+        String value = outgoingTextHeaderValue;
+        if (value == null) {
+            value = getOutgoingTraceParentTextHeader().toString();
+            outgoingTextHeaderValue = value;
+        }
+        return value;
+    }
+
     /**
      * Returns the value of the {@code traceparent} header for downstream services.
      */
@@ -629,16 +684,18 @@ public class TraceContext implements Recyclable {
         serviceName = other.serviceName;
         applicationClassLoader = other.applicationClassLoader;
         tracestate.addAll(other.tracestate);
+        outgoingTracestate = null;
         onMutation();
     }
 
     @Override
     public String toString() {
-        return getOutgoingTraceParentTextHeader().toString();
+        return getOutgoingTraceParentTextHeaderValue();
     }
 
     private void onMutation() {
         outgoingTextHeader.setLength(0);
+        outgoingTextHeaderValue = null;
     }
 
     public boolean isRoot() {
@@ -709,6 +766,7 @@ public class TraceContext implements Recyclable {
 
     public void addTracestate(String headerValue) {
         tracestate.add(headerValue);
+        outgoingTracestate = null;
     }
 
     public byte[] serialize() {
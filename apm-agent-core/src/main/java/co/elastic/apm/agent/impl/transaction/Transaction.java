@@ -27,17 +27,21 @@ package co.elastic.apm.agent.impl.transaction;
 import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.context.TransactionContext;
+import co.elastic.apm.agent.impl.sampling.AdaptiveSampler;
+import co.elastic.apm.agent.impl.sampling.ConstantSampler;
 import co.elastic.apm.agent.impl.sampling.Sampler;
-import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.BreakdownMetrics;
 import co.elastic.apm.agent.metrics.MetricRegistry;
-import co.elastic.apm.agent.metrics.Timer;
-import co.elastic.apm.agent.util.KeyListConcurrentHashMap;
+import co.elastic.apm.agent.metrics.StripedTimerTable;
+import co.elastic.apm.agent.report.ReporterConfiguration;
 import org.HdrHistogram.WriterReaderPhaser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Data captured by an agent representing an event occurring in a monitored service
@@ -45,15 +49,20 @@ import java.util.List;
 public class Transaction extends AbstractSpan<Transaction> {
 
     private static final Logger logger = LoggerFactory.getLogger(Transaction.class);
-    private static final ThreadLocal<Labels.Mutable> labelsThreadLocal = new ThreadLocal<Labels.Mutable>() {
-        @Override
-        protected Labels.Mutable initialValue() {
-            return Labels.Mutable.of();
-        }
-    };
+    /**
+     * The number of distinct span types and subtypes per transaction which are tracked in the pre-sized {@link #spanTimers}.
+     * Further span types are tracked in the lazily allocated {@link #overflowSpanTimers}.
+     */
+    private static final int MAX_SPAN_TYPES = 32;
+    private static volatile boolean spanTypeOverflowLogged;
 
     public static final String TYPE_REQUEST = "request";
 
+    private static final int TAIL_SAMPLING_NONE = 0;
+    private static final int TAIL_SAMPLING_PENDING = 1;
+    private static final int TAIL_SAMPLING_KEPT = 2;
+    private static final int TAIL_SAMPLING_DISCARDED = 3;
+
     /**
      * Context
      * <p>
@@ -62,16 +71,45 @@ public class Transaction extends AbstractSpan<Transaction> {
     private final TransactionContext context = new TransactionContext();
     private final SpanCount spanCount = new SpanCount();
     /**
-     * type: subtype: timer
+     * {@linkplain BreakdownMetrics#getSpanTypeId(String, String) span type id}: self time timer
      * <p>
-     * This map is not cleared when the transaction is recycled.
-     * Instead, it accumulates span types and subtypes over time.
-     * When tracking the metrics, the timers are reset and only those with a count > 0 are examined.
-     * That is done in order to minimize {@link java.util.Map.Entry} garbage.
+     * The table is pre-sized and only cleared when the transaction is recycled,
+     * so that tracking the self time of spans does not allocate.
      * </p>
      */
-    private final KeyListConcurrentHashMap<String, KeyListConcurrentHashMap<String, Timer>> timerBySpanTypeAndSubtype = new KeyListConcurrentHashMap<>();
+    private final StripedTimerTable spanTimers = new StripedTimerTable(MAX_SPAN_TYPES, 1);
+    /**
+     * Tracks the self time of span types which don't fit into the {@link #spanTimers}.
+     * As it can hold all {@linkplain BreakdownMetrics#MAX_SPAN_TYPES span types}, no span type is dropped.
+     * Only allocated for transactions which have more than {@link #MAX_SPAN_TYPES} distinct span types and released on recycle.
+     */
+    private final AtomicReference<StripedTimerTable> overflowSpanTimers = new AtomicReference<>();
+    private final SpanTimerFlusher spanTimerFlusher = new SpanTimerFlusher();
+    private final ReporterConfiguration reporterConfiguration;
     private final WriterReaderPhaser phaser = new WriterReaderPhaser();
+    /**
+     * Spans which have ended while the tail-based sampling decision is pending.
+     * Guarded by itself.
+     * <p>
+     * The list is retained when the transaction is recycled, so that buffering spans does not allocate after a warm-up phase.
+     * The number of buffered spans is limited by {@link CoreConfiguration#getTransactionMaxSpans()}.
+     * </p>
+     */
+    private final List<Span> bufferedSpans = new ArrayList<>();
+    /**
+     * Only updated while holding the lock on {@link #bufferedSpans}
+     */
+    private volatile int tailSamplingState = TAIL_SAMPLING_NONE;
+    /**
+     * The decision of the {@link Sampler} which has been overruled by tail-based sampling
+     */
+    private boolean sampledBySampler;
+    /**
+     * Set if the sampling decision is deferred to the end of the transaction, when the transaction name is known
+     */
+    @Nullable
+    private AdaptiveSampler adaptiveSampler;
+    private volatile boolean errorCaptured;
 
     /**
      * The result of the transaction. HTTP status code for HTTP-related
@@ -107,6 +145,7 @@ public class Transaction extends AbstractSpan<Transaction> {
 
     public Transaction(ElasticApmTracer tracer) {
         super(tracer);
+        reporterConfiguration = tracer.getConfig(ReporterConfiguration.class);
     }
 
     public <T> Transaction start(TraceContext.ChildContextCreator<T> childContextCreator, @Nullable T parent, long epochMicros,
@@ -126,9 +165,23 @@ public class Transaction extends AbstractSpan<Transaction> {
     }
 
     private void onTransactionStart(boolean startedAsChild, long epochMicros, Sampler sampler) {
-        maxSpans = tracer.getConfig(CoreConfiguration.class).getTransactionMaxSpans();
+        CoreConfiguration coreConfiguration = tracer.getConfig(CoreConfiguration.class);
+        maxSpans = coreConfiguration.getTransactionMaxSpans();
         if (!startedAsChild) {
-            traceContext.asRootSpan(sampler);
+            if (coreConfiguration.isTailSamplingEnabled()) {
+                if (sampler instanceof AdaptiveSampler) {
+                    // the budget depends on the transaction name which is typically not known yet
+                    adaptiveSampler = (AdaptiveSampler) sampler;
+                    sampler = ConstantSampler.of(false);
+                }
+                traceContext.asRootSpan(sampler);
+                // record everything, the sampling decision is made when the transaction ends
+                sampledBySampler = traceContext.isRecorded();
+                traceContext.setRecorded(true);
+                tailSamplingState = TAIL_SAMPLING_PENDING;
+            } else {
+                traceContext.asRootSpan(sampler);
+            }
         }
         if (epochMicros >= 0) {
             setStartTimestamp(epochMicros);
@@ -234,12 +287,86 @@ public class Transaction extends AbstractSpan<Transaction> {
         return spanCount;
     }
 
-    boolean isSpanLimitReached() {
+    public boolean isSpanLimitReached() {
         return getSpanCount().isSpanLimitReached(maxSpans);
     }
 
-    public KeyListConcurrentHashMap<String, KeyListConcurrentHashMap<String, Timer>> getTimerBySpanTypeAndSubtype() {
-        return timerBySpanTypeAndSubtype;
+    /**
+     * Marks this transaction to be kept by tail-based sampling
+     */
+    public void onErrorCaptured() {
+        errorCaptured = true;
+    }
+
+    /**
+     * @return {@code true} if the tail-based sampling decision has to be made when this transaction has ended
+     */
+    public boolean isTailSamplingPending() {
+        return tailSamplingState == TAIL_SAMPLING_PENDING;
+    }
+
+    /**
+     * Buffers a span until the tail-based sampling decision has been made.
+     * If the transaction has already been discarded by tail-based sampling, the span is discarded as well.
+     *
+     * @param span an ended span of this transaction
+     * @return {@code true} if the span has been buffered or discarded and must not be reported by the caller
+     */
+    public boolean bufferOrDiscardSpan(Span span) {
+        if (tailSamplingState == TAIL_SAMPLING_NONE || tailSamplingState == TAIL_SAMPLING_KEPT) {
+            return false;
+        }
+        synchronized (bufferedSpans) {
+            if (tailSamplingState == TAIL_SAMPLING_PENDING) {
+                bufferedSpans.add(span);
+                return true;
+            } else if (tailSamplingState == TAIL_SAMPLING_KEPT) {
+                return false;
+            }
+        }
+        span.decrementReferences();
+        return true;
+    }
+
+    /**
+     * Makes the tail-based sampling decision for this ended transaction.
+     * <p>
+     * The transaction is kept if it has been sampled by the {@link Sampler}
+     * (or by the per transaction name budget of the {@link AdaptiveSampler}), if an error has been captured within the transaction
+     * or if its duration is at least the given threshold.
+     * Otherwise, the transaction is turned into a non-sampled transaction.
+     * </p>
+     * <p>
+     * The returned spans have to be reported if the transaction is {@linkplain #isSampled() sampled} and discarded otherwise.
+     * Spans ending after the decision has been made are not buffered anymore.
+     * The returned list must be {@linkplain List#clear() cleared} by the caller before reporting the transaction.
+     * </p>
+     *
+     * @param latencyThresholdUs the minimum duration of transactions which are always kept
+     * @return the spans which have been buffered while the decision was pending
+     */
+    public List<Span> endTailSampling(long latencyThresholdUs) {
+        if (adaptiveSampler != null) {
+            sampledBySampler = adaptiveSampler.isSampled(traceContext.getTraceId(), name);
+        }
+        boolean keep = sampledBySampler || errorCaptured || getDuration() >= latencyThresholdUs;
+        synchronized (bufferedSpans) {
+            tailSamplingState = keep ? TAIL_SAMPLING_KEPT : TAIL_SAMPLING_DISCARDED;
+        }
+        if (!keep) {
+            // make the transaction look like a non-sampled one
+            traceContext.setRecorded(false);
+            context.resetState();
+            spanCount.resetState();
+        }
+        return bufferedSpans;
+    }
+
+    /**
+     * @return the self time timers of the spans of this transaction, keyed by the {@linkplain BreakdownMetrics#getSpanTypeId(String, String) span type id}
+     */
+    public StripedTimerTable getSpanTimers() {
+        return spanTimers;
     }
 
     @Override
@@ -253,9 +380,17 @@ public class Transaction extends AbstractSpan<Transaction> {
         maxSpans = 0;
         frameworkName = null;
         frameworkVersion = null;
-        // don't clear timerBySpanTypeAndSubtype map (see field-level javadoc)
+        bufferedSpans.clear();
+        tailSamplingState = TAIL_SAMPLING_NONE;
+        sampledBySampler = false;
+        adaptiveSampler = null;
+        errorCaptured = false;
+        // no concurrent updates are possible as finished is true until the transaction is started again
+        spanTimers.clear();
+        overflowSpanTimers.set(null);
     }
 
+    @Override
     public boolean isNoop() {
         return noop;
     }
@@ -334,36 +469,29 @@ public class Transaction extends AbstractSpan<Transaction> {
             if (!collectBreakdownMetrics || type == null || finished) {
                 return;
             }
-            if (subtype == null) {
-                subtype = "";
-            }
-            KeyListConcurrentHashMap<String, Timer> timersBySubtype = timerBySpanTypeAndSubtype.get(type);
-            if (timersBySubtype == null) {
-                timersBySubtype = new KeyListConcurrentHashMap<>();
-                KeyListConcurrentHashMap<String, Timer> racyMap = timerBySpanTypeAndSubtype.putIfAbsent(type, timersBySubtype);
-                if (racyMap != null) {
-                    timersBySubtype = racyMap;
-                }
-            }
-            Timer timer = timersBySubtype.get(subtype);
-            if (timer == null) {
-                timer = new Timer();
-                Timer racyTimer = timersBySubtype.putIfAbsent(subtype, timer);
-                if (racyTimer != null) {
-                    timer = racyTimer;
-                }
-            }
-            timer.update(duration);
-            if (finished) {
-                // in case end()->trackMetrics() has been called concurrently
-                // don't leak timers
-                timer.resetState();
+            final int spanTypeId = tracer.getMetricRegistry().getBreakdownMetrics().getSpanTypeId(type, subtype);
+            if (spanTypeId != BreakdownMetrics.NO_ID && !spanTimers.update(spanTypeId, duration, 1)) {
+                getOverflowSpanTimers().update(spanTypeId, duration, 1);
             }
         } finally {
             phaser.writerCriticalSectionExit(criticalValueAtEnter);
         }
     }
 
+    private StripedTimerTable getOverflowSpanTimers() {
+        StripedTimerTable overflow = overflowSpanTimers.get();
+        if (overflow == null) {
+            if (!spanTypeOverflowLogged) {
+                spanTypeOverflowLogged = true;
+                logger.warn("Transaction {} has more than {} distinct span types. " +
+                    "Breakdown metrics are still tracked for all span types, but at a higher overhead.", this, MAX_SPAN_TYPES);
+            }
+            overflowSpanTimers.compareAndSet(null, new StripedTimerTable(BreakdownMetrics.MAX_SPAN_TYPES, 1));
+            overflow = overflowSpanTimers.get();
+        }
+        return overflow;
+    }
+
     private void trackMetrics() {
         try {
             phaser.readerLock();
@@ -377,32 +505,27 @@ public class Transaction extends AbstractSpan<Transaction> {
             if (type == null) {
                 return;
             }
-            final Labels.Mutable labels = labelsThreadLocal.get();
-            labels.resetState();
-            labels.transactionName(name).transactionType(type);
             final MetricRegistry metricRegistry = tracer.getMetricRegistry();
+            final BreakdownMetrics breakdownMetrics = metricRegistry.getBreakdownMetrics();
+            final int transactionId = breakdownMetrics.getTransactionId(name, type);
+            if (transactionId == BreakdownMetrics.NO_ID) {
+                return;
+            }
             long criticalValueAtEnter = metricRegistry.writerCriticalSectionEnter();
             try {
-                metricRegistry.updateTimer("transaction.duration", labels, getDuration());
+                breakdownMetrics.trackTransaction(transactionId, getDuration(), collectBreakdownMetrics);
+                final boolean histograms = reporterConfiguration.isLatencyHistogramMetrics();
+                if (histograms) {
+                    breakdownMetrics.recordTransactionDurationHistogram(transactionId, getDuration());
+                }
                 if (collectBreakdownMetrics) {
-                    metricRegistry.incrementCounter("transaction.breakdown.count", labels);
-                    List<String> types = timerBySpanTypeAndSubtype.keyList();
-                    for (int i = 0; i < types.size(); i++) {
-                        String spanType = types.get(i);
-                        KeyListConcurrentHashMap<String, Timer> timerBySubtype = timerBySpanTypeAndSubtype.get(spanType);
-                        List<String> subtypes = timerBySubtype.keyList();
-                        for (int j = 0; j < subtypes.size(); j++) {
-                            String subtype = subtypes.get(j);
-                            final Timer timer = timerBySubtype.get(subtype);
-                            if (timer.getCount() > 0) {
-                                if (subtype.equals("")) {
-                                    subtype = null;
-                                }
-                                labels.spanType(spanType).spanSubType(subtype);
-                                metricRegistry.updateTimer("span.self_time", labels, timer.getTotalTimeUs(), timer.getCount());
-                                timer.resetState();
-                            }
-                        }
+                    spanTimerFlusher.transactionId = transactionId;
+                    spanTimerFlusher.breakdownMetrics = breakdownMetrics;
+                    spanTimerFlusher.histograms = histograms;
+                    spanTimers.drain(spanTimerFlusher);
+                    final StripedTimerTable overflow = overflowSpanTimers.get();
+                    if (overflow != null) {
+                        overflow.drain(spanTimerFlusher);
                     }
                 }
             } finally {
@@ -412,4 +535,29 @@ public class Transaction extends AbstractSpan<Transaction> {
             phaser.readerUnlock();
         }
     }
+
+    /**
+     * Adds the span timers of this transaction to the {@link BreakdownMetrics}.
+     * Only used within {@link #trackMetrics()}, while holding the reader lock.
+     */
+    private static class SpanTimerFlusher implements StripedTimerTable.TimerConsumer {
+        private int transactionId;
+        @Nullable
+        private BreakdownMetrics breakdownMetrics;
+        /**
+         * Whether latency histograms are enabled
+         */
+        private boolean histograms;
+
+        @Override
+        public void accept(long spanTypeId, long totalTimeUs, long count) {
+            if (breakdownMetrics == null) {
+                return;
+            }
+            breakdownMetrics.trackSpanSelfTime(transactionId, (int) spanTypeId, totalTimeUs, count);
+            if (histograms) {
+                breakdownMetrics.recordSpanSelfTimeHistogram(transactionId, (int) spanTypeId, totalTimeUs);
+            }
+        }
+    }
 }
@@ -0,0 +1,304 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.matcher;
+
+import javax.annotation.Nullable;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.RandomAccess;
+
+/**
+ * An immutable list of {@link WildcardMatcher}s which can efficiently find the first matcher matching a string.
+ * <p>
+ * Instead of trying each matcher one after another, the {@link WildcardMatcher.SimpleWildcardMatcher}s are indexed by their type
+ * and merged into tries which are walked once over the input, separately for case insensitive and case sensitive matchers:
+ * </p>
+ * <ul>
+ *     <li>exact ({@code foo}) and prefix ({@code foo*}) matchers are stored in a trie which is walked from the start of the input</li>
+ *     <li>postfix ({@code *foo}) matchers are stored in a trie of the reversed matchers which is walked from the end of the input</li>
+ *     <li>infix ({@code *foo*}) matchers are stored in an Aho-Corasick automaton which is walked over the whole input</li>
+ * </ul>
+ * <p>
+ * Each trie node records the lowest index of the matchers ending in it,
+ * so that the matcher which comes first in the list is returned, just like {@link WildcardMatcher#anyMatch(List, CharSequence)} does.
+ * Matchers with wildcards in the middle ({@link WildcardMatcher.CompoundWildcardMatcher}) are tried one after another,
+ * but only if they come before the best match found by the tries.
+ * </p>
+ * <p>
+ * Matching is allocation free, the tries are only built when compiling the list.
+ * </p>
+ */
+// don't use for-each as it allocates memory by instantiating an iterator
+@SuppressWarnings("ForLoopReplaceableByForEach")
+final class CompiledWildcardMatcherList extends AbstractList<WildcardMatcher> implements RandomAccess {
+
+    private static final int NO_MATCH = Integer.MAX_VALUE;
+
+    private final List<WildcardMatcher> matchers;
+    private final Automata caseInsensitive = new Automata(true);
+    private final Automata caseSensitive = new Automata(false);
+    /**
+     * The indexes of the matchers which can't be compiled, in ascending order
+     */
+    private final int[] uncompiled;
+
+    CompiledWildcardMatcherList(List<WildcardMatcher> matchers) {
+        this.matchers = new ArrayList<>(matchers);
+        final int[] uncompiled = new int[matchers.size()];
+        int uncompiledSize = 0;
+        for (int i = 0; i < matchers.size(); i++) {
+            final WildcardMatcher matcher = matchers.get(i);
+            if (matcher instanceof WildcardMatcher.SimpleWildcardMatcher) {
+                final WildcardMatcher.SimpleWildcardMatcher simpleMatcher = (WildcardMatcher.SimpleWildcardMatcher) matcher;
+                (simpleMatcher.isIgnoreCase() ? caseInsensitive : caseSensitive).add(simpleMatcher, i);
+            } else {
+                uncompiled[uncompiledSize++] = i;
+            }
+        }
+        this.uncompiled = Arrays.copyOf(uncompiled, uncompiledSize);
+        caseInsensitive.build();
+        caseSensitive.build();
+    }
+
+    @Override
+    public WildcardMatcher get(int index) {
+        return matchers.get(index);
+    }
+
+    @Override
+    public int size() {
+        return matchers.size();
+    }
+
+    /**
+     * Returns the first {@link WildcardMatcher} {@linkplain WildcardMatcher#matches(CharSequence) matching} the provided partitioned string.
+     *
+     * @param firstPart  The first part of the string to match against.
+     * @param secondPart The second part of the string to match against.
+     * @return the first matching {@link WildcardMatcher}, or {@code null} if none match.
+     * @see WildcardMatcher#anyMatch(List, CharSequence, CharSequence)
+     */
+    @Nullable
+    WildcardMatcher anyMatch(CharSequence firstPart, @Nullable CharSequence secondPart) {
+        if (secondPart == null) {
+            secondPart = "";
+        }
+        int bestMatch = caseInsensitive.firstMatch(firstPart, secondPart, NO_MATCH);
+        bestMatch = caseSensitive.firstMatch(firstPart, secondPart, bestMatch);
+        for (int i = 0; i < uncompiled.length && uncompiled[i] < bestMatch; i++) {
+            if (matchers.get(uncompiled[i]).matches(firstPart, secondPart)) {
+                bestMatch = uncompiled[i];
+            }
+        }
+        return bestMatch != NO_MATCH ? matchers.get(bestMatch) : null;
+    }
+
+    private static class Automata {
+
+        private final boolean ignoreCase;
+        /**
+         * Contains the exact and prefix matchers
+         */
+        private final Node prefixes = new Node();
+        /**
+         * Contains the reversed postfix matchers
+         */
+        private final Node postfixes = new Node();
+        /**
+         * Contains the infix matchers, with failure links
+         */
+        private final Node infixes = new Node();
+        private boolean hasPrefixes;
+        private boolean hasPostfixes;
+        private boolean hasInfixes;
+
+        private Automata(boolean ignoreCase) {
+            this.ignoreCase = ignoreCase;
+        }
+
+        private void add(WildcardMatcher.SimpleWildcardMatcher matcher, int index) {
+            final String s = matcher.getMatcher();
+            final boolean wildcardAtBeginning = matcher.isWildcardAtBeginning();
+            final boolean wildcardAtEnd = matcher.isWildcardAtEnd();
+            if (wildcardAtBeginning && wildcardAtEnd) {
+                Node node = infixes;
+                for (int i = 0; i < s.length(); i++) {
+                    node = node.getOrCreateChild(normalize(s.charAt(i)));
+                }
+                node.match = Math.min(node.match, index);
+                hasInfixes = true;
+            } else if (wildcardAtBeginning) {
+                Node node = postfixes;
+                for (int i = s.length() - 1; i >= 0; i--) {
+                    node = node.getOrCreateChild(normalize(s.charAt(i)));
+                }
+                node.match = Math.min(node.match, index);
+                hasPostfixes = true;
+            } else {
+                Node node = prefixes;
+                for (int i = 0; i < s.length(); i++) {
+                    node = node.getOrCreateChild(normalize(s.charAt(i)));
+                }
+                if (wildcardAtEnd) {
+                    node.match = Math.min(node.match, index);
+                } else {
+                    node.exactMatch = Math.min(node.exactMatch, index);
+                }
+                hasPrefixes = true;
+            }
+        }
+
+        /**
+         * Computes the failure links of the Aho-Corasick automaton in breadth-first order
+         * and propagates the matches along the failure links,
+         * so that a node's {@link Node#match} is the lowest index of all infix matchers which are a suffix of the node's path.
+         */
+        private void build() {
+            final Queue<Node> queue = new ArrayDeque<>();
+            for (int i = 0; i < infixes.children.length; i++) {
+                final Node child = infixes.children[i];
+                child.fail = infixes;
+                child.match = Math.min(child.match, infixes.match);
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                final Node node = queue.remove();
+                for (int i = 0; i < node.children.length; i++) {
+                    final char c = node.labels[i];
+                    final Node child = node.children[i];
+                    Node fail = node.fail;
+                    Node failChild = fail.getChild(c);
+                    while (failChild == null && fail != infixes) {
+                        fail = fail.fail;
+                        failChild = fail.getChild(c);
+                    }
+                    child.fail = failChild != null ? failChild : infixes;
+                    child.match = Math.min(child.match, child.fail.match);
+                    queue.add(child);
+                }
+            }
+        }
+
+        private int firstMatch(CharSequence firstPart, CharSequence secondPart, int bestMatch) {
+            final int firstPartLength = firstPart.length();
+            final int totalLength = firstPartLength + secondPart.length();
+            if (hasPrefixes) {
+                Node node = prefixes;
+                bestMatch = Math.min(bestMatch, node.match);
+                for (int i = 0; i < totalLength && node != null; i++) {
+                    node = node.getChild(normalize(WildcardMatcher.charAt(i, firstPart, secondPart, firstPartLength)));
+                    if (node != null) {
+                        bestMatch = Math.min(bestMatch, node.match);
+                    }
+                }
+                if (node != null) {
+                    bestMatch = Math.min(bestMatch, node.exactMatch);
+                }
+            }
+            if (hasPostfixes) {
+                Node node = postfixes;
+                bestMatch = Math.min(bestMatch, node.match);
+                for (int i = totalLength - 1; i >= 0 && node != null; i--) {
+                    node = node.getChild(normalize(WildcardMatcher.charAt(i, firstPart, secondPart, firstPartLength)));
+                    if (node != null) {
+                        bestMatch = Math.min(bestMatch, node.match);
+                    }
+                }
+            }
+            if (hasInfixes) {
+                Node node = infixes;
+                bestMatch = Math.min(bestMatch, node.match);
+                for (int i = 0; i < totalLength; i++) {
+                    final char c = normalize(WildcardMatcher.charAt(i, firstPart, secondPart, firstPartLength));
+                    Node next = node.getChild(c);
+                    while (next == null && node != infixes) {
+                        node = node.fail;
+                        next = node.getChild(c);
+                    }
+                    if (next != null) {
+                        node = next;
+                        bestMatch = Math.min(bestMatch, node.match);
+                    }
+                }
+            }
+            return bestMatch;
+        }
+
+        private char normalize(char c) {
+            return ignoreCase ? Character.toLowerCase(c) : c;
+        }
+    }
+
+    private static class Node {
+        private static final char[] NO_LABELS = new char[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        /**
+         * The characters of the outgoing edges, sorted in ascending order
+         */
+        private char[] labels = NO_LABELS;
+        private Node[] children = NO_CHILDREN;
+        /**
+         * The lowest index of the prefix, postfix or infix matchers which match when reaching this node
+         */
+        private int match = NO_MATCH;
+        /**
+         * The lowest index of the exact matchers which match when reaching this node at the end of the input
+         */
+        private int exactMatch = NO_MATCH;
+        @Nullable
+        private Node fail;
+
+        @Nullable
+        private Node getChild(char c) {
+            final int index = Arrays.binarySearch(labels, c);
+            return index >= 0 ? children[index] : null;
+        }
+
+        private Node getOrCreateChild(char c) {
+            int index = Arrays.binarySearch(labels, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            index = -index - 1;
+            final Node child = new Node();
+            final char[] newLabels = new char[labels.length + 1];
+            final Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(labels, 0, newLabels, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newLabels[index] = c;
+            newChildren[index] = child;
+            System.arraycopy(labels, index, newLabels, index + 1, labels.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            labels = newLabels;
+            children = newChildren;
+            return child;
+        }
+    }
+}
@@ -139,6 +139,25 @@ public abstract class WildcardMatcher {
         return new CompoundWildcardMatcher(wildcardString, matcher, matchers);
     }
 
+    /**
+     * Compiles a list of matchers so that {@link #anyMatch(List, CharSequence)} and friends don't have to try each matcher one after another.
+     * <p>
+     * Prefix, postfix, infix and exact matchers are merged into automata which find the first matching matcher
+     * in time proportional to the length of the string to match against, regardless of the number of matchers.
+     * Matchers with wildcards in the middle, like {@code foo*bar}, are still tried one after another.
+     * </p>
+     *
+     * @param matchers the matchers to compile
+     * @return an immutable list of the provided matchers which is matched efficiently by {@link #anyMatch(List, CharSequence)}
+     * @see WildcardMatcherListValueConverter
+     */
+    public static List<WildcardMatcher> compile(List<WildcardMatcher> matchers) {
+        if (matchers instanceof CompiledWildcardMatcherList) {
+            return matchers;
+        }
+        return new CompiledWildcardMatcherList(matchers);
+    }
+
     /**
      * Returns {@code true}, if any of the matchers match the provided string.
      *
@@ -187,6 +206,9 @@ public abstract class WildcardMatcher {
      */
     @Nullable
     public static WildcardMatcher anyMatch(List<WildcardMatcher> matchers, CharSequence firstPart, @Nullable CharSequence secondPart) {
+        if (matchers instanceof CompiledWildcardMatcherList) {
+            return ((CompiledWildcardMatcherList) matchers).anyMatch(firstPart, secondPart);
+        }
         for (int i = 0; i < matchers.size(); i++) {
             if (matchers.get(i).matches(firstPart, secondPart)) {
                 return matchers.get(i);
@@ -402,5 +424,17 @@ public abstract class WildcardMatcher {
         public String getMatcher() {
             return matcher;
         }
+
+        boolean isWildcardAtBeginning() {
+            return wildcardAtBeginning;
+        }
+
+        boolean isWildcardAtEnd() {
+            return wildcardAtEnd;
+        }
+
+        boolean isIgnoreCase() {
+            return ignoreCase;
+        }
     }
 }
@@ -0,0 +1,49 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.matcher;
+
+import org.stagemonitor.configuration.converter.ListValueConverter;
+
+import java.util.List;
+
+/**
+ * This class is used to be able to use a list of {@link WildcardMatcher}s in a {@link org.stagemonitor.configuration.ConfigurationOption}.
+ * <p>
+ * The converted lists are {@linkplain WildcardMatcher#compile(List) compiled},
+ * so that {@link WildcardMatcher#anyMatch(List, CharSequence)} does not have to try each matcher one after another.
+ * Note that default values are not converted, wrap them in {@link WildcardMatcher#compile(List)} as well.
+ * </p>
+ */
+public class WildcardMatcherListValueConverter extends ListValueConverter<WildcardMatcher> {
+
+    public WildcardMatcherListValueConverter() {
+        super(new WildcardMatcherValueConverter());
+    }
+
+    @Override
+    public List<WildcardMatcher> convert(String s) {
+        return WildcardMatcher.compile(super.convert(s));
+    }
+}
@@ -0,0 +1,271 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Aggregates the {@code transaction.duration}, {@code transaction.breakdown.count} and {@code span.self_time} metrics,
+ * as well as the corresponding latency {@link Histogram}s,
+ * until they are {@linkplain #flush(MetricRegistry) flushed} into the {@link MetricRegistry} on each reporting cycle.
+ * <p>
+ * Transaction names and types, as well as span types and subtypes, are interned into {@code int} ids
+ * which are combined into the {@code long} key of a {@link StripedTimerTable} and a {@link HistogramTable}.
+ * That makes tracking the metrics at the end of a transaction allocation-free and avoids contention across cores,
+ * as opposed to looking up a {@link MetricSet} and a {@link Timer} for each metric via their {@link Labels}.
+ * The {@link Labels} are only looked up once per key and reporting cycle, when flushing the metrics.
+ * </p>
+ * <p>
+ * Just like the {@link MetricRegistry}, there are active and inactive tables which are swapped on each reporting cycle.
+ * Updates must happen within a {@linkplain MetricRegistry#writerCriticalSectionEnter() writer critical section}
+ * so that all metrics of a transaction end up in the same reporting cycle.
+ * </p>
+ */
+public class BreakdownMetrics {
+
+    public static final int NO_ID = -1;
+    private static final Logger logger = LoggerFactory.getLogger(BreakdownMetrics.class);
+    private static final int TRANSACTION_DURATION = 0;
+    private static final int TRANSACTION_BREAKDOWN_COUNT = 1;
+    private static final int FIRST_SPAN_TYPE_ID = 2;
+    private static final int MAX_TRANSACTIONS = MetricRegistry.METRIC_SET_LIMIT;
+    /**
+     * The maximum number of distinct span types and subtypes
+     */
+    public static final int MAX_SPAN_TYPES = 512;
+
+    private final ConcurrentMap<Labels, Integer> transactionIds = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<Labels.Immutable> transactionLabels = new AtomicReferenceArray<>(MAX_TRANSACTIONS);
+    private final ConcurrentMap<Labels, Integer> spanTypeIds = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<Labels.Immutable> spanTypeLabels = new AtomicReferenceArray<>(FIRST_SPAN_TYPE_ID + MAX_SPAN_TYPES);
+    private final ThreadLocal<Labels.Mutable> lookupLabels = new ThreadLocal<Labels.Mutable>() {
+        @Override
+        protected Labels.Mutable initialValue() {
+            return Labels.Mutable.of();
+        }
+    };
+    /**
+     * Only accessed by the thread which {@linkplain #flush(MetricRegistry) flushes} the metrics
+     */
+    private final Labels.Mutable flushLabels = Labels.Mutable.of();
+    private volatile StripedTimerTable activeTable;
+    private StripedTimerTable inactiveTable;
+    private volatile HistogramTable activeHistograms;
+    private HistogramTable inactiveHistograms;
+    private volatile boolean limitReached;
+
+    BreakdownMetrics() {
+        activeTable = new StripedTimerTable(4 * MAX_TRANSACTIONS, StripedTimerTable.defaultStripes());
+        inactiveTable = new StripedTimerTable(4 * MAX_TRANSACTIONS, StripedTimerTable.defaultStripes());
+        activeHistograms = new HistogramTable(4 * MAX_TRANSACTIONS);
+        inactiveHistograms = new HistogramTable(4 * MAX_TRANSACTIONS);
+    }
+
+    /**
+     * @param transactionName the name of the transaction
+     * @param transactionType the type of the transaction
+     * @return the id of the transaction name and type, or {@link #NO_ID} if the limit of distinct transactions has been reached
+     */
+    public int getTransactionId(CharSequence transactionName, String transactionType) {
+        final Labels.Mutable labels = lookupLabels.get();
+        labels.resetState();
+        labels.transactionName(transactionName).transactionType(transactionType);
+        return intern(labels, transactionIds, transactionLabels, 0);
+    }
+
+    /**
+     * @param spanType    the type of the span
+     * @param spanSubType the subtype of the span
+     * @return the id of the span type and subtype, or {@link #NO_ID} if the limit of distinct span types has been reached
+     */
+    public int getSpanTypeId(String spanType, @Nullable String spanSubType) {
+        final Labels.Mutable labels = lookupLabels.get();
+        labels.resetState();
+        labels.spanType(spanType).spanSubType(spanSubType);
+        return intern(labels, spanTypeIds, spanTypeLabels, FIRST_SPAN_TYPE_ID);
+    }
+
+    private int intern(Labels.Mutable labels, ConcurrentMap<Labels, Integer> ids, AtomicReferenceArray<Labels.Immutable> labelsById, int firstId) {
+        final Integer id = ids.get(labels);
+        if (id != null) {
+            return id;
+        }
+        synchronized (ids) {
+            final Integer racyId = ids.get(labels);
+            if (racyId != null) {
+                return racyId;
+            }
+            final int newId = firstId + ids.size();
+            if (newId >= labelsById.length()) {
+                onLimitReached();
+                return NO_ID;
+            }
+            final Labels.Immutable labelsCopy = labels.immutableCopy();
+            // publish the labels before the id so that they are visible when flushing
+            labelsById.set(newId, labelsCopy);
+            ids.put(labelsCopy, newId);
+            return newId;
+        }
+    }
+
+    /**
+     * Tracks the {@code transaction.duration} and, if enabled, the {@code transaction.breakdown.count} metrics.
+     *
+     * @param transactionId the id returned by {@link #getTransactionId(CharSequence, String)}
+     * @param durationUs    the duration of the transaction in microseconds
+     * @param breakdown     whether breakdown metrics are collected for this transaction
+     */
+    public void trackTransaction(int transactionId, long durationUs, boolean breakdown) {
+        final StripedTimerTable table = activeTable;
+        update(table, getKey(transactionId, TRANSACTION_DURATION), durationUs, 1);
+        if (breakdown) {
+            update(table, getKey(transactionId, TRANSACTION_BREAKDOWN_COUNT), 0, 1);
+        }
+    }
+
+    /**
+     * Tracks the {@code span.self_time} metric.
+     *
+     * @param transactionId the id returned by {@link #getTransactionId(CharSequence, String)}
+     * @param spanTypeId    the id returned by {@link #getSpanTypeId(String, String)}
+     * @param totalTimeUs   the total self time of all spans with this type within the transaction in microseconds
+     * @param count         the number of spans with this type within the transaction
+     */
+    public void trackSpanSelfTime(int transactionId, int spanTypeId, long totalTimeUs, long count) {
+        update(activeTable, getKey(transactionId, spanTypeId), totalTimeUs, count);
+    }
+
+    /**
+     * Records the duration of a transaction in the {@code transaction.duration.histogram}.
+     *
+     * @param transactionId the id returned by {@link #getTransactionId(CharSequence, String)}
+     * @param durationUs    the duration of the transaction in microseconds
+     */
+    public void recordTransactionDurationHistogram(int transactionId, long durationUs) {
+        record(getKey(transactionId, TRANSACTION_DURATION), durationUs);
+    }
+
+    /**
+     * Records the self time of a span type within a transaction in the {@code span.self_time.histogram}.
+     *
+     * @param transactionId the id returned by {@link #getTransactionId(CharSequence, String)}
+     * @param spanTypeId    the id returned by {@link #getSpanTypeId(String, String)}
+     * @param totalTimeUs   the total self time of all spans with this type within the transaction in microseconds
+     */
+    public void recordSpanSelfTimeHistogram(int transactionId, int spanTypeId, long totalTimeUs) {
+        record(getKey(transactionId, spanTypeId), totalTimeUs);
+    }
+
+    private void record(long key, long valueUs) {
+        if (!activeHistograms.record(key, valueUs)) {
+            onLimitReached();
+        }
+    }
+
+    private void update(StripedTimerTable table, long key, long durationUs, long count) {
+        if (!table.update(key, durationUs, count)) {
+            onLimitReached();
+        }
+    }
+
+    private void onLimitReached() {
+        if (!limitReached) {
+            limitReached = true;
+            logger.warn("The limit of breakdown metrics has been reached, no new timers will be created. " +
+                "Try to name your transactions so that there are less distinct transaction names.");
+        }
+    }
+
+    private static long getKey(int transactionId, int spanTypeId) {
+        return ((long) transactionId << 32) | spanTypeId;
+    }
+
+    /**
+     * Swaps the active and the inactive tables.
+     * After the writers of the previously active tables have exited their critical section,
+     * the inactive tables can be {@linkplain #flush(MetricRegistry) flushed}.
+     * Must be called while holding the {@link MetricRegistry}'s reader lock.
+     */
+    void swap() {
+        final StripedTimerTable temp = inactiveTable;
+        inactiveTable = activeTable;
+        activeTable = temp;
+        final HistogramTable tempHistograms = inactiveHistograms;
+        inactiveHistograms = activeHistograms;
+        activeHistograms = tempHistograms;
+    }
+
+    /**
+     * Adds the metrics of the inactive tables to the {@link MetricRegistry} and resets the inactive tables.
+     * Must be called while holding the {@link MetricRegistry}'s reader lock.
+     *
+     * @param metricRegistry the metric registry to add the metrics to
+     */
+    void flush(final MetricRegistry metricRegistry) {
+        inactiveTable.drain(new StripedTimerTable.TimerConsumer() {
+            @Override
+            public void accept(long key, long totalTimeUs, long count) {
+                final int spanTypeId = (int) key;
+                setFlushLabels(key);
+                if (spanTypeId == TRANSACTION_DURATION) {
+                    metricRegistry.updateTimer("transaction.duration", flushLabels, totalTimeUs, count);
+                } else if (spanTypeId == TRANSACTION_BREAKDOWN_COUNT) {
+                    metricRegistry.incrementCounter("transaction.breakdown.count", flushLabels, count);
+                } else {
+                    metricRegistry.updateTimer("span.self_time", flushLabels, totalTimeUs, count);
+                }
+            }
+        });
+        inactiveHistograms.drain(new HistogramTable.HistogramConsumer() {
+            @Override
+            public void accept(long key, Histogram histogram) {
+                final int spanTypeId = (int) key;
+                setFlushLabels(key);
+                if (spanTypeId == TRANSACTION_DURATION) {
+                    metricRegistry.addHistogram("transaction.duration.histogram", flushLabels, histogram);
+                } else {
+                    metricRegistry.addHistogram("span.self_time.histogram", flushLabels, histogram);
+                }
+            }
+        });
+    }
+
+    private void setFlushLabels(long key) {
+        final int spanTypeId = (int) key;
+        final Labels.Immutable transaction = transactionLabels.get((int) (key >>> 32));
+        flushLabels.resetState();
+        flushLabels.transactionName(transaction.getTransactionName()).transactionType(transaction.getTransactionType());
+        if (spanTypeId >= FIRST_SPAN_TYPE_ID) {
+            final Labels.Immutable spanType = spanTypeLabels.get(spanTypeId);
+            flushLabels.spanType(spanType.getSpanType()).spanSubType(spanType.getSpanSubType());
+        }
+    }
+}
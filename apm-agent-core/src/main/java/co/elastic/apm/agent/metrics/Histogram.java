@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.metrics;
+
+import co.elastic.apm.agent.objectpool.Recyclable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram with log-linear buckets, similar to an HDR histogram, which allows for calculating percentiles.
+ * <p>
+ * Values smaller than {@value #SUB_BUCKETS} are tracked exactly.
+ * Above that, each power of two is divided into {@value #SUB_BUCKETS} linear sub-buckets,
+ * which bounds the relative error of a value to 12.5%.
+ * Values greater than or equal to {@code 2^36} microseconds (about 19 hours) are tracked in the last bucket.
+ * </p>
+ * <p>
+ * The memory footprint is fixed ({@value #BUCKETS} {@code long}s) and recording a value is lock-free and does not allocate.
+ * Histograms are reset after each report, just like {@link Timer}s,
+ * with the {@link MetricRegistry} ensuring that no values are recorded into a histogram while it is being reported.
+ * </p>
+ */
+public class Histogram implements Recyclable {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 35;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalCount = new AtomicLong();
+
+    /**
+     * @param valueUs the value to record, in microseconds
+     */
+    public void record(long valueUs) {
+        counts.incrementAndGet(getBucketIndex(valueUs));
+        totalCount.incrementAndGet();
+    }
+
+    /**
+     * Adds all values recorded in the other histogram to this histogram.
+     *
+     * @param other the histogram to add
+     */
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            final long count = other.counts.get(i);
+            if (count > 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+    }
+
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @param index the index of the bucket
+     * @return the smallest value which is tracked in the bucket with the provided index
+     */
+    static long getBucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final int subBucket = index % SUB_BUCKETS;
+        return (1L << exponent) + ((long) subBucket << (exponent - SUB_BUCKET_BITS));
+    }
+
+    /**
+     * @param index the index of the bucket
+     * @return the value which represents all values tracked in the bucket with the provided index
+     */
+    public static double getBucketMidpoint(int index) {
+        final long lowerBound = getBucketLowerBound(index);
+        if (index < SUB_BUCKETS) {
+            return lowerBound;
+        }
+        return (lowerBound + getBucketLowerBound(index + 1)) / 2.0;
+    }
+
+    public int getBucketCount() {
+        return BUCKETS;
+    }
+
+    /**
+     * @param index the index of the bucket
+     * @return the number of values recorded in the bucket with the provided index
+     */
+    public long getCount(int index) {
+        return counts.get(index);
+    }
+
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @param percentile the percentile, between {@code 0} and {@code 100}
+     * @return the approximate value at the provided percentile, or {@code 0} if there are no recorded values
+     */
+    public double getValueAtPercentile(double percentile) {
+        final long total = totalCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        final long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+            if (count >= countAtPercentile) {
+                return getBucketMidpoint(i);
+            }
+        }
+        return getBucketMidpoint(BUCKETS - 1);
+    }
+
+    public boolean hasContent() {
+        return totalCount.get() > 0;
+    }
+
+    @Override
+    public void resetState() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+    }
+}
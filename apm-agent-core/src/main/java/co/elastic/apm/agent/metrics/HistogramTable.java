@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A pre-sized hash table which maps non-negative {@code long} keys to {@link Histogram}s.
+ * <p>
+ * Just like the {@link StripedTimerTable}, keys are inserted via open addressing with linear probing and are never removed,
+ * so that recording a value for an existing key is lock-free and does not allocate.
+ * The {@link Histogram} of a key is created the first time a value is recorded for it
+ * and is reset, rather than discarded, when the table is {@linkplain #drain(HistogramConsumer) drained}.
+ * </p>
+ */
+public class HistogramTable {
+
+    private static final long EMPTY = 0;
+
+    private final int capacity;
+    private final int mask;
+    /**
+     * Stores {@code key + 1} so that {@link #EMPTY} is not a valid key
+     */
+    private final AtomicLongArray keys;
+    private final AtomicReferenceArray<Histogram> histograms;
+
+    /**
+     * @param minCapacity the minimum number of distinct keys this table can hold, rounded up to the next power of two
+     */
+    public HistogramTable(int minCapacity) {
+        this.capacity = StripedTimerTable.powerOfTwoAtLeast(minCapacity);
+        this.mask = capacity - 1;
+        this.keys = new AtomicLongArray(capacity);
+        this.histograms = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Records a value in the histogram of the provided key, creating the histogram if necessary.
+     *
+     * @param key     a non-negative key
+     * @param valueUs the value to record, in microseconds
+     * @return {@code true} if the value has been recorded, {@code false} if the table is full
+     */
+    public boolean record(long key, long valueUs) {
+        final int slot = getSlot(key);
+        if (slot < 0) {
+            return false;
+        }
+        Histogram histogram = histograms.get(slot);
+        if (histogram == null) {
+            histograms.compareAndSet(slot, null, new Histogram());
+            histogram = histograms.get(slot);
+        }
+        histogram.record(valueUs);
+        return true;
+    }
+
+    /**
+     * Hands all histograms which contain values to the provided consumer and resets them afterwards.
+     * Must not be called concurrently with {@link #record(long, long)}.
+     *
+     * @param consumer the consumer of the histograms
+     */
+    public void drain(HistogramConsumer consumer) {
+        for (int slot = 0; slot < capacity; slot++) {
+            final long storedKey = keys.get(slot);
+            final Histogram histogram = histograms.get(slot);
+            if (storedKey != EMPTY && histogram != null && histogram.hasContent()) {
+                consumer.accept(storedKey - 1, histogram);
+                histogram.resetState();
+            }
+        }
+    }
+
+    private int getSlot(long key) {
+        final long storedKey = key + 1;
+        int slot = StripedTimerTable.hash(key) & mask;
+        for (int i = 0; i < capacity; i++) {
+            final long currentKey = keys.get(slot);
+            if (currentKey == storedKey) {
+                return slot;
+            }
+            if (currentKey == EMPTY && (keys.compareAndSet(slot, EMPTY, storedKey) || keys.get(slot) == storedKey)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public interface HistogramConsumer {
+        void accept(long key, Histogram histogram);
+    }
+}
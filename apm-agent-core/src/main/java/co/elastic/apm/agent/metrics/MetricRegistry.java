@@ -39,14 +39,13 @@ import java.util.concurrent.ConcurrentMap;
 /**
  * A registry for metrics.
  * <p>
- * Currently only holds gauges.
- * There are plans to add support for histogram-based timers.
+ * Holds gauges, counters, timers and {@link Histogram}s.
  * </p>
  */
 public class MetricRegistry {
 
     private static final Logger logger = LoggerFactory.getLogger(MetricRegistry.class);
-    private static final int METRIC_SET_LIMIT = 1000;
+    static final int METRIC_SET_LIMIT = 1000;
     private final WriterReaderPhaser phaser = new WriterReaderPhaser();
     private final ReporterConfiguration config;
     /**
@@ -59,6 +58,7 @@ public class MetricRegistry {
      * See {@link #getOrCreateMetricSet(Labels)}
      */
     private final ConcurrentMap<Labels.Immutable, MetricSet> metricSets1 = activeMetricSets, metricSets2 = inactiveMetricSets;
+    private final BreakdownMetrics breakdownMetrics = new BreakdownMetrics();
 
     public MetricRegistry(ReporterConfiguration config) {
         this.config = config;
@@ -159,9 +159,17 @@ public class MetricRegistry {
         return null;
     }
 
+    public BreakdownMetrics getBreakdownMetrics() {
+        return breakdownMetrics;
+    }
+
     public void report(MetricsReporter metricsReporter) {
         try {
             phaser.readerLock();
+            breakdownMetrics.swap();
+            // after flipping, no thread updates the inactive breakdown metrics anymore
+            phaser.flipPhase();
+            breakdownMetrics.flush(this);
             ConcurrentMap<Labels.Immutable, MetricSet> temp = inactiveMetricSets;
             inactiveMetricSets = activeMetricSets;
             activeMetricSets = temp;
@@ -188,6 +196,44 @@ public class MetricRegistry {
         }
     }
 
+    /**
+     * Records a value in the histogram with the provided name.
+     *
+     * @param histogramName the name of the histogram
+     * @param labels        the labels of the {@link MetricSet} the histogram belongs to
+     * @param valueUs       the value to record, in microseconds
+     */
+    public void recordHistogram(String histogramName, Labels labels, long valueUs) {
+        long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
+        try {
+            final MetricSet metricSet = getOrCreateMetricSet(labels);
+            if (metricSet != null) {
+                metricSet.histogram(histogramName).record(valueUs);
+            }
+        } finally {
+            phaser.writerCriticalSectionExit(criticalValueAtEnter);
+        }
+    }
+
+    /**
+     * Adds all values of the provided histogram to the histogram with the provided name.
+     *
+     * @param histogramName the name of the histogram
+     * @param labels        the labels of the {@link MetricSet} the histogram belongs to
+     * @param histogram     the histogram whose values should be added
+     */
+    public void addHistogram(String histogramName, Labels labels, Histogram histogram) {
+        long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
+        try {
+            final MetricSet metricSet = getOrCreateMetricSet(labels);
+            if (metricSet != null) {
+                metricSet.histogram(histogramName).add(histogram);
+            }
+        } finally {
+            phaser.writerCriticalSectionExit(criticalValueAtEnter);
+        }
+    }
+
     /*
      * Must always be executed in context of a critical section so that the
      * activeMetricSets and inactiveMetricSets reference can't swap while this method runs
@@ -225,11 +271,15 @@ public class MetricRegistry {
     }
 
     public void incrementCounter(String name, Labels labels) {
+        incrementCounter(name, labels, 1);
+    }
+
+    public void incrementCounter(String name, Labels labels, long delta) {
         long criticalValueAtEnter = phaser.writerCriticalSectionEnter();
         try {
             final MetricSet metricSet = getOrCreateMetricSet(labels);
             if (metricSet != null) {
-                metricSet.incrementCounter(name);
+                metricSet.incrementCounter(name, delta);
             }
         } finally {
             phaser.writerCriticalSectionExit(criticalValueAtEnter);
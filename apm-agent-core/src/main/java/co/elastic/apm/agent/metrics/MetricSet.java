@@ -50,8 +50,10 @@ public class MetricSet {
     // low load factor as hash collisions are quite costly when tracking breakdown metrics
     private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>(32, 0.5f, Runtime.getRuntime().availableProcessors());
     private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>(32, 0.5f, Runtime.getRuntime().availableProcessors());
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>(4, 0.5f, Runtime.getRuntime().availableProcessors());
     private volatile boolean hasNonEmptyTimer;
     private volatile boolean hasNonEmptyCounter;
+    private volatile boolean hasNonEmptyHistogram;
 
     MetricSet(Labels.Immutable labels) {
         this(labels, new ConcurrentHashMap<String, DoubleSupplier>());
@@ -89,27 +91,46 @@ public class MetricSet {
         return timer;
     }
 
+    public Histogram histogram(String histogramName) {
+        hasNonEmptyHistogram = true;
+        Histogram histogram = histograms.get(histogramName);
+        if (histogram == null) {
+            histograms.putIfAbsent(histogramName, new Histogram());
+            histogram = histograms.get(histogramName);
+        }
+        return histogram;
+    }
+
     public void incrementCounter(String name) {
+        incrementCounter(name, 1);
+    }
+
+    public void incrementCounter(String name, long delta) {
         hasNonEmptyCounter = true;
         AtomicLong counter = counters.get(name);
         if (counter == null) {
             counters.putIfAbsent(name, new AtomicLong());
             counter = counters.get(name);
         }
-        counter.incrementAndGet();
+        counter.addAndGet(delta);
     }
 
     public Map<String, Timer> getTimers() {
         return timers;
     }
 
+    public Map<String, Histogram> getHistograms() {
+        return histograms;
+    }
+
     public boolean hasContent() {
-        return !gauges.isEmpty() || hasNonEmptyTimer || hasNonEmptyCounter;
+        return !gauges.isEmpty() || hasNonEmptyTimer || hasNonEmptyCounter || hasNonEmptyHistogram;
     }
 
     public void onAfterReport() {
         hasNonEmptyTimer = false;
         hasNonEmptyCounter = false;
+        hasNonEmptyHistogram = false;
     }
 
     public Map<String, AtomicLong> getCounters() {
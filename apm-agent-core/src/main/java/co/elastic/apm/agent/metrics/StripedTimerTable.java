@@ -0,0 +1,231 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A pre-sized hash table which maps non-negative {@code long} keys to timers,
+ * tracking the total time and the count of invocations.
+ * <p>
+ * In contrast to a {@code Map<String, Timer>}, updating a timer does not allocate any objects
+ * and does not need to compute the hash code of a {@link String} or {@link Labels}.
+ * Keys are inserted via open addressing with linear probing and are never removed,
+ * so that the lookup of an existing key is lock-free and only involves volatile reads.
+ * </p>
+ * <p>
+ * To avoid contention when multiple threads update the same timer concurrently,
+ * the values are split into {@code stripes}, similar to {@code java.util.concurrent.atomic.LongAdder}.
+ * A thread always updates the stripe which is derived from its id.
+ * The stripes are allocated lazily so that the table only takes up as much memory as there are concurrently updating threads,
+ * bounded by the number of stripes.
+ * </p>
+ * <p>
+ * As updating the total time and the count are two separate operations,
+ * the values read by {@link #drain(TimerConsumer)} may be slightly skewed while the timers are concurrently updated.
+ * Guard the updates and the drain by a {@link org.HdrHistogram.WriterReaderPhaser} if that is a concern.
+ * </p>
+ */
+public class StripedTimerTable {
+
+    private static final int MAX_STRIPES = 8;
+    private static final long EMPTY = 0;
+
+    private final int capacity;
+    private final int mask;
+    private final int stripeMask;
+    /**
+     * Stores {@code key + 1} so that {@link #EMPTY} is not a valid key
+     */
+    private final AtomicLongArray keys;
+    /**
+     * Each stripe stores the total time at {@code slot * 2} and the count at {@code slot * 2 + 1}
+     */
+    private final AtomicReferenceArray<AtomicLongArray> stripes;
+
+    /**
+     * @param minCapacity the minimum number of distinct keys this table can hold, rounded up to the next power of two
+     * @param maxStripes  the maximum number of stripes, rounded down to the next power of two and capped at {@value #MAX_STRIPES}
+     */
+    public StripedTimerTable(int minCapacity, int maxStripes) {
+        this.capacity = powerOfTwoAtLeast(minCapacity);
+        this.mask = capacity - 1;
+        final int stripeCount = Integer.highestOneBit(Math.max(1, Math.min(maxStripes, MAX_STRIPES)));
+        this.stripeMask = stripeCount - 1;
+        this.keys = new AtomicLongArray(capacity);
+        this.stripes = new AtomicReferenceArray<>(stripeCount);
+    }
+
+    /**
+     * @return the number of stripes which reduces contention for the current machine
+     */
+    public static int defaultStripes() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    static int powerOfTwoAtLeast(int value) {
+        final int highestOneBit = Integer.highestOneBit(Math.max(1, value));
+        return highestOneBit == value ? value : highestOneBit << 1;
+    }
+
+    /**
+     * Adds the duration and count to the timer of the provided key, creating the timer if necessary.
+     *
+     * @param key        a non-negative key
+     * @param durationUs the duration to add, in microseconds
+     * @param count      the number of invocations to add
+     * @return {@code true} if the timer has been updated, {@code false} if the table is full
+     */
+    public boolean update(long key, long durationUs, long count) {
+        final int slot = getSlot(key, true);
+        if (slot < 0) {
+            return false;
+        }
+        final AtomicLongArray stripe = getStripeOfCurrentThread();
+        stripe.getAndAdd(slot * 2, durationUs);
+        stripe.getAndAdd(slot * 2 + 1, count);
+        return true;
+    }
+
+    /**
+     * Returns the number of invocations of the timer with the provided key, without resetting it.
+     *
+     * @param key a non-negative key
+     * @return the number of invocations of the timer with the provided key
+     */
+    public long getCount(long key) {
+        final int slot = getSlot(key, false);
+        if (slot < 0) {
+            return 0;
+        }
+        long count = 0;
+        for (int i = 0; i < stripes.length(); i++) {
+            final AtomicLongArray stripe = stripes.get(i);
+            if (stripe != null) {
+                count += stripe.get(slot * 2 + 1);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return {@code true} if no key has been inserted since this table has been created or {@linkplain #clear() cleared}
+     */
+    public boolean isEmpty() {
+        for (int i = 0; i < capacity; i++) {
+            if (keys.get(i) != EMPTY) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hands all timers with a count greater than zero to the provided consumer and resets them.
+     *
+     * @param consumer the consumer of the timers
+     */
+    public void drain(TimerConsumer consumer) {
+        for (int slot = 0; slot < capacity; slot++) {
+            final long storedKey = keys.get(slot);
+            if (storedKey == EMPTY) {
+                continue;
+            }
+            long totalTimeUs = 0;
+            long count = 0;
+            for (int i = 0; i < stripes.length(); i++) {
+                final AtomicLongArray stripe = stripes.get(i);
+                if (stripe != null) {
+                    totalTimeUs += stripe.getAndSet(slot * 2, 0);
+                    count += stripe.getAndSet(slot * 2 + 1, 0);
+                }
+            }
+            if (count > 0) {
+                consumer.accept(storedKey - 1, totalTimeUs, count);
+            }
+        }
+    }
+
+    /**
+     * Removes all keys and resets all timers.
+     * Must not be called concurrently with {@link #update(long, long, long)}.
+     */
+    public void clear() {
+        for (int slot = 0; slot < capacity; slot++) {
+            if (keys.get(slot) != EMPTY) {
+                keys.set(slot, EMPTY);
+                for (int i = 0; i < stripes.length(); i++) {
+                    final AtomicLongArray stripe = stripes.get(i);
+                    if (stripe != null) {
+                        stripe.set(slot * 2, 0);
+                        stripe.set(slot * 2 + 1, 0);
+                    }
+                }
+            }
+        }
+    }
+
+    private int getSlot(long key, boolean create) {
+        final long storedKey = key + 1;
+        int slot = hash(key) & mask;
+        for (int i = 0; i < capacity; i++) {
+            final long currentKey = keys.get(slot);
+            if (currentKey == storedKey) {
+                return slot;
+            }
+            if (currentKey == EMPTY) {
+                if (!create) {
+                    return -1;
+                }
+                if (keys.compareAndSet(slot, EMPTY, storedKey) || keys.get(slot) == storedKey) {
+                    return slot;
+                }
+                // another thread has claimed this slot for a different key, continue probing
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    static int hash(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private AtomicLongArray getStripeOfCurrentThread() {
+        final int index = hash(Thread.currentThread().getId()) & stripeMask;
+        AtomicLongArray stripe = stripes.get(index);
+        if (stripe == null) {
+            stripes.compareAndSet(index, null, new AtomicLongArray(capacity * 2));
+            stripe = stripes.get(index);
+        }
+        return stripe;
+    }
+
+    public interface TimerConsumer {
+        void accept(long key, long totalTimeUs, long count);
+    }
+}
@@ -24,6 +24,8 @@
  */
 package co.elastic.apm.agent.objectpool;
 
+import java.util.List;
+
 /**
  * Object pool
  *
@@ -46,6 +48,17 @@ public interface ObjectPool<T> {
      */
     void recycle(T obj);
 
+    /**
+     * Recycles multiple objects at once.
+     * <p>
+     * Depending on the implementation, this is more efficient than recycling the objects one by one,
+     * for example because thread-local state only has to be looked up once per batch.
+     * </p>
+     *
+     * @param objects objects to recycle, the list itself is not modified
+     */
+    void recycleAll(List<T> objects);
+
     /**
      * @return number of available objects in pool
      */
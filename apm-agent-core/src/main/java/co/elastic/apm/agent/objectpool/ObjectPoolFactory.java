@@ -24,10 +24,12 @@
  */
 package co.elastic.apm.agent.objectpool;
 
+import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.objectpool.impl.MagazineObjectPool;
 import co.elastic.apm.agent.objectpool.impl.QueueBasedObjectPool;
 import org.jctools.queues.atomic.AtomicQueueFactory;
 
@@ -35,7 +37,25 @@ import static org.jctools.queues.spec.ConcurrentQueueSpec.createBoundedMpmc;
 
 public class ObjectPoolFactory {
 
+    /**
+     * The number of objects per thread-local magazine of a {@link MagazineObjectPool}
+     */
+    private static final int MAGAZINE_SIZE = 16;
+
+    private final CoreConfiguration.ObjectPoolType objectPoolType;
+
+    public ObjectPoolFactory() {
+        this(CoreConfiguration.ObjectPoolType.QUEUE);
+    }
+
+    public ObjectPoolFactory(CoreConfiguration.ObjectPoolType objectPoolType) {
+        this.objectPoolType = objectPoolType;
+    }
+
     protected <T extends Recyclable> ObjectPool<T> createRecyclableObjectPool(int maxCapacity, Allocator<T> allocator) {
+        if (objectPoolType == CoreConfiguration.ObjectPoolType.MAGAZINE) {
+            return MagazineObjectPool.ofRecyclable(maxCapacity, MAGAZINE_SIZE, allocator);
+        }
         return QueueBasedObjectPool.ofRecyclable(AtomicQueueFactory.<T>newQueue(createBoundedMpmc(maxCapacity)), false, allocator);
     }
 
@@ -29,6 +29,7 @@ import co.elastic.apm.agent.objectpool.ObjectPool;
 import co.elastic.apm.agent.objectpool.Resetter;
 
 import javax.annotation.Nullable;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class AbstractObjectPool<T> implements ObjectPool<T> {
@@ -62,6 +63,18 @@ public abstract class AbstractObjectPool<T> implements ObjectPool<T> {
         }
     }
 
+    @Override
+    public final void recycleAll(List<T> objects) {
+        final int size = objects.size();
+        for (int i = 0; i < size; i++) {
+            resetter.recycle(objects.get(i));
+        }
+        final int returned = returnAllToPool(objects);
+        if (returned < size) {
+            garbageCreated.addAndGet(size - returned);
+        }
+    }
+
     @Override
     public final long getGarbageCreated() {
         return garbageCreated.longValue();
@@ -75,6 +88,23 @@ public abstract class AbstractObjectPool<T> implements ObjectPool<T> {
      */
     abstract protected boolean returnToPool(T obj);
 
+    /**
+     * Pushes multiple object references back into the available pooled instances.
+     * Implementations may override this method to return the objects more efficiently than one by one.
+     *
+     * @param objects recycled objects to return to pool
+     * @return the number of objects which have been returned to the pool
+     */
+    protected int returnAllToPool(List<T> objects) {
+        int returned = 0;
+        for (int i = 0, size = objects.size(); i < size; i++) {
+            if (returnToPool(objects.get(i))) {
+                returned++;
+            }
+        }
+        return returned;
+    }
+
     /**
      * Tries to create an instance in pool
      *
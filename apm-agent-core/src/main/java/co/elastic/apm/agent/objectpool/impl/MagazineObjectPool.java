@@ -0,0 +1,302 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import co.elastic.apm.agent.objectpool.Allocator;
+import co.elastic.apm.agent.objectpool.Recyclable;
+import co.elastic.apm.agent.objectpool.Resetter;
+import org.jctools.queues.atomic.MpmcAtomicArrayQueue;
+
+import javax.annotation.Nullable;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An object pool which caches objects in per-thread magazines in front of a shared depot.
+ * <p>
+ * A magazine is a small, fixed-size stack of pooled objects which is only accessed by its owning thread.
+ * Each thread holds up to two magazines: a loaded one and a previous one.
+ * Objects are taken from and returned to the loaded magazine without any synchronization.
+ * Only when both magazines are empty (or full), a full (or empty) magazine is exchanged with the shared depot.
+ * That way, the shared depot queue is only touched once per {@link #magazineSize} objects,
+ * instead of once per {@link #createInstance()} and once per {@link #recycle(Object)},
+ * which considerably reduces the contention on the head and tail of the queue on machines with many cores.
+ * </p>
+ * <p>
+ * As the magazines of each thread hold up to {@code 2 * magazineSize} objects in addition to the capacity of the depot,
+ * the maximum number of pooled objects is not strictly bounded by the capacity of the pool.
+ * The magazines of terminated threads are handed back to the depot when other threads start to use the pool,
+ * so that threads which come and go, like the ones of a cached thread pool, don't keep pooled objects forever.
+ * </p>
+ *
+ * @param <T> pooled object type
+ */
+public class MagazineObjectPool<T> extends AbstractObjectPool<T> {
+
+    /**
+     * As each new thread checks more magazines than it registers,
+     * the magazines of all threads are checked eventually, at a constant cost per thread.
+     */
+    private static final int RECLAIM_CHECKS_PER_NEW_THREAD = 2;
+
+    private final int magazineSize;
+    /**
+     * Full magazines which can be taken by any thread
+     */
+    private final Queue<Magazine<T>> fullMagazines;
+    /**
+     * Empty magazines which are kept around so that spilling a full magazine into the depot does not allocate
+     */
+    private final Queue<Magazine<T>> emptyMagazines;
+    /**
+     * The magazines of all threads which have used this pool,
+     * so that the magazines of terminated threads can be handed back to the depot
+     */
+    private final Queue<MagazinePair<T>> threadMagazines = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<MagazinePair<T>> magazines = new ThreadLocal<MagazinePair<T>>() {
+        @Override
+        protected MagazinePair<T> initialValue() {
+            reclaimMagazinesOfTerminatedThreads();
+            final MagazinePair<T> pair = new MagazinePair<>(Thread.currentThread(), magazineSize);
+            threadMagazines.offer(pair);
+            return pair;
+        }
+    };
+
+    /**
+     * Creates a magazine based pool for types that implement {@link Recyclable}.
+     *
+     * @param maxCapacity  the maximum number of objects held by the shared depot
+     * @param magazineSize the number of objects per magazine
+     * @param allocator    a factory used to create new instances of the recyclable object
+     */
+    public static <T extends Recyclable> MagazineObjectPool<T> ofRecyclable(int maxCapacity, int magazineSize, Allocator<T> allocator) {
+        return new MagazineObjectPool<>(maxCapacity, magazineSize, allocator, Resetter.ForRecyclable.<T>get());
+    }
+
+    /**
+     * Creates a magazine based pool for types that do not implement {@link Recyclable}.
+     *
+     * @param maxCapacity  the maximum number of objects held by the shared depot
+     * @param magazineSize the number of objects per magazine
+     * @param allocator    a factory used to create new instances of the pooled object
+     * @param resetter     a reset strategy class
+     */
+    public static <T> MagazineObjectPool<T> of(int maxCapacity, int magazineSize, Allocator<T> allocator, Resetter<T> resetter) {
+        return new MagazineObjectPool<>(maxCapacity, magazineSize, allocator, resetter);
+    }
+
+    private MagazineObjectPool(int maxCapacity, int magazineSize, Allocator<T> allocator, Resetter<T> resetter) {
+        super(allocator, resetter);
+        this.magazineSize = Math.max(1, Math.min(magazineSize, maxCapacity));
+        // the JCTools queues require a capacity of at least two
+        final int depotCapacity = Math.max(2, maxCapacity / this.magazineSize);
+        this.fullMagazines = new MpmcAtomicArrayQueue<>(depotCapacity);
+        this.emptyMagazines = new MpmcAtomicArrayQueue<>(depotCapacity);
+    }
+
+    @Nullable
+    @Override
+    protected T tryCreateInstance() {
+        final MagazinePair<T> pair = magazines.get();
+        if (pair.loaded.isEmpty()) {
+            if (!pair.previous.isEmpty()) {
+                pair.swap();
+            } else {
+                final Magazine<T> full = fullMagazines.poll();
+                if (full == null) {
+                    return null;
+                }
+                // both local magazines are empty, keep one of them and hand the other one back to the depot
+                emptyMagazines.offer(pair.previous);
+                pair.previous = pair.loaded;
+                pair.loaded = full;
+            }
+        }
+        return pair.loaded.pop();
+    }
+
+    @Override
+    protected boolean returnToPool(T obj) {
+        return returnToPool(magazines.get(), obj);
+    }
+
+    /**
+     * Looks up the magazines of the current thread only once for all objects.
+     */
+    @Override
+    protected int returnAllToPool(List<T> objects) {
+        final MagazinePair<T> pair = magazines.get();
+        int returned = 0;
+        for (int i = 0, size = objects.size(); i < size; i++) {
+            if (returnToPool(pair, objects.get(i))) {
+                returned++;
+            }
+        }
+        return returned;
+    }
+
+    private boolean returnToPool(MagazinePair<T> pair, T obj) {
+        if (pair.loaded.isFull()) {
+            if (!pair.previous.isFull()) {
+                pair.swap();
+            } else {
+                if (!fullMagazines.offer(pair.previous)) {
+                    // the depot is full
+                    return false;
+                }
+                Magazine<T> empty = emptyMagazines.poll();
+                if (empty == null) {
+                    empty = new Magazine<>(magazineSize);
+                }
+                pair.previous = pair.loaded;
+                pair.loaded = empty;
+            }
+        }
+        pair.loaded.push(obj);
+        return true;
+    }
+
+    private void reclaimMagazinesOfTerminatedThreads() {
+        for (int i = 0; i < RECLAIM_CHECKS_PER_NEW_THREAD; i++) {
+            final MagazinePair<T> pair = threadMagazines.poll();
+            if (pair == null) {
+                return;
+            }
+            if (pair.isOwnerAlive()) {
+                threadMagazines.offer(pair);
+            } else {
+                // a terminated thread does not access its magazines anymore
+                reclaim(pair.loaded);
+                reclaim(pair.previous);
+            }
+        }
+    }
+
+    private void reclaim(Magazine<T> magazine) {
+        if (!magazine.isEmpty() && fullMagazines.offer(magazine)) {
+            return;
+        }
+        // the magazine is empty or the depot is full
+        magazine.clear();
+        emptyMagazines.offer(magazine);
+    }
+
+    /**
+     * Returns the number of objects in the shared depot and in the magazines of the current thread.
+     * Objects in the magazines of other threads are not taken into account.
+     * Partially filled magazines which have been reclaimed from terminated threads are counted as full ones.
+     *
+     * @return the number of available objects in the pool
+     */
+    @Override
+    public int getObjectsInPool() {
+        final MagazinePair<T> pair = magazines.get();
+        return fullMagazines.size() * magazineSize + pair.loaded.size() + pair.previous.size();
+    }
+
+    /**
+     * Clears the shared depot and the magazines of the current thread.
+     * The magazines of other threads are retained.
+     */
+    @Override
+    public void clear() {
+        fullMagazines.clear();
+        final MagazinePair<T> pair = magazines.get();
+        pair.loaded.clear();
+        pair.previous.clear();
+    }
+
+    private static class MagazinePair<T> {
+        /**
+         * Weakly referenced so that the magazines don't keep a terminated thread from being collected
+         */
+        private final WeakReference<Thread> owner;
+        private Magazine<T> loaded;
+        private Magazine<T> previous;
+
+        private MagazinePair(Thread owner, int magazineSize) {
+            this.owner = new WeakReference<>(owner);
+            loaded = new Magazine<>(magazineSize);
+            previous = new Magazine<>(magazineSize);
+        }
+
+        /**
+         * If this returns {@code false}, all changes the owner has made to the magazines are visible to the current thread,
+         * as the termination of a thread happens-before another thread detects it via {@link Thread#isAlive()}.
+         */
+        private boolean isOwnerAlive() {
+            final Thread thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+
+        private void swap() {
+            final Magazine<T> tmp = loaded;
+            loaded = previous;
+            previous = tmp;
+        }
+    }
+
+    private static class Magazine<T> {
+        private final Object[] objects;
+        private int size;
+
+        private Magazine(int magazineSize) {
+            objects = new Object[magazineSize];
+        }
+
+        private boolean isEmpty() {
+            return size == 0;
+        }
+
+        private boolean isFull() {
+            return size == objects.length;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private void push(T obj) {
+            objects[size++] = obj;
+        }
+
+        @SuppressWarnings("unchecked")
+        private T pop() {
+            final T obj = (T) objects[--size];
+            objects[size] = null;
+            return obj;
+        }
+
+        private void clear() {
+            for (int i = 0; i < size; i++) {
+                objects[i] = null;
+            }
+            size = 0;
+        }
+    }
+}
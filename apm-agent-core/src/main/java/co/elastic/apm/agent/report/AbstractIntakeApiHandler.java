@@ -43,13 +43,13 @@ import java.util.zip.DeflaterOutputStream;
 
 public class AbstractIntakeApiHandler {
     protected final Logger logger = LoggerFactory.getLogger(getClass());
-    protected static final int GZIP_COMPRESSION_LEVEL = 1;
     private static final Object WAIT_LOCK = new Object();
 
     protected final ReporterConfiguration reporterConfiguration;
     protected final PayloadSerializer payloadSerializer;
     protected final ApmServerClient apmServerClient;
     protected final byte[] metaData;
+    protected final boolean compressionEnabled;
     protected Deflater deflater;
     protected long currentlyTransmitting = 0;
     protected long reported = 0;
@@ -58,14 +58,28 @@ public class AbstractIntakeApiHandler {
     protected HttpURLConnection connection;
     @Nullable
     protected OutputStream os;
+    @Nullable
+    private CountingOutputStream uncompressedOs;
     protected int errorCount;
     protected volatile boolean shutDown;
+    /**
+     * The total number of uncompressed bytes of all requests which have been ended.
+     * Only updated by the reporting thread, but read by the metrics reporting thread.
+     */
+    protected volatile long serializedBytes;
+    /**
+     * The total number of compressed bytes of all requests which have been ended.
+     * Only updated by the reporting thread, but read by the metrics reporting thread.
+     */
+    protected volatile long compressedBytes;
 
     public AbstractIntakeApiHandler(ReporterConfiguration reporterConfiguration, MetaData metaData, PayloadSerializer payloadSerializer, ApmServerClient apmServerClient) {
         this.reporterConfiguration = reporterConfiguration;
         this.payloadSerializer = payloadSerializer;
         this.apmServerClient = apmServerClient;
-        this.deflater = new Deflater(GZIP_COMPRESSION_LEVEL);
+        final int compressionLevel = reporterConfiguration.getApiRequestCompressionLevel();
+        this.compressionEnabled = compressionLevel != Deflater.NO_COMPRESSION;
+        this.deflater = new Deflater(compressionLevel);
         payloadSerializer.serializeMetaDataNdJson(metaData);
         this.metaData = payloadSerializer.toString().getBytes(StandardCharsets.UTF_8);
         try {
@@ -91,7 +105,7 @@ public class AbstractIntakeApiHandler {
     }
 
     protected boolean shouldEndRequest() {
-        final long written = deflater.getBytesWritten() + DslJsonSerializer.BUFFER_SIZE;
+        final long written = getBytesWrittenInCurrentRequest() + DslJsonSerializer.BUFFER_SIZE;
         final boolean endRequest = written >= reporterConfiguration.getApiRequestSize();
         if (endRequest && logger.isDebugEnabled()) {
             logger.debug("Flushing, because request size limit exceeded {}/{}", written, reporterConfiguration.getApiRequestSize());
@@ -99,6 +113,16 @@ public class AbstractIntakeApiHandler {
         return endRequest;
     }
 
+    /**
+     * @return the number of bytes, after compression if enabled, which have been written to the body of the current request
+     */
+    protected long getBytesWrittenInCurrentRequest() {
+        if (uncompressedOs != null) {
+            return uncompressedOs.getCount();
+        }
+        return deflater.getBytesWritten();
+    }
+
     protected HttpURLConnection startRequest(String endpoint) throws IOException {
         final HttpURLConnection connection = apmServerClient.startRequest(endpoint);
         if (logger.isDebugEnabled()) {
@@ -107,11 +131,17 @@ public class AbstractIntakeApiHandler {
         connection.setRequestMethod("POST");
         connection.setDoOutput(true);
         connection.setChunkedStreamingMode(DslJsonSerializer.BUFFER_SIZE);
-        connection.setRequestProperty("Content-Encoding", "deflate");
+        if (compressionEnabled) {
+            connection.setRequestProperty("Content-Encoding", "deflate");
+        }
         connection.setRequestProperty("Content-Type", "application/x-ndjson");
         connection.setUseCaches(false);
         connection.connect();
-        os = new DeflaterOutputStream(connection.getOutputStream(), deflater);
+        if (compressionEnabled) {
+            os = new DeflaterOutputStream(connection.getOutputStream(), deflater);
+        } else {
+            os = uncompressedOs = new CountingOutputStream(connection.getOutputStream());
+        }
         os.write(metaData);
         return connection;
     }
@@ -123,9 +153,7 @@ public class AbstractIntakeApiHandler {
                 if (os != null) {
                     os.close();
                 }
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Flushing {} uncompressed {} compressed bytes", deflater.getBytesRead(), deflater.getBytesWritten());
-                }
+                onRequestBodyWritten();
                 InputStream inputStream = connection.getInputStream();
                 final int responseCode = connection.getResponseCode();
                 if (responseCode >= 400) {
@@ -142,12 +170,29 @@ public class AbstractIntakeApiHandler {
             } finally {
                 HttpUtils.consumeAndClose(connection);
                 connection = null;
+                uncompressedOs = null;
                 deflater.reset();
                 currentlyTransmitting = 0;
             }
         }
     }
 
+    private void onRequestBodyWritten() {
+        final long uncompressed;
+        final long compressed;
+        if (uncompressedOs != null) {
+            uncompressed = compressed = uncompressedOs.getCount();
+        } else {
+            uncompressed = deflater.getBytesRead();
+            compressed = deflater.getBytesWritten();
+        }
+        serializedBytes += uncompressed;
+        compressedBytes += compressed;
+        if (logger.isDebugEnabled()) {
+            logger.debug("Flushing {} uncompressed {} compressed bytes", uncompressed, compressed);
+        }
+    }
+
     protected void onRequestError(Integer responseCode, InputStream inputStream, @Nullable IOException e) {
         // TODO read accepted, dropped and invalid
         onConnectionError(responseCode, currentlyTransmitting, 0);
@@ -199,6 +244,20 @@ public class AbstractIntakeApiHandler {
         return dropped;
     }
 
+    /**
+     * @return the total number of bytes which have been serialized, before compression
+     */
+    public long getSerializedBytes() {
+        return serializedBytes;
+    }
+
+    /**
+     * @return the total number of bytes which have been written to request bodies, after compression
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
     public void close() {
         shutDown = true;
         synchronized (WAIT_LOCK) {
@@ -28,6 +28,8 @@ import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricRegistry;
 import co.elastic.apm.agent.report.disruptor.ExponentionallyIncreasingSleepingWaitStrategy;
 import co.elastic.apm.agent.util.ExecutorUtils;
@@ -271,9 +273,44 @@ public class ApmServerReporter implements Reporter {
                     }, metricRegistry);
                 }
             }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+            registerIntakeMetrics(metricRegistry);
         }
     }
 
+    void registerIntakeMetrics(MetricRegistry metricRegistry) {
+        metricRegistry.add("agent.intake.serialized.bytes", Labels.EMPTY, new BytesSinceLastReport() {
+            @Override
+            protected long getTotal() {
+                return reportingEventHandler.getSerializedBytes();
+            }
+        });
+        metricRegistry.add("agent.intake.compressed.bytes", Labels.EMPTY, new BytesSinceLastReport() {
+            @Override
+            protected long getTotal() {
+                return reportingEventHandler.getCompressedBytes();
+            }
+        });
+    }
+
+    /**
+     * Turns a total which only ever grows into the delta since the last time the gauge has been read.
+     * Gauges are read once per metrics report, on the reporter thread.
+     */
+    private abstract static class BytesSinceLastReport implements DoubleSupplier {
+
+        private long lastTotal;
+
+        @Override
+        public double get() {
+            final long total = getTotal();
+            final long delta = total - lastTotal;
+            lastTotal = total;
+            return delta;
+        }
+
+        protected abstract long getTotal();
+    }
+
     private <E> boolean tryAddEventToRingBuffer(E event, EventTranslatorOneArg<ReportingEvent, E> eventTranslator) {
         if (dropTransactionIfQueueFull) {
             boolean queueFull = !disruptor.getRingBuffer().tryPublishEvent(eventTranslator, event);
@@ -0,0 +1,88 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A reusable in-memory buffer holding the complete body of a single intake API request.
+ * The body is compressed, unless compression has been disabled via {@link ReporterConfiguration#getApiRequestCompressionLevel()}.
+ * <p>
+ * The underlying byte array is retained when {@linkplain #reset() resetting} the body,
+ * so that after a warm-up phase, filling a request body does not allocate.
+ * </p>
+ */
+class IntakeRequestBody extends ByteArrayOutputStream {
+
+    private long eventCount;
+
+    IntakeRequestBody(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    /**
+     * @return the number of events (transactions, spans and errors) contained in this request body
+     */
+    long getEventCount() {
+        return eventCount;
+    }
+
+    void setEventCount(long eventCount) {
+        this.eventCount = eventCount;
+    }
+
+    /**
+     * Provides direct access to the underlying buffer in order to avoid the copy {@link #toByteArray()} makes.
+     * Only the first {@link #size()} bytes are valid.
+     *
+     * @return the underlying buffer
+     */
+    byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * Copies the next {@code length} bytes of the provided buffer into this request body in bulk,
+     * as opposed to {@link ByteArrayOutputStream#write(int) writing} them one by one.
+     *
+     * @param src    the buffer to copy from, starting at its current position
+     * @param length the number of bytes to copy
+     */
+    synchronized void write(ByteBuffer src, int length) {
+        if (count + length > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + length));
+        }
+        src.get(buf, count, length);
+        count += length;
+    }
+
+    @Override
+    public synchronized void reset() {
+        super.reset();
+        eventCount = 0;
+    }
+}
@@ -0,0 +1,351 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.util.ThreadUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * The compression stage of the pipelined intake transport.
+ * <p>
+ * The reporter thread writes the serialized nd-json into the {@link OutputStream} returned by {@link #startRequest(IntakeRequestBody)}.
+ * That stream does not compress but copies the serialized bytes into pooled chunks of {@link DslJsonSerializer#BUFFER_SIZE}
+ * which are handed off to a dedicated compressor thread.
+ * The compressor thread deflates the chunks into the {@link IntakeRequestBody}
+ * and hands the body off to the {@link IntakeRequestSender} once the request has been {@linkplain #endRequest(long) ended}.
+ * </p>
+ * <p>
+ * This lets serialization and compression overlap.
+ * The number of chunks is bounded, so that the reporter thread blocks if compression can't keep up.
+ * </p>
+ */
+class IntakeRequestCompressor {
+
+    private static final Logger logger = LoggerFactory.getLogger(IntakeRequestCompressor.class);
+    private static final int MAX_CHUNKS = 16;
+
+    private final IntakeRequestSender requestSender;
+    private final boolean compressionEnabled;
+    private final Deflater deflater;
+    private final BlockingQueue<Chunk> freeChunks = new ArrayBlockingQueue<>(MAX_CHUNKS);
+    /**
+     * As the start and end markers are also taken from {@link #freeChunks}, this queue never overflows
+     */
+    private final BlockingQueue<Chunk> pendingChunks = new ArrayBlockingQueue<>(MAX_CHUNKS);
+    private final Thread compressorThread;
+    private final ChunkOutputStream chunkOutputStream = new ChunkOutputStream();
+    /**
+     * Only accessed by the compressor thread
+     */
+    @Nullable
+    private IntakeRequestBody currentRequestBody;
+    /**
+     * Only accessed by the compressor thread
+     */
+    @Nullable
+    private OutputStream currentRequestOs;
+    /**
+     * Only accessed by the reporter thread
+     */
+    private long requestSequence;
+    private volatile long compressingRequestSequence = -1;
+    private volatile long compressedBytesInCurrentRequest;
+    private volatile long serializedBytes;
+    private volatile long compressedBytes;
+    /**
+     * The number of events of requests which have been discarded due to a compression error.
+     * Only written by the compressor thread.
+     */
+    private volatile long dropped;
+    private volatile boolean compressing;
+
+    IntakeRequestCompressor(IntakeRequestSender requestSender, int compressionLevel) {
+        this.requestSender = requestSender;
+        this.compressionEnabled = compressionLevel != Deflater.NO_COMPRESSION;
+        this.deflater = new Deflater(compressionLevel);
+        for (int i = 0; i < MAX_CHUNKS; i++) {
+            freeChunks.add(new Chunk());
+        }
+        compressorThread = new Thread(new CompressorLoop());
+        compressorThread.setDaemon(true);
+        compressorThread.setName(ThreadUtils.addElasticApmThreadPrefix("intake-compressor"));
+    }
+
+    void start() {
+        compressorThread.start();
+    }
+
+    /**
+     * Starts a new request.
+     * Must only be called by the reporter thread.
+     *
+     * @param requestBody the body the compressed request should be written to
+     * @return the stream the reporter thread writes the serialized, uncompressed request body to
+     */
+    OutputStream startRequest(IntakeRequestBody requestBody) throws InterruptedException {
+        final Chunk startMarker = freeChunks.take();
+        startMarker.requestBody = requestBody;
+        startMarker.requestSequence = ++requestSequence;
+        pendingChunks.add(startMarker);
+        return chunkOutputStream;
+    }
+
+    /**
+     * Ends the current request.
+     * The {@link IntakeRequestBody} is handed off to the {@link IntakeRequestSender} after the compression stage has compressed all pending chunks.
+     * Must only be called by the reporter thread.
+     *
+     * @param eventCount the number of events in the current request
+     */
+    void endRequest(long eventCount) throws InterruptedException {
+        chunkOutputStream.handOffCurrentChunk();
+        final Chunk endMarker = freeChunks.take();
+        endMarker.end = true;
+        endMarker.eventCount = eventCount;
+        pendingChunks.add(endMarker);
+    }
+
+    /**
+     * As this only reflects the chunks which have already been compressed,
+     * the actual size of the request may be larger.
+     * Must only be called by the reporter thread.
+     *
+     * @return the number of compressed bytes of the current request
+     */
+    long getCompressedBytesInCurrentRequest() {
+        if (compressingRequestSequence != requestSequence) {
+            // the compressor thread has not caught up with the current request yet
+            return 0;
+        }
+        return compressedBytesInCurrentRequest;
+    }
+
+    long getSerializedBytes() {
+        return serializedBytes;
+    }
+
+    long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * Events of requests which the reporter thread has failed to end are not included,
+     * as the reporter thread counts them itself.
+     *
+     * @return the number of events which have been dropped due to a compression error
+     */
+    long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Stops the compressor thread after it has compressed all pending chunks.
+     *
+     * @param timeoutMillis the maximum time to wait for the pending chunks to be compressed
+     */
+    void close(long timeoutMillis) {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            while ((!pendingChunks.isEmpty() || compressing) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compressorThread.interrupt();
+    }
+
+    private void compress(Chunk chunk) throws IOException {
+        if (chunk.requestBody != null) {
+            // in case the reporter thread failed to end the previous request
+            discardCurrentRequest();
+            compressedBytesInCurrentRequest = 0;
+            compressingRequestSequence = chunk.requestSequence;
+            currentRequestBody = chunk.requestBody;
+            if (compressionEnabled) {
+                currentRequestOs = new DeflaterOutputStream(currentRequestBody, deflater);
+            } else {
+                currentRequestOs = currentRequestBody;
+            }
+        } else if (currentRequestBody != null && currentRequestOs != null) {
+            if (chunk.end) {
+                currentRequestOs.close();
+                onRequestCompressed(currentRequestBody, chunk.eventCount);
+                currentRequestBody = null;
+                currentRequestOs = null;
+            } else {
+                currentRequestOs.write(chunk.buffer, 0, chunk.length);
+                compressedBytesInCurrentRequest = compressionEnabled ? deflater.getBytesWritten() : currentRequestBody.size();
+            }
+        } else if (chunk.end) {
+            // the current request has been discarded due to a compression error,
+            // the end marker carries the number of events it contained
+            dropped += chunk.eventCount;
+        }
+    }
+
+    private void discardCurrentRequest() {
+        if (currentRequestBody != null) {
+            requestSender.release(currentRequestBody);
+            currentRequestBody = null;
+            currentRequestOs = null;
+            deflater.reset();
+        }
+    }
+
+    private void onRequestCompressed(IntakeRequestBody requestBody, long eventCount) {
+        final long uncompressed = compressionEnabled ? deflater.getBytesRead() : requestBody.size();
+        serializedBytes += uncompressed;
+        compressedBytes += requestBody.size();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Compressed {} uncompressed to {} compressed bytes", uncompressed, requestBody.size());
+        }
+        deflater.reset();
+        requestBody.setEventCount(eventCount);
+        requestSender.send(requestBody);
+    }
+
+    private static class Chunk {
+        private final byte[] buffer = new byte[DslJsonSerializer.BUFFER_SIZE];
+        private int length;
+        /**
+         * Non-null if this chunk marks the start of a request
+         */
+        @Nullable
+        private IntakeRequestBody requestBody;
+        private long requestSequence;
+        /**
+         * {@code true} if this chunk marks the end of a request
+         */
+        private boolean end;
+        private long eventCount;
+
+        private void reset() {
+            length = 0;
+            requestBody = null;
+            requestSequence = 0;
+            end = false;
+            eventCount = 0;
+        }
+    }
+
+    /**
+     * Copies the serialized bytes into chunks.
+     * Only accessed by the reporter thread.
+     */
+    private class ChunkOutputStream extends OutputStream {
+
+        @Nullable
+        private Chunk currentChunk;
+
+        @Override
+        public void write(int b) throws IOException {
+            final Chunk chunk = getCurrentChunk();
+            chunk.buffer[chunk.length++] = (byte) b;
+            if (chunk.length == chunk.buffer.length) {
+                handOffCurrentChunkUninterruptibly();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                final Chunk chunk = getCurrentChunk();
+                final int copy = Math.min(len, chunk.buffer.length - chunk.length);
+                System.arraycopy(b, off, chunk.buffer, chunk.length, copy);
+                chunk.length += copy;
+                off += copy;
+                len -= copy;
+                if (chunk.length == chunk.buffer.length) {
+                    handOffCurrentChunkUninterruptibly();
+                }
+            }
+        }
+
+        private Chunk getCurrentChunk() throws IOException {
+            if (currentChunk == null) {
+                try {
+                    currentChunk = freeChunks.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            return currentChunk;
+        }
+
+        private void handOffCurrentChunkUninterruptibly() {
+            if (currentChunk != null) {
+                pendingChunks.add(currentChunk);
+                currentChunk = null;
+            }
+        }
+
+        private void handOffCurrentChunk() {
+            if (currentChunk != null && currentChunk.length > 0) {
+                handOffCurrentChunkUninterruptibly();
+            }
+        }
+    }
+
+    private class CompressorLoop implements Runnable {
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                final Chunk chunk;
+                try {
+                    chunk = pendingChunks.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                compressing = true;
+                try {
+                    compress(chunk);
+                } catch (Exception e) {
+                    logger.error("Unexpected error while compressing request body", e);
+                    discardCurrentRequest();
+                    if (chunk.end) {
+                        dropped += chunk.eventCount;
+                    }
+                } finally {
+                    chunk.reset();
+                    freeChunks.add(chunk);
+                    compressing = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report;
+
+import co.elastic.apm.agent.report.serialize.DslJsonSerializer;
+import co.elastic.apm.agent.util.ThreadUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.stagemonitor.util.IOUtils;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends fully serialized and compressed {@link IntakeRequestBody}s to the APM Server on a fixed number of sender threads.
+ * <p>
+ * This decouples the reporter thread, which serializes events, from waiting on the response of the APM Server.
+ * While up to {@code concurrency} requests are in flight, the reporter thread can already fill the next request body.
+ * </p>
+ * <p>
+ * The number of request bodies is bounded to {@code concurrency + 1}.
+ * If all of them are in use, {@link #acquireRequestBody()} blocks the reporter thread,
+ * which in turn lets the ring buffer of the {@link ApmServerReporter} fill up and drop events.
+ * This is the same back pressure mechanism which applies when streaming over a single connection.
+ * </p>
+ * <p>
+ * If an {@link IntakeRequestSpool} is configured, the sender threads don't block while backing off from an unreachable APM Server.
+ * Instead, failed requests and the requests which are sent while backing off are spooled to disk.
+ * Once the backoff time has elapsed, the spooled requests are replayed, but not more frequently than the configured replay interval.
+ * </p>
+ */
+class IntakeRequestSender {
+
+    private static final Logger logger = LoggerFactory.getLogger(IntakeRequestSender.class);
+
+    private final ApmServerClient apmServerClient;
+    private final String endpoint;
+    private final boolean compressed;
+    private final BlockingQueue<IntakeRequestBody> freeRequestBodies;
+    private final BlockingQueue<IntakeRequestBody> pendingRequestBodies;
+    private final List<Thread> senderThreads;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger errorCount = new AtomicInteger();
+    private final AtomicLong reported = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spooled = new AtomicLong();
+    private final Object waitLock = new Object();
+    @Nullable
+    private final IntakeRequestSpool spool;
+    private final long replayIntervalMillis;
+    private final AtomicLong nextReplayTimestamp = new AtomicLong();
+    /**
+     * Only used if there's a {@link #spool}, otherwise the sender threads block while backing off
+     */
+    private volatile long backoffUntilTimestamp;
+    private volatile boolean shutDown;
+
+    IntakeRequestSender(ApmServerClient apmServerClient, String endpoint, int concurrency, boolean compressed) {
+        this(apmServerClient, endpoint, concurrency, compressed, null, 0);
+    }
+
+    IntakeRequestSender(ApmServerClient apmServerClient, String endpoint, int concurrency, boolean compressed,
+                        @Nullable IntakeRequestSpool spool, long replayIntervalMillis) {
+        this.apmServerClient = apmServerClient;
+        this.endpoint = endpoint;
+        this.compressed = compressed;
+        this.spool = spool;
+        this.replayIntervalMillis = replayIntervalMillis;
+        this.freeRequestBodies = new ArrayBlockingQueue<>(concurrency + 1);
+        this.pendingRequestBodies = new ArrayBlockingQueue<>(concurrency + 1);
+        for (int i = 0; i < concurrency + 1; i++) {
+            freeRequestBodies.add(new IntakeRequestBody(DslJsonSerializer.BUFFER_SIZE));
+        }
+        this.senderThreads = new ArrayList<>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            Thread thread = new Thread(new SenderLoop());
+            thread.setDaemon(true);
+            thread.setName(ThreadUtils.addElasticApmThreadPrefix("intake-sender-" + i));
+            senderThreads.add(thread);
+        }
+    }
+
+    void start() {
+        for (Thread senderThread : senderThreads) {
+            senderThread.start();
+        }
+    }
+
+    /**
+     * Takes a free request body, blocking until one becomes available.
+     *
+     * @return an empty request body
+     * @throws InterruptedException if the reporter thread has been interrupted while waiting for a free request body
+     */
+    IntakeRequestBody acquireRequestBody() throws InterruptedException {
+        return freeRequestBodies.take();
+    }
+
+    /**
+     * Hands off a completed request body to the sender threads.
+     *
+     * @param requestBody the request body which has been acquired via {@link #acquireRequestBody()}
+     */
+    void send(IntakeRequestBody requestBody) {
+        // there are never more request bodies than the capacity of the queue
+        pendingRequestBodies.add(requestBody);
+    }
+
+    /**
+     * Returns a request body to the pool of free request bodies without sending it.
+     *
+     * @param requestBody the request body which has been acquired via {@link #acquireRequestBody()}
+     */
+    void release(IntakeRequestBody requestBody) {
+        requestBody.reset();
+        freeRequestBodies.add(requestBody);
+    }
+
+    long getReported() {
+        return reported.get();
+    }
+
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of events which have been spooled to disk
+     */
+    long getSpooled() {
+        return spooled.get();
+    }
+
+    /**
+     * @return the number of requests which are currently being sent or waiting to be sent
+     */
+    int getPendingRequests() {
+        return pendingRequestBodies.size() + inFlight.get();
+    }
+
+    /**
+     * Stops the sender threads after they have sent the pending requests.
+     * Sender threads don't back off anymore after shutdown has been initiated.
+     *
+     * @param timeoutMillis the maximum time to wait for pending requests to be sent
+     */
+    void close(long timeoutMillis) {
+        shutDown = true;
+        synchronized (waitLock) {
+            waitLock.notifyAll();
+        }
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            while (getPendingRequests() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Thread senderThread : senderThreads) {
+            senderThread.interrupt();
+        }
+        if (spool != null) {
+            if (!spool.isEmpty()) {
+                logger.warn("Discarding {} spooled requests on shutdown", spool.getRecords());
+            }
+            spool.close();
+        }
+    }
+
+    private void handle(IntakeRequestBody requestBody) {
+        if (spool != null && isBackingOff()) {
+            spoolOrDrop(requestBody);
+        } else {
+            sendRequest(requestBody);
+        }
+    }
+
+    private boolean isBackingOff() {
+        return !shutDown && System.currentTimeMillis() < backoffUntilTimestamp;
+    }
+
+    /**
+     * Replays one spooled request if the APM Server is not being backed off from and if the last replay has been at least
+     * {@link #replayIntervalMillis} ago.
+     *
+     * @param replayBody the request body to copy the spooled request into
+     */
+    private void replaySpooledRequest(IntakeRequestBody replayBody) {
+        if (spool == null || shutDown || spool.isEmpty() || isBackingOff()) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final long nextReplay = nextReplayTimestamp.get();
+        if (now < nextReplay || !nextReplayTimestamp.compareAndSet(nextReplay, now + replayIntervalMillis)) {
+            return;
+        }
+        replayBody.reset();
+        if (spool.poll(replayBody)) {
+            inFlight.incrementAndGet();
+            try {
+                spooled.addAndGet(-replayBody.getEventCount());
+                logger.debug("Replaying spooled request with {} events", replayBody.getEventCount());
+                sendRequest(replayBody);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private void spoolOrDrop(IntakeRequestBody requestBody) {
+        if (spool != null && spool.offer(requestBody)) {
+            spooled.addAndGet(requestBody.getEventCount());
+        } else {
+            dropped.addAndGet(requestBody.getEventCount());
+        }
+    }
+
+    private void sendRequest(IntakeRequestBody requestBody) {
+        HttpURLConnection connection = null;
+        try {
+            connection = apmServerClient.startRequest(endpoint);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Sending {} bytes to {}", requestBody.size(), connection.getURL());
+            }
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(requestBody.size());
+            if (compressed) {
+                connection.setRequestProperty("Content-Encoding", "deflate");
+            }
+            connection.setRequestProperty("Content-Type", "application/x-ndjson");
+            connection.setUseCaches(false);
+            connection.connect();
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(requestBody.getBuffer(), 0, requestBody.size());
+            }
+            final int responseCode = connection.getResponseCode();
+            if (responseCode >= 400) {
+                onRequestError(responseCode, connection.getErrorStream(), requestBody, null);
+            } else {
+                errorCount.set(0);
+                reported.addAndGet(requestBody.getEventCount());
+            }
+        } catch (IOException e) {
+            Integer responseCode = null;
+            if (connection != null) {
+                try {
+                    responseCode = connection.getResponseCode();
+                } catch (IOException ignore) {
+                    // there's no response
+                }
+            }
+            onRequestError(responseCode, connection != null ? connection.getErrorStream() : null, requestBody, e);
+        } finally {
+            HttpUtils.consumeAndClose(connection);
+        }
+    }
+
+    private void onRequestError(@Nullable Integer responseCode, @Nullable InputStream errorStream, IntakeRequestBody requestBody, @Nullable IOException e) {
+        // the server was unreachable or overloaded, retrying the same request later on is likely to succeed
+        if (responseCode == null || responseCode >= 429) {
+            spoolOrDrop(requestBody);
+        } else {
+            dropped.addAndGet(requestBody.getEventCount());
+        }
+        if (e != null) {
+            logger.error("Error sending data to APM server: {}, response code is {}", e.getMessage(), responseCode);
+            logger.debug("Sending payload to APM server failed", e);
+        }
+        if (errorStream != null && logger.isWarnEnabled()) {
+            try {
+                logger.warn(IOUtils.toString(errorStream));
+            } catch (IOException e1) {
+                logger.warn(e1.getMessage(), e1);
+            }
+        }
+        // if the response code is null, the server did not even send a response
+        if (responseCode == null || responseCode > 429) {
+            // this server seems to have connection or capacity issues, try next
+            apmServerClient.onConnectionError();
+        } else if (responseCode == 404) {
+            logger.warn("It seems like you are using a version of the APM Server which is not compatible with this agent. " +
+                "Please use APM Server 6.5.0 or newer.");
+        }
+        backOff();
+    }
+
+    private void backOff() {
+        if (shutDown) {
+            // don't delay the shutdown by doing a backoff
+            return;
+        }
+        long backoffTimeSeconds = AbstractIntakeApiHandler.getBackoffTimeSeconds(errorCount.getAndIncrement());
+        logger.info("Backing off for {} seconds (+/-10%)", backoffTimeSeconds);
+        final long backoffTimeMillis = TimeUnit.SECONDS.toMillis(backoffTimeSeconds);
+        if (spool != null) {
+            // don't block the sender thread, the requests are spooled while backing off
+            backoffUntilTimestamp = System.currentTimeMillis() + backoffTimeMillis + AbstractIntakeApiHandler.getRandomJitter(backoffTimeMillis);
+        } else if (backoffTimeMillis > 0) {
+            // holding on to the request body while backing off blocks the reporter once all sender threads back off
+            try {
+                synchronized (waitLock) {
+                    waitLock.wait(backoffTimeMillis + AbstractIntakeApiHandler.getRandomJitter(backoffTimeMillis));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private class SenderLoop implements Runnable {
+
+        /**
+         * Only allocated if there's a {@link #spool}
+         */
+        @Nullable
+        private final IntakeRequestBody replayBody = spool != null ? new IntakeRequestBody(DslJsonSerializer.BUFFER_SIZE) : null;
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                final IntakeRequestBody requestBody;
+                try {
+                    if (replayBody != null) {
+                        replay(replayBody);
+                        // wake up periodically to replay spooled requests, even if there are no new requests
+                        requestBody = pendingRequestBodies.poll(replayIntervalMillis, TimeUnit.MILLISECONDS);
+                        if (requestBody == null) {
+                            continue;
+                        }
+                    } else {
+                        requestBody = pendingRequestBodies.take();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                inFlight.incrementAndGet();
+                try {
+                    handle(requestBody);
+                } catch (RuntimeException e) {
+                    dropped.addAndGet(requestBody.getEventCount());
+                    logger.error("Unexpected error while sending data to APM server", e);
+                } finally {
+                    release(requestBody);
+                    inFlight.decrementAndGet();
+                }
+            }
+        }
+
+        private void replay(IntakeRequestBody replayBody) {
+            try {
+                replaySpooledRequest(replayBody);
+            } catch (RuntimeException e) {
+                dropped.addAndGet(replayBody.getEventCount());
+                logger.error("Unexpected error while replaying spooled request", e);
+            }
+        }
+    }
+}
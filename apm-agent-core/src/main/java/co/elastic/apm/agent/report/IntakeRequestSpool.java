@@ -0,0 +1,197 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A size-capped, memory-mapped ring buffer on disk which holds {@link IntakeRequestBody}s that could not be sent to the APM Server.
+ * <p>
+ * The request bodies are stored as they would have been sent - serialized and compressed -
+ * so that they can be replayed without having to re-serialize the events.
+ * Each record consists of a header ({@code int} length, {@code long} event count) followed by the request body.
+ * If a record does not fit into the remainder of the file, a wrap marker (a length of {@code -1}) is written
+ * and the record is written to the beginning of the file.
+ * </p>
+ * <p>
+ * The spool is not meant to survive restarts of the agent.
+ * The spool file is deleted when {@linkplain #close() closing} the spool.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * As the spool is only used while the APM Server is unreachable, the simplicity of synchronizing all methods outweighs the contention.
+ * </p>
+ */
+class IntakeRequestSpool {
+
+    private static final Logger logger = LoggerFactory.getLogger(IntakeRequestSpool.class);
+    private static final int HEADER_SIZE = 4 + 8;
+    private static final int WRAP_MARKER = -1;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    /**
+     * The position of the next record to read
+     */
+    private int readPosition;
+    /**
+     * The position the next record is written to
+     */
+    private int writePosition;
+    /**
+     * The number of bytes between {@link #readPosition} and {@link #writePosition}, including the skipped bytes after a wrap marker
+     */
+    private int usedBytes;
+    private int records;
+
+    IntakeRequestSpool(File file, int capacity) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * Creates a spool file in the provided directory.
+     *
+     * @param directory the directory to create the spool file in, or {@code null} to use the default temporary-file directory
+     * @param capacity  the maximum size of the spool file in bytes
+     * @return the spool
+     * @throws IOException if the spool file can't be created
+     */
+    static IntakeRequestSpool create(@Nullable String directory, long capacity) throws IOException {
+        final File dir = directory != null && !directory.isEmpty() ? new File(directory) : null;
+        final File file = File.createTempFile("elastic-apm-intake-spool-", ".bin", dir);
+        file.deleteOnExit();
+        logger.info("Spooling requests to {} while the APM Server is unreachable", file);
+        return new IntakeRequestSpool(file, (int) Math.min(capacity, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Stores a request body.
+     *
+     * @param requestBody the request body to store
+     * @return {@code true} if the request body has been stored,
+     * {@code false} if there's not enough space left in the spool
+     */
+    synchronized boolean offer(IntakeRequestBody requestBody) {
+        final int recordSize = HEADER_SIZE + requestBody.size();
+        final int remainingUntilEnd = capacity - writePosition;
+        int requiredBytes = recordSize;
+        boolean wrap = false;
+        if (recordSize > remainingUntilEnd) {
+            // the skipped bytes at the end of the file count as used until the reader wraps around
+            requiredBytes += remainingUntilEnd;
+            wrap = true;
+        }
+        if (usedBytes + requiredBytes > capacity) {
+            return false;
+        }
+        if (wrap) {
+            if (remainingUntilEnd >= 4) {
+                buffer.putInt(writePosition, WRAP_MARKER);
+            }
+            writePosition = 0;
+        }
+        buffer.putInt(writePosition, requestBody.size());
+        buffer.putLong(writePosition + 4, requestBody.getEventCount());
+        ((Buffer) buffer).position(writePosition + HEADER_SIZE);
+        buffer.put(requestBody.getBuffer(), 0, requestBody.size());
+        writePosition += recordSize;
+        usedBytes += requiredBytes;
+        records++;
+        return true;
+    }
+
+    /**
+     * Removes the oldest request body from the spool and copies it into the provided request body.
+     *
+     * @param requestBody the (empty) request body to copy the spooled request body into
+     * @return {@code true} if a request body has been copied, {@code false} if the spool is empty
+     */
+    synchronized boolean poll(IntakeRequestBody requestBody) {
+        if (records == 0) {
+            return false;
+        }
+        final int remainingUntilEnd = capacity - readPosition;
+        if (remainingUntilEnd < HEADER_SIZE || buffer.getInt(readPosition) == WRAP_MARKER) {
+            usedBytes -= remainingUntilEnd;
+            readPosition = 0;
+        }
+        final int length = buffer.getInt(readPosition);
+        final long eventCount = buffer.getLong(readPosition + 4);
+        ((Buffer) buffer).position(readPosition + HEADER_SIZE);
+        requestBody.write(buffer, length);
+        requestBody.setEventCount(eventCount);
+        readPosition += HEADER_SIZE + length;
+        usedBytes -= HEADER_SIZE + length;
+        records--;
+        if (records == 0) {
+            // start from the beginning to reduce fragmentation
+            readPosition = writePosition = usedBytes = 0;
+        }
+        return true;
+    }
+
+    synchronized boolean isEmpty() {
+        return records == 0;
+    }
+
+    /**
+     * @return the number of spooled request bodies
+     */
+    synchronized int getRecords() {
+        return records;
+    }
+
+    /**
+     * @return the number of bytes currently in use
+     */
+    synchronized int getUsedBytes() {
+        return usedBytes;
+    }
+
+    void close() {
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close spool file", e);
+        }
+        if (!file.delete()) {
+            logger.debug("Failed to delete spool file {}", file);
+        }
+    }
+}
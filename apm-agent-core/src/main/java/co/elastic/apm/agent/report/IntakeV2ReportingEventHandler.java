@@ -25,6 +25,7 @@
 package co.elastic.apm.agent.report;
 
 import co.elastic.apm.agent.impl.MetaData;
+import co.elastic.apm.agent.impl.transaction.RecyclingBatch;
 import co.elastic.apm.agent.report.processor.ProcessorEventHandler;
 import co.elastic.apm.agent.report.serialize.PayloadSerializer;
 import co.elastic.apm.agent.util.ThreadUtils;
@@ -40,6 +41,15 @@ import java.util.concurrent.Future;
 
 /**
  * This reporter supports the nd-json HTTP streaming based intake v2 protocol
+ * <p>
+ * If {@link ReporterConfiguration#getMaxConcurrentApiRequests()} is greater than {@code 0},
+ * the events are not streamed to the APM Server.
+ * Instead, the serialized events are compressed by the {@link IntakeRequestCompressor} into an in-memory {@link IntakeRequestBody}
+ * which is sent by the {@link IntakeRequestSender}.
+ * Both stages run on their own background threads.
+ * If {@link ReporterConfiguration#getDiskSpoolMaxSize()} is greater than {@code 0},
+ * the request bodies are spooled to disk by the {@link IntakeRequestSpool} while the APM Server is unreachable.
+ * </p>
  */
 public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler implements ReportingEventHandler {
 
@@ -50,12 +60,47 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
     private ApmServerReporter reporter;
     @Nullable
     private TimerTask timeoutTask;
+    @Nullable
+    private final IntakeRequestSender requestSender;
+    @Nullable
+    private final IntakeRequestCompressor requestCompressor;
+    /**
+     * Spans and transactions which have been serialized are returned to their pools in bulk at the end of each batch
+     */
+    private final RecyclingBatch recyclingBatch = new RecyclingBatch();
+    @Nullable
+    private IntakeRequestBody requestBody;
 
     public IntakeV2ReportingEventHandler(ReporterConfiguration reporterConfiguration, ProcessorEventHandler processorEventHandler,
                                          PayloadSerializer payloadSerializer, MetaData metaData, ApmServerClient apmServerClient) {
         super(reporterConfiguration, metaData, payloadSerializer, apmServerClient);
         this.processorEventHandler = processorEventHandler;
         this.timeoutTimer = new Timer(ThreadUtils.addElasticApmThreadPrefix("request-timeout-timer"), true);
+        final int maxConcurrentApiRequests = reporterConfiguration.getMaxConcurrentApiRequests();
+        if (maxConcurrentApiRequests > 0) {
+            requestSender = new IntakeRequestSender(apmServerClient, INTAKE_V2_URL, maxConcurrentApiRequests, compressionEnabled,
+                createSpool(reporterConfiguration), reporterConfiguration.getDiskSpoolReplayInterval().getMillis());
+            requestCompressor = new IntakeRequestCompressor(requestSender, reporterConfiguration.getApiRequestCompressionLevel());
+            requestSender.start();
+            requestCompressor.start();
+        } else {
+            requestSender = null;
+            requestCompressor = null;
+        }
+    }
+
+    @Nullable
+    private IntakeRequestSpool createSpool(ReporterConfiguration reporterConfiguration) {
+        final long diskSpoolMaxSize = reporterConfiguration.getDiskSpoolMaxSize();
+        if (diskSpoolMaxSize <= 0) {
+            return null;
+        }
+        try {
+            return IntakeRequestSpool.create(reporterConfiguration.getDiskSpoolDir(), diskSpoolMaxSize);
+        } catch (IOException e) {
+            logger.warn("Failed to create the disk spool, events will be dropped while the APM Server is unreachable", e);
+            return null;
+        }
     }
 
     @Override
@@ -74,6 +119,9 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
             }
         } finally {
             event.resetState();
+            if (endOfBatch || shutDown) {
+                recyclingBatch.flush();
+            }
         }
     }
 
@@ -91,7 +139,11 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         }
         processorEventHandler.onEvent(event, sequence, endOfBatch);
         try {
-            if (connection == null) {
+            if (requestSender != null && requestCompressor != null) {
+                if (requestBody == null) {
+                    startBufferedRequest(requestSender, requestCompressor);
+                }
+            } else if (connection == null) {
                 connection = startRequest(INTAKE_V2_URL);
             }
             writeEvent(event);
@@ -119,11 +171,11 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         if (event.getTransaction() != null) {
             currentlyTransmitting++;
             payloadSerializer.serializeTransactionNdJson(event.getTransaction());
-            event.getTransaction().decrementReferences();
+            recyclingBatch.decrementReferences(event.getTransaction());
         } else if (event.getSpan() != null) {
             currentlyTransmitting++;
             payloadSerializer.serializeSpanNdJson(event.getSpan());
-            event.getSpan().decrementReferences();
+            recyclingBatch.decrementReferences(event.getSpan());
         } else if (event.getError() != null) {
             currentlyTransmitting++;
             payloadSerializer.serializeErrorNdJson(event.getError());
@@ -146,6 +198,19 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
         if (os != null) {
             payloadSerializer.setOutputStream(os);
         }
+        scheduleTimeout();
+        return connection;
+    }
+
+    private void startBufferedRequest(IntakeRequestSender requestSender, IntakeRequestCompressor requestCompressor) throws IOException, InterruptedException {
+        requestBody = requestSender.acquireRequestBody();
+        os = requestCompressor.startRequest(requestBody);
+        os.write(metaData);
+        payloadSerializer.setOutputStream(os);
+        scheduleTimeout();
+    }
+
+    private void scheduleTimeout() {
         if (reporter != null) {
             timeoutTask = new IntakeV2ReportingEventHandler.FlushOnTimeoutTimerTask(reporter);
             if (logger.isDebugEnabled()) {
@@ -153,20 +218,86 @@ public class IntakeV2ReportingEventHandler extends AbstractIntakeApiHandler impl
             }
             timeoutTimer.schedule(timeoutTask, reporterConfiguration.getApiRequestTime().getMillis());
         }
-        return connection;
     }
 
     @Override
     public void endRequest() {
         cancelTimeout();
-        super.endRequest();
+        if (requestCompressor != null) {
+            endBufferedRequest(requestCompressor);
+        } else {
+            super.endRequest();
+        }
+    }
+
+    private void endBufferedRequest(IntakeRequestCompressor requestCompressor) {
+        if (requestBody != null) {
+            try {
+                payloadSerializer.flush();
+                requestCompressor.endRequest(currentlyTransmitting);
+            } catch (Exception e) {
+                // the chunks which have already been handed off are compressed into a request body which is never ended,
+                // the compression stage discards it when it reaches the start marker of the next request
+                logger.error("Failed to hand off request body to compression stage: {}", e.getMessage());
+                dropped += currentlyTransmitting;
+            } finally {
+                requestBody = null;
+                currentlyTransmitting = 0;
+            }
+        }
+    }
+
+    @Override
+    protected long getBytesWrittenInCurrentRequest() {
+        if (requestCompressor != null) {
+            return requestCompressor.getCompressedBytesInCurrentRequest();
+        }
+        return super.getBytesWrittenInCurrentRequest();
+    }
+
+    @Override
+    public long getSerializedBytes() {
+        if (requestCompressor != null) {
+            return serializedBytes + requestCompressor.getSerializedBytes();
+        }
+        return serializedBytes;
+    }
+
+    @Override
+    public long getCompressedBytes() {
+        if (requestCompressor != null) {
+            return compressedBytes + requestCompressor.getCompressedBytes();
+        }
+        return compressedBytes;
+    }
+
+    @Override
+    public long getReported() {
+        if (requestSender != null) {
+            return reported + requestSender.getReported();
+        }
+        return reported;
+    }
+
+    @Override
+    public long getDropped() {
+        if (requestSender != null && requestCompressor != null) {
+            return dropped + requestSender.getDropped() + requestCompressor.getDropped();
+        }
+        return dropped;
     }
 
     @Override
     public void close() {
         super.close();
-        logger.info("Reported events: {}", reported);
-        logger.info("Dropped events: {}", dropped);
+        if (requestCompressor != null) {
+            requestCompressor.close(reporterConfiguration.getServerTimeout().getMillis());
+        }
+        if (requestSender != null) {
+            requestSender.close(reporterConfiguration.getServerTimeout().getMillis());
+        }
+        logger.info("Reported events: {}", getReported());
+        logger.info("Dropped events: {}", getDropped());
         timeoutTimer.cancel();
     }
 
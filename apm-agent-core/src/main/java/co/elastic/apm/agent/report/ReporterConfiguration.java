@@ -29,10 +29,9 @@ import co.elastic.apm.agent.configuration.converter.ByteValueConverter;
 import co.elastic.apm.agent.configuration.converter.TimeDuration;
 import co.elastic.apm.agent.configuration.converter.TimeDurationValueConverter;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
-import co.elastic.apm.agent.matcher.WildcardMatcherValueConverter;
+import co.elastic.apm.agent.matcher.WildcardMatcherListValueConverter;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
-import org.stagemonitor.configuration.converter.ListValueConverter;
 import org.stagemonitor.configuration.converter.UrlValueConverter;
 
 import javax.annotation.Nullable;
@@ -40,7 +39,9 @@ import java.net.URL;
 import java.util.Collections;
 import java.util.List;
 
+import static co.elastic.apm.agent.configuration.validation.RangeValidator.isInRange;
 import static co.elastic.apm.agent.configuration.validation.RangeValidator.isNotInRange;
+import static co.elastic.apm.agent.configuration.validation.RangeValidator.min;
 
 public class ReporterConfiguration extends ConfigurationOptionProvider {
 
@@ -158,6 +159,80 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
             "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
         .buildWithDefault(ByteValue.of("768kb"));
 
+    private final ConfigurationOption<Integer> maxConcurrentApiRequests = ConfigurationOption.integerOption()
+        .key("max_concurrent_api_requests")
+        .tags("added[1.18.0]")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The maximum number of concurrent requests to the APM server intake api.\n" +
+            "\n" +
+            "When set to `0`, events are streamed to the APM Server over a single connection and the reporter waits for the " +
+            "response of the APM Server before it continues to process events.\n" +
+            "\n" +
+            "When set to a positive number, the request bodies are serialized and compressed in memory and sent by the configured " +
+            "number of background threads.\n" +
+            "While the previous requests are in flight, the agent is already preparing the next request body.\n" +
+            "This increases the throughput of the agent in high load scenarios,\n" +
+            "at the cost of buffering up to `max_concurrent_api_requests + 1` request bodies of up to " +
+            "<<config-api-request-size,`api_request_size`>> on the heap.\n" +
+            "\n" +
+            "In this mode, the request bodies are also compressed on a dedicated background thread,\n" +
+            "so that serializing and compressing events happens in parallel.")
+        .addValidator(min(0))
+        .buildWithDefault(0);
+
+    private final ConfigurationOption<Integer> apiRequestCompressionLevel = ConfigurationOption.integerOption()
+        .key("api_request_compression_level")
+        .tags("added[1.18.0]")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The deflate compression level of the request bodies which are sent to the APM server intake api.\n" +
+            "\n" +
+            "Valid values range from `1` (fastest) to `9` (best compression).\n" +
+            "Set to `0` to send the request bodies uncompressed.\n" +
+            "This saves CPU time of the agent at the expense of network bandwidth\n" +
+            "and may be a good choice if the APM Server runs on the same host as the agent.")
+        .addValidator(isInRange(0, 9))
+        .buildWithDefault(1);
+
+    private final ConfigurationOption<ByteValue> diskSpoolMaxSize = ByteValueConverter.byteOption()
+        .key("disk_spool_max_size")
+        .tags("added[1.18.0]")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The maximum size of the on-disk spool which holds request bodies while the APM Server is unreachable.\n" +
+            "\n" +
+            "Only applies when <<config-max-concurrent-api-requests,`max_concurrent_api_requests`>> is set to a positive number.\n" +
+            "Instead of dropping events while backing off from an unreachable or overloaded APM Server,\n" +
+            "the already serialized and compressed request bodies are written to a memory-mapped file.\n" +
+            "Once the APM Server is reachable again, the spooled request bodies are replayed at the rate configured by\n" +
+            "<<config-disk-spool-replay-interval,`disk_spool_replay_interval`>>.\n" +
+            "When the spool is full, events are dropped.\n" +
+            "The spool is deleted when the agent shuts down.\n" +
+            "\n" +
+            "Set to `0b` to disable the spool.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+        .buildWithDefault(ByteValue.of("0b"));
+
+    private final ConfigurationOption<String> diskSpoolDir = ConfigurationOption.stringOption()
+        .key("disk_spool_dir")
+        .tags("added[1.18.0]")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The directory to create the on-disk spool in.\n" +
+            "See <<config-disk-spool-max-size,`disk_spool_max_size`>>.\n" +
+            "\n" +
+            "When not set, the spool is created in the directory denoted by the `java.io.tmpdir` system property.")
+        .build();
+
+    private final ConfigurationOption<TimeDuration> diskSpoolReplayInterval = TimeDurationValueConverter.durationOption("ms")
+        .key("disk_spool_replay_interval")
+        .tags("added[1.18.0]")
+        .configurationCategory(REPORTER_CATEGORY)
+        .description("The minimum time between replaying two spooled request bodies once the APM Server is reachable again.\n" +
+            "See <<config-disk-spool-max-size,`disk_spool_max_size`>>.\n" +
+            "\n" +
+            "This limits the additional load on the APM Server after an outage.")
+        .addValidator(min(TimeDuration.of("1ms")))
+        .buildWithDefault(TimeDuration.of("100ms"));
+
     private final ConfigurationOption<TimeDuration> metricsInterval = TimeDurationValueConverter.durationOption("s")
         .key("metrics_interval")
         .tags("added[1.3.0]")
@@ -169,7 +244,7 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(TimeDuration.of("30s"));
 
     private final ConfigurationOption<List<WildcardMatcher>> disableMetrics = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("disable_metrics")
         .tags("added[1.3.0]")
         .configurationCategory(REPORTER_CATEGORY)
@@ -181,6 +256,21 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         .dynamic(false)
         .buildWithDefault(Collections.<WildcardMatcher>emptyList());
 
+    private final ConfigurationOption<Boolean> latencyHistogramMetrics = ConfigurationOption.booleanOption()
+        .key("latency_histogram_metrics")
+        .tags("added[1.18.0]")
+        .configurationCategory(REPORTER_CATEGORY)
+        .dynamic(true)
+        .description("Enables the collection of the `transaction.duration.histogram` and `span.self_time.histogram` metrics.\n" +
+            "\n" +
+            "In contrast to the `transaction.duration` and `span.self_time` timers, which only allow for calculating averages,\n" +
+            "histograms allow for calculating percentiles, such as the 99th percentile of the duration of each transaction name.\n" +
+            "This does not require all transactions to be sampled.\n" +
+            "\n" +
+            "NOTE: Histogram metrics require APM Server 7.11 or newer.\n" +
+            "Older versions reject the metric sets which contain histograms.")
+        .buildWithDefault(false);
+
     @Nullable
     public String getSecretToken() {
         return secretToken.get();
@@ -223,6 +313,27 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         return apiRequestSize.get().getBytes();
     }
 
+    public int getMaxConcurrentApiRequests() {
+        return maxConcurrentApiRequests.get();
+    }
+
+    public int getApiRequestCompressionLevel() {
+        return apiRequestCompressionLevel.get();
+    }
+
+    public long getDiskSpoolMaxSize() {
+        return diskSpoolMaxSize.get().getBytes();
+    }
+
+    @Nullable
+    public String getDiskSpoolDir() {
+        return diskSpoolDir.get();
+    }
+
+    public TimeDuration getDiskSpoolReplayInterval() {
+        return diskSpoolReplayInterval.get();
+    }
+
     public long getMetricsIntervalMs() {
         return metricsInterval.get().getMillis();
     }
@@ -231,6 +342,10 @@ public class ReporterConfiguration extends ConfigurationOptionProvider {
         return disableMetrics.get();
     }
 
+    public boolean isLatencyHistogramMetrics() {
+        return latencyHistogramMetrics.get();
+    }
+
     public ConfigurationOption<List<URL>> getServerUrlsOption() {
         return this.serverUrl;
     }
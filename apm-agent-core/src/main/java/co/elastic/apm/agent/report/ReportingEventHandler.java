@@ -34,5 +34,15 @@ public interface ReportingEventHandler extends EventHandler<ReportingEvent> {
 
     long getDropped();
 
+    /**
+     * @return the total number of bytes which have been serialized, before compression
+     */
+    long getSerializedBytes();
+
+    /**
+     * @return the total number of bytes which have been written to request bodies, after compression
+     */
+    long getCompressedBytes();
+
     void close();
 }
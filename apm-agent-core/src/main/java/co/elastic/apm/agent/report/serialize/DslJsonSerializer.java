@@ -47,7 +47,9 @@ import co.elastic.apm.agent.impl.payload.ProcessInfo;
 import co.elastic.apm.agent.impl.payload.RuntimeInfo;
 import co.elastic.apm.agent.impl.payload.Service;
 import co.elastic.apm.agent.impl.payload.SystemInfo;
+import co.elastic.apm.agent.impl.stacktrace.StackTraceFilter;
 import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.Composite;
 import co.elastic.apm.agent.impl.transaction.Id;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.SpanCount;
@@ -77,7 +79,6 @@ import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -102,10 +103,15 @@ public class DslJsonSerializer implements PayloadSerializer, MetricRegistry.Metr
     private static final byte NEW_LINE = (byte) '\n';
     private static final Logger logger = LoggerFactory.getLogger(DslJsonSerializer.class);
     private static final String[] DISALLOWED_IN_LABEL_KEY = new String[]{".", "*", "\""};
-    private static final Collection<String> excludedStackFrames = Arrays.asList("java.lang.reflect", "com.sun", "sun.", "jdk.internal.");
     // visible for testing
     final JsonWriter jw;
     private final StringBuilder replaceBuilder = new StringBuilder(MAX_LONG_STRING_VALUE_LENGTH + 1);
+    /**
+     * Scratch buffer for {@link #writeField(String, CharBuffer)}.
+     * The pooled {@link CharBuffer}s are allocated with a capacity of {@link #MAX_LONG_STRING_VALUE_LENGTH}.
+     */
+    private final byte[] asciiBuffer = new byte[MAX_LONG_STRING_VALUE_LENGTH];
+    private final SerializedStackTraceCache stackTraceCache = new SerializedStackTraceCache(SerializedStackTraceCache.DEFAULT_SIZE);
     private final StacktraceConfiguration stacktraceConfiguration;
     private final ApmServerClient apmServerClient;
     @Nullable
@@ -552,17 +558,31 @@ public class DslJsonSerializer implements PayloadSerializer, MetricRegistry.Metr
         writeTimestamp(span.getTimestamp());
         serializeTraceContext(span.getTraceContext(), true);
         writeField("duration", span.getDurationMs());
-        if (span.getStacktrace() != null) {
-            serializeStacktrace(span.getStacktrace().getStackTrace());
+        StackTraceElement[] stackTraceElements = span.getStackTraceElements();
+        if (stackTraceElements != null) {
+            serializeStacktrace(stackTraceElements);
         } else if (span.getStackFrames() != null) {
             serializeStackTrace(span.getStackFrames());
         }
         serializeSpanContext(span.getContext(), span.getTraceContext());
         writeHexArray("child_ids", span.getChildIds());
+        serializeComposite(span.getComposite());
         serializeSpanType(span);
         jw.writeByte(OBJECT_END);
     }
 
+    private void serializeComposite(Composite composite) {
+        if (composite.hasContent()) {
+            writeFieldName("composite");
+            jw.writeByte(OBJECT_START);
+            writeField("count", composite.getCount());
+            writeField("sum", composite.getSumMs());
+            writeLastField("compression_strategy", composite.getCompressionStrategy());
+            jw.writeByte(OBJECT_END);
+            jw.writeByte(COMMA);
+        }
+    }
+
     private void serializeServiceName(TraceContext traceContext) {
         String serviceName = traceContext.getServiceName();
         if (serviceName != null) {
@@ -628,12 +648,29 @@ public class DslJsonSerializer implements PayloadSerializer, MetricRegistry.Metr
         if (stacktrace.length > 0) {
             writeFieldName("stacktrace");
             jw.writeByte(ARRAY_START);
-            serializeStackTraceArrayElements(stacktrace);
+            serializeStackTraceArrayElementsCached(stacktrace);
             jw.writeByte(ARRAY_END);
             jw.writeByte(COMMA);
         }
     }
 
+    private void serializeStackTraceArrayElementsCached(StackTraceElement[] stacktrace) {
+        stackTraceCache.invalidateIfChanged(stacktraceConfiguration.getApplicationPackages(), stacktraceConfiguration.getStackTraceLimit());
+        int hash = SerializedStackTraceCache.hash(stacktrace);
+        byte[] cached = stackTraceCache.get(stacktrace, hash);
+        if (cached != null) {
+            jw.writeAscii(cached);
+            return;
+        }
+        long flushedBefore = jw.flushed();
+        int start = jw.size();
+        serializeStackTraceArrayElements(stacktrace);
+        // only cache if the serialized frames are still completely in the buffer
+        if (jw.flushed() == flushedBefore) {
+            stackTraceCache.put(stacktrace, hash, Arrays.copyOfRange(jw.getByteBuffer(), start, jw.size()));
+        }
+    }
+
     private void serializeStackTraceArrayElements(StackTraceElement[] stacktrace) {
 
         boolean topMostElasticApmPackagesSkipped = false;
@@ -642,12 +679,12 @@ public class DslJsonSerializer implements PayloadSerializer, MetricRegistry.Metr
         for (int i = 0; i < stacktrace.length && collectedStackFrames < stackTraceLimit; i++) {
             StackTraceElement stackTraceElement = stacktrace[i];
             // only skip the top most apm stack frames
-            if (!topMostElasticApmPackagesSkipped && stackTraceElement.getClassName().startsWith("co.elastic.apm")) {
+            if (!topMostElasticApmPackagesSkipped && StackTraceFilter.isAgentFrame(stackTraceElement.getClassName())) {
                 continue;
             }
             topMostElasticApmPackagesSkipped = true;
 
-            if (isExcluded(stackTraceElement)) {
+            if (StackTraceFilter.isExcluded(stackTraceElement.getClassName(), stackTraceElement.getFileName())) {
                 continue;
             }
 
@@ -659,20 +696,6 @@ public class DslJsonSerializer implements PayloadSerializer, MetricRegistry.Metr
         }
     }
 
-    private static boolean isExcluded(StackTraceElement stackTraceElement) {
-        // file name is a required field
-        if (stackTraceElement.getFileName() == null) {
-            return true;
-        }
-        String className = stackTraceElement.getClassName();
-        for (String excludedStackFrame : excludedStackFrames) {
-            if (className.startsWith(excludedStackFrame)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     private void serializeStackTraceElement(StackTraceElement stacktrace) {
         jw.writeByte(OBJECT_START);
         writeField("filename", stacktrace.getFileName());
@@ -834,9 +857,7 @@ public class DslJsonSerializer implements PayloadSerializer, MetricRegistry.Metr
             } else {
                 final CharBuffer statementBuffer = db.getStatementBuffer();
                 if (statementBuffer != null && statementBuffer.length() > 0) {
-                    writeFieldName("statement");
-                    jw.writeString(statementBuffer);
-                    jw.writeByte(COMMA);
+                    writeField("statement", statementBuffer);
                 }
             }
             long affectedRows = db.getAffectedRowsCount();
@@ -1049,9 +1070,7 @@ public class DslJsonSerializer implements PayloadSerializer, MetricRegistry.Metr
             } else {
                 final CharBuffer bodyBuffer = request.getBodyBufferForSerialization();
                 if (bodyBuffer != null && bodyBuffer.length() > 0) {
-                    writeFieldName("body");
-                    jw.writeString(bodyBuffer);
-                    jw.writeByte(COMMA);
+                    writeField("body", bodyBuffer);
                 }
             }
             if (request.getUrl().hasContent()) {
@@ -1142,6 +1161,55 @@ public class DslJsonSerializer implements PayloadSerializer, MetricRegistry.Metr
     }
 
 
+    /**
+     * Writes the remaining content of a pooled {@link CharBuffer} like {@code Db#statementBuffer} or {@code Request#bodyBuffer}.
+     * <p>
+     * If the buffer is backed by an array and consists only of printable ASCII characters which don't need to be escaped,
+     * which is the case for most SQL statements and many request bodies,
+     * the content is narrowed into a byte array in a single pass and written to the {@link JsonWriter} as-is.
+     * Otherwise, this falls back to {@link JsonWriter#writeString(CharSequence)},
+     * which checks and escapes every character individually.
+     * </p>
+     */
+    void writeField(final String fieldName, final CharBuffer value) {
+        writeFieldName(fieldName);
+        final int length = value.length();
+        if (value.hasArray() && length <= asciiBuffer.length
+            && copyUnescapedAscii(value.array(), value.arrayOffset() + value.position(), length, asciiBuffer)) {
+            jw.writeByte(JsonWriter.QUOTE);
+            jw.writeAscii(asciiBuffer, length);
+            jw.writeByte(JsonWriter.QUOTE);
+        } else {
+            writeLongStringValue(value);
+        }
+        jw.writeByte(COMMA);
+    }
+
+    /**
+     * Copies chars to bytes, checking whether all of them are printable ASCII characters which don't need to be escaped in JSON.
+     * <p>
+     * The loop does not branch on the individual characters so that the JIT is able to unroll and vectorize it.
+     * A character is valid if it's within {@code [0x20, 0x7F]} and is neither {@code "} nor {@code \}.
+     * Each of these conditions yields a negative value if violated, so OR-ing them tells whether any character is invalid.
+     * </p>
+     *
+     * @param src    the source chars
+     * @param offset the offset of the first char to copy
+     * @param length the number of chars to copy
+     * @param dest   the destination bytes, starting at index {@code 0}
+     * @return {@code true} if all chars are printable ASCII characters which don't need to be escaped,
+     * {@code false} otherwise, in which case the content of {@code dest} is undefined
+     */
+    static boolean copyUnescapedAscii(char[] src, int offset, int length, byte[] dest) {
+        int invalid = 0;
+        for (int i = 0; i < length; i++) {
+            final int c = src[offset + i];
+            invalid |= (c - 0x20) | (0x7F - c) | ((c ^ '"') - 1) | ((c ^ '\\') - 1);
+            dest[i] = (byte) c;
+        }
+        return invalid >= 0;
+    }
+
     void writeLongStringField(final String fieldName, @Nullable final CharSequence value) {
         if (value != null) {
             writeFieldName(fieldName);
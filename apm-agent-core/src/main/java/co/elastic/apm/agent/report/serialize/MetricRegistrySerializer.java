@@ -25,6 +25,7 @@
 package co.elastic.apm.agent.report.serialize;
 
 import co.elastic.apm.agent.metrics.DoubleSupplier;
+import co.elastic.apm.agent.metrics.Histogram;
 import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricSet;
 import co.elastic.apm.agent.metrics.Timer;
@@ -64,7 +65,8 @@ public class MetricRegistrySerializer {
                 jw.writeByte(JsonWriter.OBJECT_START);
                 boolean hasSamples = serializeGauges(metricSet.getGauges(), jw);
                 hasSamples |= serializeTimers(metricSet.getTimers(), hasSamples, jw);
-                serializeCounters(metricSet.getCounters(), hasSamples, jw);
+                hasSamples |= serializeCounters(metricSet.getCounters(), hasSamples, jw);
+                serializeHistograms(metricSet.getHistograms(), hasSamples, jw);
                 jw.writeByte(JsonWriter.OBJECT_END);
             }
             jw.writeByte(JsonWriter.OBJECT_END);
@@ -133,7 +135,7 @@ public class MetricRegistrySerializer {
         return hasSamples;
     }
 
-    private static void serializeCounters(Map<String, AtomicLong> counters, boolean hasSamples, JsonWriter jw) {
+    private static boolean serializeCounters(Map<String, AtomicLong> counters, boolean hasSamples, JsonWriter jw) {
         final int size = counters.size();
         if (size > 0) {
             final Iterator<Map.Entry<String, AtomicLong>> iterator = counters.entrySet().iterator();
@@ -147,6 +149,7 @@ public class MetricRegistrySerializer {
                     if (hasSamples) {
                         jw.writeByte(JsonWriter.COMMA);
                     }
+                    hasSamples = true;
                     serializeCounter(kv.getKey(), value, jw);
                 }
             }
@@ -161,6 +164,67 @@ public class MetricRegistrySerializer {
                 }
             }
         }
+        return hasSamples;
+    }
+
+    private static void serializeHistograms(Map<String, Histogram> histograms, boolean hasSamples, JsonWriter jw) {
+        if (histograms.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, Histogram> kv : histograms.entrySet()) {
+            final Histogram histogram = kv.getValue();
+            if (histogram.hasContent()) {
+                if (hasSamples) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                hasSamples = true;
+                serializeHistogram(kv.getKey(), histogram, jw);
+            }
+        }
+    }
+
+    /**
+     * Serializes the non-empty buckets of a histogram, for example
+     * <pre>
+     * "transaction.duration.histogram":{"type":"histogram","values":[1536.0,3072.0],"counts":[3,1]}
+     * </pre>
+     */
+    private static void serializeHistogram(String key, Histogram histogram, JsonWriter jw) {
+        DslJsonSerializer.writeFieldName(key, jw);
+        jw.writeByte(JsonWriter.OBJECT_START);
+        DslJsonSerializer.writeFieldName("type", jw);
+        jw.writeAscii("\"histogram\"");
+        jw.writeByte(JsonWriter.COMMA);
+        DslJsonSerializer.writeFieldName("values", jw);
+        jw.writeByte(JsonWriter.ARRAY_START);
+        boolean first = true;
+        for (int i = 0; i < histogram.getBucketCount(); i++) {
+            if (histogram.getCount(i) > 0) {
+                if (!first) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                first = false;
+                NumberConverter.serialize(Histogram.getBucketMidpoint(i), jw);
+            }
+        }
+        jw.writeByte(JsonWriter.ARRAY_END);
+        jw.writeByte(JsonWriter.COMMA);
+        DslJsonSerializer.writeFieldName("counts", jw);
+        jw.writeByte(JsonWriter.ARRAY_START);
+        first = true;
+        for (int i = 0; i < histogram.getBucketCount(); i++) {
+            final long count = histogram.getCount(i);
+            if (count > 0) {
+                if (!first) {
+                    jw.writeByte(JsonWriter.COMMA);
+                }
+                first = false;
+                NumberConverter.serialize(count, jw);
+            }
+        }
+        jw.writeByte(JsonWriter.ARRAY_END);
+        jw.writeByte(JsonWriter.OBJECT_END);
+        histogram.resetState();
     }
 
     private static void serializeCounter(String key, AtomicLong value, JsonWriter jw) {
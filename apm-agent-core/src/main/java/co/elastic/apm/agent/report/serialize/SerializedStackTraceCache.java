@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report.serialize;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A bounded, direct-mapped cache of the serialized JSON of stack traces.
+ * <p>
+ * Spans which are created at the same call site tend to have identical stack traces.
+ * Instead of filtering and serializing each {@link StackTraceElement} again,
+ * the serialized frames can be copied from the cache.
+ * </p>
+ * <p>
+ * The serialized frames depend on the {@code application_packages} and on the {@code stack_trace_limit}.
+ * Whenever one of these change, the cache is {@linkplain #invalidateIfChanged(Collection, int) invalidated}.
+ * </p>
+ * <p>
+ * This class is not thread safe, just like {@link DslJsonSerializer}.
+ * </p>
+ */
+class SerializedStackTraceCache {
+
+    static final int DEFAULT_SIZE = 512;
+
+    private final StackTraceElement[][] stackTraces;
+    private final int[] hashes;
+    private final byte[][] serializedStackTraces;
+    private final int mask;
+    @Nullable
+    private Collection<String> applicationPackages;
+    private int stackTraceLimit;
+
+    SerializedStackTraceCache(int size) {
+        if (Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("size has to be a power of two");
+        }
+        stackTraces = new StackTraceElement[size][];
+        hashes = new int[size];
+        serializedStackTraces = new byte[size][];
+        mask = size - 1;
+    }
+
+    /**
+     * Clears the cache in case the configuration which influences the serialized stack frames has changed.
+     *
+     * @param applicationPackages the current application packages
+     * @param stackTraceLimit     the current stack trace limit
+     */
+    void invalidateIfChanged(Collection<String> applicationPackages, int stackTraceLimit) {
+        // the collection is replaced by the configuration registry when the application packages change
+        if (this.applicationPackages != applicationPackages || this.stackTraceLimit != stackTraceLimit) {
+            Arrays.fill(stackTraces, null);
+            Arrays.fill(serializedStackTraces, null);
+            this.applicationPackages = applicationPackages;
+            this.stackTraceLimit = stackTraceLimit;
+        }
+    }
+
+    static int hash(StackTraceElement[] stackTrace) {
+        int hash = Arrays.hashCode(stackTrace);
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @param stackTrace the stack trace to look up
+     * @param hash       the {@linkplain #hash(StackTraceElement[]) hash} of the stack trace
+     * @return the serialized frames of an equal stack trace, or {@code null} if not cached
+     */
+    @Nullable
+    byte[] get(StackTraceElement[] stackTrace, int hash) {
+        final int index = hash & mask;
+        if (hashes[index] == hash && Arrays.equals(stackTraces[index], stackTrace)) {
+            return serializedStackTraces[index];
+        }
+        return null;
+    }
+
+    /**
+     * Caches the serialized frames of a stack trace, replacing a previous entry with the same index.
+     */
+    void put(StackTraceElement[] stackTrace, int hash, byte[] serializedStackTrace) {
+        final int index = hash & mask;
+        stackTraces[index] = stackTrace;
+        hashes[index] = hash;
+        serializedStackTraces[index] = serializedStackTrace;
+    }
+}
@@ -0,0 +1,61 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class ActivationStackTest {
+
+    private final ActivationStack stack = new ActivationStack(false);
+
+    @Test
+    void testEmptyStack() {
+        assertThat(stack.isEmpty()).isTrue();
+        assertThat(stack.peek()).isNull();
+        assertThat(stack.peekLast()).isNull();
+        assertThat(stack.pop()).isNull();
+    }
+
+    @Test
+    void testPushAndPopBeyondInitialCapacity() {
+        AbstractSpan<?>[] spans = new AbstractSpan<?>[10];
+        for (int i = 0; i < spans.length; i++) {
+            spans[i] = mock(AbstractSpan.class);
+            stack.push(spans[i]);
+            assertThat(stack.peek()).isSameAs(spans[i]);
+            assertThat(stack.peekLast()).isSameAs(spans[0]);
+        }
+        for (int i = spans.length - 1; i >= 0; i--) {
+            assertThat(stack.isEmpty()).isFalse();
+            assertThat(stack.pop()).isSameAs(spans[i]);
+        }
+        assertThat(stack.isEmpty()).isTrue();
+        assertThat(stack.pop()).isNull();
+    }
+}
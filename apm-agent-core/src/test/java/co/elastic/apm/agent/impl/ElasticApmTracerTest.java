@@ -130,7 +130,7 @@ class ElasticApmTracerTest {
             }
             transaction.end();
         }
-        assertThat(reporter.getFirstSpan().getStacktrace()).isNull();
+        assertThat(reporter.getFirstSpan().getStackTraceElements()).isNull();
     }
 
     @Test
@@ -145,7 +145,7 @@ class ElasticApmTracerTest {
             }
             transaction.end();
         }
-        assertThat(reporter.getFirstSpan().getStacktrace()).isNotNull();
+        assertThat(reporter.getFirstSpan().getStackTraceElements()).isNotNull();
     }
 
     @Test
@@ -159,7 +159,7 @@ class ElasticApmTracerTest {
             }
             transaction.end();
         }
-        assertThat(reporter.getFirstSpan().getStacktrace()).isNull();
+        assertThat(reporter.getFirstSpan().getStackTraceElements()).isNull();
 
     }
 
@@ -175,7 +175,7 @@ class ElasticApmTracerTest {
             }
             transaction.end();
         }
-        assertThat(reporter.getFirstSpan().getStacktrace()).isNotNull();
+        assertThat(reporter.getFirstSpan().getStackTraceElements()).isNotNull();
     }
 
     @Test
@@ -292,6 +292,42 @@ class ElasticApmTracerTest {
         assertThat(reporter.getSpans()).hasSize(1);
     }
 
+    @Test
+    void testDroppedSpansAreNotRecorded() {
+        when(tracerImpl.getConfig(CoreConfiguration.class).getTransactionMaxSpans()).thenReturn(1);
+        Transaction transaction = tracerImpl.startRootTransaction(getClass().getClassLoader());
+        try (Scope scope = transaction.activateInScope()) {
+            transaction.createSpan().end();
+
+            Span dropped = tracerImpl.getActive().createSpan();
+            try (Scope spanScope = dropped.activateInScope()) {
+                assertThat(dropped.isNoop()).isTrue();
+                assertThat(dropped.isSampled()).isFalse();
+                assertThat(dropped.getTraceContext().getTraceId()).isEqualTo(transaction.getTraceContext().getTraceId());
+                assertThat(dropped.getTraceContext().getParentId()).isEqualTo(transaction.getTraceContext().getId());
+
+                Span droppedChild = tracerImpl.getActive().createSpan().withName("child");
+                assertThat(droppedChild.isNoop()).isTrue();
+                assertThat(droppedChild).isNotSameAs(dropped);
+                assertThat(droppedChild.getParent()).isSameAs(dropped);
+                assertThat(droppedChild.getTraceContext().getParentId()).isEqualTo(dropped.getTraceContext().getId());
+                droppedChild.end();
+            }
+            dropped.end();
+
+            Span droppedSibling = transaction.createSpan();
+            assertThat(droppedSibling.isNoop()).isTrue();
+            droppedSibling.end();
+
+            transaction.end();
+        }
+        // the dropped spans are recycled, which is verified in cleanupAndCheck
+        assertThat(reporter.getFirstTransaction().getSpanCount().getDropped()).hasValue(3);
+        assertThat(reporter.getFirstTransaction().getSpanCount().getReported()).hasValue(1);
+        assertThat(reporter.getFirstTransaction().getSpanCount().getTotal()).hasValue(4);
+        assertThat(reporter.getSpans()).hasSize(1);
+    }
+
     @Test
     void testPause() {
         tracerImpl.pause();
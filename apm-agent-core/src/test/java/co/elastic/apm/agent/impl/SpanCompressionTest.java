@@ -0,0 +1,208 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.configuration.converter.TimeDuration;
+import co.elastic.apm.agent.impl.sampling.ConstantSampler;
+import co.elastic.apm.agent.impl.stacktrace.StacktraceConfiguration;
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.Composite;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.objectpool.TestObjectPoolFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import java.util.HashMap;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+class SpanCompressionTest {
+
+    private ElasticApmTracer tracer;
+    private ConfigurationRegistry config;
+    private MockReporter reporter;
+    private TestObjectPoolFactory objectPoolFactory;
+    private Transaction transaction;
+
+    @BeforeEach
+    void setUp() {
+        objectPoolFactory = new TestObjectPoolFactory();
+        reporter = new MockReporter();
+        config = SpyConfiguration.createSpyConfig();
+        when(config.getConfig(CoreConfiguration.class).isSpanCompressionEnabled()).thenReturn(true);
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(config)
+            .reporter(reporter)
+            .withObjectPoolFactory(objectPoolFactory)
+            .buildAndStart();
+        transaction = tracer.startRootTransaction(ConstantSampler.of(true), 0, null).withName("transaction");
+    }
+
+    @AfterEach
+    void cleanupAndCheck() {
+        reporter.assertRecycledAfterDecrementingReferences();
+        objectPoolFactory.checkAllPooledObjectsHaveBeenRecycled();
+    }
+
+    @Test
+    void testExactMatchSpansAreCompressed() {
+        endExitSpan(transaction, "SELECT FROM users", "mysql", 10, 20);
+        endExitSpan(transaction, "SELECT FROM users", "mysql", 30, 45);
+        endExitSpan(transaction, "SELECT FROM users", "mysql", 50, 60);
+        assertThat(reporter.getSpans())
+            .describedAs("the composite span is buffered until the parent ends")
+            .isEmpty();
+        transaction.end(100);
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        Span span = reporter.getFirstSpan();
+        assertThat(span.getNameAsString()).isEqualTo("SELECT FROM users");
+        assertThat(span.getTimestamp()).isEqualTo(10);
+        assertThat(span.getDuration()).isEqualTo(50);
+        Composite composite = span.getComposite();
+        assertThat(composite.getCount()).isEqualTo(3);
+        assertThat(composite.getSum()).isEqualTo(35);
+        assertThat(composite.getCompressionStrategy()).isEqualTo(Composite.EXACT_MATCH);
+        assertThat(reporter.getFirstTransaction().getSpanCount().getReported().get()).isEqualTo(1);
+    }
+
+    @Test
+    void testSameKindSpansAreCompressed() {
+        when(config.getConfig(CoreConfiguration.class).getSpanCompressionSameKindMaxDuration()).thenReturn(TimeDuration.of("5ms"));
+        endExitSpan(transaction, "SELECT FROM users", "mysql", 10, 20);
+        endExitSpan(transaction, "SELECT FROM orders", "mysql", 30, 40);
+        endExitSpan(transaction, "SELECT FROM products", "mysql", 50, 60);
+        transaction.end(100);
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        Span span = reporter.getFirstSpan();
+        assertThat(span.getNameAsString()).isEqualTo("Calls to mysql");
+        assertThat(span.getComposite().getCount()).isEqualTo(3);
+        assertThat(span.getComposite().getCompressionStrategy()).isEqualTo(Composite.SAME_KIND);
+    }
+
+    @Test
+    void testOnlyConsecutiveSpansAreCompressed() {
+        endExitSpan(transaction, "SELECT FROM users", "mysql", 10, 20);
+        endExitSpan(transaction, "SELECT FROM users", "mysql", 30, 40);
+        endExitSpan(transaction, "GET", "redis", 50, 60);
+        assertThat(reporter.getSpans())
+            .describedAs("the composite span is reported as soon as a sibling can't be compressed into it")
+            .hasSize(1);
+        endExitSpan(transaction, "SELECT FROM users", "mysql", 70, 80);
+        transaction.createSpan(85).withName("internal").end(90);
+        assertThat(reporter.getSpans()).hasSize(4);
+        transaction.end(100);
+
+        assertThat(reporter.getSpans()).extracting(span -> span.getComposite().getCount()).containsExactly(2, 0, 0, 0);
+    }
+
+    @Test
+    void testSpansExceedingMaxDurationAreNotCompressed() {
+        endExitSpan(transaction, "SELECT FROM users", "mysql", 10, 20);
+        endExitSpan(transaction, "SELECT FROM users", "mysql", 30, 100_000);
+        transaction.end(200_000);
+
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(reporter.getSpans()).allMatch(span -> !span.getComposite().hasContent());
+    }
+
+    @Test
+    void testSpansWithPropagatedContextAreNotCompressed() {
+        endExitSpan(transaction, "SELECT FROM users", "mysql", 10, 20);
+        Span span = startExitSpan(transaction, "SELECT FROM users", "mysql", 30);
+        span.propagateTraceContext(new HashMap<String, String>(), (key, value, carrier) -> carrier.put(key, value));
+        span.end(40);
+        transaction.end(100);
+
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(reporter.getSpans()).allMatch(s -> !s.getComposite().hasContent());
+    }
+
+    @Test
+    void testChildrenOfSpansAreCompressed() {
+        Span parent = transaction.createSpan(5).withName("parent");
+        endExitSpan(parent, "SELECT FROM users", "mysql", 10, 20);
+        endExitSpan(parent, "SELECT FROM users", "mysql", 30, 40);
+        parent.end(50);
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(reporter.getFirstSpan().getComposite().getCount()).isEqualTo(2);
+        transaction.end(100);
+    }
+
+    @Test
+    void testCompressionDisabled() {
+        when(config.getConfig(CoreConfiguration.class).isSpanCompressionEnabled()).thenReturn(false);
+        endExitSpan(transaction, "SELECT FROM users", "mysql", 10, 20);
+        endExitSpan(transaction, "SELECT FROM users", "mysql", 30, 40);
+        transaction.end(100);
+
+        assertThat(reporter.getSpans()).hasSize(2);
+    }
+
+    @Test
+    void testBufferedSpanHasStackTraceOfItsCallSite() {
+        when(config.getConfig(StacktraceConfiguration.class).getSpanFramesMinDurationMs()).thenReturn(5L);
+        Span span = startExitSpan(transaction, "SELECT FROM users", "mysql", 0);
+        // the top-most agent frames, which includes the frames of this test, are not part of the stack trace
+        // ending the span behind a JDK frame makes sure the frames of this test are captured
+        Optional.of(span).ifPresent(s -> s.end(10_000));
+        assertThat(reporter.getSpans()).isEmpty();
+        transaction.end(100_000);
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getFirstSpan().getStackTraceElements())
+            .extracting(StackTraceElement::getMethodName)
+            .contains("testBufferedSpanHasStackTraceOfItsCallSite");
+    }
+
+    private void endExitSpan(AbstractSpan<?> parent, String name, String subtype, long start, long end) {
+        startExitSpan(parent, name, subtype, start).end(end);
+    }
+
+    private Span startExitSpan(AbstractSpan<?> parent, String name, String subtype, long start) {
+        Span span = parent.createSpan(start)
+            .asExit()
+            .withName(name)
+            .withType("db")
+            .withSubtype(subtype);
+        span.getContext().getDestination()
+            .withAddress("localhost")
+            .withPort(1234)
+            .getService()
+            .withName(subtype)
+            .withResource(subtype)
+            .withType("db");
+        return span;
+    }
+}
@@ -32,9 +32,11 @@ import co.elastic.apm.agent.impl.sampling.ConstantSampler;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.Histogram;
 import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.metrics.MetricSet;
 import co.elastic.apm.agent.metrics.Timer;
+import co.elastic.apm.agent.report.ReporterConfiguration;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -44,6 +46,7 @@ import javax.annotation.Nullable;
 import java.util.Map;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.withinPercentage;
 import static org.mockito.Mockito.when;
 
 @SuppressWarnings("ConstantConditions")
@@ -124,6 +127,28 @@ class SpanTypeBreakdownTest {
         });
     }
 
+    /*
+     * ██████████░░░░░░░░░░██████████
+     * └─────────██████████
+     *          10        20        30
+     */
+    @Test
+    void testBreakdown_singleDbSpan_latencyHistograms() {
+        when(tracer.getConfig(ReporterConfiguration.class).isLatencyHistogramMetrics()).thenReturn(true);
+        final Transaction transaction = tracer.startRootTransaction(ConstantSampler.of(true), 0, getClass().getClassLoader())
+            .withName("test")
+            .withType("request");
+        transaction.createSpan(10).withType("db").withSubtype("mysql").end(20);
+        transaction.end(30);
+
+        tracer.getMetricRegistry().report(metricSets -> {
+            assertThat(getHistogram(metricSets, "transaction.duration.histogram", null, null).getTotalCount()).isEqualTo(1);
+            assertThat(getHistogram(metricSets, "transaction.duration.histogram", null, null).getValueAtPercentile(100)).isCloseTo(30, withinPercentage(12.5));
+            assertThat(getHistogram(metricSets, "span.self_time.histogram", "app", null).getValueAtPercentile(100)).isCloseTo(20, withinPercentage(12.5));
+            assertThat(getHistogram(metricSets, "span.self_time.histogram", "db", "mysql").getValueAtPercentile(100)).isCloseTo(10, withinPercentage(12.5));
+        });
+    }
+
     /*
      * ██████████░░░░░░░░░░██████████
      * └─────────██████████
@@ -138,7 +163,7 @@ class SpanTypeBreakdownTest {
         transaction.createSpan(10).withType("db").withSubtype("mysql").end(20);
         transaction.end(30);
 
-        assertThat(transaction.getTimerBySpanTypeAndSubtype()).isEmpty();
+        assertThat(transaction.getSpanTimers().isEmpty()).isTrue();
         tracer.getMetricRegistry().report(metricSets -> {
             assertThat(getTimer(metricSets, "span.self_time", "app", null)).isNull();
             assertThat(getTimer(metricSets, "span.self_time", "db", "mysql")).isNull();
@@ -358,7 +383,7 @@ class SpanTypeBreakdownTest {
 
         // recycled transactions should not leak child timings
         reporter.assertRecycledAfterDecrementingReferences();
-        assertThat(reporter.getFirstTransaction().getTimerBySpanTypeAndSubtype().get("db")).isNull();
+        assertThat(reporter.getFirstTransaction().getSpanTimers().getCount(tracer.getMetricRegistry().getBreakdownMetrics().getSpanTypeId("db", "mysql"))).isZero();
 
         tracer.getMetricRegistry().report(metricSets -> {
             assertThat(getTimer(metricSets, "span.self_time", "app", null).getCount()).isEqualTo(1);
@@ -402,10 +427,65 @@ class SpanTypeBreakdownTest {
         });
     }
 
+    @Test
+    void testBreakdown_manySpanTypes() {
+        final Transaction transaction = tracer.startRootTransaction(ConstantSampler.of(true), 0, getClass().getClassLoader())
+            .withName("test")
+            .withType("request");
+        for (int i = 0; i < 40; i++) {
+            transaction.createSpan(i).withType("db").withSubtype("db-" + i).end(i + 1);
+        }
+        transaction.end(50);
+
+        tracer.getMetricRegistry().report(metricSets -> {
+            assertThat(getTimer(metricSets, "span.self_time", "app", null).getTotalTimeUs()).isEqualTo(10);
+            for (int i = 0; i < 40; i++) {
+                assertThat(getTimer(metricSets, "span.self_time", "db", "db-" + i).getCount()).isEqualTo(1);
+                assertThat(getTimer(metricSets, "span.self_time", "db", "db-" + i).getTotalTimeUs()).isEqualTo(1);
+            }
+        });
+    }
+
+    /*
+     * ██████████░░░░░░░░░░░░░░░░░░░░
+     * └─────────██████████            reported
+     *           └─────────██████████  dropped
+     *          10        20        30
+     */
+    @Test
+    void testBreakdown_droppedSpan() {
+        when(tracer.getConfig(CoreConfiguration.class).getTransactionMaxSpans()).thenReturn(1);
+        final Transaction transaction = tracer.startRootTransaction(ConstantSampler.of(true), 0, getClass().getClassLoader())
+            .withName("test")
+            .withType("request");
+        transaction.createSpan(10).withType("db").withSubtype("mysql").end(20);
+        final Span dropped = transaction.createSpan(20).withType("db").withSubtype("postgresql");
+        assertThat(dropped.isNoop()).isTrue();
+        dropped.end(30);
+        transaction.end(30);
+
+        tracer.getMetricRegistry().report(metricSets -> {
+            assertThat(getTimer(metricSets, "span.self_time", "app", null).getTotalTimeUs()).isEqualTo(10);
+            assertThat(getTimer(metricSets, "span.self_time", "db", "mysql").getTotalTimeUs()).isEqualTo(10);
+            assertThat(getTimer(metricSets, "span.self_time", "db", "postgresql").getCount()).isEqualTo(1);
+            assertThat(getTimer(metricSets, "span.self_time", "db", "postgresql").getTotalTimeUs()).isEqualTo(10);
+        });
+        assertThat(reporter.getSpans()).hasSize(1);
+    }
+
     private void assertThatTransactionBreakdownCounterCreated(Map<? extends Labels, MetricSet> metricSets) {
         assertThat(metricSets.get(Labels.Mutable.of().transactionName("test").transactionType("request")).getCounters().get("transaction.breakdown.count").get()).isEqualTo(1);
     }
 
+    @Nullable
+    private Histogram getHistogram(Map<? extends Labels, MetricSet> metricSets, String histogramName, @Nullable String spanType, @Nullable String spanSubType) {
+        final MetricSet metricSet = metricSets.get(Labels.Mutable.of().transactionName("test").transactionType("request").spanType(spanType).spanSubType(spanSubType));
+        if (metricSet == null) {
+            return null;
+        }
+        return metricSet.getHistograms().get(histogramName);
+    }
+
     @Nullable
     private Timer getTimer(Map<? extends Labels, MetricSet> metricSets, String timerName, @Nullable String spanType, @Nullable String spanSubType) {
         final MetricSet metricSet = metricSets.get(Labels.Mutable.of().transactionName("test").transactionType("request").spanType(spanType).spanSubType(spanSubType));
@@ -31,6 +31,7 @@ import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import static co.elastic.apm.agent.impl.context.AbstractContext.REDACTED_CONTEXT_STRING;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -38,11 +39,13 @@ import static org.mockito.Mockito.mock;
 
 class SanitizingWebProcessorTest {
 
+    private ConfigurationRegistry config;
     private SanitizingWebProcessor processor;
 
     @BeforeEach
     void setUp() {
-        processor = new SanitizingWebProcessor(SpyConfiguration.createSpyConfig());
+        config = SpyConfiguration.createSpyConfig();
+        processor = new SanitizingWebProcessor(config);
     }
 
     @Test
@@ -65,6 +68,39 @@ class SanitizingWebProcessorTest {
         assertContainsNoSensitiveInformation(errorCapture.getContext());
     }
 
+    @Test
+    void testCacheIsInvalidatedOnConfigChange() throws Exception {
+        assertThat(processor.isSensitive("Authorization")).isTrue();
+        assertThat(processor.isSensitive("Referer")).isFalse();
+        assertThat(processor.getCachedFieldNames()).isEqualTo(2);
+
+        config.save("sanitize_field_names", "referer", SpyConfiguration.CONFIG_SOURCE_NAME);
+
+        assertThat(processor.getCachedFieldNames()).isZero();
+        assertThat(processor.isSensitive("Authorization")).isFalse();
+        assertThat(processor.isSensitive("Referer")).isTrue();
+    }
+
+    @Test
+    void testCacheIsBounded() {
+        for (int i = 0; i < SanitizingWebProcessor.MAX_CACHED_FIELD_NAMES * 2; i++) {
+            assertThat(processor.isSensitive("field-" + i)).isFalse();
+            assertThat(processor.isSensitive("x-token-" + i)).isTrue();
+        }
+        assertThat(processor.getCachedFieldNames()).isLessThanOrEqualTo(SanitizingWebProcessor.MAX_CACHED_FIELD_NAMES);
+    }
+
+    @Test
+    void testCacheIsClearedOnOverflow() {
+        for (int i = 0; i < SanitizingWebProcessor.MAX_CACHED_FIELD_NAMES; i++) {
+            processor.isSensitive("field-" + i);
+        }
+        assertThat(processor.getCachedFieldNames()).isEqualTo(SanitizingWebProcessor.MAX_CACHED_FIELD_NAMES);
+
+        assertThat(processor.isSensitive("Authorization")).isTrue();
+        assertThat(processor.getCachedFieldNames()).isEqualTo(1);
+    }
+
     private void fillContext(TransactionContext context) {
         context.getRequest().addCookie("JESESSIONID", "CAFEBABE");
         context.getRequest().addCookie("non-sensitive", "foo");
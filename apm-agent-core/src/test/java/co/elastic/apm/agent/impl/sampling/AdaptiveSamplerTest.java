@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.impl.transaction.Id;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static co.elastic.apm.agent.impl.sampling.AdaptiveSampler.WINDOW_MS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class AdaptiveSamplerTest {
+
+    private static final double TARGET_PER_SECOND = 10;
+
+    private final Id traceId = Id.new128BitId();
+    private AdaptiveSampler sampler;
+
+    @BeforeEach
+    void setUp() {
+        sampler = new AdaptiveSampler(TARGET_PER_SECOND, 0);
+    }
+
+    @Test
+    void testSpikeInFirstWindowIsCapped() {
+        assertThat(sampler.getSamplingRate()).isEqualTo(1);
+        assertThat(countSampled(1000, 0)).isEqualTo((int) (2 * TARGET_PER_SECOND));
+    }
+
+    @Test
+    void testSamplingRateAdjustsToThroughput() {
+        countSampled(1000, 0);
+        // the first call of the next window adjusts the sampling rate
+        countSampled(1, WINDOW_MS);
+        assertThat(sampler.getSamplingRate()).isCloseTo(TARGET_PER_SECOND / 1000, within(0.0001));
+
+        int sampled = 0;
+        for (int window = 1; window <= 100; window++) {
+            sampled += countSampled(1000, window * WINDOW_MS + 1);
+        }
+        assertThat(sampled).isBetween((int) (TARGET_PER_SECOND * 100 * 0.8), (int) (TARGET_PER_SECOND * 100 * 1.2));
+    }
+
+    @Test
+    void testSamplingRateRecovers() {
+        countSampled(1000, 0);
+        countSampled(1, WINDOW_MS);
+        assertThat(sampler.getSamplingRate()).isLessThan(0.1);
+
+        // after an idle period, the throughput is below the target
+        countSampled(1, 10 * WINDOW_MS);
+        countSampled(1, 20 * WINDOW_MS);
+        assertThat(sampler.getSamplingRate()).isEqualTo(1);
+    }
+
+    @Test
+    void testBudgetPerTransactionName() {
+        for (int i = 0; i < 1000; i++) {
+            traceId.setToRandomValue();
+            sampler.isSampled(traceId, "GET /health", 0);
+        }
+        traceId.setToRandomValue();
+        sampler.isSampled(traceId, "GET /health", WINDOW_MS);
+        sampler.isSampled(traceId, "GET /rare", WINDOW_MS);
+
+        assertThat(sampler.getSamplingRate(new StringBuilder("GET /health"), WINDOW_MS)).isCloseTo(TARGET_PER_SECOND / 1000, within(0.0001));
+        assertThat(sampler.getSamplingRate(new StringBuilder("GET /rare"), WINDOW_MS)).isEqualTo(1);
+        assertThat(sampler.getSamplingRate()).isEqualTo(1);
+    }
+
+    @Test
+    void testTooManyTransactionNames() {
+        for (int i = 0; i < AdaptiveSampler.MAX_TRANSACTION_NAMES + 10; i++) {
+            traceId.setToRandomValue();
+            sampler.isSampled(traceId, "name-" + i, 0);
+        }
+        assertThat(sampler.getSamplingRate("name-0", 0)).isEqualTo(1);
+        assertThat(sampler.getSamplingRate("name-" + AdaptiveSampler.MAX_TRANSACTION_NAMES, 0)).isEqualTo(1);
+    }
+
+    @Test
+    void testUnknownTransactionNamesShareOverflowBudget() {
+        for (int i = 0; i < 4 * AdaptiveSampler.MAX_TRANSACTION_NAMES; i++) {
+            traceId.setToRandomValue();
+            sampler.isSampled(traceId, "name-" + i, 0);
+        }
+        traceId.setToRandomValue();
+        sampler.isSampled(traceId, "unknown", WINDOW_MS);
+        sampler.isSampled(traceId, "name-0", WINDOW_MS);
+
+        // at least three quarters of the names didn't fit into the table
+        assertThat(sampler.getSamplingRate("unknown", WINDOW_MS)).isLessThanOrEqualTo(TARGET_PER_SECOND / (3 * AdaptiveSampler.MAX_TRANSACTION_NAMES));
+        assertThat(sampler.getSamplingRate("name-0", WINDOW_MS)).isEqualTo(1);
+    }
+
+    private int countSampled(int transactions, long nowMs) {
+        int sampled = 0;
+        for (int i = 0; i < transactions; i++) {
+            traceId.setToRandomValue();
+            if (sampler.isSampled(traceId, nowMs)) {
+                sampled++;
+            }
+        }
+        return sampled;
+    }
+}
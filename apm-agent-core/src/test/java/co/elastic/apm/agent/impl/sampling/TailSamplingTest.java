@@ -0,0 +1,170 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.sampling;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.impl.transaction.Span;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.objectpool.TestObjectPoolFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.stagemonitor.configuration.ConfigurationRegistry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+class TailSamplingTest {
+
+    private ElasticApmTracer tracer;
+    private ConfigurationRegistry config;
+    private MockReporter reporter;
+    private TestObjectPoolFactory objectPoolFactory;
+
+    @BeforeEach
+    void setUp() {
+        objectPoolFactory = new TestObjectPoolFactory();
+        reporter = new MockReporter();
+        config = SpyConfiguration.createSpyConfig();
+        when(config.getConfig(CoreConfiguration.class).isTailSamplingEnabled()).thenReturn(true);
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(config)
+            .reporter(reporter)
+            .withObjectPoolFactory(objectPoolFactory)
+            .buildAndStart();
+    }
+
+    @AfterEach
+    void cleanupAndCheck() {
+        reporter.assertRecycledAfterDecrementingReferences();
+        objectPoolFactory.checkAllPooledObjectsHaveBeenRecycled();
+    }
+
+    @Test
+    void testFastTransactionIsDiscarded() {
+        Transaction transaction = startTransaction(false);
+        assertThat(transaction.isSampled())
+            .describedAs("the transaction is recorded until the decision is made")
+            .isTrue();
+        endSpan(transaction, 10, 20);
+        transaction.end(100);
+
+        assertThat(reporter.getSpans()).isEmpty();
+        assertThat(reporter.getFirstTransaction().isSampled()).isFalse();
+        assertThat(reporter.getFirstTransaction().getSpanCount().getReported().get()).isZero();
+    }
+
+    @Test
+    void testSlowTransactionIsKept() {
+        Transaction transaction = startTransaction(false);
+        endSpan(transaction, 10, 20);
+        endSpan(transaction, 20, 400_000);
+        assertThat(reporter.getSpans())
+            .describedAs("spans are buffered until the transaction ends")
+            .isEmpty();
+        transaction.end(500_000);
+
+        assertThat(reporter.getSpans()).hasSize(2);
+        assertThat(reporter.getFirstTransaction().isSampled()).isTrue();
+        assertThat(reporter.getFirstTransaction().getSpanCount().getReported().get()).isEqualTo(2);
+    }
+
+    @Test
+    void testTransactionWithErrorIsKept() {
+        Transaction transaction = startTransaction(false);
+        endSpan(transaction, 10, 20);
+        tracer.captureAndReportException(30, new Exception("test"), transaction);
+        transaction.end(100);
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getErrors()).hasSize(1);
+        assertThat(reporter.getFirstTransaction().isSampled()).isTrue();
+    }
+
+    @Test
+    void testTransactionSampledBySamplerIsKept() {
+        Transaction transaction = startTransaction(true);
+        endSpan(transaction, 10, 20);
+        transaction.end(100);
+
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getFirstTransaction().isSampled()).isTrue();
+    }
+
+    @Test
+    void testSpanEndingAfterDecision() {
+        Transaction kept = startTransaction(true);
+        Span keptSpan = kept.createSpan(10);
+        kept.end(100);
+        keptSpan.end(200);
+        assertThat(reporter.getSpans()).containsExactly(keptSpan);
+
+        reporter.reset();
+        Transaction discarded = startTransaction(false);
+        discarded.createSpan(10).end(200);
+        Span discardedSpan = discarded.createSpan(10);
+        discarded.end(100);
+        discardedSpan.end(200);
+        assertThat(reporter.getSpans()).isEmpty();
+        assertThat(reporter.getFirstTransaction().isSampled()).isFalse();
+    }
+
+    @Test
+    void testAdaptiveSamplerBudgetPerTransactionName() throws Exception {
+        config.getConfig(CoreConfiguration.class).getSampleRateLimit().update(1.0, SpyConfiguration.CONFIG_SOURCE_NAME);
+        assertThat(tracer.getSampler()).isInstanceOf(AdaptiveSampler.class);
+
+        // the first window samples up to twice the limit per transaction name
+        for (int i = 0; i < 3; i++) {
+            endTransaction("GET /health");
+        }
+        endTransaction("GET /rare");
+
+        assertThat(reporter.getTransactions().stream().filter(Transaction::isSampled).map(Transaction::getNameAsString))
+            .containsExactly("GET /health", "GET /health", "GET /rare");
+    }
+
+    private void endTransaction(String name) {
+        Transaction transaction = tracer.startRootTransaction(getClass().getClassLoader());
+        assertThat(transaction).isNotNull();
+        transaction.withName(name);
+        endSpan(transaction, transaction.getTimestamp(), transaction.getTimestamp() + 10);
+        transaction.end(transaction.getTimestamp() + 100);
+    }
+
+    private Transaction startTransaction(boolean sampledBySampler) {
+        Transaction transaction = tracer.startRootTransaction(ConstantSampler.of(sampledBySampler), 0, getClass().getClassLoader());
+        assertThat(transaction).isNotNull();
+        return transaction;
+    }
+
+    private void endSpan(Transaction transaction, long start, long end) {
+        transaction.createSpan(start).end(end);
+    }
+}
@@ -0,0 +1,76 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.stacktrace;
+
+import co.elastic.apm.agent.MockTracer;
+import co.elastic.apm.agent.impl.transaction.Span;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StackTraceFactoryTest {
+
+    private Span span;
+
+    @BeforeEach
+    void setUp() {
+        span = new Span(MockTracer.create());
+    }
+
+    @Test
+    void testCurrentVmUsesStackWalker() {
+        StackTraceFactory.ForCurrentVM.INSTANCE.captureStackTrace(span, 5);
+        assertThat(span.getStacktrace()).isNull();
+        assertThat(span.getStackTraceElements()).isNotNull();
+    }
+
+    @Test
+    void testStackWalkerLimitsAndFiltersFrames() throws Exception {
+        StackTraceFactory.ForJava9CompatibleVM.make().captureStackTrace(span, 5);
+
+        StackTraceElement[] stackTrace = span.getStackTraceElements();
+        assertThat(stackTrace).hasSize(5);
+        assertThat(StackTraceFilter.isAgentFrame(stackTrace[0].getClassName())).isFalse();
+        for (StackTraceElement stackTraceElement : stackTrace) {
+            assertThat(StackTraceFilter.isExcluded(stackTraceElement.getClassName(), stackTraceElement.getFileName())).isFalse();
+        }
+    }
+
+    @Test
+    void testStackWalkerWithoutLimit() throws Exception {
+        StackTraceFactory.ForJava9CompatibleVM.make().captureStackTrace(span, -1);
+
+        assertThat(span.getStackTraceElements()).hasSizeGreaterThan(5);
+    }
+
+    @Test
+    void testLegacyVm() {
+        StackTraceFactory.ForLegacyVM.INSTANCE.captureStackTrace(span, 5);
+
+        assertThat(span.getStacktrace()).isNotNull();
+        assertThat(span.getStackTraceElements()).isNotEmpty();
+    }
+}
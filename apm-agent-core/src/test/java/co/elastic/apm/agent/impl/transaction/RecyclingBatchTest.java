@@ -0,0 +1,135 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.impl.transaction;
+
+import co.elastic.apm.agent.MockReporter;
+import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.ElasticApmTracerBuilder;
+import co.elastic.apm.agent.objectpool.TestObjectPoolFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RecyclingBatchTest {
+
+    private ElasticApmTracer tracer;
+    private MockReporter reporter;
+    private TestObjectPoolFactory objectPoolFactory;
+    private RecyclingBatch batch;
+
+    @BeforeEach
+    void setUp() {
+        objectPoolFactory = new TestObjectPoolFactory();
+        reporter = new MockReporter();
+        tracer = new ElasticApmTracerBuilder()
+            .configurationRegistry(SpyConfiguration.createSpyConfig())
+            .reporter(reporter)
+            .withObjectPoolFactory(objectPoolFactory)
+            .buildAndStart();
+        batch = new RecyclingBatch();
+    }
+
+    @AfterEach
+    void tearDown() {
+        objectPoolFactory.checkAllPooledObjectsHaveBeenRecycled();
+    }
+
+    @Test
+    void testSpansAndTransactionAreRecycledOnFlush() {
+        Transaction transaction = tracer.startRootTransaction(null);
+        List<Span> spans = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Span span = transaction.createSpan();
+            span.end();
+            spans.add(span);
+        }
+        transaction.end();
+
+        for (Span span : reporter.getSpans()) {
+            batch.decrementReferences(span);
+        }
+        batch.decrementReferences(reporter.getFirstTransaction());
+
+        assertThat(objectPoolFactory.getSpanPool().getRecyclablesToReturn()).hasSize(3);
+        assertThat(objectPoolFactory.getTransactionPool().getRecyclablesToReturn()).hasSize(1);
+        assertThat(transaction.getReferenceCount())
+            .describedAs("the decrements of consecutive spans of the same transaction are coalesced")
+            .isEqualTo(4);
+        assertThat(spans).allMatch(span -> span.getReferenceCount() == 0);
+
+        batch.flush();
+
+        assertThat(batch.getPendingObjects()).isZero();
+        assertThat(transaction.getReferenceCount()).isZero();
+        assertThat(objectPoolFactory.getSpanPool().getRecyclablesToReturn()).isEmpty();
+        assertThat(objectPoolFactory.getTransactionPool().getRecyclablesToReturn()).isEmpty();
+        reporter.resetWithoutRecycling();
+    }
+
+    @Test
+    void testReferencedTransactionIsNotRecycled() {
+        Transaction transaction = tracer.startRootTransaction(null);
+        Span span = transaction.createSpan();
+        span.end();
+
+        batch.decrementReferences(reporter.getFirstSpan());
+        batch.flush();
+
+        assertThat(objectPoolFactory.getSpanPool().getRecyclablesToReturn()).isEmpty();
+        assertThat(objectPoolFactory.getTransactionPool().getRecyclablesToReturn()).containsExactly(transaction);
+
+        transaction.end();
+        batch.decrementReferences(reporter.getFirstTransaction());
+        batch.flush();
+        assertThat(objectPoolFactory.getTransactionPool().getRecyclablesToReturn()).isEmpty();
+        reporter.resetWithoutRecycling();
+    }
+
+    @Test
+    void testFlushesWhenFull() {
+        Transaction transaction = tracer.startRootTransaction(null);
+        for (int i = 0; i < RecyclingBatch.MAX_BATCH_SIZE; i++) {
+            transaction.createSpan().end();
+        }
+        for (Span span : reporter.getSpans()) {
+            batch.decrementReferences(span);
+        }
+
+        assertThat(objectPoolFactory.getSpanPool().getRecyclablesToReturn()).isEmpty();
+        assertThat(batch.getPendingObjects()).isZero();
+        assertThat(transaction.getReferenceCount()).isEqualTo(1);
+
+        transaction.end();
+        batch.decrementReferences(reporter.getFirstTransaction());
+        batch.flush();
+        reporter.resetWithoutRecycling();
+    }
+}
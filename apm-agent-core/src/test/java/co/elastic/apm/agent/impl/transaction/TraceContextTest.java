@@ -243,6 +243,35 @@ class TraceContextTest {
         assertThat(outgoingHeaders.getFirst(TraceContext.TRACESTATE_HEADER_NAME)).isEqualTo("foo=bar,baz=qux");
     }
 
+    @Test
+    void testOutgoingHeadersAreCached() {
+        PotentiallyMultiValuedMap incomingHeaders = new PotentiallyMultiValuedMap();
+        incomingHeaders.add("traceparent", "00-0af7651916cd43dd8448eb211c80319c-b9c7c989f97918e1-01");
+        incomingHeaders.add("tracestate", "foo=bar");
+        incomingHeaders.add("tracestate", "baz=qux,quux=quuz");
+        final TraceContext traceContext = TraceContext.with64BitId(tracer);
+        assertThat(TraceContext.<PotentiallyMultiValuedMap>getFromTraceContextTextHeaders().asChildOf(traceContext, incomingHeaders, MultiValueMapAccessor.INSTANCE)).isTrue();
+
+        Map<String, String> first = new HashMap<>();
+        traceContext.propagateTraceContext(first, TextHeaderMapAccessor.INSTANCE);
+        Map<String, String> second = new HashMap<>();
+        traceContext.propagateTraceContext(second, TextHeaderMapAccessor.INSTANCE);
+        assertThat(second.get(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME)).isSameAs(first.get(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME));
+        assertThat(second.get(TraceContext.TRACESTATE_HEADER_NAME)).isSameAs(first.get(TraceContext.TRACESTATE_HEADER_NAME));
+        assertThat(second.get(TraceContext.TRACESTATE_HEADER_NAME)).isEqualTo("foo=bar,baz=qux,quux=quuz");
+
+        // the children share the joined tracestate of their parent
+        final TraceContext child = TraceContext.with64BitId(tracer);
+        child.asChildOf(traceContext);
+        assertThat(child.getOutgoingTracestate()).isSameAs(first.get(TraceContext.TRACESTATE_HEADER_NAME));
+
+        // mutating the trace context invalidates the cached traceparent
+        traceContext.setRecorded(false);
+        Map<String, String> third = new HashMap<>();
+        traceContext.propagateTraceContext(third, TextHeaderMapAccessor.INSTANCE);
+        assertThat(third.get(TraceContext.W3C_TRACE_PARENT_TEXTUAL_HEADER_NAME)).endsWith("-00");
+    }
+
     @Test
     void testNoTracestateWhenInvalidTraceparentHeader() {
         Map<String, String> textHeaderMap = Map.of(
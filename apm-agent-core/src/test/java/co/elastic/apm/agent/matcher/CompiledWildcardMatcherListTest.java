@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.matcher;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CompiledWildcardMatcherListTest {
+
+    private static final List<String> INPUTS = List.of("", "f", "foo", "FOO", "foobar", "barfoo", "bar", "/foo/bar/baz", "/FOO/bar/BAZ",
+        "/heartbeat", "/favicon.ico", "/static/app.js", "/static/APP.JS", "application/json; charset=utf-8", "Authorization", "x-api-key",
+        "session_id", "Set-Cookie", "aaab", "abab", "ababab", "ushers", "hers", "she");
+
+    @Test
+    void testFirstMatchIsReturned() {
+        final List<WildcardMatcher> compiled = compile("*.js", "/static/*", "*");
+        assertThat(WildcardMatcher.anyMatch(compiled, "/static/app.js")).hasToString("*.js");
+        assertThat(WildcardMatcher.anyMatch(compiled, "/static/app.css")).hasToString("/static/*");
+        assertThat(WildcardMatcher.anyMatch(compiled, "/index.html")).hasToString("*");
+    }
+
+    @Test
+    void testPartitionedString() {
+        final List<WildcardMatcher> compiled = compile("/foo/bar*", "*bar/baz", "*o/b*", "/foo/*/qux");
+        assertThat(WildcardMatcher.anyMatch(compiled, "/foo", "/bar")).hasToString("/foo/bar*");
+        assertThat(WildcardMatcher.anyMatch(compiled, "/qux/bar", "/baz")).hasToString("*bar/baz");
+        assertThat(WildcardMatcher.anyMatch(compiled, "/fo", "o/baz")).hasToString("*o/b*");
+        assertThat(WildcardMatcher.anyMatch(compiled, "/foo/x", "/qux")).hasToString("/foo/*/qux");
+        assertThat(WildcardMatcher.anyMatch(compiled, "/foo", null)).isNull();
+    }
+
+    @Test
+    void testCaseSensitivity() {
+        final List<WildcardMatcher> compiled = compile("(?-i)*FOO*", "(?-i)bar", "baz*");
+        assertThat(WildcardMatcher.anyMatch(compiled, "xFOOx")).hasToString("(?-i)*FOO*");
+        assertThat(WildcardMatcher.anyMatch(compiled, "xfoox")).isNull();
+        assertThat(WildcardMatcher.anyMatch(compiled, "BAR")).isNull();
+        assertThat(WildcardMatcher.anyMatch(compiled, "BAZAAR")).hasToString("baz*");
+    }
+
+    @Test
+    void testCompileIsIdempotent() {
+        final List<WildcardMatcher> compiled = compile("foo");
+        assertThat(WildcardMatcher.compile(compiled)).isSameAs(compiled);
+        assertThat(compiled).containsExactly(WildcardMatcher.valueOf("foo"));
+    }
+
+    @Test
+    void testConverter() {
+        final List<WildcardMatcher> matchers = new WildcardMatcherListValueConverter().convert("foo*, *bar");
+        assertThat(matchers).isInstanceOf(CompiledWildcardMatcherList.class);
+        assertThat(WildcardMatcher.anyMatch(matchers, "foobar")).hasToString("foo*");
+        assertThat(new WildcardMatcherListValueConverter().toString(matchers)).isEqualTo("foo*,*bar");
+    }
+
+    @Test
+    void testSameResultAsSequentialMatching() {
+        final List<String> patterns = List.of("foo", "foo*", "*foo", "*foo*", "(?-i)FOO*", "(?-i)*FOO", "*.js", "/static/*", "/foo/*/baz",
+            "*foo*bar*", "application/json*", "*auth*", "*key", "session*", "set-cookie", "he", "*she*", "*his*", "*hers*", "*ab*",
+            "*abab*", "*aab*", "", "*");
+        final Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            final List<WildcardMatcher> matchers = new ArrayList<>();
+            for (int j = random.nextInt(patterns.size()); j >= 0; j--) {
+                matchers.add(WildcardMatcher.valueOf(patterns.get(random.nextInt(patterns.size()))));
+            }
+            final List<WildcardMatcher> compiled = WildcardMatcher.compile(matchers);
+            for (String input : INPUTS) {
+                assertThat(WildcardMatcher.anyMatch(compiled, input))
+                    .describedAs("%s matching %s", matchers, input)
+                    .isSameAs(WildcardMatcher.anyMatch(matchers, input));
+                final int split = random.nextInt(input.length() + 1);
+                assertThat(WildcardMatcher.anyMatch(compiled, input.substring(0, split), input.substring(split)))
+                    .describedAs("%s matching %s", matchers, input)
+                    .isSameAs(WildcardMatcher.anyMatch(matchers, input.substring(0, split), input.substring(split)));
+            }
+        }
+    }
+
+    private static List<WildcardMatcher> compile(String... matchers) {
+        return WildcardMatcher.compile(Stream.of(matchers).map(WildcardMatcher::valueOf).collect(Collectors.toList()));
+    }
+}
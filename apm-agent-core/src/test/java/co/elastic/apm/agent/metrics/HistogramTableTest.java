@@ -0,0 +1,71 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HistogramTableTest {
+
+    @Test
+    void testRecordAndDrain() {
+        final HistogramTable table = new HistogramTable(4);
+        assertThat(table.record(42, 10)).isTrue();
+        assertThat(table.record(42, 1000)).isTrue();
+        assertThat(table.record(Long.MAX_VALUE - 1, 5)).isTrue();
+
+        final Map<Long, Long> drained = drain(table);
+        assertThat(drained).hasSize(2);
+        assertThat(drained.get(42L)).isEqualTo(2);
+        assertThat(drained.get(Long.MAX_VALUE - 1)).isEqualTo(1);
+
+        // histograms are reset, but the keys are retained
+        assertThat(drain(table)).isEmpty();
+        assertThat(table.record(42, 10)).isTrue();
+        assertThat(drain(table)).containsEntry(42L, 1L);
+    }
+
+    @Test
+    void testFull() {
+        final HistogramTable table = new HistogramTable(3);
+        for (int i = 0; i < 4; i++) {
+            assertThat(table.record(i, 1)).isTrue();
+        }
+        assertThat(table.record(4, 1)).isFalse();
+        // existing keys can still be recorded
+        assertThat(table.record(3, 1)).isTrue();
+        assertThat(drain(table)).containsEntry(3L, 2L);
+    }
+
+    private static Map<Long, Long> drain(HistogramTable table) {
+        final Map<Long, Long> drained = new HashMap<>();
+        table.drain((key, histogram) -> drained.put(key, histogram.getTotalCount()));
+        return drained;
+    }
+}
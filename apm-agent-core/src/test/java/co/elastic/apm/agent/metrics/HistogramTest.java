@@ -0,0 +1,95 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.withinPercentage;
+
+class HistogramTest {
+
+    private final Histogram histogram = new Histogram();
+
+    @Test
+    void testBucketBoundaries() {
+        for (int i = 0; i < Histogram.BUCKETS - 1; i++) {
+            final long lowerBound = Histogram.getBucketLowerBound(i);
+            assertThat(Histogram.getBucketIndex(lowerBound)).isEqualTo(i);
+            assertThat(Histogram.getBucketIndex(Histogram.getBucketLowerBound(i + 1) - 1)).isEqualTo(i);
+        }
+        assertThat(Histogram.getBucketIndex(-1)).isEqualTo(0);
+        assertThat(Histogram.getBucketIndex(Long.MAX_VALUE)).isEqualTo(Histogram.BUCKETS - 1);
+    }
+
+    @Test
+    void testSmallValuesAreExact() {
+        for (int i = 0; i < 8; i++) {
+            assertThat(Histogram.getBucketMidpoint(Histogram.getBucketIndex(i))).isEqualTo(i);
+        }
+    }
+
+    @Test
+    void testRelativeError() {
+        LongStream.of(8, 15, 100, 1_000, 12_345, 1_000_000, 60_000_000_000L).forEach(value ->
+            assertThat(Histogram.getBucketMidpoint(Histogram.getBucketIndex(value))).isCloseTo(value, withinPercentage(12.5)));
+    }
+
+    @Test
+    void testPercentiles() {
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertThat(histogram.getTotalCount()).isEqualTo(1000);
+        assertThat(histogram.getValueAtPercentile(50)).isCloseTo(500_000, withinPercentage(12.5));
+        assertThat(histogram.getValueAtPercentile(99)).isCloseTo(990_000, withinPercentage(12.5));
+        assertThat(histogram.getValueAtPercentile(100)).isCloseTo(1_000_000, withinPercentage(12.5));
+    }
+
+    @Test
+    void testAdd() {
+        final Histogram other = new Histogram();
+        histogram.record(3);
+        other.record(3);
+        other.record(1000);
+        histogram.add(other);
+        assertThat(histogram.getTotalCount()).isEqualTo(3);
+        assertThat(histogram.getCount(Histogram.getBucketIndex(3))).isEqualTo(2);
+        assertThat(histogram.getCount(Histogram.getBucketIndex(1000))).isEqualTo(1);
+        assertThat(other.getTotalCount()).isEqualTo(2);
+    }
+
+    @Test
+    void testReset() {
+        histogram.record(42);
+        assertThat(histogram.hasContent()).isTrue();
+        histogram.resetState();
+        assertThat(histogram.hasContent()).isFalse();
+        assertThat(histogram.getValueAtPercentile(99)).isZero();
+        assertThat(histogram.getCount(Histogram.getBucketIndex(42))).isZero();
+    }
+}
@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StripedTimerTableTest {
+
+    @Test
+    void testUpdateAndDrain() {
+        final StripedTimerTable table = new StripedTimerTable(4, 1);
+        assertThat(table.isEmpty()).isTrue();
+        assertThat(table.update(42, 10, 1)).isTrue();
+        assertThat(table.update(42, 20, 2)).isTrue();
+        assertThat(table.update(Long.MAX_VALUE - 1, 5, 1)).isTrue();
+        assertThat(table.isEmpty()).isFalse();
+        assertThat(table.getCount(42)).isEqualTo(3);
+        assertThat(table.getCount(0)).isZero();
+
+        final Map<Long, long[]> drained = drain(table);
+        assertThat(drained).hasSize(2);
+        assertThat(drained.get(42L)).containsExactly(30, 3);
+        assertThat(drained.get(Long.MAX_VALUE - 1)).containsExactly(5, 1);
+
+        // timers are reset, but the keys are retained
+        assertThat(drain(table)).isEmpty();
+        assertThat(table.getCount(42)).isZero();
+        assertThat(table.isEmpty()).isFalse();
+    }
+
+    @Test
+    void testFull() {
+        final StripedTimerTable table = new StripedTimerTable(3, 1);
+        for (int i = 0; i < 4; i++) {
+            assertThat(table.update(i, 1, 1)).isTrue();
+        }
+        assertThat(table.update(4, 1, 1)).isFalse();
+        // existing keys can still be updated
+        assertThat(table.update(3, 1, 1)).isTrue();
+        assertThat(table.getCount(3)).isEqualTo(2);
+    }
+
+    @Test
+    void testClear() {
+        final StripedTimerTable table = new StripedTimerTable(2, 1);
+        table.update(1, 1, 1);
+        table.update(2, 1, 1);
+        table.clear();
+        assertThat(table.isEmpty()).isTrue();
+        assertThat(table.getCount(1)).isZero();
+        assertThat(table.update(3, 1, 1)).isTrue();
+        assertThat(table.update(4, 1, 1)).isTrue();
+    }
+
+    @Test
+    void testConcurrentUpdates() throws Exception {
+        final StripedTimerTable table = new StripedTimerTable(16, 4);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread(() -> {
+                for (int j = 0; j < 10_000; j++) {
+                    table.update(j % 8, 2, 1);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        final Map<Long, long[]> drained = drain(table);
+        assertThat(drained).hasSize(8);
+        drained.values().forEach(timer -> assertThat(timer).containsExactly(20_000, 10_000));
+    }
+
+    private static Map<Long, long[]> drain(StripedTimerTable table) {
+        final Map<Long, long[]> drained = new HashMap<>();
+        table.drain((key, totalTimeUs, count) -> drained.put(key, new long[]{totalTimeUs, count}));
+        return drained;
+    }
+}
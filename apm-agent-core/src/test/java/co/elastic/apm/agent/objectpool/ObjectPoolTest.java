@@ -118,6 +118,26 @@ public abstract class ObjectPoolTest<T extends ObjectPool<TestRecyclable>> {
         assertThat(instance).isSameAs(objectPool.createInstance());
     }
 
+    @Test
+    public void testRecycleAll() {
+        List<TestRecyclable> recyclables = new ArrayList<>();
+        for (int i = 0; i < MAX_SIZE + 2; i++) {
+            TestRecyclable instance = objectPool.createInstance();
+            instance.setState(i + 1);
+            recyclables.add(instance);
+        }
+
+        objectPool.recycleAll(recyclables);
+
+        assertThat(recyclables).allMatch(r -> r.getState() == 0);
+        assertThat(objectPool.getObjectsInPool())
+            .describedAs("pool max size should be enforced")
+            .isEqualTo(MAX_SIZE);
+        assertThat(objectPool.getGarbageCreated())
+            .describedAs("garbage created for each returned instance over pool capacity")
+            .isEqualTo(2);
+    }
+
     @Test
     public void testRecycleInDifferentThread() {
         TestRecyclable instance = objectPool.createInstance();
@@ -31,6 +31,7 @@ import org.slf4j.LoggerFactory;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -84,6 +85,20 @@ public class BookkeeperObjectPool<T> implements ObjectPool<T> {
         toReturn.remove(obj);
     }
 
+    @Override
+    public void recycleAll(List<T> objects) {
+        for (T obj : objects) {
+            logger.debug("recycling pooled object: " + obj);
+            if (!toReturn.contains(obj)) {
+                throw new IllegalStateException("trying to recycle object that has not been taken from this pool or has already been returned " + obj);
+            }
+        }
+        pool.recycleAll(objects);
+        for (T obj : objects) {
+            toReturn.remove(obj);
+        }
+    }
+
     @Override
     public int getObjectsInPool() {
         return pool.getObjectsInPool();
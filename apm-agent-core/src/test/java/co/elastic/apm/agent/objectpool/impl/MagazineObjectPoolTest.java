@@ -0,0 +1,163 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.objectpool.impl;
+
+import co.elastic.apm.agent.objectpool.TestRecyclable;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MagazineObjectPoolTest {
+
+    private static final int MAGAZINE_SIZE = 4;
+    private static final int MAX_CAPACITY = 8;
+
+    private final AtomicInteger allocations = new AtomicInteger();
+    private MagazineObjectPool<TestRecyclable> objectPool;
+
+    @BeforeEach
+    void setUp() {
+        objectPool = MagazineObjectPool.ofRecyclable(MAX_CAPACITY, MAGAZINE_SIZE, () -> {
+            allocations.incrementAndGet();
+            return new TestRecyclable();
+        });
+    }
+
+    @Test
+    void testEmpty() {
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(0);
+        assertThat(objectPool.createInstance()).isNotNull();
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(0);
+        assertThat(allocations.get()).isEqualTo(1);
+    }
+
+    @Test
+    void testRecycle() {
+        TestRecyclable instance = objectPool.createInstance();
+        instance.setState(1);
+        objectPool.recycle(instance);
+        assertThat(instance.getState()).isEqualTo(0);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(1);
+        assertThat(objectPool.createInstance()).isSameAs(instance);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(0);
+    }
+
+    @Test
+    void testMaxElements() {
+        // two thread-local magazines plus two magazines in the depot
+        final int maxPooled = 2 * MAGAZINE_SIZE + MAX_CAPACITY;
+        recycle(createInstances(maxPooled + 3));
+
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(maxPooled);
+        assertThat(objectPool.getGarbageCreated()).isEqualTo(3);
+
+        createInstances(maxPooled);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(0);
+        assertThat(allocations.get()).isEqualTo(maxPooled + 3);
+    }
+
+    @Test
+    void testRecycleAll() {
+        final int maxPooled = 2 * MAGAZINE_SIZE + MAX_CAPACITY;
+        final List<TestRecyclable> instances = createInstances(maxPooled + 3);
+        for (TestRecyclable instance : instances) {
+            instance.setState(1);
+        }
+        objectPool.recycleAll(instances);
+
+        assertThat(instances).allMatch(instance -> instance.getState() == 0);
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(maxPooled);
+        assertThat(objectPool.getGarbageCreated()).isEqualTo(3);
+    }
+
+    @Test
+    void testFullMagazinesAreSharedAcrossThreads() throws Exception {
+        // fills both thread-local magazines and spills one magazine into the depot
+        final int recycled = 3 * MAGAZINE_SIZE;
+        final List<TestRecyclable> instances = createInstances(recycled);
+        Thread recycler = new Thread(() -> recycle(instances));
+        recycler.start();
+        recycler.join();
+
+        assertThat(objectPool.getObjectsInPool())
+            .describedAs("only the spilled magazine is visible to other threads")
+            .isEqualTo(MAGAZINE_SIZE);
+
+        List<TestRecyclable> fromDepot = createInstances(MAGAZINE_SIZE);
+        assertThat(instances).containsAll(fromDepot);
+        assertThat(allocations.get()).isEqualTo(recycled);
+
+        createInstances(1);
+        assertThat(allocations.get()).isEqualTo(recycled + 1);
+    }
+
+    @Test
+    void testMagazinesOfTerminatedThreadsAreReclaimed() throws Exception {
+        // fills both thread-local magazines of a thread which then terminates
+        final int recycled = 2 * MAGAZINE_SIZE;
+        final List<TestRecyclable> instances = createInstances(recycled);
+        Thread recycler = new Thread(() -> recycle(instances));
+        recycler.start();
+        recycler.join();
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(0);
+
+        // a thread which starts to use the pool hands the magazines of the terminated thread back to the depot
+        final List<TestRecyclable> reused = new ArrayList<>();
+        Thread consumer = new Thread(() -> reused.addAll(createInstances(recycled)));
+        consumer.start();
+        consumer.join();
+
+        assertThat(reused).containsExactlyInAnyOrderElementsOf(instances);
+        assertThat(allocations.get()).isEqualTo(recycled);
+    }
+
+    @Test
+    void testClear() {
+        recycle(createInstances(3 * MAGAZINE_SIZE));
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(3 * MAGAZINE_SIZE);
+
+        objectPool.clear();
+        assertThat(objectPool.getObjectsInPool()).isEqualTo(0);
+    }
+
+    private List<TestRecyclable> createInstances(int count) {
+        List<TestRecyclable> instances = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            instances.add(objectPool.createInstance());
+        }
+        return instances;
+    }
+
+    private void recycle(List<TestRecyclable> instances) {
+        for (TestRecyclable instance : instances) {
+            objectPool.recycle(instance);
+        }
+    }
+}
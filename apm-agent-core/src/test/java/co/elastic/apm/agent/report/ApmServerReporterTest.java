@@ -28,6 +28,8 @@ import co.elastic.apm.agent.MockTracer;
 import co.elastic.apm.agent.configuration.SpyConfiguration;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.stagemonitor.configuration.ConfigurationRegistry;
@@ -76,6 +78,21 @@ class ApmServerReporterTest {
         verify(reportingEventHandler).onEvent(notNull(ReportingEvent::getError), anyLong(), anyBoolean());
     }
 
+    @Test
+    void testIntakeMetricsReportBytesSinceLastReport() {
+        MetricRegistry metricRegistry = new MetricRegistry(mock(ReporterConfiguration.class));
+        reporter.registerIntakeMetrics(metricRegistry);
+        when(reportingEventHandler.getSerializedBytes()).thenReturn(100L, 250L, 250L);
+        when(reportingEventHandler.getCompressedBytes()).thenReturn(10L, 25L, 25L);
+
+        assertThat(metricRegistry.getGaugeValue("agent.intake.serialized.bytes", Labels.EMPTY)).isEqualTo(100);
+        assertThat(metricRegistry.getGaugeValue("agent.intake.compressed.bytes", Labels.EMPTY)).isEqualTo(10);
+        assertThat(metricRegistry.getGaugeValue("agent.intake.serialized.bytes", Labels.EMPTY)).isEqualTo(150);
+        assertThat(metricRegistry.getGaugeValue("agent.intake.compressed.bytes", Labels.EMPTY)).isEqualTo(15);
+        assertThat(metricRegistry.getGaugeValue("agent.intake.serialized.bytes", Labels.EMPTY)).isZero();
+        assertThat(metricRegistry.getGaugeValue("agent.intake.compressed.bytes", Labels.EMPTY)).isZero();
+    }
+
     private <T> T notNull(Function<T, ?> function) {
         return argThat(arg -> Objects.nonNull(function.apply(arg)));
     }
@@ -0,0 +1,126 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.report;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IntakeRequestSpoolTest {
+
+    // header (12 bytes) + 88 bytes body
+    private static final int RECORD_SIZE = 100;
+
+    @TempDir
+    Path tempDir;
+    private IntakeRequestSpool spool;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        spool = IntakeRequestSpool.create(tempDir.toString(), 3 * RECORD_SIZE + 50);
+    }
+
+    @AfterEach
+    void tearDown() {
+        spool.close();
+    }
+
+    @Test
+    void testOfferAndPoll() {
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(spool.offer(createRequestBody((byte) 1, 1))).isTrue();
+        assertThat(spool.offer(createRequestBody((byte) 2, 2))).isTrue();
+        assertThat(spool.getRecords()).isEqualTo(2);
+        assertThat(spool.getUsedBytes()).isEqualTo(2 * RECORD_SIZE);
+
+        assertPoll((byte) 1, 1);
+        assertPoll((byte) 2, 2);
+        assertThat(spool.isEmpty()).isTrue();
+        assertThat(spool.getUsedBytes()).isZero();
+        assertThat(spool.poll(new IntakeRequestBody(RECORD_SIZE))).isFalse();
+    }
+
+    @Test
+    void testRejectWhenFull() {
+        assertThat(spool.offer(createRequestBody((byte) 1, 1))).isTrue();
+        assertThat(spool.offer(createRequestBody((byte) 2, 2))).isTrue();
+        assertThat(spool.offer(createRequestBody((byte) 3, 3))).isTrue();
+        assertThat(spool.offer(createRequestBody((byte) 4, 4))).isFalse();
+        assertThat(spool.getRecords()).isEqualTo(3);
+
+        assertPoll((byte) 1, 1);
+        assertPoll((byte) 2, 2);
+        assertPoll((byte) 3, 3);
+    }
+
+    @Test
+    void testWrapAround() {
+        assertThat(spool.offer(createRequestBody((byte) 1, 1))).isTrue();
+        assertThat(spool.offer(createRequestBody((byte) 2, 2))).isTrue();
+        assertThat(spool.offer(createRequestBody((byte) 3, 3))).isTrue();
+        assertPoll((byte) 1, 1);
+
+        // does not fit into the remaining 50 bytes at the end of the file
+        assertThat(spool.offer(createRequestBody((byte) 4, 4))).isTrue();
+        assertThat(spool.getUsedBytes()).isEqualTo(3 * RECORD_SIZE + 50);
+        assertThat(spool.offer(createRequestBody((byte) 5, 5))).isFalse();
+
+        assertPoll((byte) 2, 2);
+        assertPoll((byte) 3, 3);
+        assertPoll((byte) 4, 4);
+        assertThat(spool.isEmpty()).isTrue();
+    }
+
+    @Test
+    void testDeleteOnClose() {
+        final File[] files = tempDir.toFile().listFiles();
+        assertThat(files).hasSize(1);
+        spool.close();
+        assertThat(files[0]).doesNotExist();
+    }
+
+    private void assertPoll(byte content, long eventCount) {
+        final IntakeRequestBody requestBody = new IntakeRequestBody(RECORD_SIZE);
+        assertThat(spool.poll(requestBody)).isTrue();
+        assertThat(requestBody.toByteArray()).isEqualTo(createRequestBody(content, eventCount).toByteArray());
+        assertThat(requestBody.getEventCount()).isEqualTo(eventCount);
+    }
+
+    private static IntakeRequestBody createRequestBody(byte content, long eventCount) {
+        final IntakeRequestBody requestBody = new IntakeRequestBody(RECORD_SIZE);
+        final byte[] bytes = new byte[RECORD_SIZE - 12];
+        Arrays.fill(bytes, content);
+        requestBody.write(bytes, 0, bytes.length);
+        requestBody.setEventCount(eventCount);
+        return requestBody;
+    }
+}
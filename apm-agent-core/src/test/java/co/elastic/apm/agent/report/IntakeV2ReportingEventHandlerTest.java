@@ -26,6 +26,7 @@ package co.elastic.apm.agent.report;
 
 import co.elastic.apm.agent.MockTracer;
 import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.configuration.converter.TimeDuration;
 import co.elastic.apm.agent.impl.MetaData;
 import co.elastic.apm.agent.impl.error.ErrorCapture;
 import co.elastic.apm.agent.impl.payload.ProcessInfo;
@@ -41,10 +42,12 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.tomakehurst.wiremock.WireMockServer;
 import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.verification.LoggedRequest;
 import org.junit.Rule;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
 import javax.annotation.Nonnull;
@@ -54,6 +57,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Path;
 import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -67,7 +71,9 @@ import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.serviceUnavailable;
 import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 class IntakeV2ReportingEventHandlerTest {
 
@@ -80,6 +86,7 @@ class IntakeV2ReportingEventHandlerTest {
     public WireMockRule mockApmServer2 = new WireMockRule(WireMockConfiguration.wireMockConfig().dynamicPort());
     private IntakeV2ReportingEventHandler reportingEventHandler;
     private IntakeV2ReportingEventHandler nonConnectedReportingEventHandler;
+    private IntakeV2ReportingEventHandler pipelinedReportingEventHandler;
     private ApmServerClient apmServerClient;
 
     @Nonnull
@@ -122,10 +129,19 @@ class IntakeV2ReportingEventHandlerTest {
             new DslJsonSerializer(mock(StacktraceConfiguration.class), this.apmServerClient),
             new MetaData(title1, service1, system, Collections.emptyMap()),
             apmServerClient);
+        final ReporterConfiguration pipelinedReporterConfiguration = SpyConfiguration.createSpyConfig().getConfig(ReporterConfiguration.class);
+        when(pipelinedReporterConfiguration.getMaxConcurrentApiRequests()).thenReturn(2);
+        pipelinedReportingEventHandler = new IntakeV2ReportingEventHandler(
+            pipelinedReporterConfiguration,
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(mock(StacktraceConfiguration.class), this.apmServerClient),
+            new MetaData(title, service, system, Collections.emptyMap()),
+            this.apmServerClient);
     }
 
     @AfterEach
     void tearDown() {
+        pipelinedReportingEventHandler.close();
         List.of(mockApmServer1, mockApmServer2).forEach(WireMockRule::stop);
     }
 
@@ -157,6 +173,116 @@ class IntakeV2ReportingEventHandlerTest {
         assertThat(ndJsonNodes.get(3).get("error")).isNotNull();
     }
 
+    @Test
+    void testPipelinedReport() {
+        reportTransaction(pipelinedReportingEventHandler);
+        reportSpan(pipelinedReportingEventHandler);
+        pipelinedReportingEventHandler.endRequest();
+        await().untilAsserted(() -> assertThat(pipelinedReportingEventHandler.getReported()).isEqualTo(2));
+
+        final List<JsonNode> ndJsonNodes = getNdJsonNodes();
+        assertThat(ndJsonNodes).hasSize(3);
+        assertThat(ndJsonNodes.get(0).get("metadata")).isNotNull();
+        assertThat(ndJsonNodes.get(1).get("transaction")).isNotNull();
+        assertThat(ndJsonNodes.get(2).get("span")).isNotNull();
+    }
+
+    @Test
+    void testPipelinedReportSendsNextRequestWhileBackingOff() {
+        mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(serviceUnavailable()));
+
+        reportTransaction(pipelinedReportingEventHandler);
+        pipelinedReportingEventHandler.endRequest();
+        await().untilAsserted(() -> assertThat(pipelinedReportingEventHandler.getDropped()).isEqualTo(1));
+
+        reportTransaction(pipelinedReportingEventHandler);
+        pipelinedReportingEventHandler.endRequest();
+        await().untilAsserted(() -> assertThat(pipelinedReportingEventHandler.getReported()).isEqualTo(1));
+        mockApmServer2.verify(postRequestedFor(urlEqualTo(APM_SERVER_PATH + INTAKE_V2_URL)));
+    }
+
+    @Test
+    void testPipelinedReportSpoolsWhileServerUnavailable(@TempDir Path tempDir) {
+        final ReporterConfiguration reporterConfiguration = SpyConfiguration.createSpyConfig().getConfig(ReporterConfiguration.class);
+        when(reporterConfiguration.getMaxConcurrentApiRequests()).thenReturn(1);
+        when(reporterConfiguration.getDiskSpoolMaxSize()).thenReturn(1024L * 1024);
+        when(reporterConfiguration.getDiskSpoolDir()).thenReturn(tempDir.toString());
+        when(reporterConfiguration.getDiskSpoolReplayInterval()).thenReturn(TimeDuration.of("10ms"));
+        final IntakeV2ReportingEventHandler spoolingReportingEventHandler = new IntakeV2ReportingEventHandler(
+            reporterConfiguration,
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(mock(StacktraceConfiguration.class), apmServerClient),
+            new MetaData(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", "platform"), Collections.emptyMap()),
+            apmServerClient);
+        try {
+            mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(serviceUnavailable()));
+            mockApmServer2.stubFor(post(APM_SERVER_PATH + INTAKE_V2_URL).willReturn(serviceUnavailable()));
+
+            reportTransaction(spoolingReportingEventHandler);
+            spoolingReportingEventHandler.endRequest();
+            reportTransaction(spoolingReportingEventHandler);
+            spoolingReportingEventHandler.endRequest();
+            await().untilAsserted(() -> mockApmServer2.verify(postRequestedFor(urlEqualTo(APM_SERVER_PATH + INTAKE_V2_URL))));
+
+            mockApmServer1.stubFor(post(INTAKE_V2_URL).willReturn(ok()));
+            mockApmServer2.stubFor(post(APM_SERVER_PATH + INTAKE_V2_URL).willReturn(ok()));
+            await().untilAsserted(() -> assertThat(spoolingReportingEventHandler.getReported()).isEqualTo(2));
+            assertThat(spoolingReportingEventHandler.getDropped()).isZero();
+        } finally {
+            spoolingReportingEventHandler.close();
+        }
+        assertThat(tempDir.toFile().listFiles()).isEmpty();
+    }
+
+    @Test
+    void testSerializedAndCompressedBytes() {
+        reportTransaction(reportingEventHandler);
+        reportSpan();
+        reportingEventHandler.endRequest();
+
+        assertThat(reportingEventHandler.getSerializedBytes()).isGreaterThan(reportingEventHandler.getCompressedBytes());
+        assertThat(reportingEventHandler.getCompressedBytes()).isGreaterThan(0);
+    }
+
+    @Test
+    void testReportUncompressed() throws Exception {
+        final ConfigurationRegistry config = SpyConfiguration.createSpyConfig();
+        final ReporterConfiguration reporterConfiguration = config.getConfig(ReporterConfiguration.class);
+        when(reporterConfiguration.getApiRequestCompressionLevel()).thenReturn(0);
+        final IntakeV2ReportingEventHandler uncompressedReportingEventHandler = new IntakeV2ReportingEventHandler(
+            reporterConfiguration,
+            mock(ProcessorEventHandler.class),
+            new DslJsonSerializer(mock(StacktraceConfiguration.class), apmServerClient),
+            new MetaData(new ProcessInfo("title"), new Service(), new SystemInfo("x64", "localhost", "platform"), Collections.emptyMap()),
+            apmServerClient);
+
+        reportTransaction(uncompressedReportingEventHandler);
+        uncompressedReportingEventHandler.endRequest();
+
+        assertThat(uncompressedReportingEventHandler.getSerializedBytes()).isEqualTo(uncompressedReportingEventHandler.getCompressedBytes());
+        final LoggedRequest request = mockApmServer1.findAll(postRequestedFor(urlEqualTo(INTAKE_V2_URL))).get(0);
+        assertThat(request.containsHeader("Content-Encoding")).isFalse();
+        final List<JsonNode> ndJsonNodes = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(request.getBody())))
+            .lines()
+            .map(IntakeV2ReportingEventHandlerTest::getReadTree)
+            .collect(Collectors.toList());
+        assertThat(ndJsonNodes).hasSize(2);
+        assertThat(ndJsonNodes.get(0).get("metadata")).isNotNull();
+        assertThat(ndJsonNodes.get(1).get("transaction")).isNotNull();
+    }
+
+    @Test
+    void testPipelinedReportCompressesInBackground() {
+        for (int i = 0; i < 100; i++) {
+            reportSpan(pipelinedReportingEventHandler);
+        }
+        pipelinedReportingEventHandler.endRequest();
+        await().untilAsserted(() -> assertThat(pipelinedReportingEventHandler.getReported()).isEqualTo(100));
+
+        assertThat(pipelinedReportingEventHandler.getSerializedBytes()).isGreaterThan(pipelinedReportingEventHandler.getCompressedBytes());
+        assertThat(getNdJsonNodes()).hasSize(101);
+    }
+
     @Test
     void testNoopWhenNotConnected() {
         reportTransaction(nonConnectedReportingEventHandler);
@@ -221,6 +347,10 @@ class IntakeV2ReportingEventHandlerTest {
     }
 
     private void reportSpan() {
+        reportSpan(reportingEventHandler);
+    }
+
+    private void reportSpan(IntakeV2ReportingEventHandler reportingEventHandler) {
         final ReportingEvent reportingEvent = new ReportingEvent();
         reportingEvent.setSpan(new Span(MockTracer.create()));
 
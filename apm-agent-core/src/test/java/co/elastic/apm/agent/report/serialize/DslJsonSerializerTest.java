@@ -67,6 +67,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -78,12 +79,13 @@ import static org.mockito.Mockito.when;
 class DslJsonSerializerTest {
 
     private DslJsonSerializer serializer;
+    private StacktraceConfiguration stacktraceConfiguration;
     private ObjectMapper objectMapper;
     private ApmServerClient apmServerClient;
 
     @BeforeEach
     void setUp() {
-        StacktraceConfiguration stacktraceConfiguration = mock(StacktraceConfiguration.class);
+        stacktraceConfiguration = mock(StacktraceConfiguration.class);
         when(stacktraceConfiguration.getStackTraceLimit()).thenReturn(15);
         apmServerClient = mock(ApmServerClient.class);
         serializer = new DslJsonSerializer(stacktraceConfiguration, apmServerClient);
@@ -627,6 +629,31 @@ class DslJsonSerializerTest {
             .isEqualTo(objectMapper.readTree(serializer.toJsonString(transaction)).get("context"));
     }
 
+    @Test
+    void testBodyBufferEscaping() throws IOException {
+        for (String body : List.of("{\"foo\": \"bar\"}", "a\\b", "tab\tnewline\n", "ünïcödé €", "plain ascii ~")) {
+            final Transaction transaction = createTransactionWithRequiredValues();
+            final CharBuffer bodyBuffer = transaction.getContext().getRequest().withBodyBuffer();
+            IOUtils.decodeUtf8Bytes(body.getBytes(StandardCharsets.UTF_8), bodyBuffer);
+            bodyBuffer.flip();
+            final JsonNode transactionJson = objectMapper.readTree(serializer.toJsonString(transaction));
+            assertThat(transactionJson.get("context").get("request").get("body").textValue()).isEqualTo(body);
+        }
+    }
+
+    @Test
+    void testCopyUnescapedAscii() {
+        final byte[] dest = new byte[8];
+        assertThat(DslJsonSerializer.copyUnescapedAscii(" az~".toCharArray(), 0, 4, dest)).isTrue();
+        assertThat(new String(dest, 0, 4, StandardCharsets.US_ASCII)).isEqualTo(" az~");
+        assertThat(DslJsonSerializer.copyUnescapedAscii("x\"".toCharArray(), 0, 1, dest)).isTrue();
+        assertThat(DslJsonSerializer.copyUnescapedAscii("x\"".toCharArray(), 0, 2, dest)).isFalse();
+        assertThat(DslJsonSerializer.copyUnescapedAscii("\\".toCharArray(), 0, 1, dest)).isFalse();
+        assertThat(DslJsonSerializer.copyUnescapedAscii("\u001f".toCharArray(), 0, 1, dest)).isFalse();
+        assertThat(DslJsonSerializer.copyUnescapedAscii("\u0080".toCharArray(), 0, 1, dest)).isFalse();
+        assertThat(DslJsonSerializer.copyUnescapedAscii("\uffff".toCharArray(), 0, 1, dest)).isFalse();
+    }
+
     @Test
     void testCustomContext() throws Exception {
         final Transaction transaction = createTransactionWithRequiredValues();
@@ -694,6 +721,35 @@ class DslJsonSerializerTest {
         return t;
     }
 
+    @Test
+    void testSpanStackTraceElementsSerialization() {
+        StackTraceElement[] stackTrace = {
+            new StackTraceElement("com.example.Foo", "bar", "Foo.java", 42),
+            new StackTraceElement("com.example.Foo", "baz", "Foo.java", 21)
+        };
+        when(stacktraceConfiguration.getApplicationPackages()).thenReturn(List.of());
+        Span span = new Span(MockTracer.create());
+        span.withStackTraceElements(stackTrace);
+
+        String json = serializer.toJsonString(span);
+        JsonNode jsonStackTrace = readJsonString(json).get("stacktrace");
+        assertThat(jsonStackTrace).hasSize(2);
+        assertThat(jsonStackTrace.get(0).get("classname").textValue()).isEqualTo("com.example.Foo");
+        assertThat(jsonStackTrace.get(0).get("function").textValue()).isEqualTo("bar");
+        assertThat(jsonStackTrace.get(0).get("lineno").intValue()).isEqualTo(42);
+        assertThat(jsonStackTrace.get(0).get("library_frame").booleanValue()).isTrue();
+
+        // an equal stack trace is served from the cache
+        span.withStackTraceElements(stackTrace.clone());
+        assertThat(serializer.toJsonString(span)).isEqualTo(json);
+
+        // changing the application packages invalidates the cache
+        when(stacktraceConfiguration.getApplicationPackages()).thenReturn(List.of("com.example"));
+        jsonStackTrace = readJsonString(serializer.toJsonString(span)).get("stacktrace");
+        assertThat(jsonStackTrace.get(0).get("library_frame").booleanValue()).isFalse();
+        assertThat(jsonStackTrace.get(1).get("library_frame").booleanValue()).isFalse();
+    }
+
     @Test
     void testSpanStackFrameSerialization() {
         Span span = new Span(MockTracer.create());
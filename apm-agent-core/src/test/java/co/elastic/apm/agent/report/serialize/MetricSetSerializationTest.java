@@ -37,6 +37,7 @@ import javax.annotation.Nonnull;
 import java.io.IOException;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.withinPercentage;
 import static org.mockito.Mockito.mock;
 
 class MetricSetSerializationTest {
@@ -175,6 +176,27 @@ class MetricSetSerializationTest {
         assertThat(reportAsJson(Labels.EMPTY).get("metricset").get("samples")).hasSize(0);
     }
 
+    @Test
+    void testSerializeHistogram() throws IOException {
+        registry.updateTimer("foo", Labels.EMPTY, 1);
+        registry.recordHistogram("bar.histogram", Labels.EMPTY, 3);
+        registry.recordHistogram("bar.histogram", Labels.EMPTY, 3);
+        registry.recordHistogram("bar.histogram", Labels.EMPTY, 1000);
+
+        final JsonNode samples = reportAsJson(Labels.EMPTY).get("metricset").get("samples");
+        assertThat(samples.get("foo.count").get("value").intValue()).isOne();
+        final JsonNode histogram = samples.get("bar.histogram");
+        assertThat(histogram.get("type").textValue()).isEqualTo("histogram");
+        assertThat(histogram.get("values")).hasSize(2);
+        assertThat(histogram.get("values").get(0).doubleValue()).isEqualTo(3);
+        assertThat(histogram.get("values").get(1).doubleValue()).isCloseTo(1000, withinPercentage(12.5));
+        assertThat(histogram.get("counts")).hasSize(2);
+        assertThat(histogram.get("counts").get(0).longValue()).isEqualTo(2);
+        assertThat(histogram.get("counts").get(1).longValue()).isEqualTo(1);
+
+        assertThat(reportAsJson(Labels.EMPTY).get("metricset").get("samples")).hasSize(0);
+    }
+
     @Nonnull
     private JsonNode reportAsJson(Labels labels) throws IOException {
         registry.report(metricSets -> MetricRegistrySerializer.serializeMetricSet(metricSets.get(labels), System.currentTimeMillis() * 1000, new StringBuilder(), jw));
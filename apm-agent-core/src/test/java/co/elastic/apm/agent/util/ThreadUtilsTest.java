@@ -37,4 +37,9 @@ class ThreadUtilsTest {
         String prefixedThreadName = ThreadUtils.addElasticApmThreadPrefix(purpose);
         assertThat(prefixedThreadName).isEqualTo("elastic-apm-"+purpose);
     }
+
+    @Test
+    void testPlatformThreadIsNotVirtual() {
+        assertThat(ThreadUtils.isVirtual(Thread.currentThread())).isFalse();
+    }
 }
@@ -0,0 +1,77 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.concurrent;
+
+import org.stagemonitor.configuration.ConfigurationOption;
+import org.stagemonitor.configuration.ConfigurationOptionProvider;
+
+import static co.elastic.apm.agent.configuration.CoreConfiguration.CORE_CATEGORY;
+
+/**
+ * Configuration provider for the apm java-concurrent plugin
+ */
+public class ConcurrentConfiguration extends ConfigurationOptionProvider {
+
+    private final ConfigurationOption<ContextPropagation> contextPropagation = ConfigurationOption.enumOption(ContextPropagation.class)
+        .key("executor_context_propagation")
+        .tags("added[1.18.0]", "performance")
+        .configurationCategory(CORE_CATEGORY)
+        .description("Determines how the active transaction or span is handed over to tasks which are submitted to an executor.\n" +
+            "\n" +
+            " - `map`: the context is stored in a global weak map, keyed by the task, and looked up when the task runs.\n" +
+            "   The submitted task is passed on to the executor as-is.\n" +
+            " - `wrapper`: the task is wrapped in an object which holds the context in a field.\n" +
+            "   This avoids the lookups in the global map and the instrumentation of the task classes.\n" +
+            "   As a consequence, the executor sees the wrapper instead of the original task.\n" +
+            "   For example, `ThreadPoolExecutor#remove(Runnable)` will not find a task which has been submitted via `execute`,\n" +
+            "   and `ExecutorService#shutdownNow()` returns the wrappers.\n" +
+            "\n" +
+            "Tasks which are submitted as a `ForkJoinTask`, for example via `ForkJoinPool#submit(ForkJoinTask)`,\n" +
+            "as well as virtual threads always use the `map` strategy, as they can't be wrapped.\n" +
+            "\n" +
+            "This option is case-insensitive.")
+        .dynamic(false)
+        .buildWithDefault(ContextPropagation.MAP);
+
+    public ContextPropagation getContextPropagation() {
+        return contextPropagation.get();
+    }
+
+    public enum ContextPropagation {
+        /**
+         * Stores the context in a global weak map, keyed by the task
+         */
+        MAP,
+        /**
+         * Stores the context in a wrapper around the task
+         */
+        WRAPPER;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+}
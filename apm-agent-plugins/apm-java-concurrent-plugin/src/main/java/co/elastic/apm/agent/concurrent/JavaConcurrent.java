@@ -24,8 +24,12 @@
  */
 package co.elastic.apm.agent.concurrent;
 
+import co.elastic.apm.agent.concurrent.ConcurrentConfiguration.ContextPropagation;
+import co.elastic.apm.agent.impl.ElasticApmTracer;
+import co.elastic.apm.agent.impl.GlobalTracer;
 import co.elastic.apm.agent.impl.Tracer;
 import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.sdk.DynamicTransformer;
 import co.elastic.apm.agent.sdk.ElasticApmInstrumentation;
 import co.elastic.apm.agent.sdk.weakmap.WeakMapSupplier;
@@ -38,6 +42,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class JavaConcurrent {
 
@@ -45,8 +50,19 @@ public class JavaConcurrent {
     private static final List<Class<? extends ElasticApmInstrumentation>> RUNNABLE_CALLABLE_FJTASK_INSTRUMENTATION = Collections.
         <Class<? extends ElasticApmInstrumentation>>singletonList(RunnableCallableForkJoinTaskInstrumentation.class);
     static final ThreadLocal<Boolean> needsContext = new ThreadLocal<>();
+    /**
+     * Caches {@link ConcurrentConfiguration#getContextPropagation()}, which is not dynamic,
+     * so that submitting a task doesn't have to look up the configuration.
+     * {@code null} until the first task has been submitted.
+     */
+    @Nullable
+    private static volatile ContextPropagation contextPropagation;
 
     private static void removeContext(Object o) {
+        if (o instanceof AbstractContextWrapper) {
+            ((AbstractContextWrapper) o).discardContext();
+            return;
+        }
         AbstractSpan<?> context = contextMap.remove(o);
         if (context != null) {
             context.decrementReferences();
@@ -57,7 +73,17 @@ public class JavaConcurrent {
     public static AbstractSpan<?> restoreContext(Object o, Tracer tracer) {
         // When an Executor executes directly on the current thread we need to enable this thread for context propagation again
         needsContext.set(Boolean.TRUE);
-        AbstractSpan<?> context = contextMap.remove(o);
+        return activate(contextMap.remove(o), tracer);
+    }
+
+    /**
+     * Activates the context which has been handed over to a task and releases the reference which has been taken when capturing it.
+     *
+     * @return the activated context which has to be deactivated after the task has been run,
+     * or {@code null} if there's no context or if it's already active
+     */
+    @Nullable
+    private static AbstractSpan<?> activate(@Nullable AbstractSpan<?> context, Tracer tracer) {
         if (context == null) {
             return null;
         }
@@ -76,14 +102,17 @@ public class JavaConcurrent {
      */
     @Nullable
     public static Runnable withContext(@Nullable Runnable runnable, Tracer tracer) {
-        if (runnable instanceof RunnableLambdaWrapper || runnable == null || needsContext.get() == Boolean.FALSE) {
+        if (runnable instanceof RunnableLambdaWrapper || runnable instanceof RunnableContextWrapper || runnable == null || needsContext.get() == Boolean.FALSE) {
             return runnable;
         }
         needsContext.set(Boolean.FALSE);
         AbstractSpan<?> active = tracer.getActive();
-        if (active == null) {
+        if (active == null || isVirtualThreadContinuation(runnable)) {
             return runnable;
         }
+        if (isContextWrapperEnabled()) {
+            return new RunnableContextWrapper(runnable, tracer, retain(active));
+        }
         if (isLambda(runnable)) {
             runnable = new RunnableLambdaWrapper(runnable);
         }
@@ -93,10 +122,90 @@ public class JavaConcurrent {
 
     private static void captureContext(Object task, AbstractSpan<?> active) {
         DynamicTransformer.Accessor.get().ensureInstrumented(task.getClass(), RUNNABLE_CALLABLE_FJTASK_INSTRUMENTATION);
-        contextMap.put(task, active);
+        storeContext(task, active);
+    }
+
+    private static void storeContext(Object contextObject, AbstractSpan<?> active) {
+        contextMap.put(contextObject, retain(active));
+    }
+
+    private static AbstractSpan<?> retain(AbstractSpan<?> active) {
+        while (active instanceof Span && active.isNoop()) {
+            // a noop span stands in for a dropped span, propagating its closest recorded ancestor makes sure that
+            // spans created by the task are children of a span which is eventually reported
+            AbstractSpan<?> parent = ((Span) active).getParent();
+            if (parent == null) {
+                break;
+            }
+            active = parent;
+        }
         active.incrementReferences();
         // Do no discard branches leading to async operations so not to break span references
         active.setNonDiscardable();
+        return active;
+    }
+
+    /**
+     * Whether tasks should be wrapped in a {@link AbstractContextWrapper} instead of storing their context in the {@link #contextMap}.
+     *
+     * @see ConcurrentConfiguration#getContextPropagation()
+     */
+    private static boolean isContextWrapperEnabled() {
+        ContextPropagation contextPropagation = JavaConcurrent.contextPropagation;
+        if (contextPropagation == null) {
+            ElasticApmTracer tracer = GlobalTracer.getTracerImpl();
+            if (tracer == null) {
+                return false;
+            }
+            contextPropagation = tracer.getConfig(ConcurrentConfiguration.class).getContextPropagation();
+            JavaConcurrent.contextPropagation = contextPropagation;
+        }
+        return contextPropagation == ContextPropagation.WRAPPER;
+    }
+
+    /**
+     * Makes the next submitted task read {@link ConcurrentConfiguration#getContextPropagation()} again
+     */
+    static void resetContextPropagation() {
+        contextPropagation = null;
+    }
+
+    /**
+     * Virtual threads are run by submitting their continuation to a scheduler (a {@link java.util.concurrent.ForkJoinPool}),
+     * each time they are started or unparked.
+     * Propagating the context to the continuation would activate it on the carrier thread
+     * and would propagate the context of the thread which happens to unpark the virtual thread.
+     * Instead, the context is propagated to the virtual thread itself when it's started.
+     *
+     * @see VirtualThreadInstrumentation
+     */
+    private static boolean isVirtualThreadContinuation(Runnable runnable) {
+        return runnable.getClass().getName().startsWith("java.lang.VirtualThread$");
+    }
+
+    /**
+     * Captures the active context when a virtual thread is started,
+     * so that it can be restored by the {@link VirtualThreadTask} when the virtual thread runs its task.
+     */
+    public static void captureContext(Thread virtualThread, Tracer tracer) {
+        AbstractSpan<?> active = tracer.getActive();
+        if (active != null) {
+            storeContext(virtualThread, active);
+        }
+    }
+
+    public static void removeContext(@Nullable Throwable thrown, Thread virtualThread) {
+        if (thrown != null) {
+            removeContext(virtualThread);
+        }
+    }
+
+    @Nullable
+    public static Runnable wrapVirtualThreadTask(@Nullable Runnable task, Tracer tracer) {
+        if (task == null || task instanceof VirtualThreadTask) {
+            return task;
+        }
+        return new VirtualThreadTask(task, tracer);
     }
 
     /**
@@ -104,7 +213,7 @@ public class JavaConcurrent {
      */
     @Nullable
     public static <T> Callable<T> withContext(@Nullable Callable<T> callable, Tracer tracer) {
-        if (callable instanceof CallableLambdaWrapper || callable == null || needsContext.get() == Boolean.FALSE) {
+        if (callable instanceof CallableLambdaWrapper || callable instanceof CallableContextWrapper || callable == null || needsContext.get() == Boolean.FALSE) {
             return callable;
         }
         needsContext.set(Boolean.FALSE);
@@ -112,6 +221,9 @@ public class JavaConcurrent {
         if (active == null) {
             return callable;
         }
+        if (isContextWrapperEnabled()) {
+            return new CallableContextWrapper<>(callable, tracer, retain(active));
+        }
         if (isLambda(callable)) {
             callable = new CallableLambdaWrapper<>(callable);
         }
@@ -181,6 +293,9 @@ public class JavaConcurrent {
     }
 
     private static boolean needsWrapping(Collection<? extends Callable<?>> callables) {
+        if (isContextWrapperEnabled()) {
+            return true;
+        }
         for (Callable<?> callable : callables) {
             if (isLambda(callable)) {
                 return true;
@@ -203,6 +318,128 @@ public class JavaConcurrent {
         }
     }
 
+    /**
+     * Wraps the task of a virtual thread in order to restore the context which has been captured when the virtual thread has been started.
+     * <p>
+     * The context can't be restored by instrumenting the virtual thread itself,
+     * as the methods which run the task are executed while the virtual thread is not yet mounted to its carrier thread.
+     * Executing agent code, which might load classes, during such a transition can dead lock the JVM.
+     * </p>
+     */
+    public static class VirtualThreadTask implements Runnable {
+
+        private final Runnable delegate;
+        private final Tracer tracer;
+
+        public VirtualThreadTask(Runnable delegate, Tracer tracer) {
+            this.delegate = delegate;
+            this.tracer = tracer;
+        }
+
+        @Override
+        public void run() {
+            AbstractSpan<?> context = restoreContext(Thread.currentThread(), tracer);
+            try {
+                delegate.run();
+            } finally {
+                if (context != null) {
+                    context.deactivate();
+                }
+            }
+        }
+    }
+
+    /**
+     * Holds the context which has been active when a task has been submitted,
+     * as an alternative to storing it in the global {@link #contextMap}.
+     * <p>
+     * Just like the context is removed from the map when a task runs,
+     * the context is handed over at most once, even if the task is run multiple times,
+     * for example when it's scheduled at a fixed rate.
+     * </p>
+     */
+    abstract static class AbstractContextWrapper {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<AbstractContextWrapper, AbstractSpan> contextUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(AbstractContextWrapper.class, AbstractSpan.class, "context");
+
+        private final Tracer tracer;
+        @Nullable
+        private volatile AbstractSpan<?> context;
+
+        AbstractContextWrapper(Tracer tracer, AbstractSpan<?> context) {
+            this.tracer = tracer;
+            this.context = context;
+        }
+
+        @Nullable
+        AbstractSpan<?> restoreContext() {
+            // When an Executor executes directly on the current thread we need to enable this thread for context propagation again
+            needsContext.set(Boolean.TRUE);
+            return activate(takeContext(), tracer);
+        }
+
+        void discardContext() {
+            AbstractSpan<?> context = takeContext();
+            if (context != null) {
+                context.decrementReferences();
+            }
+        }
+
+        @Nullable
+        private AbstractSpan<?> takeContext() {
+            if (context == null) {
+                return null;
+            }
+            return contextUpdater.getAndSet(this, null);
+        }
+    }
+
+    public static class RunnableContextWrapper extends AbstractContextWrapper implements Runnable {
+
+        private final Runnable delegate;
+
+        public RunnableContextWrapper(Runnable delegate, Tracer tracer, AbstractSpan<?> context) {
+            super(tracer, context);
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void run() {
+            AbstractSpan<?> context = restoreContext();
+            try {
+                delegate.run();
+            } finally {
+                if (context != null) {
+                    context.deactivate();
+                }
+            }
+        }
+    }
+
+    public static class CallableContextWrapper<V> extends AbstractContextWrapper implements Callable<V> {
+
+        private final Callable<V> delegate;
+
+        public CallableContextWrapper(Callable<V> delegate, Tracer tracer, AbstractSpan<?> context) {
+            super(tracer, context);
+            this.delegate = delegate;
+        }
+
+        @Override
+        public V call() throws Exception {
+            AbstractSpan<?> context = restoreContext();
+            try {
+                return delegate.call();
+            } finally {
+                if (context != null) {
+                    context.deactivate();
+                }
+            }
+        }
+    }
+
     public static class CallableLambdaWrapper<V> implements Callable<V> {
         private final Callable<V> delegate;
 
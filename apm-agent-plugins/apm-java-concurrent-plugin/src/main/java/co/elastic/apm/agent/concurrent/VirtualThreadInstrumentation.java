@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.concurrent;
+
+import co.elastic.apm.agent.bci.TracerAwareInstrumentation;
+import co.elastic.apm.agent.sdk.advice.AssignTo;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.NamedElement;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.matcher.ElementMatcher;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static net.bytebuddy.matcher.ElementMatchers.isConstructor;
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.takesArgument;
+import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
+
+/**
+ * Propagates the active context to virtual threads (Java 21+).
+ * <p>
+ * The context is captured when the virtual thread is started and activated while the virtual thread runs its task,
+ * which is wrapped when the virtual thread is created.
+ * There's no need to instrument the mounting and unmounting of a virtual thread to and from its carrier thread,
+ * as the activation stack of the tracer is thread local, which means it belongs to the virtual thread,
+ * independent of the carrier thread it's currently mounted to.
+ * </p>
+ */
+public abstract class VirtualThreadInstrumentation extends TracerAwareInstrumentation {
+
+    @Override
+    public ElementMatcher<? super NamedElement> getTypeMatcherPreFilter() {
+        return named("java.lang.VirtualThread");
+    }
+
+    @Override
+    public ElementMatcher<? super TypeDescription> getTypeMatcher() {
+        return named("java.lang.VirtualThread");
+    }
+
+    @Override
+    public Collection<String> getInstrumentationGroupNames() {
+        return Arrays.asList("concurrent", "virtual-thread");
+    }
+
+    @Override
+    public boolean indyPlugin() {
+        return true;
+    }
+
+    /**
+     * Instruments {@code VirtualThread#start(ThreadContainer)}, which is called by {@link Thread#start()}
+     * and by executors like {@code Executors.newVirtualThreadPerTaskExecutor()}
+     */
+    public static class StartInstrumentation extends VirtualThreadInstrumentation {
+
+        @Override
+        public ElementMatcher<? super MethodDescription> getMethodMatcher() {
+            return named("start").and(takesArguments(1));
+        }
+
+        @Advice.OnMethodEnter(suppress = Throwable.class, inline = false)
+        public static void onStart(@Advice.This Thread thiz) {
+            JavaConcurrent.captureContext(thiz, tracer);
+        }
+
+        @Advice.OnMethodExit(suppress = Throwable.class, onThrowable = Throwable.class, inline = false)
+        public static void onExit(@Nullable @Advice.Thrown Throwable thrown,
+                                  @Advice.This Thread thiz) {
+            JavaConcurrent.removeContext(thrown, thiz);
+        }
+    }
+
+    /**
+     * Wraps the task of the virtual thread in a {@link JavaConcurrent.VirtualThreadTask},
+     * which restores the context that has been captured by the {@link StartInstrumentation}
+     */
+    public static class ConstructorInstrumentation extends VirtualThreadInstrumentation {
+
+        @Override
+        public ElementMatcher<? super MethodDescription> getMethodMatcher() {
+            return isConstructor().and(takesArguments(4)).and(takesArgument(3, Runnable.class));
+        }
+
+        @Nullable
+        @AssignTo.Argument(3)
+        @Advice.OnMethodEnter(suppress = Throwable.class, inline = false)
+        public static Runnable onEnter(@Advice.Argument(3) @Nullable Runnable task) {
+            return JavaConcurrent.wrapVirtualThreadTask(task, tracer);
+        }
+    }
+}
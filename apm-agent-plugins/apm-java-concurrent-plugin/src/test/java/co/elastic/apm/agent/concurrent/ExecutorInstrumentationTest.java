@@ -25,6 +25,7 @@
 package co.elastic.apm.agent.concurrent;
 
 import co.elastic.apm.agent.AbstractInstrumentationTest;
+import co.elastic.apm.agent.configuration.CoreConfiguration;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import org.junit.After;
@@ -36,11 +37,14 @@ import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.core.task.SyncTaskExecutor;
 
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
 
 @RunWith(Parameterized.class)
 public class ExecutorInstrumentationTest extends AbstractInstrumentationTest {
@@ -90,6 +94,33 @@ public class ExecutorInstrumentationTest extends AbstractInstrumentationTest {
         assertThat(reporter.getFirstSpan().isChildOf(nonAsyncSpan)).isTrue();
     }
 
+    @Test
+    public void testExecutorExecute_DroppedSpan() throws Exception {
+        when(config.getConfig(CoreConfiguration.class).getTransactionMaxSpans()).thenReturn(1);
+        transaction.createSpan().withName("Reported").end();
+        Span droppedSpan = transaction.createSpan().withName("Dropped").activate();
+        assertThat(droppedSpan.isNoop()).isTrue();
+        CompletableFuture<Span> asyncSpan = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                assertThat(tracer.getActive()).isSameAs(transaction);
+                Span span = tracer.getActive().createSpan().withName("Async");
+                span.end();
+                asyncSpan.complete(span);
+            });
+            Span droppedAsyncSpan = asyncSpan.get(1, TimeUnit.SECONDS);
+            assertThat(droppedAsyncSpan.isNoop()).isTrue();
+            assertThat(droppedAsyncSpan).isNotSameAs(droppedSpan);
+            assertThat(droppedAsyncSpan.getTransaction()).isSameAs(transaction);
+            assertThat(droppedAsyncSpan.getTraceContext().getParentId()).isEqualTo(transaction.getTraceContext().getId());
+        } finally {
+            droppedSpan.deactivate().end();
+            transaction.deactivate().end();
+        }
+        assertThat(reporter.getSpans()).hasSize(1);
+        assertThat(reporter.getFirstTransaction().getSpanCount().getDropped()).hasValue(2);
+    }
+
     private void assertOnlySpanIsChildOfOnlyTransaction() {
         try {
             // wait for the async operation to end
@@ -0,0 +1,91 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.concurrent;
+
+import co.elastic.apm.agent.concurrent.ConcurrentConfiguration.ContextPropagation;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs all the tests of {@link ExecutorServiceInstrumentationTest} with the context being propagated via wrappers
+ */
+public class ExecutorServiceContextWrapperTest extends ExecutorServiceInstrumentationTest {
+
+    public ExecutorServiceContextWrapperTest(Supplier<ExecutorService> supplier) {
+        super(supplier);
+    }
+
+    @Before
+    public void enableContextWrapper() {
+        when(config.getConfig(ConcurrentConfiguration.class).getContextPropagation()).thenReturn(ContextPropagation.WRAPPER);
+        JavaConcurrent.resetContextPropagation();
+    }
+
+    @After
+    public void resetContextPropagation() {
+        JavaConcurrent.resetContextPropagation();
+    }
+
+    @Test
+    public void testTaskIsWrapped() {
+        AtomicReference<Runnable> submitted = new AtomicReference<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                submitted.set(command);
+            }
+        };
+        executor.execute(() -> {
+        });
+
+        assertThat(submitted.get()).isInstanceOf(JavaConcurrent.RunnableContextWrapper.class);
+        submitted.get().run();
+    }
+
+    @Test
+    public void testContextIsReleasedWhenRejected() {
+        Transaction transaction = tracer.currentTransaction();
+        assertThat(transaction).isNotNull();
+        int referenceCount = transaction.getReferenceCount();
+        ExecutorService shutDownExecutor = Executors.newSingleThreadExecutor();
+        shutDownExecutor.shutdown();
+        assertThatThrownBy(() -> shutDownExecutor.execute(() -> {
+        })).isInstanceOf(RejectedExecutionException.class);
+        assertThat(transaction.getReferenceCount()).isEqualTo(referenceCount);
+    }
+}
@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.concurrent;
+
+import co.elastic.apm.agent.AbstractInstrumentationTest;
+import co.elastic.apm.agent.impl.transaction.AbstractSpan;
+import co.elastic.apm.agent.impl.transaction.Transaction;
+import co.elastic.apm.agent.util.ThreadUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Only executed on Java versions which support virtual threads, the virtual thread API is accessed via reflection.
+ */
+class VirtualThreadTest extends AbstractInstrumentationTest {
+
+    @Nullable
+    private Transaction transaction;
+
+    @BeforeEach
+    void setUp() {
+        assumeTrue(getStartVirtualThreadMethod() != null, "virtual threads are not supported");
+        transaction = tracer.startRootTransaction(null).withName("transaction").activate();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (transaction != null) {
+            assertThat(tracer.getActive()).isEqualTo(transaction);
+            transaction.deactivate().end();
+        }
+    }
+
+    @Test
+    void testContextPropagatedToVirtualThread() throws Exception {
+        AtomicReference<AbstractSpan<?>> active = new AtomicReference<>();
+        AtomicReference<Boolean> virtual = new AtomicReference<>();
+        startVirtualThread(() -> {
+            virtual.set(ThreadUtils.isVirtual(Thread.currentThread()));
+            active.set(tracer.getActive());
+        }).join();
+        assertThat(virtual.get()).isTrue();
+        assertThat(active.get()).isEqualTo(transaction);
+    }
+
+    @Test
+    void testContextIsRetainedAfterUnpark() throws Exception {
+        AtomicReference<AbstractSpan<?>> active = new AtomicReference<>();
+        Thread virtualThread = startVirtualThread(() -> {
+            LockSupport.park();
+            active.set(tracer.getActive());
+        });
+        // unparks the virtual thread from a thread with a different active context
+        Transaction otherTransaction = tracer.startRootTransaction(null).withName("other").activate();
+        try {
+            while (virtualThread.getState() != Thread.State.WAITING) {
+                Thread.yield();
+            }
+            LockSupport.unpark(virtualThread);
+            virtualThread.join();
+        } finally {
+            otherTransaction.deactivate().end();
+        }
+        assertThat(active.get()).isEqualTo(transaction);
+    }
+
+    @Test
+    void testVirtualThreadPerTaskExecutor() throws Exception {
+        ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        try {
+            assertThat(executor.submit(() -> tracer.getActive()).get()).isEqualTo(transaction);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testNoContextIsRetainedByVirtualThread() throws Exception {
+        transaction.deactivate();
+        try {
+            AtomicReference<AbstractSpan<?>> active = new AtomicReference<>();
+            startVirtualThread(() -> active.set(tracer.getActive())).join();
+            assertThat(active.get()).isNull();
+        } finally {
+            transaction.activate();
+        }
+    }
+
+    private static Thread startVirtualThread(Runnable task) throws Exception {
+        return (Thread) getStartVirtualThreadMethod().invoke(null, task);
+    }
+
+    @Nullable
+    private static Method getStartVirtualThreadMethod() {
+        try {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
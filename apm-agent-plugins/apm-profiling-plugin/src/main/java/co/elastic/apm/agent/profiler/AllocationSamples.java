@@ -0,0 +1,197 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2019 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.profiler;
+
+import co.elastic.apm.agent.impl.transaction.StackFrame;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.objectpool.Recyclable;
+import co.elastic.apm.agent.profiler.asyncprofiler.JfrParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sums up the bytes of the allocations which have been sampled by async-profiler while a {@link CallTree.Root} has been active on a thread.
+ * <p>
+ * The bytes are also summed up per hotspot frame,
+ * which is the {@linkplain JfrParser#resolveTopFrame(long, boolean) top-most included frame} of the allocation's stack trace.
+ * When the root ends, the total and the frames which allocated the most bytes are {@linkplain #report reported} as metrics
+ * of the transaction the root has been working for.
+ * </p>
+ * <p>
+ * As each combination of transaction name and hotspot is a separate metric set in the shared {@link MetricRegistry},
+ * the hotspots are reported within a {@link HotspotBudget}.
+ * </p>
+ */
+class AllocationSamples implements Recyclable {
+
+    private static final Logger logger = LoggerFactory.getLogger(AllocationSamples.class);
+
+    static final String ALLOCATED_BYTES = "transaction.allocated.bytes";
+    static final String HOTSPOT_ALLOCATED_BYTES = "transaction.allocation_hotspot.bytes";
+    static final String HOTSPOT_LABEL = "allocation_hotspot";
+    /**
+     * Limits the memory a single long-running root can use.
+     * The bytes of further frames are still part of the total.
+     */
+    static final int MAX_HOTSPOT_FRAMES = 256;
+    /**
+     * A quarter of the metric sets a {@link MetricRegistry} can hold,
+     * which leaves room for the transaction and breakdown metrics.
+     */
+    static final int MAX_HOTSPOT_METRIC_SETS = 250;
+    private static final Comparator<Map.Entry<StackFrame, long[]>> BY_ALLOCATED_BYTES_DESCENDING = new Comparator<Map.Entry<StackFrame, long[]>>() {
+        @Override
+        public int compare(Map.Entry<StackFrame, long[]> o1, Map.Entry<StackFrame, long[]> o2) {
+            return Long.compare(o2.getValue()[0], o1.getValue()[0]);
+        }
+    };
+
+    private final Map<StackFrame, long[]> allocatedBytesPerFrame = new HashMap<>();
+    private long allocatedBytes;
+
+    /**
+     * @param hotspot        the top-most included frame of the allocation's stack trace or {@code null} if all frames are excluded
+     * @param allocatedBytes the number of bytes the allocation sample accounts for
+     */
+    void add(@Nullable StackFrame hotspot, long allocatedBytes) {
+        this.allocatedBytes += allocatedBytes;
+        if (hotspot == null) {
+            return;
+        }
+        long[] counter = allocatedBytesPerFrame.get(hotspot);
+        if (counter == null) {
+            if (allocatedBytesPerFrame.size() >= MAX_HOTSPOT_FRAMES) {
+                return;
+            }
+            counter = new long[1];
+            allocatedBytesPerFrame.put(hotspot, counter);
+        }
+        counter[0] += allocatedBytes;
+    }
+
+    boolean isEmpty() {
+        return allocatedBytes == 0;
+    }
+
+    long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Reports the {@linkplain #ALLOCATED_BYTES allocated bytes} and the {@linkplain #HOTSPOT_ALLOCATED_BYTES bytes of the hotspots}
+     * to the metric registry.
+     *
+     * @param metricRegistry  the registry to report to
+     * @param labels          reused to look up the metric sets
+     * @param transactionName the name of the transaction the allocations belong to
+     * @param transactionType the type of the transaction the allocations belong to
+     * @param maxHotspots     the maximum number of frames which are reported, starting with the one which allocated the most bytes
+     * @param hotspotBudget   limits the number of metric sets the hotspots of all transactions create in the registry
+     */
+    void report(MetricRegistry metricRegistry, Labels.Mutable labels, CharSequence transactionName, @Nullable String transactionType,
+                int maxHotspots, HotspotBudget hotspotBudget) {
+        labels.resetState();
+        labels.transactionName(transactionName).transactionType(transactionType);
+        metricRegistry.incrementCounter(ALLOCATED_BYTES, labels, allocatedBytes);
+        if (maxHotspots == 0 || allocatedBytesPerFrame.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<StackFrame, long[]>> hotspots = new ArrayList<>(allocatedBytesPerFrame.entrySet());
+        Collections.sort(hotspots, BY_ALLOCATED_BYTES_DESCENDING);
+        for (int i = 0, size = Math.min(maxHotspots, hotspots.size()); i < size; i++) {
+            Map.Entry<StackFrame, long[]> hotspot = hotspots.get(i);
+            labels.resetState();
+            labels.transactionName(transactionName).transactionType(transactionType);
+            labels.add(HOTSPOT_LABEL, toString(hotspot.getKey()));
+            if (hotspotBudget.tryAcquire(labels)) {
+                metricRegistry.incrementCounter(HOTSPOT_ALLOCATED_BYTES, labels, hotspot.getValue()[0]);
+            }
+        }
+    }
+
+    private static String toString(StackFrame frame) {
+        String className = frame.getClassName();
+        return className != null ? className + '.' + frame.getMethodName() : frame.getMethodName();
+    }
+
+    @Override
+    public void resetState() {
+        allocatedBytesPerFrame.clear();
+        allocatedBytes = 0;
+    }
+
+    /**
+     * Limits the number of distinct hotspot metric sets which are created in a {@link MetricRegistry}.
+     * <p>
+     * Metric sets are never removed from the registry.
+     * Once the limit is reached, the hotspots of new combinations of transaction name and frame are dropped,
+     * while the ones which have already been reported are still updated.
+     * </p>
+     * <p>
+     * Not thread safe, reports are only made by the thread which processes the profiling data.
+     * </p>
+     */
+    static class HotspotBudget {
+
+        private final Set<Labels.Immutable> reportedLabels = new HashSet<>();
+        private final int maxMetricSets;
+        private boolean limitReached;
+
+        HotspotBudget(int maxMetricSets) {
+            this.maxMetricSets = maxMetricSets;
+        }
+
+        /**
+         * @param labels the labels of the hotspot metric set
+         * @return {@code true}, if the hotspot can be reported
+         */
+        boolean tryAcquire(Labels labels) {
+            if (reportedLabels.contains(labels)) {
+                return true;
+            }
+            if (reportedLabels.size() >= maxMetricSets) {
+                if (!limitReached) {
+                    limitReached = true;
+                    logger.warn("The limit of {} allocation hotspots has been reached, no new hotspots will be reported. " +
+                        "Try to lower profiling_allocation_hotspots or to name your transactions so that there are less distinct transaction names.", maxMetricSets);
+                }
+                return false;
+            }
+            reportedLabels.add(labels.immutableCopy());
+            return true;
+        }
+    }
+}
@@ -61,11 +61,26 @@ import java.util.List;
  */
 public class CallTree implements Recyclable {
 
-    private static final int INITIAL_CHILD_SIZE = 2;
     @Nullable
     private CallTree parent;
     protected int count;
-    private List<CallTree> children = new ArrayList<>(INITIAL_CHILD_SIZE);
+    /**
+     * The children of a node are an intrusive doubly linked list
+     * so that a node does not need a separate list object and a backing array which would have to be pooled and traversed.
+     * The overwhelming majority of nodes has either one or two children and mostly the last child is accessed or removed.
+     */
+    @Nullable
+    private CallTree firstChild;
+    @Nullable
+    private CallTree lastChild;
+    @Nullable
+    private CallTree previousSibling;
+    @Nullable
+    private CallTree nextSibling;
+    /**
+     * Canonical instance per method, see {@link co.elastic.apm.agent.profiler.asyncprofiler.JfrParser#resolveStackTrace},
+     * which means that comparing frames mostly boils down to a reference comparison.
+     */
     @Nullable
     private StackFrame frame;
     protected long start;
@@ -130,7 +145,7 @@ public class CallTree implements Recyclable {
         if (deactivatedSpan.idEquals(activeContextOfDirectParent)) {
             this.deactivationTimestamp = deactivationTimestamp;
         } else {
-            CallTree lastChild = getLastChild();
+            CallTree lastChild = this.lastChild;
             if (lastChild != null) {
                 lastChild.handleDeactivation(deactivatedSpan, activationTimestamp, deactivationTimestamp);
             }
@@ -190,7 +205,7 @@ public class CallTree implements Recyclable {
         }
 
         // non-last children are already ended by definition
-        CallTree lastChild = getLastChild();
+        CallTree lastChild = this.lastChild;
         // if the frame corresponding to the last child is not in the stack trace
         // it's assumed to have ended one tick ago
         CallTree topOfStack = this;
@@ -198,7 +213,7 @@ public class CallTree implements Recyclable {
         if (index >= 1) {
             final StackFrame frame = stackFrames.get(--index);
             if (lastChild != null) {
-                if (!lastChild.isEnded() && frame.equals(lastChild.frame)) {
+                if (!lastChild.isEnded() && (frame == lastChild.frame || frame.equals(lastChild.frame))) {
                     topOfStack = lastChild.addFrame(stackFrames, index, activeSpan, activationTimestamp, nanoTime, callTreePool, minDurationNs, root);
                     endChild = false;
                 } else {
@@ -239,7 +254,7 @@ public class CallTree implements Recyclable {
         if (traceContext != null) {
             callTree.activation(traceContext, activationTimestamp);
         }
-        children.add(callTree);
+        appendChild(callTree);
         return callTree.addFrame(stackFrames, index, null, activationTimestamp, nanoTime, callTreePool, minDurationNs, root);
     }
 
@@ -260,10 +275,28 @@ public class CallTree implements Recyclable {
         return frame;
     }
 
+    /**
+     * Returns a copy of the children of this node.
+     * Not to be used on hot paths, iterate over {@link #firstChild} and {@link #nextSibling} instead.
+     */
     public List<CallTree> getChildren() {
+        List<CallTree> children = new ArrayList<>();
+        for (CallTree child = firstChild; child != null; child = child.nextSibling) {
+            children.add(child);
+        }
         return children;
     }
 
+    private void appendChild(CallTree child) {
+        if (lastChild == null) {
+            firstChild = child;
+        } else {
+            lastChild.nextSibling = child;
+            child.previousSibling = lastChild;
+        }
+        lastChild = child;
+    }
+
     protected void end(ObjectPool<CallTree> pool, long minDurationNs, Root root) {
         ended = true;
         // if the parent span has already been deactivated before this call tree node has ended
@@ -285,9 +318,9 @@ public class CallTree implements Recyclable {
                 parent.giveLastChildIdTo(this);
             }
 
-            List<CallTree> callTrees = getChildren();
-            for (int i = 0, size = callTrees.size(); i < size; i++) {
-                CallTree child = callTrees.get(i);
+            for (CallTree child = firstChild, next; child != null; child = next) {
+                // the child may remove itself in end
+                next = child.nextSibling;
                 child.activation(activeContextOfDirectParent, activationTimestamp);
                 child.deactivationTimestamp = deactivationTimestamp;
                 // re-run this logic for all children, even if they have already ended
@@ -301,7 +334,7 @@ public class CallTree implements Recyclable {
             root.previousTopOfStack = parent;
             parent.removeChild(pool, this);
         } else {
-            CallTree lastChild = getLastChild();
+            CallTree lastChild = this.lastChild;
             if (lastChild != null && !lastChild.isEnded()) {
                 lastChild.end(pool, minDurationNs, root);
             }
@@ -313,7 +346,18 @@ public class CallTree implements Recyclable {
     }
 
     private void removeChild(ObjectPool<CallTree> pool, CallTree child) {
-        children.remove(child);
+        if (child.previousSibling == null) {
+            firstChild = child.nextSibling;
+        } else {
+            child.previousSibling.nextSibling = child.nextSibling;
+        }
+        if (child.nextSibling == null) {
+            lastChild = child.previousSibling;
+        } else {
+            child.nextSibling.previousSibling = child.previousSibling;
+        }
+        child.previousSibling = null;
+        child.nextSibling = null;
         child.recursiveGiveChildIdsTo(this);
         child.recycle(pool);
     }
@@ -327,7 +371,7 @@ public class CallTree implements Recyclable {
     }
 
     public boolean isLeaf() {
-        return children.isEmpty();
+        return firstChild == null;
     }
 
     /**
@@ -340,12 +384,12 @@ public class CallTree implements Recyclable {
      * </pre>
      */
     private boolean isPillar() {
-        return children.size() == 1 && children.get(0).count == count;
+        return firstChild != null && firstChild == lastChild && firstChild.count == count;
     }
 
     @Nullable
     public CallTree getLastChild() {
-        return children.size() > 0 ? children.get(children.size() - 1) : null;
+        return lastChild;
     }
 
     public boolean isEnded() {
@@ -376,8 +420,8 @@ public class CallTree implements Recyclable {
             .append(frame != null ? frame.getMethodName() : "null")
             .append(' ').append(Integer.toString(count))
             .append('\n');
-        for (CallTree node : children) {
-            node.toString(out, level + 1);
+        for (CallTree child = firstChild; child != null; child = child.nextSibling) {
+            child.toString(out, level + 1);
         }
     }
 
@@ -392,9 +436,8 @@ public class CallTree implements Recyclable {
             span = asSpan(root, parentContext);
             this.isSpan = true;
         }
-        List<CallTree> children = getChildren();
-        for (int i = 0, size = children.size(); i < size; i++) {
-            createdSpans += children.get(i).spanify(root, span != null ? span.getTraceContext() : parentContext);
+        for (CallTree child = firstChild; child != null; child = child.nextSibling) {
+            createdSpans += child.spanify(root, span != null ? span.getTraceContext() : parentContext);
         }
         if (span != null) {
             span.end(span.getTimestamp() + getDurationUs());
@@ -437,13 +480,17 @@ public class CallTree implements Recyclable {
     }
 
     public void recycle(ObjectPool<CallTree> pool) {
-        List<CallTree> children = this.children;
-        for (int i = 0, size = children.size(); i < size; i++) {
-            children.get(i).recycle(pool);
-        }
+        recycleChildren(pool);
         pool.recycle(this);
     }
 
+    void recycleChildren(ObjectPool<CallTree> pool) {
+        for (CallTree child = firstChild, next; child != null; child = next) {
+            next = child.nextSibling;
+            child.recycle(pool);
+        }
+    }
+
     @Override
     public void resetState() {
         parent = null;
@@ -459,13 +506,10 @@ public class CallTree implements Recyclable {
         childIds = null;
         maybeChildIds = null;
         depth = 0;
-        if (children.size() > INITIAL_CHILD_SIZE) {
-            // the overwhelming majority of call tree nodes has either one or two children
-            // don't let outliers grow all lists in the pool over time
-            children = new ArrayList<>(INITIAL_CHILD_SIZE);
-        } else {
-            children.clear();
-        }
+        firstChild = null;
+        lastChild = null;
+        previousSibling = null;
+        nextSibling = null;
     }
 
     /**
@@ -511,8 +555,8 @@ public class CallTree implements Recyclable {
     }
 
     public void recursiveGiveChildIdsTo(CallTree giveTo) {
-        for (int i = 0, childrenSize = children.size(); i < childrenSize; i++) {
-            children.get(i).recursiveGiveChildIdsTo(giveTo);
+        for (CallTree child = firstChild; child != null; child = child.nextSibling) {
+            child.recursiveGiveChildIdsTo(giveTo);
         }
         giveChildIdsTo(giveTo);
         giveMaybeChildIdsTo(giveTo);
@@ -553,6 +597,11 @@ public class CallTree implements Recyclable {
         return depth;
     }
 
+    @Nullable
+    CallTree getFirstChild() {
+        return firstChild;
+    }
+
     /**
      * A special kind of a {@link CallTree} node which represents the root of the call tree.
      * This acts as the interface to the outside to add new nodes to the tree or to update existing ones by
@@ -588,6 +637,11 @@ public class CallTree implements Recyclable {
         private CallTree topOfStack;
 
         private final LongHashSet activeSet = new LongHashSet();
+        /**
+         * The allocations which have been sampled while this root has been active,
+         * if {@link ProfilingConfiguration#isAllocationSampling()} is enabled
+         */
+        private final AllocationSamples allocationSamples = new AllocationSamples();
 
         public Root(ElasticApmTracer tracer) {
             this.rootContext = TraceContext.with64BitId(tracer);
@@ -704,9 +758,8 @@ public class CallTree implements Recyclable {
          */
         public int spanify() {
             int createdSpans = 0;
-            List<CallTree> callTrees = getChildren();
-            for (int i = 0, size = callTrees.size(); i < size; i++) {
-                createdSpans += callTrees.get(i).spanify(this, rootContext);
+            for (CallTree child = getFirstChild(); child != null; child = child.nextSibling) {
+                createdSpans += child.spanify(this, rootContext);
             }
             return createdSpans;
         }
@@ -715,15 +768,16 @@ public class CallTree implements Recyclable {
             return rootContext;
         }
 
+        AllocationSamples getAllocationSamples() {
+            return allocationSamples;
+        }
+
         public long getEpochMicros(long nanoTime) {
             return rootContext.getClock().getEpochMicros(nanoTime);
         }
 
         public void recycle(ObjectPool<CallTree> pool) {
-            List<CallTree> children = getChildren();
-            for (int i = 0, size = children.size(); i < size; i++) {
-                children.get(i).recycle(pool);
-            }
+            recycleChildren(pool);
         }
 
         public void end(ObjectPool<CallTree> pool, long minDurationNs) {
@@ -737,6 +791,7 @@ public class CallTree implements Recyclable {
             activationTimestamp = -1;
             topOfStack = null;
             activeSet.clear();
+            allocationSamples.resetState();
         }
     }
 }
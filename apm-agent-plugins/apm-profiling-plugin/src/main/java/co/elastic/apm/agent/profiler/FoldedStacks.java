@@ -0,0 +1,202 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.profiler;
+
+import co.elastic.apm.agent.impl.transaction.StackFrame;
+import co.elastic.apm.agent.profiler.asyncprofiler.JfrParser;
+import co.elastic.apm.agent.profiler.collections.Long2LongHashMap;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregates the stack traces which have been sampled by async-profiler into the folded stacks format,
+ * which can be rendered as a flame graph by tools like {@code flamegraph.pl} or speedscope.
+ * <p>
+ * Each line contains a distinct stack trace, with the frames from the bottom to the top of the stack separated by semicolons,
+ * followed by the number of times it has been sampled.
+ * When allocations are sampled, the number is the sum of the allocated bytes the samples account for instead.
+ * The first element of each stack is the name of the service the profiled thread has been working for.
+ * </p>
+ * <p>
+ * Within a profiling session, the samples are counted per JFR stack trace id,
+ * so that each distinct stack trace has to be {@linkplain #aggregateSession resolved} only once.
+ * To bound the memory usage, once the maximum number of distinct stacks is reached,
+ * the samples of new stacks are counted as {@value #OTHER_STACKS} for the respective service.
+ * </p>
+ */
+class FoldedStacks {
+
+    static final String OTHER_STACKS = "[other]";
+    private static final String FILE_PREFIX = "folded-stacks-";
+    private static final String FILE_SUFFIX = ".txt";
+
+    /**
+     * The sample count per stack trace id of the current profiling session, per service name
+     */
+    private final Map<String, Long2LongHashMap> stackTraceCounts = new HashMap<>();
+    /**
+     * The sample count per folded stack
+     */
+    private final Map<String, long[]> foldedStackCounts = new HashMap<>();
+    private final List<StackFrame> stackFrames = new ArrayList<>();
+    private final StringBuilder foldedStack = new StringBuilder();
+
+    /**
+     * @param weight {@code 1} for an execution sample or the number of bytes an allocation sample accounts for
+     */
+    void addSample(String serviceName, long stackTraceId, long weight) {
+        Long2LongHashMap counts = stackTraceCounts.get(serviceName);
+        if (counts == null) {
+            counts = new Long2LongHashMap(0);
+            stackTraceCounts.put(serviceName, counts);
+        }
+        counts.put(stackTraceId, counts.get(stackTraceId) + weight);
+    }
+
+    /**
+     * Resolves the stack traces which have been {@linkplain #addSample sampled} in the current profiling session
+     * and adds them to the aggregated folded stacks.
+     * Has to be called before the {@link JfrParser} is reset and followed by {@link #resetSession()}.
+     *
+     * @param jfrParser     the parser of the current profiling session
+     * @param maxStackDepth the maximum number of frames of a stack trace, deeper stacks are truncated at the top
+     * @param maxStacks     the maximum number of distinct folded stacks
+     */
+    void aggregateSession(JfrParser jfrParser, int maxStackDepth, int maxStacks) throws IOException {
+        for (Map.Entry<String, Long2LongHashMap> countsOfService : stackTraceCounts.entrySet()) {
+            String serviceName = countsOfService.getKey();
+            Long2LongHashMap counts = countsOfService.getValue();
+            for (Long2LongHashMap.EntryIterator iterator = counts.entrySet().iterator(); iterator.hasNext(); ) {
+                iterator.next();
+                jfrParser.resolveStackTrace(iterator.getLongKey(), true, stackFrames, maxStackDepth);
+                if (!stackFrames.isEmpty()) {
+                    add(serviceName, iterator.getLongValue(), maxStacks);
+                }
+                stackFrames.clear();
+            }
+        }
+    }
+
+    /**
+     * Discards the samples of the current profiling session which have not been {@linkplain #aggregateSession aggregated},
+     * as the stack trace ids are only valid within a session.
+     */
+    void resetSession() {
+        for (Long2LongHashMap counts : stackTraceCounts.values()) {
+            counts.clear();
+        }
+    }
+
+    private void add(String serviceName, long count, int maxStacks) {
+        StringBuilder foldedStack = this.foldedStack;
+        foldedStack.setLength(0);
+        foldedStack.append(serviceName);
+        // the stack frames are ordered from the top to the bottom of the stack
+        for (int i = stackFrames.size() - 1; i >= 0; i--) {
+            StackFrame frame = stackFrames.get(i);
+            foldedStack.append(';');
+            if (frame.getClassName() != null) {
+                foldedStack.append(frame.getClassName()).append('.');
+            }
+            foldedStack.append(frame.getMethodName());
+        }
+        String key = foldedStack.toString();
+        long[] counter = foldedStackCounts.get(key);
+        if (counter == null) {
+            if (foldedStackCounts.size() >= maxStacks) {
+                key = serviceName + ';' + OTHER_STACKS;
+                counter = foldedStackCounts.get(key);
+            }
+            if (counter == null) {
+                counter = new long[1];
+                foldedStackCounts.put(key, counter);
+            }
+        }
+        counter[0] += count;
+    }
+
+    boolean isEmpty() {
+        return foldedStackCounts.isEmpty();
+    }
+
+    /**
+     * Writes the aggregated stacks in the folded stacks format, one stack per line.
+     */
+    void writeTo(Writer writer) throws IOException {
+        for (Map.Entry<String, long[]> entry : foldedStackCounts.entrySet()) {
+            writer.append(entry.getKey()).append(' ').append(Long.toString(entry.getValue()[0])).append('\n');
+        }
+    }
+
+    /**
+     * Removes the aggregated stacks, for example after they have been exported.
+     */
+    void clear() {
+        foldedStackCounts.clear();
+    }
+
+    /**
+     * @return the file in the provided directory the folded stacks exported at the provided time are written to
+     */
+    static File getExportFile(File dir, long timestamp) {
+        return new File(dir, String.format(FILE_PREFIX + "%tFT%<tH-%<tM-%<tS.%<tL" + FILE_SUFFIX, new Date(timestamp)));
+    }
+
+    /**
+     * Deletes the oldest {@linkplain #getExportFile exported files} in the provided directory so that at most {@code maxFiles} remain.
+     * As the file names start with the time of the export, the oldest files are the ones which sort first.
+     * Files which can't be deleted are retried on the next call.
+     *
+     * @return the files which have been deleted
+     */
+    static List<File> deleteOldestExportFiles(File dir, int maxFiles) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+            }
+        });
+        List<File> deleted = new ArrayList<>();
+        if (files == null || files.length <= maxFiles) {
+            return deleted;
+        }
+        Arrays.sort(files);
+        for (int i = 0; i < files.length - maxFiles; i++) {
+            if (files[i].delete()) {
+                deleted.add(files[i]);
+            }
+        }
+        return deleted;
+    }
+}
@@ -63,7 +63,7 @@ public class ProfilingActivationListener implements ActivationListener {
     public void afterDeactivate(AbstractSpan<?> deactivatedContext) {
         if (deactivatedContext.isSampled()) {
             AbstractSpan<?> active = tracer.getActive();
-            profiler.onDeactivation(deactivatedContext.getTraceContext(), active != null ? active.getTraceContext() : null);
+            profiler.onDeactivation(deactivatedContext.getTraceContext(), active != null ? active.getTraceContext() : null, deactivatedContext.getTransaction());
         }
     }
 
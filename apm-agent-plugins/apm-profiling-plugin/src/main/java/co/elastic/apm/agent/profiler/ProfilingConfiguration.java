@@ -24,14 +24,16 @@
  */
 package co.elastic.apm.agent.profiler;
 
-import co.elastic.apm.agent.configuration.converter.ListValueConverter;
+import co.elastic.apm.agent.configuration.converter.ByteValue;
+import co.elastic.apm.agent.configuration.converter.ByteValueConverter;
 import co.elastic.apm.agent.configuration.converter.TimeDuration;
 import co.elastic.apm.agent.configuration.converter.TimeDurationValueConverter;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
-import co.elastic.apm.agent.matcher.WildcardMatcherValueConverter;
+import co.elastic.apm.agent.matcher.WildcardMatcherListValueConverter;
 import org.stagemonitor.configuration.ConfigurationOption;
 import org.stagemonitor.configuration.ConfigurationOptionProvider;
 
+import javax.annotation.Nullable;
 import java.util.Arrays;
 import java.util.List;
 
@@ -101,7 +103,7 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(TimeDuration.of("0ms"));
 
     private final ConfigurationOption<List<WildcardMatcher>> includedClasses = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("profiling_inferred_spans_included_classes")
         .configurationCategory(PROFILING_CATEGORY)
         .description("If set, the agent will only create inferred spans for methods which match this list.\n" +
@@ -114,7 +116,7 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
         .buildWithDefault(WildcardMatcher.matchAllList());
 
     private final ConfigurationOption<List<WildcardMatcher>> excludedClasses = ConfigurationOption
-        .builder(new ListValueConverter<>(new WildcardMatcherValueConverter()), List.class)
+        .builder(new WildcardMatcherListValueConverter(), List.class)
         .key("profiling_inferred_spans_excluded_classes")
         .configurationCategory(PROFILING_CATEGORY)
         .description("Excludes classes for which no profiler-inferred spans should be created.\n" +
@@ -122,7 +124,7 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
             WildcardMatcher.DOCUMENTATION)
         .dynamic(true)
         .tags("added[1.15.0]")
-        .buildWithDefault(Arrays.asList(
+        .buildWithDefault(WildcardMatcher.compile(Arrays.asList(
             WildcardMatcher.caseSensitiveMatcher("java.*"),
             WildcardMatcher.caseSensitiveMatcher("javax.*"),
             WildcardMatcher.caseSensitiveMatcher("sun.*"),
@@ -136,7 +138,7 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
             WildcardMatcher.caseSensitiveMatcher("org.eclipse.jetty.*"),
             WildcardMatcher.caseSensitiveMatcher("com.ibm.websphere.*"),
             WildcardMatcher.caseSensitiveMatcher("io.undertow.*")
-        ));
+        )));
 
     private final ConfigurationOption<TimeDuration> profilerInterval = TimeDurationValueConverter.durationOption("s")
         .key("profiling_inferred_spans_interval")
@@ -163,6 +165,160 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
         .tags("added[1.15.0]", "internal")
         .buildWithDefault(TimeDuration.of("5s"));
 
+    private final ConfigurationOption<Boolean> streamingJfrParser = ConfigurationOption.<Boolean>booleanOption()
+        .key("profiling_inferred_spans_streaming_jfr_parser")
+        .configurationCategory(PROFILING_CATEGORY)
+        .description("When enabled, the stack trace events which async-profiler has already written to the JFR file are read\n" +
+            "while the profiling session is still ongoing, instead of reading all of them after the session has ended.\n" +
+            "Also, JFR files which are larger than 5MB are memory mapped instead of being read in small chunks.\n" +
+            "This reduces the time it takes to process the stack traces of busy applications.\n" +
+            "\n" +
+            "NOTE: Reading from a memory mapped file may increase the time-to-safepoint of the JVM if the disk is slow.")
+        .dynamic(false)
+        .tags("added[1.18.0]", "experimental")
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<Boolean> continuousProfiling = ConfigurationOption.<Boolean>booleanOption()
+        .key("profiling_inferred_spans_continuous")
+        .configurationCategory(PROFILING_CATEGORY)
+        .description("When enabled, async-profiler is not stopped between profiling sessions but keeps recording into two JFR files in turn.\n" +
+            "Each of these chunks lasts <<config-profiling-inferred-spans-duration, `profiling_inferred_spans_duration`>>\n" +
+            "and is processed in a background thread while the next chunk is being recorded.\n" +
+            "This means that inferred spans are created for all transactions,\n" +
+            "not only for the ones which happen to fall within a profiling session.\n" +
+            "<<config-profiling-inferred-spans-interval, `profiling_inferred_spans_interval`>> is ignored in this mode.\n" +
+            "\n" +
+            "To keep the overhead in check, the sampling interval is adjusted automatically so that the profiler stays within\n" +
+            "<<config-profiling-inferred-spans-cpu-budget, `profiling_inferred_spans_cpu_budget`>>.")
+        .dynamic(false)
+        .tags("added[1.18.0]", "experimental")
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<Double> cpuBudget = ConfigurationOption.doubleOption()
+        .key("profiling_inferred_spans_cpu_budget")
+        .configurationCategory(PROFILING_CATEGORY)
+        .description("The percentage of a single CPU core the profiler may use for recording and processing the chunks\n" +
+            "when <<config-profiling-inferred-spans-continuous, `profiling_inferred_spans_continuous`>> is enabled.\n" +
+            "If a chunk has taken more CPU time than that, the sampling interval of the next chunks is increased accordingly.\n" +
+            "If it has taken less than half of the budget, the sampling interval is decreased again,\n" +
+            "but never below <<config-profiling-inferred-spans-sampling-interval, `profiling_inferred_spans_sampling_interval`>>.\n" +
+            "The sampling interval is never increased beyond 1s.\n" +
+            "\n" +
+            "The budget only accounts for the CPU time of the profiler's own threads.\n" +
+            "The time it takes to sample the stack traces of the profiled threads is not included,\n" +
+            "so the total overhead of the profiler may be higher.\n" +
+            "If the JVM can't measure the CPU time of threads, the CPU time of the whole process is used instead,\n" +
+            "which may increase the sampling interval more than necessary.")
+        .dynamic(true)
+        .addValidator(isInRange(0.1d, 100d))
+        .tags("added[1.18.0]", "experimental")
+        .buildWithDefault(1d);
+
+    private final ConfigurationOption<String> foldedStacksDir = ConfigurationOption.stringOption()
+        .key("profiling_folded_stacks_dir")
+        .configurationCategory(PROFILING_CATEGORY)
+        .description("When set, the stack traces sampled by the profiler are additionally aggregated per service\n" +
+            "and periodically written to a file in this directory, in the folded stacks format.\n" +
+            "Each line contains the frames of a stack trace from the bottom to the top, separated by semicolons,\n" +
+            "followed by the number of times it has been sampled.\n" +
+            "These files can be rendered as flame graphs, for example with `flamegraph.pl` or https://www.speedscope.app/[speedscope].\n" +
+            "\n" +
+            "This requires <<config-profiling-inferred-spans-enabled, `profiling_inferred_spans_enabled`>>.\n" +
+            "Only the threads which are working on a transaction are sampled and the same\n" +
+            "<<config-profiling-inferred-spans-included-classes, `profiling_inferred_spans_included_classes`>> and\n" +
+            "<<config-profiling-inferred-spans-excluded-classes, `profiling_inferred_spans_excluded_classes`>> apply.\n" +
+            "Consider enabling <<config-profiling-inferred-spans-continuous, `profiling_inferred_spans_continuous`>>\n" +
+            "so that the profile covers all transactions.")
+        .dynamic(false)
+        .tags("added[1.18.0]", "experimental")
+        .build();
+
+    private final ConfigurationOption<TimeDuration> foldedStacksInterval = TimeDurationValueConverter.durationOption("s")
+        .key("profiling_folded_stacks_interval")
+        .configurationCategory(PROFILING_CATEGORY)
+        .description("The interval at which the aggregated stack traces are written to\n" +
+            "<<config-profiling-folded-stacks-dir, `profiling_folded_stacks_dir`>>.\n" +
+            "Each file contains the stack traces which have been sampled since the previous file has been written.")
+        .addValidator(min(TimeDuration.of("1s")))
+        .dynamic(true)
+        .tags("added[1.18.0]", "experimental")
+        .buildWithDefault(TimeDuration.of("60s"));
+
+    private final ConfigurationOption<Integer> foldedStacksMaxStacks = ConfigurationOption.integerOption()
+        .key("profiling_folded_stacks_max_stacks")
+        .configurationCategory(PROFILING_CATEGORY)
+        .description("The maximum number of distinct stack traces which are aggregated for\n" +
+            "<<config-profiling-folded-stacks-dir, `profiling_folded_stacks_dir`>> within an interval.\n" +
+            "Once the limit is reached, the samples of further stack traces are counted as `[other]` for the respective service.\n" +
+            "This limits the memory usage of the aggregation.")
+        .addValidator(min(1))
+        .dynamic(true)
+        .tags("added[1.18.0]", "experimental")
+        .buildWithDefault(10_000);
+
+    private final ConfigurationOption<Integer> foldedStacksMaxFiles = ConfigurationOption.integerOption()
+        .key("profiling_folded_stacks_max_files")
+        .configurationCategory(PROFILING_CATEGORY)
+        .description("The maximum number of files which are kept in\n" +
+            "<<config-profiling-folded-stacks-dir, `profiling_folded_stacks_dir`>>.\n" +
+            "After a file has been written, the oldest files are deleted until no more than this number remain.\n" +
+            "With the default interval of one minute, the default keeps the stack traces of the last hour.")
+        .addValidator(min(1))
+        .dynamic(true)
+        .tags("added[1.18.0]", "experimental")
+        .buildWithDefault(60);
+
+    private final ConfigurationOption<Boolean> allocationSampling = ConfigurationOption.<Boolean>booleanOption()
+        .key("profiling_allocation_sampling_enabled")
+        .configurationCategory(PROFILING_CATEGORY)
+        .description("When enabled, async-profiler samples allocations instead of the wall clock time of the threads working on a transaction.\n" +
+            "The sampled allocated bytes are attributed to the transaction which has been active on the allocating thread\n" +
+            "and reported as the metric `transaction.allocated.bytes`, per transaction name and type.\n" +
+            "In addition, the methods which allocated the most bytes within a transaction are reported as\n" +
+            "`transaction.allocation_hotspot.bytes`, with the method as the `allocation_hotspot` label,\n" +
+            "see <<config-profiling-allocation-hotspots, `profiling_allocation_hotspots`>>.\n" +
+            "\n" +
+            "This requires <<config-profiling-inferred-spans-enabled, `profiling_inferred_spans_enabled`>>.\n" +
+            "As async-profiler can only sample one kind of event at a time, no inferred spans are created while this is enabled.\n" +
+            "If <<config-profiling-folded-stacks-dir, `profiling_folded_stacks_dir`>> is set,\n" +
+            "the folded stacks contain the sampled allocated bytes instead of the number of samples.\n" +
+            "\n" +
+            "NOTE: The number of bytes is an estimation based on the samples.\n" +
+            "Consider enabling <<config-profiling-inferred-spans-continuous, `profiling_inferred_spans_continuous`>>\n" +
+            "so that the allocations of all transactions are sampled.")
+        .dynamic(false)
+        .tags("added[1.18.0]", "experimental")
+        .buildWithDefault(false);
+
+    private final ConfigurationOption<ByteValue> allocationSamplingInterval = ByteValueConverter.byteOption()
+        .key("profiling_allocation_sampling_interval")
+        .configurationCategory(PROFILING_CATEGORY)
+        .description("The number of bytes allocated on the heap after which async-profiler samples an allocation\n" +
+            "when <<config-profiling-allocation-sampling-enabled, `profiling_allocation_sampling_enabled`>> is enabled.\n" +
+            "The lower you set it, the more accurate the attribution of allocated bytes will be, at the expense of higher overhead.\n" +
+            "\n" +
+            "Allowed byte units are `b`, `kb` and `mb`. `1kb` is equal to `1024b`.")
+        .dynamic(true)
+        .tags("added[1.18.0]", "experimental")
+        .buildWithDefault(ByteValue.of("512kb"));
+
+    private final ConfigurationOption<Integer> allocationHotspots = ConfigurationOption.integerOption()
+        .key("profiling_allocation_hotspots")
+        .configurationCategory(PROFILING_CATEGORY)
+        .description("The maximum number of methods which are reported as the allocation hotspots of a transaction\n" +
+            "when <<config-profiling-allocation-sampling-enabled, `profiling_allocation_sampling_enabled`>> is enabled.\n" +
+            "The hotspot of an allocation is the top-most frame of its stack trace which is not excluded by\n" +
+            "<<config-profiling-inferred-spans-included-classes, `profiling_inferred_spans_included_classes`>> and\n" +
+            "<<config-profiling-inferred-spans-excluded-classes, `profiling_inferred_spans_excluded_classes`>>.\n" +
+            "Set to `0` to only report the allocated bytes per transaction.\n" +
+            "\n" +
+            "At most 250 distinct combinations of transaction name and hotspot are reported,\n" +
+            "so that the hotspots don't use up the metric sets which are available for other metrics.")
+        .addValidator(min(0))
+        .dynamic(true)
+        .tags("added[1.18.0]", "experimental")
+        .buildWithDefault(3);
+
     public boolean isProfilingEnabled() {
         return profilingEnabled.get();
     }
@@ -203,6 +359,47 @@ public class ProfilingConfiguration extends ConfigurationOptionProvider {
         return getProfilingDuration().getMillis() >= getProfilingInterval().getMillis();
     }
 
+    public boolean isStreamingJfrParser() {
+        return streamingJfrParser.get();
+    }
+
+    public boolean isContinuousProfiling() {
+        return continuousProfiling.get();
+    }
+
+    public double getCpuBudget() {
+        return cpuBudget.get();
+    }
+
+    @Nullable
+    public String getFoldedStacksDir() {
+        return foldedStacksDir.get();
+    }
+
+    public TimeDuration getFoldedStacksInterval() {
+        return foldedStacksInterval.get();
+    }
+
+    public int getFoldedStacksMaxStacks() {
+        return foldedStacksMaxStacks.get();
+    }
+
+    public int getFoldedStacksMaxFiles() {
+        return foldedStacksMaxFiles.get();
+    }
+
+    public boolean isAllocationSampling() {
+        return allocationSampling.get();
+    }
+
+    public ByteValue getAllocationSamplingInterval() {
+        return allocationSamplingInterval.get();
+    }
+
+    public int getAllocationHotspots() {
+        return allocationHotspots.get();
+    }
+
     public boolean isBackupDiagnosticFiles() {
         return backupDiagnosticFiles.get();
     }
@@ -31,16 +31,21 @@ import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.StackFrame;
 import co.elastic.apm.agent.impl.transaction.TraceContext;
+import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
+import co.elastic.apm.agent.metrics.Labels;
 import co.elastic.apm.agent.objectpool.Allocator;
 import co.elastic.apm.agent.objectpool.ObjectPool;
 import co.elastic.apm.agent.objectpool.impl.ListBasedObjectPool;
 import co.elastic.apm.agent.profiler.asyncprofiler.AsyncProfiler;
 import co.elastic.apm.agent.profiler.asyncprofiler.JfrParser;
 import co.elastic.apm.agent.profiler.collections.Long2ObjectHashMap;
+import co.elastic.apm.agent.profiler.collections.LongHashSet;
 import co.elastic.apm.agent.util.ExecutorUtils;
+import co.elastic.apm.agent.util.JmxUtils;
 import com.lmax.disruptor.EventFactory;
 import com.lmax.disruptor.EventPoller;
+import com.lmax.disruptor.EventTranslatorThreeArg;
 import com.lmax.disruptor.EventTranslatorTwoArg;
 import com.lmax.disruptor.RingBuffer;
 import com.lmax.disruptor.Sequence;
@@ -52,21 +57,30 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.LockSupport;
 
@@ -85,8 +99,8 @@ import static java.nio.file.StandardOpenOption.WRITE;
  * The {@link #onActivation} and {@link #onDeactivation} methods are called by {@link ProfilingActivationListener}
  * which register an {@link ActivationEvent} in to a {@linkplain #eventBuffer ring buffer} whenever a {@link Span}
  * gets {@link Span#activate()}d or {@link Span#deactivate()}d while a {@linkplain #profilingSessionOngoing profiling session is ongoing}.
- * A background thread consumes the {@link ActivationEvent}s and writes them to a {@linkplain #activationEventsBuffer direct buffer}
- * which is flushed to a {@linkplain #activationEventsFileChannel file}.
+ * A background thread consumes the {@link ActivationEvent}s and writes them to a {@linkplain Recording#activationEventsBuffer direct buffer}
+ * which is flushed to a {@linkplain Recording#activationEventsFileChannel file}.
  * That is necessary because within a profiling session (which lasts 10s by default) there may be many more {@link ActivationEvent}s
  * than the ring buffer can hold {@link #RING_BUFFER_SIZE}.
  * The file can hold {@link #ACTIVATION_EVENTS_IN_FILE} events and each is {@link ActivationEvent#SERIALIZED_SIZE} in size.
@@ -100,6 +114,26 @@ import static java.nio.file.StandardOpenOption.WRITE;
  * {@link AsyncProfiler#execute(String)}.
  * After the {@link ProfilingConfiguration#getProfilingDuration()} is over it stops the profiling and starts processing the JFR file created
  * by async-profiler with {@link JfrParser}.
+ * If {@link ProfilingConfiguration#isStreamingJfrParser()} is enabled,
+ * the stack trace events are already read from the JFR file while async-profiler is still recording.
+ * </p>
+ * <p>
+ * In {@linkplain ProfilingConfiguration#isContinuousProfiling() continuous mode},
+ * there are two {@link Recording}s which are used in turn.
+ * After a chunk has been recorded, async-profiler is immediately restarted with the other {@link Recording}
+ * and the chunk is processed by a separate thread while the next one is being recorded.
+ * The sampling interval is {@linkplain #adaptSamplingInterval adapted} to the CPU time the threads which record and process a chunk take.
+ * </p>
+ * <p>
+ * If {@link ProfilingConfiguration#getFoldedStacksDir()} is set,
+ * the stack traces of the profiled threads are also aggregated into {@link FoldedStacks} which are periodically written to a file.
+ * </p>
+ * <p>
+ * If {@link ProfilingConfiguration#isAllocationSampling()} is enabled, async-profiler samples allocations instead of the wall clock time.
+ * The sampled bytes are correlated with the {@link ActivationEvent}s the same way, but instead of building a {@link CallTree},
+ * they are added to the {@link AllocationSamples} of the {@link CallTree.Root}.
+ * These are reported as metrics when the root is deactivated,
+ * which is why the deactivation events of roots carry the name and type of the transaction.
  * </p>
  * <p>
  * Correlating {@link ActivationEvent}s with the traces recorded by {@link AsyncProfiler}:
@@ -119,7 +153,7 @@ import static java.nio.file.StandardOpenOption.WRITE;
  * {@link ProfilingConfiguration#getProfilingInterval()} and {@link ProfilingConfiguration#getSamplingInterval()}.
  * Having said that, there are some optimizations so that the JFR file is not processed at all if there have not been any
  * {@link ActivationEvent} in a given profiling session.
- * Also, only if there's a {@link CallTree.Root} for a {@link StackTraceEvent},
+ * Also, only if there's a {@link CallTree.Root} for a stack trace event,
  * we will {@link JfrParser#resolveStackTrace(long, boolean, List, int) resolve the full stack trace}.
  * </p>
  */
@@ -131,6 +165,8 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     private static final int PRE_ALLOCATE_ACTIVATION_EVENTS_FILE_MB = 10;
     private static final int MAX_ACTIVATION_EVENTS_FILE_SIZE = ACTIVATION_EVENTS_IN_FILE * ActivationEvent.SERIALIZED_SIZE;
     private static final int ACTIVATION_EVENTS_BUFFER_SIZE = ActivationEvent.SERIALIZED_SIZE * 4 * 1024;
+    private static final long JFR_POLL_INTERVAL_MS = 1000;
+    private static final long MAX_SAMPLING_INTERVAL_MS = 1000;
     private final EventTranslatorTwoArg<ActivationEvent, TraceContext, TraceContext> ACTIVATION_EVENT_TRANSLATOR =
         new EventTranslatorTwoArg<ActivationEvent, TraceContext, TraceContext>() {
             @Override
@@ -138,11 +174,11 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
                 event.activation(active, Thread.currentThread().getId(), previouslyActive, nanoClock.nanoTime());
             }
         };
-    private final EventTranslatorTwoArg<ActivationEvent, TraceContext, TraceContext> DEACTIVATION_EVENT_TRANSLATOR =
-        new EventTranslatorTwoArg<ActivationEvent, TraceContext, TraceContext>() {
+    private final EventTranslatorThreeArg<ActivationEvent, TraceContext, TraceContext, Transaction> DEACTIVATION_EVENT_TRANSLATOR =
+        new EventTranslatorThreeArg<ActivationEvent, TraceContext, TraceContext, Transaction>() {
             @Override
-            public void translateTo(ActivationEvent event, long sequence, TraceContext active, TraceContext previouslyActive) {
-                event.deactivation(active, Thread.currentThread().getId(), previouslyActive, nanoClock.nanoTime());
+            public void translateTo(ActivationEvent event, long sequence, TraceContext active, TraceContext previouslyActive, Transaction transaction) {
+                event.deactivation(active, Thread.currentThread().getId(), previouslyActive, nanoClock.nanoTime(), transaction);
             }
         };
     // sizeof(ActivationEvent) is 176B so the ring buffer should be around 880KiB
@@ -160,19 +196,54 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     private final ObjectPool<CallTree.Root> rootPool;
     private final ThreadMatcher threadMatcher = new ThreadMatcher();
     private final EventPoller<ActivationEvent> poller;
-    private final File jfrFile;
     private final WriteActivationEventToFileHandler writeActivationEventToFileHandler = new WriteActivationEventToFileHandler();
     @Nullable
     private JfrParser jfrParser;
+    private final StackTraceEventBuffer stackTraceEvents = new StackTraceEventBuffer();
+    /**
+     * The position in the {@link Recording#jfrFile} up to which the stack trace events have been read while async-profiler is still recording
+     */
+    private long jfrFileStreamedPosition;
     private volatile int profilingSessions;
 
-    private final ByteBuffer activationEventsBuffer;
     /**
-     * Used to efficiently write {@link #activationEventsBuffer} via {@link FileChannel#write(ByteBuffer)}
+     * The files the current profiling session is recorded to
+     */
+    private Recording recording;
+    /**
+     * In continuous mode, the files of the previous chunk which are processed while the current one is recorded
      */
-    private final FileChannel activationEventsFileChannel;
+    @Nullable
+    private Recording standbyRecording;
+    @Nullable
+    private ThreadPoolExecutor processingExecutor;
+    /**
+     * The threads with an active root span, according to the activation events written to the file.
+     * In continuous mode, {@link #profiledThreads} is owned by the processing thread,
+     * so this is what the thread filter of async-profiler is restored from after a chunk has been rotated.
+     */
+    private final LongHashSet threadsWithActiveRoot = new LongHashSet();
+    /**
+     * The sampling interval of the next chunk in continuous mode
+     */
+    private volatile long adaptiveSamplingIntervalMs;
+    /**
+     * Whether the CPU time of the threads which record and process the chunks in continuous mode can be measured
+     */
+    private final boolean threadCpuTimeSupported;
+    /**
+     * If {@link #threadCpuTimeSupported} is {@code false}, the CPU time of the whole process is used as an upper bound
+     */
+    @Nullable
+    private final Method processCpuTime;
+    private boolean cpuTimeUnsupportedLogged;
+    @Nullable
+    private FoldedStacks foldedStacks;
+    private long nextFoldedStacksExport;
     private final ObjectPool<CallTree> callTreePool;
     private final TraceContext contextForLogging;
+    private final Labels.Mutable allocationLabels = Labels.Mutable.of();
+    private final AllocationSamples.HotspotBudget allocationHotspotBudget = new AllocationSamples.HotspotBudget(AllocationSamples.MAX_HOTSPOT_METRIC_SETS);
 
     public SamplingProfiler(ElasticApmTracer tracer, NanoClock nanoClock) throws IOException {
         this(tracer,
@@ -207,16 +278,15 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
                 return new CallTree.Root(tracer);
             }
         });
-        this.jfrFile = jfrFile;
-        activationEventsBuffer = ByteBuffer.allocateDirect(ACTIVATION_EVENTS_BUFFER_SIZE);
-        activationEventsFileChannel = FileChannel.open(activationEventsFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
-        if (activationEventsFileChannel.size() == 0) {
-            preAllocate(activationEventsFileChannel, PRE_ALLOCATE_ACTIVATION_EVENTS_FILE_MB);
-        }
+        this.recording = new Recording(activationEventsFile, jfrFile, false);
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        this.threadCpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled();
+        this.processCpuTime = threadCpuTimeSupported ? null : JmxUtils.getOperatingSystemMBeanMethod(ManagementFactory.getOperatingSystemMXBean(), "getProcessCpuTime");
     }
 
     // visible for benchmarks
     public void skipToEndOfActivationEventsFile() throws IOException {
+        FileChannel activationEventsFileChannel = recording.activationEventsFileChannel;
         activationEventsFileChannel.position(activationEventsFileChannel.size());
     }
 
@@ -282,11 +352,27 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
      * @return {@code true}, if the event could be processed, {@code false} if the internal event queue is full which means the event has been discarded
      */
     public boolean onDeactivation(TraceContext activeSpan, @Nullable TraceContext previouslyActive) {
+        return onDeactivation(activeSpan, previouslyActive, null);
+    }
+
+    /**
+     * Called whenever a span is deactivated.
+     *
+     * @param activeSpan       the span which is about to be activated
+     * @param previouslyActive the span which has previously been activated
+     * @param transaction      the transaction of the deactivated span,
+     *                         its name and type are recorded if it's the root of the thread and allocations are sampled
+     * @return {@code true}, if the event could be processed, {@code false} if the internal event queue is full which means the event has been discarded
+     */
+    public boolean onDeactivation(TraceContext activeSpan, @Nullable TraceContext previouslyActive, @Nullable Transaction transaction) {
         if (profilingSessionOngoing) {
             if (previouslyActive == null) {
                 AsyncProfiler.getInstance().disableProfilingCurrentThread();
             }
-            boolean success = eventBuffer.tryPublishEvent(DEACTIVATION_EVENT_TRANSLATOR, activeSpan, previouslyActive);
+            if (previouslyActive != null || !config.isAllocationSampling()) {
+                transaction = null;
+            }
+            boolean success = eventBuffer.tryPublishEvent(DEACTIVATION_EVENT_TRANSLATOR, activeSpan, previouslyActive, transaction);
             if (!success && logger.isDebugEnabled()) {
                 logger.debug("Could not add deactivation event to ring buffer as no slots are available");
             }
@@ -298,6 +384,7 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     @Override
     public void run() {
         if (config.isProfilingDisabled() || !tracer.isRunning()) {
+            awaitProcessing();
             if (jfrParser != null) {
                 jfrParser = null;
                 rootPool.clear();
@@ -312,10 +399,16 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
 
         setProfilingSessionOngoing(true);
 
+        boolean continuousProfiling = config.isContinuousProfiling();
         logger.debug("Start profiling session");
         try {
-            profile(sampleRate, profilingDuration);
+            if (continuousProfiling) {
+                recordChunk(profilingDuration);
+            } else {
+                profile(sampleRate, profilingDuration);
+            }
         } catch (Throwable t) {
+            awaitProcessing();
             setProfilingSessionOngoing(false);
             logger.error("Stopping profiler", t);
             return;
@@ -323,11 +416,15 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         logger.debug("End profiling session");
 
         boolean interrupted = Thread.currentThread().isInterrupted();
-        boolean continueProfilingSession = config.isNonStopProfiling() && !interrupted && config.isProfilingEnabled();
+        boolean continueProfilingSession = (continuousProfiling || config.isNonStopProfiling()) && !interrupted && config.isProfilingEnabled();
+        if (!continueProfilingSession) {
+            // the processing thread must be done with the profiled threads before they can be cleared
+            awaitProcessing();
+        }
         setProfilingSessionOngoing(continueProfilingSession);
 
         if (!interrupted) {
-            long delay = config.getProfilingInterval().getMillis() - profilingDuration.getMillis();
+            long delay = continuousProfiling ? 0 : config.getProfilingInterval().getMillis() - profilingDuration.getMillis();
             scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
         }
     }
@@ -335,13 +432,13 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     private void profile(TimeDuration sampleRate, TimeDuration profilingDuration) throws Exception {
         AsyncProfiler asyncProfiler = AsyncProfiler.getInstance();
         try {
-            String startCommand = "start,jfr,event=wall,cstack=n,interval=" + sampleRate.getMillis() + "ms,filter,file=" + jfrFile + ",safemode=" + config.getAsyncProfilerSafeMode();
-            String startMessage = asyncProfiler.execute(startCommand);
+            String startMessage = asyncProfiler.execute(getStartCommand(sampleRate.getMillis(), recording));
             logger.debug(startMessage);
             if (!profiledThreads.isEmpty()) {
-                restoreFilterState(asyncProfiler);
+                restoreFilterState(asyncProfiler, profiledThreads.keySet());
             }
             profilingSessions++;
+            resetStackTraceEvents();
 
             consumeActivationEventsFromRingBufferAndWriteToFile(profilingDuration);
 
@@ -349,6 +446,7 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             logger.debug(stopMessage);
 
             processTraces();
+            exportFoldedStacksIfDue();
         } catch (InterruptedException | ClosedByInterruptException e) {
             try {
                 asyncProfiler.stop();
@@ -358,17 +456,167 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         }
     }
 
+    private String getStartCommand(long samplingIntervalMs, Recording recording) {
+        File jfrFile = recording.jfrFile;
+        if (config.isAllocationSampling()) {
+            // in continuous mode, the allocation interval is scaled by the same factor as the adapted sampling interval
+            long allocationIntervalBytes = config.getAllocationSamplingInterval().getBytes() * samplingIntervalMs / config.getSamplingInterval().getMillis();
+            recording.allocationSamplingIntervalBytes = allocationIntervalBytes;
+            return "start,jfr,event=alloc,cstack=n,interval=" + allocationIntervalBytes + ",filter,file=" + jfrFile + ",safemode=" + config.getAsyncProfilerSafeMode();
+        }
+        recording.allocationSamplingIntervalBytes = 0;
+        return "start,jfr,event=wall,cstack=n,interval=" + samplingIntervalMs + "ms,filter,file=" + jfrFile + ",safemode=" + config.getAsyncProfilerSafeMode();
+    }
+
     /**
-     * When doing continuous profiling (interval=duration),
-     * we have to tell async-profiler which threads it should profile after re-starting it.
+     * Records a chunk in continuous mode and hands it over to the processing thread.
+     * <p>
+     * While this chunk is being recorded, the previous chunk is processed.
+     * Before recording, this waits for the processing of the chunk which has been recorded to the same files before,
+     * which means that recording is throttled if processing can't keep up.
+     * </p>
      */
-    private void restoreFilterState(AsyncProfiler asyncProfiler) {
-        threadMatcher.forEachThread(new ThreadMatcher.NonCapturingPredicate<Thread, Long2ObjectHashMap<?>.KeySet>() {
+    private void recordChunk(TimeDuration profilingDuration) throws Exception {
+        AsyncProfiler asyncProfiler = AsyncProfiler.getInstance();
+        try {
+            Recording recording = this.recording;
+            awaitProcessing(recording);
+            long samplingIntervalMs = Math.max(adaptiveSamplingIntervalMs, config.getSamplingInterval().getMillis());
+            String startMessage = asyncProfiler.execute(getStartCommand(samplingIntervalMs, recording));
+            logger.debug(startMessage);
+            if (!threadsWithActiveRoot.isEmpty()) {
+                restoreFilterState(asyncProfiler, threadsWithActiveRoot);
+            }
+            profilingSessions++;
+            long start = System.nanoTime();
+            long cpuTimeStart = getCurrentThreadCpuTime();
+            long processCpuTimeStart = threadCpuTimeSupported ? -1 : getProcessCpuTime();
+
+            consumeActivationEventsFromRingBufferAndWriteToFile(profilingDuration);
+
+            String stopMessage = asyncProfiler.execute("stop");
+            logger.debug(stopMessage);
+
+            this.recording = getStandbyRecording();
+            this.standbyRecording = recording;
+            recording.processing = getProcessingExecutor().submit(new ProcessChunkTask(recording, samplingIntervalMs,
+                start, System.nanoTime() - start, getCurrentThreadCpuTime() - cpuTimeStart, processCpuTimeStart));
+        } catch (InterruptedException | ClosedByInterruptException e) {
+            try {
+                asyncProfiler.stop();
+            } catch (IllegalStateException ignore) {
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Recording getStandbyRecording() throws IOException {
+        if (standbyRecording == null) {
+            standbyRecording = new Recording(File.createTempFile("apm-activation-events-", ".bin"), File.createTempFile("apm-traces-", ".jfr"), true);
+        }
+        return standbyRecording;
+    }
+
+    private ThreadPoolExecutor getProcessingExecutor() {
+        if (processingExecutor == null) {
+            // there's at most one chunk being processed and one waiting to be processed
+            processingExecutor = ExecutorUtils.createSingleThreadDeamonPool("sampling-profiler-processing", 2);
+        }
+        return processingExecutor;
+    }
+
+    /**
+     * Waits until all chunks recorded in continuous mode have been processed.
+     */
+    private void awaitProcessing() {
+        awaitProcessing(recording);
+        if (standbyRecording != null) {
+            awaitProcessing(standbyRecording);
+        }
+    }
+
+    private void awaitProcessing(Recording recording) {
+        Future<?> processing = recording.processing;
+        if (processing == null) {
+            return;
+        }
+        try {
+            processing.get();
+        } catch (InterruptedException e) {
+            // the processing thread is interrupted as well when stopping the profiler
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.warn("Failed to process profiling chunk", e.getCause());
+        }
+        recording.processing = null;
+    }
+
+    /**
+     * Adjusts the sampling interval of the next chunks so that the CPU time it takes to record and process a chunk
+     * stays within the {@linkplain ProfilingConfiguration#getCpuBudget() budget}.
+     * <p>
+     * The processing time mostly depends on the number of stack traces, which is inversely proportional to the sampling interval.
+     * The CPU time async-profiler takes on the sampled threads is not included,
+     * so the budget is a target for the profiler's own threads rather than a limit of its total overhead.
+     * </p>
+     *
+     * @param samplingIntervalMs the sampling interval the chunk has been recorded with
+     * @param cpuTimeNs          the CPU time it took to record and process the chunk
+     * @param durationNs         the wall clock duration of the chunk
+     */
+    void adaptSamplingInterval(long samplingIntervalMs, long cpuTimeNs, long durationNs) {
+        double budget = config.getCpuBudget() / 100;
+        double utilization = (double) cpuTimeNs / durationNs;
+        long nextSamplingIntervalMs = samplingIntervalMs;
+        if (utilization > budget) {
+            nextSamplingIntervalMs = (long) Math.ceil(samplingIntervalMs * utilization / budget);
+        } else if (utilization < budget / 2) {
+            nextSamplingIntervalMs = samplingIntervalMs / 2;
+        }
+        nextSamplingIntervalMs = Math.min(MAX_SAMPLING_INTERVAL_MS, Math.max(config.getSamplingInterval().getMillis(), nextSamplingIntervalMs));
+        if (nextSamplingIntervalMs != samplingIntervalMs && logger.isDebugEnabled()) {
+            logger.debug("Profiling took {}% CPU, changing sampling interval from {}ms to {}ms",
+                String.format("%.2f", utilization * 100), samplingIntervalMs, nextSamplingIntervalMs);
+        }
+        adaptiveSamplingIntervalMs = nextSamplingIntervalMs;
+    }
+
+    long getAdaptiveSamplingIntervalMs() {
+        return adaptiveSamplingIntervalMs;
+    }
+
+    private static long getCurrentThreadCpuTime() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean.isCurrentThreadCpuTimeSupported()) {
+            return threadMXBean.getCurrentThreadCpuTime();
+        }
+        return 0;
+    }
+
+    /**
+     * @return the CPU time of the whole process in nanoseconds, or {@code -1} if it can't be determined
+     */
+    private long getProcessCpuTime() {
+        if (processCpuTime != null) {
+            try {
+                return ((Number) processCpuTime.invoke(ManagementFactory.getOperatingSystemMXBean())).longValue();
+            } catch (Exception ignore) {
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * After re-starting async-profiler, we have to tell it which threads it should profile,
+     * as the thread filter is reset.
+     */
+    private void restoreFilterState(AsyncProfiler asyncProfiler, Set<Long> threadIds) {
+        threadMatcher.forEachThread(new ThreadMatcher.NonCapturingPredicate<Thread, Set<Long>>() {
             @Override
-            public boolean test(Thread thread, Long2ObjectHashMap<?>.KeySet profiledThreads) {
-                return profiledThreads.contains(thread.getId());
+            public boolean test(Thread thread, Set<Long> threadIds) {
+                return threadIds.contains(thread.getId());
             }
-        }, profiledThreads.keySet(), new ThreadMatcher.NonCapturingConsumer<Thread, AsyncProfiler>() {
+        }, threadIds, new ThreadMatcher.NonCapturingConsumer<Thread, AsyncProfiler>() {
             @Override
             public void accept(Thread thread, AsyncProfiler asyncProfiler) {
                 asyncProfiler.enableProfilingThread(thread);
@@ -378,11 +626,20 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
 
     private void consumeActivationEventsFromRingBufferAndWriteToFile(TimeDuration profilingDuration) throws Exception {
         resetActivationEventBuffer();
+        FileChannel activationEventsFileChannel = recording.activationEventsFileChannel;
         long threshold = System.currentTimeMillis() + profilingDuration.getMillis();
         long initialSleep = 100_000;
         long maxSleep = 10_000_000;
         long sleep = initialSleep;
+        // in continuous mode, the stack trace events are owned by the processing thread
+        boolean streamingJfrParser = config.isStreamingJfrParser() && !config.isContinuousProfiling();
+        long jfrPollInterval = Math.min(JFR_POLL_INTERVAL_MS, profilingDuration.getMillis() / 4);
+        long nextJfrPoll = System.currentTimeMillis() + jfrPollInterval;
         while (System.currentTimeMillis() < threshold && !Thread.currentThread().isInterrupted()) {
+            if (streamingJfrParser && System.currentTimeMillis() >= nextJfrPoll) {
+                consumeFlushedStackTraces();
+                nextJfrPoll = System.currentTimeMillis() + jfrPollInterval;
+            }
             if (activationEventsFileChannel.position() < MAX_ACTIVATION_EVENTS_FILE_SIZE) {
                 EventPoller.PollState poll = consumeActivationEventsFromRingBufferAndWriteToFile();
                 if (poll == EventPoller.PollState.PROCESSING) {
@@ -406,27 +663,59 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         return poller.poll(writeActivationEventToFileHandler);
     }
 
-    public void processTraces() throws IOException {
+    /**
+     * Reads the stack trace events async-profiler has flushed to the JFR file so far,
+     * so that only the remaining ones have to be read after the profiling session has ended.
+     */
+    private void consumeFlushedStackTraces() {
+        try {
+            JfrParser jfrParser = getJfrParser();
+            jfrParser.setAllocationSamplingInterval(recording.allocationSamplingIntervalBytes);
+            jfrFileStreamedPosition = jfrParser.consumeFlushedStackTraces(recording.jfrFile, jfrFileStreamedPosition, stackTraceEvents);
+        } catch (Exception e) {
+            logger.debug("Failed to read stack traces while recording. Reading all of them after the recording has ended.", e);
+            resetStackTraceEvents();
+        }
+    }
+
+    private void resetStackTraceEvents() {
+        stackTraceEvents.clear();
+        jfrFileStreamedPosition = 0;
+    }
+
+    private JfrParser getJfrParser() {
         if (jfrParser == null) {
-            jfrParser = new JfrParser();
+            jfrParser = new JfrParser(config.isStreamingJfrParser());
         }
+        return jfrParser;
+    }
+
+    public void processTraces() throws IOException {
+        processTraces(recording);
+    }
+
+    private void processTraces(Recording recording) throws IOException {
+        JfrParser jfrParser = getJfrParser();
         if (Thread.currentThread().isInterrupted()) {
             return;
         }
-        long eof = startProcessingActivationEventsFile();
-        if (eof == 0 && activationEventsBuffer.limit() == 0 && profiledThreads.isEmpty()) {
+        long eof = recording.startProcessingActivationEventsFile();
+        if (eof == 0 && recording.activationEventsBuffer.limit() == 0 && profiledThreads.isEmpty()) {
             logger.debug("No activation events during this period. Skip processing stack traces.");
             return;
         }
         long start = System.nanoTime();
         List<WildcardMatcher> excludedClasses = config.getExcludedClasses();
         List<WildcardMatcher> includedClasses = config.getIncludedClasses();
+        FoldedStacks foldedStacks = getFoldedStacks();
+        boolean allocationSampling = config.isAllocationSampling();
         if (config.isBackupDiagnosticFiles()) {
-            backupDiagnosticFiles(eof);
+            backupDiagnosticFiles(recording, eof);
         }
         try {
-            jfrParser.parse(jfrFile, excludedClasses, includedClasses);
-            final List<StackTraceEvent> stackTraceEvents = getSortedStackTraceEvents(jfrParser);
+            jfrParser.parse(recording.jfrFile, excludedClasses, includedClasses);
+            jfrParser.setAllocationSamplingInterval(recording.allocationSamplingIntervalBytes);
+            StackTraceEventBuffer stackTraceEvents = getSortedStackTraceEvents(jfrParser);
             if (logger.isDebugEnabled()) {
                 logger.debug("Processing {} stack traces", stackTraceEvents.size());
             }
@@ -434,11 +723,28 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             ElasticApmTracer tracer = this.tracer;
             ActivationEvent event = new ActivationEvent();
             long inferredSpansMinDuration = getInferredSpansMinDurationNs();
-            for (StackTraceEvent stackTrace : stackTraceEvents) {
-                processActivationEventsUpTo(stackTrace.nanoTime, event, eof);
-                CallTree.Root root = profiledThreads.get(stackTrace.threadId);
+            for (int i = 0, size = stackTraceEvents.size(); i < size; i++) {
+                long threadId = stackTraceEvents.getThreadId(i);
+                if (threadId == -1) {
+                    continue;
+                }
+                long nanoTime = stackTraceEvents.getNanoTime(i);
+                processActivationEventsUpTo(recording, nanoTime, event, eof);
+                CallTree.Root root = profiledThreads.get(threadId);
                 if (root != null) {
-                    jfrParser.resolveStackTrace(stackTrace.stackTraceId, true, stackFrames, MAX_STACK_DEPTH);
+                    long stackTraceId = stackTraceEvents.getStackTraceId(i);
+                    long allocatedBytes = stackTraceEvents.getAllocatedBytes(i);
+                    if (foldedStacks != null) {
+                        String serviceName = root.getRootContext().getServiceName();
+                        foldedStacks.addSample(serviceName != null ? serviceName : coreConfig.getServiceName(), stackTraceId,
+                            allocationSampling ? allocatedBytes : 1);
+                    }
+                    if (allocationSampling) {
+                        // allocation samples don't say anything about the duration of method calls, so no call tree is built
+                        root.getAllocationSamples().add(jfrParser.resolveTopFrame(stackTraceId, true), allocatedBytes);
+                        continue;
+                    }
+                    jfrParser.resolveStackTrace(stackTraceId, true, stackFrames, MAX_STACK_DEPTH);
                     if (stackFrames.size() == MAX_STACK_DEPTH) {
                         logger.debug("Max stack depth reached. Set profiling_included_classes or profiling_excluded_classes.");
                     }
@@ -446,12 +752,12 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
                     // see https://github.com/jvm-profiling-tools/async-profiler/issues/271#issuecomment-582430233
                     if (!stackFrames.isEmpty()) {
                         try {
-                            root.addStackTrace(tracer, stackFrames, stackTrace.nanoTime, callTreePool, inferredSpansMinDuration);
+                            root.addStackTrace(tracer, stackFrames, nanoTime, callTreePool, inferredSpansMinDuration);
                         } catch (Exception e) {
                             logger.warn("Removing call tree for thread {} because of exception while adding a stack trace: {} {}",
-                                stackTrace.threadId, e.getClass(), e.getMessage());
+                                threadId, e.getClass(), e.getMessage());
                             logger.debug(e.getMessage(), e);
-                            profiledThreads.remove(stackTrace.threadId);
+                            profiledThreads.remove(threadId);
                         }
                     }
                 }
@@ -459,17 +765,26 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             }
             // process all activation events that happened after the last stack trace event
             // otherwise we may miss root deactivations
-            processActivationEventsUpTo(System.nanoTime(), event, eof);
+            processActivationEventsUpTo(recording, System.nanoTime(), event, eof);
+            if (foldedStacks != null) {
+                foldedStacks.aggregateSession(jfrParser, MAX_STACK_DEPTH, config.getFoldedStacksMaxStacks());
+            }
         } finally {
             if (logger.isDebugEnabled()) {
                 logger.debug("Processing traces took {}µs", (System.nanoTime() - start) / 1000);
             }
             jfrParser.resetState();
-            resetActivationEventBuffer();
+            resetStackTraceEvents();
+            recording.resetActivationEventBuffer();
+            if (foldedStacks != null) {
+                foldedStacks.resetSession();
+            }
         }
     }
 
-    private void backupDiagnosticFiles(long eof) throws IOException {
+    private void backupDiagnosticFiles(Recording recording, long eof) throws IOException {
+        FileChannel activationEventsFileChannel = recording.activationEventsFileChannel;
+        ByteBuffer activationEventsBuffer = recording.activationEventsBuffer;
         String now = String.format("%tFT%<tT.%<tL", new Date());
         Path profilerDir = Paths.get(System.getProperty("java.io.tmpdir"), "profiler");
         profilerDir.toFile().mkdir();
@@ -483,7 +798,64 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
                 activationEventsBuffer.position(position);
             }
         }
-        Files.copy(jfrFile.toPath(), profilerDir.resolve(now + "-traces.jfr"));
+        Files.copy(recording.jfrFile.toPath(), profilerDir.resolve(now + "-traces.jfr"));
+    }
+
+    @Nullable
+    private FoldedStacks getFoldedStacks() {
+        if (foldedStacks == null && config.getFoldedStacksDir() != null) {
+            foldedStacks = new FoldedStacks();
+            nextFoldedStacksExport = System.currentTimeMillis() + config.getFoldedStacksInterval().getMillis();
+        }
+        return foldedStacks;
+    }
+
+    /**
+     * Writes the {@link FoldedStacks} aggregated since the last export to a new file in {@link ProfilingConfiguration#getFoldedStacksDir()}
+     * if {@link ProfilingConfiguration#getFoldedStacksInterval()} has elapsed,
+     * and deletes the oldest files beyond {@link ProfilingConfiguration#getFoldedStacksMaxFiles()}.
+     */
+    private void exportFoldedStacksIfDue() {
+        FoldedStacks foldedStacks = this.foldedStacks;
+        String foldedStacksDir = config.getFoldedStacksDir();
+        long now = System.currentTimeMillis();
+        if (foldedStacks == null || foldedStacksDir == null || now < nextFoldedStacksExport) {
+            return;
+        }
+        nextFoldedStacksExport = now + config.getFoldedStacksInterval().getMillis();
+        if (foldedStacks.isEmpty()) {
+            return;
+        }
+        File dir = new File(foldedStacksDir);
+        dir.mkdirs();
+        File file = FoldedStacks.getExportFile(dir, now);
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            foldedStacks.writeTo(writer);
+            logger.debug("Exported folded stacks to {}", file);
+        } catch (IOException e) {
+            logger.warn("Failed to export folded stacks to " + file, e);
+        } finally {
+            foldedStacks.clear();
+        }
+        for (File deleted : FoldedStacks.deleteOldestExportFiles(dir, config.getFoldedStacksMaxFiles())) {
+            logger.debug("Deleted folded stacks file {} as there are more than {} files", deleted, config.getFoldedStacksMaxFiles());
+        }
+    }
+
+    /**
+     * Reports the {@link AllocationSamples} of a root which has just been deactivated as metrics of its transaction.
+     */
+    private void reportAllocations(CallTree.Root root, CharSequence transactionName, @Nullable String transactionType) {
+        AllocationSamples allocationSamples = root.getAllocationSamples();
+        if (allocationSamples.isEmpty()) {
+            return;
+        }
+        if (transactionName.length() == 0) {
+            logger.debug("Discarding {} sampled allocated bytes as the name of the transaction is unknown", allocationSamples.getAllocatedBytes());
+            return;
+        }
+        allocationSamples.report(tracer.getMetricRegistry(), allocationLabels, transactionName, transactionType, config.getAllocationHotspots(),
+            allocationHotspotBudget);
     }
 
     private long getInferredSpansMinDurationNs() {
@@ -498,15 +870,12 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
      *
      * Returns only events for threads where at least one activation happened (because only those are profiled by async-profiler)
      */
-    private List<StackTraceEvent> getSortedStackTraceEvents(JfrParser jfrParser) throws IOException {
-        final List<StackTraceEvent> stackTraceEvents = new ArrayList<>();
-        jfrParser.consumeStackTraces(new JfrParser.StackTraceConsumer() {
-            @Override
-            public void onCallTree(long threadId, long stackTraceId, long nanoTime) {
-                stackTraceEvents.add(new StackTraceEvent(nanoTime, stackTraceId, threadId));
-            }
-        });
-        Collections.sort(stackTraceEvents);
+    private StackTraceEventBuffer getSortedStackTraceEvents(JfrParser jfrParser) throws IOException {
+        StackTraceEventBuffer stackTraceEvents = this.stackTraceEvents;
+        // the events which have been read while async-profiler was still recording only have the native thread id
+        stackTraceEvents.resolveJavaThreadIds(jfrParser);
+        jfrParser.consumeStackTraces(jfrFileStreamedPosition, stackTraceEvents);
+        stackTraceEvents.sort();
         return stackTraceEvents;
     }
 
@@ -515,8 +884,12 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     }
 
     public void processActivationEventsUpTo(long timestamp, ActivationEvent event, long eof) throws IOException {
-        FileChannel activationEventsFileChannel = this.activationEventsFileChannel;
-        ByteBuffer buf = activationEventsBuffer;
+        processActivationEventsUpTo(recording, timestamp, event, eof);
+    }
+
+    private void processActivationEventsUpTo(Recording recording, long timestamp, ActivationEvent event, long eof) throws IOException {
+        FileChannel activationEventsFileChannel = recording.activationEventsFileChannel;
+        ByteBuffer buf = recording.activationEventsBuffer;
         long previousTimestamp = 0;
         while (buf.hasRemaining() || activationEventsFileChannel.position() < eof) {
             if (!buf.hasRemaining()) {
@@ -564,37 +937,20 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     }
 
     public void resetActivationEventBuffer() throws IOException {
-        ((Buffer) activationEventsBuffer).clear();
-        activationEventsFileChannel.position(0L);
-    }
-
-    private void flushActivationEvents() throws IOException {
-        if (activationEventsBuffer.position() > 0) {
-            ((Buffer) activationEventsBuffer).flip();
-            activationEventsFileChannel.write(activationEventsBuffer);
-            ((Buffer) activationEventsBuffer).clear();
-        }
+        recording.resetActivationEventBuffer();
     }
 
     long startProcessingActivationEventsFile() throws IOException {
-        Buffer activationEventsBuffer = this.activationEventsBuffer;
-        if (activationEventsFileChannel.position() > 0) {
-            flushActivationEvents();
-            activationEventsBuffer.limit(0);
-        } else {
-            activationEventsBuffer.flip();
-        }
-        long eof = activationEventsFileChannel.position();
-        activationEventsFileChannel.position(0);
-        return eof;
+        return recording.startProcessingActivationEventsFile();
     }
 
     void copyFromFiles(Path activationEvents, Path traces) throws IOException {
+        FileChannel activationEventsFileChannel = recording.activationEventsFileChannel;
         FileChannel otherActivationsChannel = FileChannel.open(activationEvents, READ);
         activationEventsFileChannel.transferFrom(otherActivationsChannel, 0, otherActivationsChannel.size());
         activationEventsFileChannel.position(otherActivationsChannel.size());
         FileChannel otherTracesChannel = FileChannel.open(traces, READ);
-        FileChannel.open(jfrFile.toPath(), WRITE).transferFrom(otherTracesChannel, 0, otherTracesChannel.size());
+        FileChannel.open(recording.jfrFile.toPath(), WRITE).transferFrom(otherTracesChannel, 0, otherTracesChannel.size());
     }
 
     @Override
@@ -608,12 +964,20 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         // implicitly clears profiled threads
         scheduler.shutdownNow();
         scheduler.awaitTermination(1, TimeUnit.SECONDS);
-        activationEventsFileChannel.close();
+        if (processingExecutor != null) {
+            processingExecutor.shutdownNow();
+            processingExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        }
+        recording.close();
+        if (standbyRecording != null) {
+            standbyRecording.close();
+        }
     }
 
     void setProfilingSessionOngoing(boolean profilingSessionOngoing) {
         this.profilingSessionOngoing = profilingSessionOngoing;
         if (!profilingSessionOngoing) {
+            threadsWithActiveRoot.clear();
             clearProfiledThreads();
         } else if (!profiledThreads.isEmpty() && logger.isDebugEnabled()) {
             logger.debug("Retaining {} call tree roots", profiledThreads.size());
@@ -654,35 +1018,6 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
     }
     // --
 
-    public static class StackTraceEvent implements Comparable<StackTraceEvent> {
-        private final long nanoTime;
-        private final long stackTraceId;
-        private final long threadId;
-
-        private StackTraceEvent(long nanoTime, long stackTraceId, long threadId) {
-            this.nanoTime = nanoTime;
-            this.stackTraceId = stackTraceId;
-            this.threadId = threadId;
-        }
-
-        public long getThreadId() {
-            return threadId;
-        }
-
-        public long getNanoTime() {
-            return nanoTime;
-        }
-
-        public long getStackTraceId() {
-            return stackTraceId;
-        }
-
-        @Override
-        public int compareTo(StackTraceEvent o) {
-            return Long.compare(nanoTime, o.nanoTime);
-        }
-    }
-
     private static class ActivationEvent {
         public static final int SERIALIZED_SIZE =
             Long.SIZE / Byte.SIZE + // timestamp
@@ -691,10 +1026,17 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
                 TraceContext.SERIALIZED_LENGTH + // previousContextBuffer
                 1 + // rootContext
                 Long.SIZE / Byte.SIZE + // threadId
-                1; // activation
-
-        private static final Map<String, Short> serviceNameMap = new HashMap<>();
-        private static final Map<Short, String> serviceNameBackMap = new HashMap<>();
+                1 + // activation
+                Short.SIZE / Byte.SIZE + // transactionName index
+                Short.SIZE / Byte.SIZE; // transactionType index
+
+        private static final StringIndex serviceNames = new StringIndex(Short.MAX_VALUE);
+        /**
+         * Bounded like the number of metric sets of the {@link co.elastic.apm.agent.metrics.MetricRegistry}
+         * the allocated bytes are reported to
+         */
+        private static final StringIndex transactionNames = new StringIndex(1000);
+        private static final StringIndex transactionTypes = new StringIndex(1000);
 
         private long timestamp;
         @Nullable
@@ -704,20 +1046,33 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
         private boolean rootContext;
         private long threadId;
         private boolean activation;
+        /**
+         * Only set for deactivations of a root if allocations are sampled,
+         * copied so that the transaction can be recycled before the event has been written
+         */
+        private final StringBuilder transactionName = new StringBuilder();
+        @Nullable
+        private String transactionType;
 
         public void activation(TraceContext context, long threadId, @Nullable TraceContext previousContext, long nanoTime) {
-            set(context, threadId, true, previousContext != null ? previousContext : null, nanoTime);
+            set(context, threadId, true, previousContext != null ? previousContext : null, nanoTime, null);
         }
 
-        public void deactivation(TraceContext context, long threadId, @Nullable TraceContext previousContext, long nanoTime) {
-            set(context, threadId, false, previousContext != null ? previousContext : null, nanoTime);
+        public void deactivation(TraceContext context, long threadId, @Nullable TraceContext previousContext, long nanoTime, @Nullable Transaction transaction) {
+            set(context, threadId, false, previousContext != null ? previousContext : null, nanoTime, transaction);
         }
 
-        private void set(TraceContext traceContext, long threadId, boolean activation, @Nullable TraceContext previousContext, long nanoTime) {
+        private void set(TraceContext traceContext, long threadId, boolean activation, @Nullable TraceContext previousContext, long nanoTime, @Nullable Transaction transaction) {
             traceContext.serialize(traceContextBuffer);
             this.threadId = threadId;
             this.activation = activation;
             this.serviceName = traceContext.getServiceName();
+            transactionName.setLength(0);
+            transactionType = null;
+            if (transaction != null) {
+                transactionName.append(transaction.getNameForSerialization());
+                transactionType = transaction.getType();
+            }
             if (previousContext != null) {
                 previousContext.serialize(previousContextBuffer);
                 rootContext = false;
@@ -807,6 +1162,7 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
                         logger.debug("Created no spans for thread {} (count={})", threadId, callTree.getCount());
                     }
                 }
+                samplingProfiler.reportAllocations(callTree, transactionName, transactionType);
                 callTree.recycle(samplingProfiler.callTreePool);
                 samplingProfiler.rootPool.recycle(callTree);
             }
@@ -814,33 +1170,75 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
 
         public void serialize(ByteBuffer buf) {
             buf.putLong(timestamp);
-            buf.putShort(getServiceNameIndex());
+            buf.putShort(serviceNames.indexOf(serviceName));
             buf.put(traceContextBuffer);
             buf.put(previousContextBuffer);
             buf.put(rootContext ? (byte) 1 : (byte) 0);
             buf.putLong(threadId);
             buf.put(activation ? (byte) 1 : (byte) 0);
+            // only allocates a string for the deactivation of roots if allocations are sampled
+            buf.putShort(transactionNames.indexOf(transactionName.length() > 0 ? transactionName.toString() : null));
+            buf.putShort(transactionTypes.indexOf(transactionType));
         }
 
         public void deserialize(ByteBuffer buf) {
             timestamp = buf.getLong();
-            serviceName = serviceNameBackMap.get(buf.getShort());
+            serviceName = serviceNames.get(buf.getShort());
             buf.get(traceContextBuffer);
             buf.get(previousContextBuffer);
             rootContext = buf.get() == 1;
             threadId = buf.getLong();
             activation = buf.get() == 1;
+            transactionName.setLength(0);
+            String name = transactionNames.get(buf.getShort());
+            if (name != null) {
+                transactionName.append(name);
+            }
+            transactionType = transactionTypes.get(buf.getShort());
         }
+    }
 
-        private short getServiceNameIndex() {
-            Short index = serviceNameMap.get(serviceName);
+    /**
+     * Maps strings to a {@code short} so that they can be written to the activation events file with a fixed size.
+     * <p>
+     * Strings are only added by the thread which writes the activation events,
+     * but in continuous mode, they are looked up by the thread which processes them.
+     * </p>
+     */
+    private static class StringIndex {
+        private static final short NO_INDEX = -1;
+
+        private final Map<String, Short> indices = new HashMap<>();
+        private final Map<Short, String> strings = new ConcurrentHashMap<>();
+        private final int maxSize;
+
+        private StringIndex(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * @return the index of the string or {@value #NO_INDEX} if the string is {@code null} or the max size has been reached
+         */
+        private short indexOf(@Nullable String string) {
+            if (string == null) {
+                return NO_INDEX;
+            }
+            Short index = indices.get(string);
             if (index == null) {
-                index = (short) serviceNameMap.size();
-                serviceNameMap.put(serviceName, index);
-                serviceNameBackMap.put(index, serviceName);
+                if (indices.size() >= maxSize) {
+                    return NO_INDEX;
+                }
+                index = (short) indices.size();
+                indices.put(string, index);
+                strings.put(index, string);
             }
             return index;
         }
+
+        @Nullable
+        private String get(short index) {
+            return strings.get(index);
+        }
     }
 
     /**
@@ -867,14 +1265,143 @@ public class SamplingProfiler extends AbstractLifecycleListener implements Runna
             if (endOfBatch) {
                 SamplingProfiler.this.sequence.set(sequence);
             }
-            if (activationEventsFileChannel.size() < MAX_ACTIVATION_EVENTS_FILE_SIZE) {
-                event.serialize(activationEventsBuffer);
-                if (!activationEventsBuffer.hasRemaining()) {
-                    flushActivationEvents();
+            Recording recording = SamplingProfiler.this.recording;
+            if (recording.activationEventsFileChannel.size() < MAX_ACTIVATION_EVENTS_FILE_SIZE) {
+                if (event.rootContext) {
+                    if (event.activation) {
+                        threadsWithActiveRoot.add(event.threadId);
+                    } else {
+                        threadsWithActiveRoot.remove(event.threadId);
+                    }
+                }
+                event.serialize(recording.activationEventsBuffer);
+                if (!recording.activationEventsBuffer.hasRemaining()) {
+                    recording.flushActivationEvents();
                 }
                 return true;
             }
             return false;
         }
     }
+
+    /**
+     * Processes a chunk which has been recorded in continuous mode and adapts the sampling interval based on how long it took.
+     */
+    private class ProcessChunkTask implements Runnable {
+        private final Recording recording;
+        private final long samplingIntervalMs;
+        private final long startNs;
+        private final long durationNs;
+        private final long recordingCpuTimeNs;
+        private final long processCpuTimeStartNs;
+
+        private ProcessChunkTask(Recording recording, long samplingIntervalMs, long startNs, long durationNs, long recordingCpuTimeNs, long processCpuTimeStartNs) {
+            this.recording = recording;
+            this.samplingIntervalMs = samplingIntervalMs;
+            this.startNs = startNs;
+            this.durationNs = durationNs;
+            this.recordingCpuTimeNs = recordingCpuTimeNs;
+            this.processCpuTimeStartNs = processCpuTimeStartNs;
+        }
+
+        @Override
+        public void run() {
+            long cpuTimeStart = getCurrentThreadCpuTime();
+            try {
+                processTraces(recording);
+                exportFoldedStacksIfDue();
+            } catch (IOException e) {
+                logger.warn("Failed to process profiling chunk", e);
+            }
+            if (threadCpuTimeSupported) {
+                adaptSamplingInterval(samplingIntervalMs, recordingCpuTimeNs + getCurrentThreadCpuTime() - cpuTimeStart, durationNs);
+                return;
+            }
+            long processCpuTimeEndNs = getProcessCpuTime();
+            if (processCpuTimeStartNs >= 0 && processCpuTimeEndNs >= 0) {
+                // also contains the CPU time of the application, which may increase the sampling interval more than necessary
+                adaptSamplingInterval(samplingIntervalMs, processCpuTimeEndNs - processCpuTimeStartNs, System.nanoTime() - startNs);
+            } else if (!cpuTimeUnsupportedLogged) {
+                cpuTimeUnsupportedLogged = true;
+                logger.warn("The JVM can neither measure the CPU time of threads nor of the process, " +
+                    "profiling_inferred_spans_cpu_budget is ignored and the sampling interval is not adapted.");
+            }
+        }
+    }
+
+    /**
+     * The files a profiling session, or a chunk in continuous mode, is recorded to.
+     */
+    private static class Recording {
+        private final File activationEventsFile;
+        private final File jfrFile;
+        private final ByteBuffer activationEventsBuffer;
+        /**
+         * Used to efficiently write {@link #activationEventsBuffer} via {@link FileChannel#write(ByteBuffer)}
+         */
+        private final FileChannel activationEventsFileChannel;
+        /**
+         * Whether the files have been created by the profiler and have to be deleted when closing this recording
+         */
+        private final boolean deleteOnClose;
+        /**
+         * The processing of the chunk which has last been recorded to these files, if any
+         */
+        @Nullable
+        private volatile Future<?> processing;
+        /**
+         * The interval of async-profiler's {@code alloc} event the JFR file has last been recorded with,
+         * {@code 0} if allocations have not been sampled
+         */
+        private volatile long allocationSamplingIntervalBytes;
+
+        private Recording(File activationEventsFile, File jfrFile, boolean deleteOnClose) throws IOException {
+            this.activationEventsFile = activationEventsFile;
+            this.jfrFile = jfrFile;
+            this.deleteOnClose = deleteOnClose;
+            activationEventsBuffer = ByteBuffer.allocateDirect(ACTIVATION_EVENTS_BUFFER_SIZE);
+            activationEventsFileChannel = FileChannel.open(activationEventsFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (activationEventsFileChannel.size() == 0) {
+                preAllocate(activationEventsFileChannel, PRE_ALLOCATE_ACTIVATION_EVENTS_FILE_MB);
+            }
+        }
+
+        private void resetActivationEventBuffer() throws IOException {
+            ((Buffer) activationEventsBuffer).clear();
+            activationEventsFileChannel.position(0L);
+        }
+
+        private void flushActivationEvents() throws IOException {
+            if (activationEventsBuffer.position() > 0) {
+                ((Buffer) activationEventsBuffer).flip();
+                activationEventsFileChannel.write(activationEventsBuffer);
+                ((Buffer) activationEventsBuffer).clear();
+            }
+        }
+
+        private long startProcessingActivationEventsFile() throws IOException {
+            Buffer activationEventsBuffer = this.activationEventsBuffer;
+            if (activationEventsFileChannel.position() > 0) {
+                flushActivationEvents();
+                activationEventsBuffer.limit(0);
+            } else {
+                activationEventsBuffer.flip();
+            }
+            long eof = activationEventsFileChannel.position();
+            activationEventsFileChannel.position(0);
+            return eof;
+        }
+
+        private void close() throws IOException {
+            activationEventsFileChannel.close();
+            if (deleteOnClose) {
+                if (!jfrFile.delete()) {
+                    jfrFile.deleteOnExit();
+                }
+                if (!activationEventsFile.delete()) {
+                    activationEventsFile.deleteOnExit();
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,170 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.profiler;
+
+import co.elastic.apm.agent.profiler.asyncprofiler.JfrParser;
+
+import java.util.Arrays;
+
+/**
+ * Holds the stack trace events of a profiling session in primitive arrays, so that they can be sorted by their timestamp
+ * without allocating an object per event.
+ * <p>
+ * The events in a JFR file are not in order.
+ * Even for the same thread, a more recent event might come before an older event.
+ * In order to be able to correlate stack trace events and activation events, both need to be in order.
+ * </p>
+ * <p>
+ * The events are {@linkplain #sort() sorted} with an LSD radix sort on the timestamps, relative to the oldest event.
+ * As a profiling session only lasts a couple of seconds, the relative timestamps fit into a few radix digits,
+ * which makes the sort linear in the number of events.
+ * Instead of moving the events, the sort creates a permutation of their indices.
+ * </p>
+ */
+class StackTraceEventBuffer implements JfrParser.StackTraceConsumer {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int RADIX_BITS = 11;
+    private static final int RADIX = 1 << RADIX_BITS;
+    private static final int RADIX_MASK = RADIX - 1;
+
+    private final int[] counts = new int[RADIX];
+    private long[] nanoTimes = new long[INITIAL_CAPACITY];
+    private long[] stackTraceIds = new long[INITIAL_CAPACITY];
+    private long[] threadIds = new long[INITIAL_CAPACITY];
+    private long[] allocatedBytes = new long[INITIAL_CAPACITY];
+    private int[] order = new int[INITIAL_CAPACITY];
+    private int[] sortBuffer = new int[INITIAL_CAPACITY];
+    private int size;
+
+    @Override
+    public void onCallTree(long threadId, long stackTraceId, long nanoTime, long allocatedBytes) {
+        if (size == nanoTimes.length) {
+            grow();
+        }
+        nanoTimes[size] = nanoTime;
+        stackTraceIds[size] = stackTraceId;
+        threadIds[size] = threadId;
+        this.allocatedBytes[size] = allocatedBytes;
+        size++;
+    }
+
+    private void grow() {
+        int newCapacity = nanoTimes.length * 2;
+        nanoTimes = Arrays.copyOf(nanoTimes, newCapacity);
+        stackTraceIds = Arrays.copyOf(stackTraceIds, newCapacity);
+        threadIds = Arrays.copyOf(threadIds, newCapacity);
+        allocatedBytes = Arrays.copyOf(allocatedBytes, newCapacity);
+        order = new int[newCapacity];
+        sortBuffer = new int[newCapacity];
+    }
+
+    /**
+     * Converts the thread ids of all events which have been added so far from native thread ids to Java thread ids.
+     *
+     * @see JfrParser#consumeFlushedStackTraces
+     * @see JfrParser#resolveJavaThreadId(long)
+     */
+    void resolveJavaThreadIds(JfrParser jfrParser) {
+        for (int i = 0; i < size; i++) {
+            threadIds[i] = jfrParser.resolveJavaThreadId(threadIds[i]);
+        }
+    }
+
+    /**
+     * Sorts the events by their timestamp.
+     * Afterwards, the getters return the events in chronological order.
+     */
+    void sort() {
+        int[] order = this.order;
+        int[] sortBuffer = this.sortBuffer;
+        long[] nanoTimes = this.nanoTimes;
+        int size = this.size;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+            min = Math.min(min, nanoTimes[i]);
+            max = Math.max(max, nanoTimes[i]);
+        }
+        if (size < 2) {
+            return;
+        }
+        int bits = Long.SIZE - Long.numberOfLeadingZeros(max - min);
+        int[] counts = this.counts;
+        for (int shift = 0; shift < bits; shift += RADIX_BITS) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < size; i++) {
+                counts[(int) (((nanoTimes[i] - min) >>> shift) & RADIX_MASK)]++;
+            }
+            for (int i = 0, sum = 0; i < RADIX; i++) {
+                int count = counts[i];
+                counts[i] = sum;
+                sum += count;
+            }
+            for (int i = 0; i < size; i++) {
+                int index = order[i];
+                sortBuffer[counts[(int) (((nanoTimes[index] - min) >>> shift) & RADIX_MASK)]++] = index;
+            }
+            int[] tmp = order;
+            order = sortBuffer;
+            sortBuffer = tmp;
+        }
+        this.order = order;
+        this.sortBuffer = sortBuffer;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param i the index of the event in chronological order
+     * @return the {@linkplain Thread#getId() Java thread id} or {@code -1} if the thread id could not be resolved
+     */
+    long getThreadId(int i) {
+        return threadIds[order[i]];
+    }
+
+    long getStackTraceId(int i) {
+        return stackTraceIds[order[i]];
+    }
+
+    long getNanoTime(int i) {
+        return nanoTimes[order[i]];
+    }
+
+    /**
+     * @param i the index of the event in chronological order
+     * @return the number of bytes an allocation sample accounts for, {@code 0} for execution samples
+     */
+    long getAllocatedBytes(int i) {
+        return allocatedBytes[order[i]];
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
@@ -55,6 +55,11 @@ import java.nio.file.StandardOpenOption;
  * As reading a file from disk can get stuck (for example when the disk is busy) calling {@link MappedByteBuffer#get()} may take a while to execute.
  * While it's executing other threads have to wait for it to finish if the JVM wants to reach a safe point.
  * </p>
+ * <p>
+ * Files which are larger than the big buffer can optionally be {@linkplain #setFile(File, boolean) memory mapped} nonetheless.
+ * This trades the risk of an increased time-to-safepoint for not having to constantly seek and re-read the file into the small buffer,
+ * which is what makes processing large files slow.
+ * </p>
  */
 class BufferedFile implements Recyclable {
 
@@ -70,6 +75,11 @@ class BufferedFile implements Recyclable {
      */
     private long offset;
     private boolean wholeFileInBuffer;
+    /**
+     * Whether the {@link #buffer} is a memory mapping of the file, as opposed to the big or the small buffer.
+     * Note that checking for {@code instanceof MappedByteBuffer} is not sufficient, as direct buffers extend {@link MappedByteBuffer}.
+     */
+    private boolean mapped;
     @Nullable
     private FileChannel fileChannel;
 
@@ -90,8 +100,25 @@ class BufferedFile implements Recyclable {
      * @throws IOException If some I/O error occurs
      */
     public void setFile(File file) throws IOException {
+        setFile(file, false);
+    }
+
+    /**
+     * Sets the file and depending on it's size, may read the file into the {@linkplain #buffer buffer}
+     *
+     * @param file         the file to read from
+     * @param memoryMapped whether to memory map files which don't fit into the big buffer,
+     *                     instead of reading them chunk by chunk into the small buffer
+     * @throws IOException If some I/O error occurs
+     */
+    public void setFile(File file, boolean memoryMapped) throws IOException {
         fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
-        if (fileChannel.size() <= bigBuffer.capacity()) {
+        long size = fileChannel.size();
+        if (memoryMapped && size > bigBuffer.capacity() && size <= Integer.MAX_VALUE) {
+            buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mapped = true;
+            wholeFileInBuffer = true;
+        } else if (size <= bigBuffer.capacity()) {
             buffer = bigBuffer;
             read(0, bigBuffer.capacity());
             wholeFileInBuffer = true;
@@ -297,6 +324,11 @@ class BufferedFile implements Recyclable {
         if (fileChannel == null) {
             throw new IllegalStateException("setFile has not been called yet");
         }
+        if (mapped) {
+            // the mapping is released once the buffer is garbage collected
+            buffer = bigBuffer;
+            mapped = false;
+        }
         Buffer buffer = this.buffer;
         buffer.clear();
         offset = 0;
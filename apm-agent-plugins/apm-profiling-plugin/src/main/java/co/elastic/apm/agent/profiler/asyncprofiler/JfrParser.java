@@ -37,10 +37,15 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 
@@ -52,6 +57,20 @@ import java.util.Set;
  * Most data structures can be reused by first {@linkplain #resetState() resetting the state} and then {@linkplain #parse(File, List, List) parsing}
  * another file.
  * </p>
+ * <p>
+ * Symbols, classes and methods are only indexed by their position in the file when parsing the checkpoint.
+ * They are resolved lazily, the first time a stack trace which references them is {@linkplain #resolveStackTrace resolved}.
+ * </p>
+ * <p>
+ * While async-profiler is still recording, the stack trace events it has already flushed to the file can be read
+ * {@linkplain #consumeFlushedStackTraces(File, long, StackTraceConsumer) incrementally}.
+ * After the recording has ended, only the remaining events have to be {@linkplain #consumeStackTraces(long, StackTraceConsumer) consumed}.
+ * </p>
+ * <p>
+ * Besides execution samples, allocation samples which are recorded with async-profiler's {@code alloc} event are supported.
+ * Their stack traces are consumed the same way, together with the number of bytes the sampled allocation accounts for,
+ * see {@link #setAllocationSamplingInterval(long)}.
+ * </p>
  */
 public class JfrParser implements Recyclable {
 
@@ -61,8 +80,13 @@ public class JfrParser implements Recyclable {
     private static final Set<String> JAVA_FRAME_TYPES = new HashSet<>(Arrays.asList("Interpreted", "JIT compiled", "Inlined"));
     private static final int BIG_FILE_BUFFER_SIZE = 5 * 1024 * 1024;
     private static final int SMALL_FILE_BUFFER_SIZE = 4 * 1024;
+    private static final int HEADER_SIZE = 16;
+    private static final int EVENT_HEADER_SIZE = 8;
+    private static final int EXECUTION_SAMPLE_SIZE = 30;
+    private static final int ALLOCATION_IN_NEW_TLAB_SIZE = 52;
+    private static final int ALLOCATION_OUTSIDE_TLAB_SIZE = 44;
     private static final String SYMBOL_EXCLUDED = "3x cluded";
-    private static final String SYMBOL_NULL = "n u11";
+    private static final int MAX_INTERNED_FRAMES = 64 * 1024;
     private final static StackFrame FRAME_EXCLUDED = new StackFrame("excluded", "excluded");
     private final static StackFrame FRAME_NULL = new StackFrame("null", "null");
 
@@ -73,8 +97,15 @@ public class JfrParser implements Recyclable {
     private final Int2IntHashMap stackTraceIdToFilePositions = new Int2IntHashMap(-1);
     private final Long2LongHashMap nativeTidToJavaTid = new Long2LongHashMap(-1);
     private final Long2ObjectHashMap<StackFrame> frameIdToFrame = new Long2ObjectHashMap<StackFrame>();
-    private final Long2LongHashMap frameIdToMethodSymbol = new Long2LongHashMap(-1);
-    private final Long2LongHashMap frameIdToClassId = new Long2LongHashMap(-1);
+    private final Long2LongHashMap frameIdToMethodPos = new Long2LongHashMap(-1);
+    /**
+     * Canonical {@link StackFrame} instances which are not reset after parsing a file.
+     * As the frame ids are only valid within a file,
+     * this ensures that a method is represented by the same instance in all files,
+     * so that call trees which outlive a profiling session can compare frames by reference.
+     */
+    private final Map<StackFrame, StackFrame> internedFrames = new HashMap<>();
+    private final boolean memoryMapped;
     // used to resolve a symbol with minimal allocations
     private final StringBuilder symbolBuilder = new StringBuilder();
     private long eventsOffset;
@@ -85,13 +116,29 @@ public class JfrParser implements Recyclable {
     private List<WildcardMatcher> excludedClasses;
     @Nullable
     private List<WildcardMatcher> includedClasses;
+    @Nullable
+    private ByteBuffer flushedEventsBuffer;
+    private long allocationSamplingIntervalBytes;
 
     public JfrParser() {
-        this(ByteBuffer.allocateDirect(BIG_FILE_BUFFER_SIZE), ByteBuffer.allocateDirect(SMALL_FILE_BUFFER_SIZE));
+        this(false);
+    }
+
+    /**
+     * @param memoryMapped whether to memory map JFR files which are larger than the buffer this parser allocates,
+     *                     see {@link BufferedFile#setFile(File, boolean)}
+     */
+    public JfrParser(boolean memoryMapped) {
+        this(ByteBuffer.allocateDirect(BIG_FILE_BUFFER_SIZE), ByteBuffer.allocateDirect(SMALL_FILE_BUFFER_SIZE), memoryMapped);
     }
 
     JfrParser(ByteBuffer bigBuffer, ByteBuffer smallBuffer) {
+        this(bigBuffer, smallBuffer, false);
+    }
+
+    JfrParser(ByteBuffer bigBuffer, ByteBuffer smallBuffer, boolean memoryMapped) {
         bufferedFile = new BufferedFile(bigBuffer, smallBuffer);
+        this.memoryMapped = memoryMapped;
     }
 
     /**
@@ -105,20 +152,16 @@ public class JfrParser implements Recyclable {
     public void parse(File file, List<WildcardMatcher> excludedClasses, List<WildcardMatcher> includedClasses) throws IOException {
         this.excludedClasses = excludedClasses;
         this.includedClasses = includedClasses;
-        bufferedFile.setFile(file);
+        bufferedFile.setFile(file, memoryMapped);
         long fileSize = bufferedFile.size();
         logger.debug("Parsing {} ({} bytes)", file, fileSize);
-        bufferedFile.ensureRemaining(16, 16);
+        bufferedFile.ensureRemaining(HEADER_SIZE, HEADER_SIZE);
         for (byte magicByte : MAGIC_BYTES) {
             if (bufferedFile.get() != magicByte) {
                 throw new IllegalArgumentException("Not a JFR file");
             }
         }
-        short major = bufferedFile.getShort();
-        short minor = bufferedFile.getShort();
-        if (major != 0 || minor != 9) {
-            throw new IllegalArgumentException(String.format("Can only parse version 0.9. Was %d.%d", major, minor));
-        }
+        checkVersion(bufferedFile.getShort(), bufferedFile.getShort());
         metadataOffset = bufferedFile.getLong();
         eventsOffset = bufferedFile.position();
 
@@ -126,6 +169,12 @@ public class JfrParser implements Recyclable {
         parseCheckpoint(checkpointOffset);
     }
 
+    private static void checkVersion(short major, short minor) {
+        if (major != 0 || minor != 9) {
+            throw new IllegalArgumentException(String.format("Can only parse version 0.9. Was %d.%d", major, minor));
+        }
+    }
+
     private long parseMetadata(long metadataOffset) throws IOException {
         bufferedFile.position(metadataOffset);
         bufferedFile.ensureRemaining(8, 8);
@@ -209,16 +258,9 @@ public class JfrParser implements Recyclable {
                 for (int i = 1; i <= count; i++) {
                     bufferedFile.ensureRemaining(35);
                     long id = bufferedFile.getUnsafeLong();
-                    // classId is an incrementing integer, no way there are more than 2 billion distinct ones
-                    int classId = (int) bufferedFile.getUnsafeLong();
-                    // symbol ids are incrementing integers, no way there are more than 2 billion distinct ones
-                    int methodNameSymbolId = (int) bufferedFile.getUnsafeLong();
-                    frameIdToFrame.put(id, FRAME_NULL);
-                    frameIdToClassId.put(id, classId);
-                    frameIdToMethodSymbol.put(id, methodNameSymbolId);
-                    bufferedFile.getUnsafeLong(); // signature
-                    bufferedFile.getUnsafeShort(); // modifiers
-                    bufferedFile.getUnsafe(); // hidden
+                    // the class and the method name are read when the frame is resolved for the first time
+                    frameIdToMethodPos.put(id, bufferedFile.position());
+                    bufferedFile.skip(27); // class, method name, signature, modifiers, hidden
                 }
                 break;
             case ContentTypeId.CONTENT_SYMBOL:
@@ -227,7 +269,6 @@ public class JfrParser implements Recyclable {
                     int symbolId = (int) bufferedFile.getLong();
                     int pos = (int) bufferedFile.position();
                     symbolIdToPos.put(symbolId, pos);
-                    symbolIdToString.put(symbolId, SYMBOL_NULL);
                     skipString();
                 }
                 break;
@@ -259,6 +300,22 @@ public class JfrParser implements Recyclable {
         bufferedFile.skip(stringLength);
     }
 
+    /**
+     * Sets the interval the allocation samples have been recorded with.
+     * <p>
+     * async-profiler records an allocation in a new TLAB about every {@code interval} bytes,
+     * so such a sample accounts for the interval, unless the allocated object itself is larger.
+     * Allocations outside of a TLAB are weighted by the size of the allocated object.
+     * async-profiler 1.x writes all samples as execution samples, which therefore account for the interval.
+     * </p>
+     *
+     * @param allocationSamplingIntervalBytes the {@code interval} of async-profiler's {@code alloc} event in bytes,
+     *                                        or {@code 0} if the file contains execution samples of the wall clock time
+     */
+    public void setAllocationSamplingInterval(long allocationSamplingIntervalBytes) {
+        this.allocationSamplingIntervalBytes = allocationSamplingIntervalBytes;
+    }
+
     /**
      * Invokes the callback for each stack trace event in the JFR file.
      *
@@ -266,29 +323,192 @@ public class JfrParser implements Recyclable {
      * @throws IOException if some I/O error occurs
      */
     public void consumeStackTraces(StackTraceConsumer callback) throws IOException {
+        consumeStackTraces(eventsOffset, callback);
+    }
+
+    /**
+     * Invokes the callback for each stack trace event in the JFR file, starting at the provided position.
+     *
+     * @param position the position of the first event to consume,
+     *                 as returned by {@link #consumeFlushedStackTraces(File, long, StackTraceConsumer)}
+     * @param callback called for each stack trace event
+     * @throws IOException if some I/O error occurs
+     */
+    public void consumeStackTraces(long position, StackTraceConsumer callback) throws IOException {
         if (!bufferedFile.isSet()) {
             throw new IllegalStateException("consumeStackTraces was called before parse");
         }
-        bufferedFile.position(eventsOffset);
+        bufferedFile.position(Math.max(position, eventsOffset));
         while (bufferedFile.position() < metadataOffset) {
-            bufferedFile.ensureRemaining(30);
+            bufferedFile.ensureRemaining(EVENT_HEADER_SIZE);
             int size = bufferedFile.getUnsafeInt();
             int eventType = bufferedFile.getUnsafeInt();
             if (eventType == EventTypeId.EVENT_RECORDING) {
                 return;
             }
-            if (eventType != EventTypeId.EVENT_EXECUTION_SAMPLE) {
-                throw new IOException("Expected " + EventTypeId.EVENT_EXECUTION_SAMPLE + " but got " + eventType);
-            }
+            checkSampleEvent(eventType, size);
+            bufferedFile.ensureRemaining(size - EVENT_HEADER_SIZE);
             long nanoTime = bufferedFile.getUnsafeLong();
             int tid = bufferedFile.getUnsafeInt();
             long stackTraceId = bufferedFile.getUnsafeLong();
-            short threadState = bufferedFile.getUnsafeShort();
+            long allocatedBytes = allocationSamplingIntervalBytes;
+            if (eventType == EventTypeId.EVENT_EXECUTION_SAMPLE) {
+                short threadState = bufferedFile.getUnsafeShort();
+            } else {
+                bufferedFile.getUnsafeLong(); // class id
+                allocatedBytes = bufferedFile.getUnsafeLong();
+                if (eventType == EventTypeId.EVENT_ALLOC_IN_NEW_TLAB) {
+                    bufferedFile.getUnsafeLong(); // TLAB size
+                    allocatedBytes = getInNewTlabWeight(allocatedBytes);
+                }
+            }
             long javaThreadId = nativeTidToJavaTid.get(tid);
             if (javaThreadId != -1) {
-                callback.onCallTree(javaThreadId, stackTraceId, nanoTime);
+                callback.onCallTree(javaThreadId, stackTraceId, nanoTime, allocatedBytes);
+            }
+        }
+    }
+
+    /**
+     * The sample neither stands for the whole TLAB nor only for the object which caused a new TLAB to be allocated,
+     * but for the bytes which have been allocated since the previous sample.
+     */
+    private long getInNewTlabWeight(long objectSize) {
+        return Math.max(allocationSamplingIntervalBytes, objectSize);
+    }
+
+    private static boolean isSampleEvent(int eventType) {
+        return eventType == EventTypeId.EVENT_EXECUTION_SAMPLE
+            || eventType == EventTypeId.EVENT_ALLOC_IN_NEW_TLAB
+            || eventType == EventTypeId.EVENT_ALLOC_OUTSIDE_TLAB;
+    }
+
+    private static void checkSampleEvent(int eventType, int size) throws IOException {
+        if (!isSampleEvent(eventType)) {
+            throw new IOException("Expected a sample event but got " + eventType);
+        }
+        if (size < getMinSize(eventType)) {
+            throw new IOException("Unexpected size of sample event " + eventType + ": " + size);
+        }
+    }
+
+    private static int getMinSize(int eventType) {
+        switch (eventType) {
+            case EventTypeId.EVENT_ALLOC_IN_NEW_TLAB:
+                return ALLOCATION_IN_NEW_TLAB_SIZE;
+            case EventTypeId.EVENT_ALLOC_OUTSIDE_TLAB:
+                return ALLOCATION_OUTSIDE_TLAB_SIZE;
+            default:
+                return EXECUTION_SAMPLE_SIZE;
+        }
+    }
+
+    /**
+     * Invokes the callback for the stack trace events which async-profiler has already flushed to a JFR file it's still recording to.
+     * <p>
+     * The symbol tables are only written when the recording ends.
+     * That's why the callback receives the native thread id which can be converted via {@link #resolveJavaThreadId(long)}
+     * after the recording has ended and the file has been {@linkplain #parse parsed}.
+     * </p>
+     * <p>
+     * Does not require to {@linkplain #parse parse} the file first and does not change the state of this parser,
+     * other than allocating a buffer on first use.
+     * Only events which have been completely written are consumed.
+     * </p>
+     *
+     * @param file     the JFR file async-profiler is recording to
+     * @param position the position returned by the previous invocation for the same recording, or {@code 0} for the first invocation
+     * @param callback called for each stack trace event, with the native thread id
+     * @return the position of the next event which has not been consumed yet
+     * @throws IOException if some I/O error occurs
+     */
+    public long consumeFlushedStackTraces(File file, long position, StackTraceConsumer callback) throws IOException {
+        ByteBuffer buffer = flushedEventsBuffer;
+        if (buffer == null) {
+            buffer = flushedEventsBuffer = ByteBuffer.allocateDirect(SMALL_FILE_BUFFER_SIZE);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (position < HEADER_SIZE) {
+                if (!readFully(channel, buffer, 0, HEADER_SIZE)) {
+                    return 0;
+                }
+                for (byte magicByte : MAGIC_BYTES) {
+                    if (buffer.get() != magicByte) {
+                        throw new IllegalArgumentException("Not a JFR file");
+                    }
+                }
+                checkVersion(buffer.getShort(), buffer.getShort());
+                position = HEADER_SIZE;
+            }
+            while (readFully(channel, buffer, position, EVENT_HEADER_SIZE)) {
+                while (buffer.remaining() >= EVENT_HEADER_SIZE) {
+                    int start = buffer.position();
+                    int size = buffer.getInt();
+                    int eventType = buffer.getInt();
+                    if (!isSampleEvent(eventType)) {
+                        // the recording has ended, the rest of the file is consumed after parsing it
+                        return position;
+                    }
+                    checkSampleEvent(eventType, size);
+                    if (buffer.remaining() < size - EVENT_HEADER_SIZE) {
+                        ((Buffer) buffer).position(start);
+                        break;
+                    }
+                    long nanoTime = buffer.getLong();
+                    int tid = buffer.getInt();
+                    long stackTraceId = buffer.getLong();
+                    long allocatedBytes = allocationSamplingIntervalBytes;
+                    if (eventType != EventTypeId.EVENT_EXECUTION_SAMPLE) {
+                        buffer.getLong(); // class id
+                        allocatedBytes = buffer.getLong();
+                        if (eventType == EventTypeId.EVENT_ALLOC_IN_NEW_TLAB) {
+                            allocatedBytes = getInNewTlabWeight(allocatedBytes);
+                        }
+                    }
+                    ((Buffer) buffer).position(start + size);
+                    callback.onCallTree(tid, stackTraceId, nanoTime, allocatedBytes);
+                    position += size;
+                }
+                if (buffer.position() == 0) {
+                    // the next event has only been flushed partially
+                    return position;
+                }
             }
         }
+        return position;
+    }
+
+    /**
+     * Reads the file into the buffer, starting at the provided position
+     *
+     * @return {@code true} if at least {@code minBytes} have been read
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer byteBuffer, long position, int minBytes) throws IOException {
+        Buffer buffer = byteBuffer;
+        buffer.clear();
+        if (channel.size() - position < minBytes) {
+            buffer.limit(0);
+            return false;
+        }
+        while (buffer.position() < minBytes) {
+            if (channel.read(byteBuffer, position + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.remaining() >= minBytes;
+    }
+
+    /**
+     * Converts a native thread id, as provided by {@link #consumeFlushedStackTraces(File, long, StackTraceConsumer)},
+     * into the {@linkplain Thread#getId() Java thread id}.
+     * Can only be called after the file has been {@linkplain #parse parsed}.
+     *
+     * @param nativeThreadId the native thread id
+     * @return the Java thread id or {@code -1} if the native thread id is unknown
+     */
+    public long resolveJavaThreadId(long nativeThreadId) {
+        return nativeTidToJavaTid.get(nativeThreadId);
     }
 
     /**
@@ -307,6 +527,7 @@ public class JfrParser implements Recyclable {
      *                       If {@code false}, will also resolve {@code Native}, {@code Kernel} and {@code C++} frames.
      * @param stackFrames    The mutable list where the stack frames are written to.
      *                       Don't forget to {@link List#clear()} the list before calling this method if the list is reused.
+     *                       The same method is represented by the same {@link StackFrame} instance, even across parsed files.
      * @param maxStackDepth  The max size of the stackFrames list (excluded frames don't take up space).
      *                       In contrast to async-profiler's {@code jstackdepth} argument this does not truncate the bottom of the stack, only the top.
      *                       This is important to properly create a call tree without making it overly complex.
@@ -336,6 +557,49 @@ public class JfrParser implements Recyclable {
         bufferedFile.position(position);
     }
 
+    /**
+     * Resolves the top-most frame of the stack trace with the given {@code stackTraceId}
+     * which is not excluded based on the {@link WildcardMatcher}s supplied to {@link #parse(File, List, List)}.
+     * <p>
+     * In contrast to {@link #resolveStackTrace(long, boolean, List, int)}, this only resolves the frames up to the first included one
+     * and is not affected by the depth of the stack trace.
+     * </p>
+     *
+     * @param stackTraceId   The id of the stack traced.
+     * @param onlyJavaFrames If {@code true}, will only consider {@code Interpreted}, {@code JIT compiled} and {@code Inlined} frames.
+     * @return the top-most included frame or {@code null} if all frames are excluded
+     * @throws IOException if there is an error reading in current buffer
+     */
+    @Nullable
+    public StackFrame resolveTopFrame(long stackTraceId, boolean onlyJavaFrames) throws IOException {
+        if (!bufferedFile.isSet()) {
+            throw new IllegalStateException("resolveTopFrame was called before parse");
+        }
+        long position = bufferedFile.position();
+        bufferedFile.position(stackTraceIdToFilePositions.get((int) stackTraceId));
+        try {
+            bufferedFile.ensureRemaining(13);
+            bufferedFile.getUnsafeLong(); // stack trace id
+            bufferedFile.getUnsafe(); // truncated
+            int numFrames = bufferedFile.getUnsafeInt();
+            for (int i = 0; i < numFrames; i++) {
+                bufferedFile.ensureRemaining(13);
+                long frameId = bufferedFile.getUnsafeLong();
+                bufferedFile.getUnsafeInt(); // bci
+                byte frameType = bufferedFile.getUnsafe();
+                if (!onlyJavaFrames || isJavaFrameType(frameType)) {
+                    StackFrame stackFrame = resolveStackFrame(frameId);
+                    if (stackFrame != FRAME_EXCLUDED && stackFrame != FRAME_NULL) {
+                        return stackFrame;
+                    }
+                }
+            }
+            return null;
+        } finally {
+            bufferedFile.position(position);
+        }
+    }
+
     private void addFrameIfIncluded(List<StackFrame> stackFrames, boolean onlyJavaFrames, long frameId, byte frameType) throws IOException {
         if (!onlyJavaFrames || isJavaFrameType(frameType)) {
             StackFrame stackFrame = resolveStackFrame(frameId);
@@ -351,7 +615,7 @@ public class JfrParser implements Recyclable {
 
     private String resolveSymbol(int id, boolean classSymbol) throws IOException {
         String symbol = symbolIdToString.get(id);
-        if (symbol != SYMBOL_NULL) {
+        if (symbol != null) {
             return symbol;
         }
         StringBuilder symbolBuilder = resolveSymbolBuilder(symbolIdToPos.get(id), classSymbol);
@@ -380,20 +644,45 @@ public class JfrParser implements Recyclable {
 
     private StackFrame resolveStackFrame(long frameId) throws IOException {
         StackFrame stackFrame = frameIdToFrame.get(frameId);
-        if (stackFrame != FRAME_NULL) {
+        if (stackFrame != null) {
             return stackFrame;
         }
-        String className = resolveSymbol(classIdToClassNameSymbolId.get((int) frameIdToClassId.get(frameId)), true);
+        long methodPos = frameIdToMethodPos.get(frameId);
+        if (methodPos == -1) {
+            return FRAME_NULL;
+        }
+        long currentPos = bufferedFile.position();
+        bufferedFile.position(methodPos);
+        bufferedFile.ensureRemaining(16);
+        // classId is an incrementing integer, no way there are more than 2 billion distinct ones
+        int classId = (int) bufferedFile.getUnsafeLong();
+        // symbol ids are incrementing integers, no way there are more than 2 billion distinct ones
+        int methodNameSymbolId = (int) bufferedFile.getUnsafeLong();
+        bufferedFile.position(currentPos);
+        String className = resolveSymbol(classIdToClassNameSymbolId.get(classId), true);
         if (className == SYMBOL_EXCLUDED) {
             stackFrame = FRAME_EXCLUDED;
         } else {
-            String method = resolveSymbol((int) frameIdToMethodSymbol.get(frameId), false);
-            stackFrame = new StackFrame(className, Objects.requireNonNull(method));
+            String method = resolveSymbol(methodNameSymbolId, false);
+            stackFrame = intern(new StackFrame(className, Objects.requireNonNull(method)));
         }
         frameIdToFrame.put(frameId, stackFrame);
         return stackFrame;
     }
 
+    private StackFrame intern(StackFrame stackFrame) {
+        StackFrame interned = internedFrames.get(stackFrame);
+        if (interned != null) {
+            return interned;
+        }
+        if (internedFrames.size() >= MAX_INTERNED_FRAMES) {
+            // frames are still compared with equals if they are not the same instance
+            internedFrames.clear();
+        }
+        internedFrames.put(stackFrame, stackFrame);
+        return stackFrame;
+    }
+
     private StringBuilder readUtf8String() throws IOException {
         return readUtf8String(false);
     }
@@ -423,8 +712,8 @@ public class JfrParser implements Recyclable {
         classIdToClassNameSymbolId.clear();
         stackTraceIdToFilePositions.clear();
         frameIdToFrame.clear();
-        frameIdToMethodSymbol.clear();
-        frameIdToClassId.clear();
+        frameIdToMethodPos.clear();
+        nativeTidToJavaTid.clear();
         symbolBuilder.setLength(0);
         excludedClasses = null;
         includedClasses = null;
@@ -435,13 +724,14 @@ public class JfrParser implements Recyclable {
     public interface StackTraceConsumer {
 
         /**
-         * @param threadId     The {@linkplain Thread#getId() Java thread id} for with the event was recorded.
-         * @param stackTraceId The id of the stack trace event.
-         *                     Can be used to resolve the stack trace via {@link #resolveStackTrace(long, boolean, List, int)}
-         * @param nanoTime     The timestamp of the event which can be correlated with {@link System#nanoTime()}
+         * @param threadId       The {@linkplain Thread#getId() Java thread id} for with the event was recorded.
+         * @param stackTraceId   The id of the stack trace event.
+         *                       Can be used to resolve the stack trace via {@link #resolveStackTrace(long, boolean, List, int)}
+         * @param nanoTime       The timestamp of the event which can be correlated with {@link System#nanoTime()}
+         * @param allocatedBytes The number of bytes an allocation sample accounts for, {@code 0} if allocations are not sampled
          * @throws IOException if there is any error reading stack trace
          */
-        void onCallTree(long threadId, long stackTraceId, long nanoTime) throws IOException;
+        void onCallTree(long threadId, long stackTraceId, long nanoTime, long allocatedBytes) throws IOException;
     }
 
     private interface EventTypeId {
@@ -449,6 +739,8 @@ public class JfrParser implements Recyclable {
         int EVENT_CHECKPOINT         = 1;
         int EVENT_RECORDING          = 10;
         int EVENT_EXECUTION_SAMPLE   = 20;
+        int EVENT_ALLOC_IN_NEW_TLAB  = 21;
+        int EVENT_ALLOC_OUTSIDE_TLAB = 22;
     }
 
     private interface ContentTypeId {
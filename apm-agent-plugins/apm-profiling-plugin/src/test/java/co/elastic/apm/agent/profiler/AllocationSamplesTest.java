@@ -0,0 +1,154 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.profiler;
+
+import co.elastic.apm.agent.impl.transaction.StackFrame;
+import co.elastic.apm.agent.metrics.Labels;
+import co.elastic.apm.agent.metrics.MetricRegistry;
+import co.elastic.apm.agent.metrics.MetricSet;
+import co.elastic.apm.agent.report.ReporterConfiguration;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+class AllocationSamplesTest {
+
+    private static final StackFrame LOAD = StackFrame.of("org.example.Repository", "load");
+    private static final StackFrame SERIALIZE = StackFrame.of("org.example.Serializer", "serialize");
+    private static final StackFrame LOG = StackFrame.of("org.example.Logger", "log");
+
+    private MetricRegistry metricRegistry;
+    private AllocationSamples allocationSamples;
+    private AllocationSamples.HotspotBudget hotspotBudget;
+
+    @BeforeEach
+    void setUp() {
+        metricRegistry = new MetricRegistry(mock(ReporterConfiguration.class));
+        allocationSamples = new AllocationSamples();
+        hotspotBudget = new AllocationSamples.HotspotBudget(AllocationSamples.MAX_HOTSPOT_METRIC_SETS);
+    }
+
+    @Test
+    void testReport() {
+        allocationSamples.add(LOAD, 300);
+        allocationSamples.add(SERIALIZE, 200);
+        allocationSamples.add(LOAD, 300);
+        allocationSamples.add(LOG, 100);
+        allocationSamples.add(null, 50);
+
+        allocationSamples.report(metricRegistry, Labels.Mutable.of(), new StringBuilder("GET /users"), "request", 2, hotspotBudget);
+
+        Map<Labels, MetricSet> metricSets = report();
+        assertThat(metricSets).hasSize(3);
+        assertThat(getCounter(metricSets, transactionLabels(), AllocationSamples.ALLOCATED_BYTES)).isEqualTo(950);
+        assertThat(getCounter(metricSets, hotspotLabels("org.example.Repository.load"), AllocationSamples.HOTSPOT_ALLOCATED_BYTES)).isEqualTo(600);
+        assertThat(getCounter(metricSets, hotspotLabels("org.example.Serializer.serialize"), AllocationSamples.HOTSPOT_ALLOCATED_BYTES)).isEqualTo(200);
+    }
+
+    @Test
+    void testNoHotspots() {
+        allocationSamples.add(LOAD, 300);
+
+        allocationSamples.report(metricRegistry, Labels.Mutable.of(), "GET /users", "request", 0, hotspotBudget);
+
+        Map<Labels, MetricSet> metricSets = report();
+        assertThat(metricSets).hasSize(1);
+        assertThat(getCounter(metricSets, transactionLabels(), AllocationSamples.ALLOCATED_BYTES)).isEqualTo(300);
+    }
+
+    @Test
+    void testMaxHotspotFrames() {
+        for (int i = 0; i < AllocationSamples.MAX_HOTSPOT_FRAMES + 1; i++) {
+            allocationSamples.add(StackFrame.of("org.example.Foo", "method" + i), 1);
+        }
+        assertThat(allocationSamples.getAllocatedBytes()).isEqualTo(AllocationSamples.MAX_HOTSPOT_FRAMES + 1);
+
+        allocationSamples.report(metricRegistry, Labels.Mutable.of(), "GET /users", "request", Integer.MAX_VALUE,
+            new AllocationSamples.HotspotBudget(Integer.MAX_VALUE));
+
+        // the total and one metric set per hotspot frame
+        assertThat(report()).hasSize(AllocationSamples.MAX_HOTSPOT_FRAMES + 1);
+    }
+
+    @Test
+    void testHotspotBudget() {
+        hotspotBudget = new AllocationSamples.HotspotBudget(2);
+        allocationSamples.add(LOAD, 300);
+        allocationSamples.add(SERIALIZE, 200);
+        allocationSamples.report(metricRegistry, Labels.Mutable.of(), "GET /users", "request", 3, hotspotBudget);
+        report();
+
+        allocationSamples.resetState();
+        allocationSamples.add(LOAD, 300);
+        allocationSamples.add(LOG, 100);
+        allocationSamples.report(metricRegistry, Labels.Mutable.of(), "GET /users", "request", 3, hotspotBudget);
+        allocationSamples.report(metricRegistry, Labels.Mutable.of(), "GET /orders", "request", 3, hotspotBudget);
+
+        Map<Labels, MetricSet> metricSets = report();
+        // hotspots which have already been reported are still updated, new ones are dropped
+        assertThat(getCounter(metricSets, hotspotLabels("org.example.Repository.load"), AllocationSamples.HOTSPOT_ALLOCATED_BYTES)).isEqualTo(300);
+        assertThat(metricSets.get(hotspotLabels("org.example.Logger.log").immutableCopy())).isNull();
+        assertThat(metricSets.get(Labels.Mutable.of().transactionName("GET /orders").transactionType("request")
+            .add(AllocationSamples.HOTSPOT_LABEL, "org.example.Repository.load").immutableCopy())).isNull();
+        // the totals are not limited by the budget
+        assertThat(getCounter(metricSets, Labels.Mutable.of().transactionName("GET /orders").transactionType("request"), AllocationSamples.ALLOCATED_BYTES)).isEqualTo(400);
+    }
+
+    @Test
+    void testResetState() {
+        allocationSamples.add(LOAD, 300);
+        assertThat(allocationSamples.isEmpty()).isFalse();
+
+        allocationSamples.resetState();
+
+        assertThat(allocationSamples.isEmpty()).isTrue();
+        assertThat(allocationSamples.getAllocatedBytes()).isZero();
+    }
+
+    private Map<Labels, MetricSet> report() {
+        Map<Labels, MetricSet> reported = new HashMap<>();
+        metricRegistry.report(metricSets -> reported.putAll(metricSets));
+        return reported;
+    }
+
+    private static long getCounter(Map<Labels, MetricSet> metricSets, Labels labels, String name) {
+        MetricSet metricSet = metricSets.get(labels.immutableCopy());
+        assertThat(metricSet).isNotNull();
+        return metricSet.getCounters().get(name).get();
+    }
+
+    private static Labels.Mutable transactionLabels() {
+        return Labels.Mutable.of().transactionName("GET /users").transactionType("request");
+    }
+
+    private static Labels hotspotLabels(String hotspot) {
+        return transactionLabels().add(AllocationSamples.HOTSPOT_LABEL, hotspot);
+    }
+}
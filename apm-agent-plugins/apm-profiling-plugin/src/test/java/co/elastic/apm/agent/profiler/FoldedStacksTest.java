@@ -0,0 +1,131 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.profiler;
+
+import co.elastic.apm.agent.profiler.asyncprofiler.JfrParser;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static co.elastic.apm.agent.matcher.WildcardMatcher.caseSensitiveMatcher;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FoldedStacksTest {
+
+    private JfrParser jfrParser;
+    private FoldedStacks foldedStacks;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        jfrParser = new JfrParser();
+        jfrParser.parse(Paths.get(FoldedStacksTest.class.getClassLoader().getResource("recording.jfr").toURI()).toFile(),
+            List.of(), List.of(caseSensitiveMatcher("co.elastic.apm.*")));
+        foldedStacks = new FoldedStacks();
+    }
+
+    @Test
+    void testAggregateSession() throws Exception {
+        jfrParser.consumeStackTraces((threadId, stackTraceId, nanoTime, allocatedBytes) -> foldedStacks.addSample("svc", stackTraceId, 1));
+        foldedStacks.aggregateSession(jfrParser, 4, Integer.MAX_VALUE);
+        foldedStacks.resetSession();
+
+        List<String> lines = getLines();
+        assertThat(lines).isNotEmpty();
+        assertThat(lines).allMatch(line -> line.startsWith("svc;co.elastic.apm."));
+        assertThat(lines).allMatch(line -> line.split(" ")[0].split(";").length <= 5);
+        assertThat(getTotalCount(lines)).isEqualTo(97);
+    }
+
+    @Test
+    void testMaxStacks() throws Exception {
+        jfrParser.consumeStackTraces((threadId, stackTraceId, nanoTime, allocatedBytes) -> foldedStacks.addSample("svc", stackTraceId, 1));
+        foldedStacks.aggregateSession(jfrParser, 4, 1);
+        foldedStacks.resetSession();
+
+        List<String> lines = getLines();
+        assertThat(lines).hasSize(2);
+        assertThat(lines).anyMatch(line -> line.startsWith("svc;" + FoldedStacks.OTHER_STACKS + " "));
+        assertThat(getTotalCount(lines)).isEqualTo(97);
+    }
+
+    @Test
+    void testClear() throws Exception {
+        jfrParser.consumeStackTraces((threadId, stackTraceId, nanoTime, allocatedBytes) -> foldedStacks.addSample("svc", stackTraceId, 1));
+        foldedStacks.aggregateSession(jfrParser, 4, Integer.MAX_VALUE);
+        foldedStacks.resetSession();
+        assertThat(foldedStacks.isEmpty()).isFalse();
+
+        foldedStacks.clear();
+        assertThat(foldedStacks.isEmpty()).isTrue();
+
+        // samples of a previous session are not aggregated again
+        foldedStacks.aggregateSession(jfrParser, 4, Integer.MAX_VALUE);
+        assertThat(foldedStacks.isEmpty()).isTrue();
+    }
+
+    @Test
+    void testDeleteOldestExportFiles(@TempDir Path tempDir) throws Exception {
+        File dir = tempDir.toFile();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            File file = FoldedStacks.getExportFile(dir, 1_000_000 + i * 60_000);
+            Files.createFile(file.toPath());
+            files.add(file);
+        }
+        File unrelated = Files.createFile(tempDir.resolve("unrelated.txt")).toFile();
+
+        assertThat(FoldedStacks.deleteOldestExportFiles(dir, 5)).isEmpty();
+        assertThat(FoldedStacks.deleteOldestExportFiles(dir, 3)).containsExactlyElementsOf(files.subList(0, 2));
+        assertThat(dir.listFiles()).containsExactlyInAnyOrder(files.get(2), files.get(3), files.get(4), unrelated);
+    }
+
+    private List<String> getLines() throws Exception {
+        StringWriter writer = new StringWriter();
+        foldedStacks.writeTo(writer);
+        List<String> lines = new ArrayList<>();
+        for (String line : writer.toString().split("\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static long getTotalCount(List<String> lines) {
+        long total = 0;
+        for (String line : lines) {
+            total += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+        }
+        return total;
+    }
+}
@@ -27,20 +27,25 @@ package co.elastic.apm.agent.profiler;
 import co.elastic.apm.agent.MockReporter;
 import co.elastic.apm.agent.MockTracer;
 import co.elastic.apm.agent.configuration.SpyConfiguration;
+import co.elastic.apm.agent.configuration.converter.ByteValue;
 import co.elastic.apm.agent.configuration.converter.TimeDuration;
 import co.elastic.apm.agent.impl.ElasticApmTracer;
 import co.elastic.apm.agent.impl.Scope;
 import co.elastic.apm.agent.impl.transaction.Span;
 import co.elastic.apm.agent.impl.transaction.Transaction;
 import co.elastic.apm.agent.matcher.WildcardMatcher;
+import co.elastic.apm.agent.metrics.Labels;
 import org.junit.jupiter.api.AfterEach;
-import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.condition.DisabledOnOs;
 import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
 import org.stagemonitor.configuration.ConfigurationRegistry;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 
@@ -55,17 +60,27 @@ class SamplingProfilerTest {
     private MockReporter reporter;
     private ElasticApmTracer tracer;
     private SamplingProfiler profiler;
+    // prevents the JIT from eliminating the allocations
+    private volatile byte[] allocated;
 
-    @BeforeEach
-    void setUp() {
+    void setUp(boolean streamingJfrParser, boolean continuousProfiling) {
+        setUp(streamingJfrParser, continuousProfiling, false);
+    }
+
+    void setUp(boolean streamingJfrParser, boolean continuousProfiling, boolean allocationSampling) {
         reporter = new MockReporter();
         ConfigurationRegistry config = SpyConfiguration.createSpyConfig();
         ProfilingConfiguration profilingConfig = config.getConfig(ProfilingConfiguration.class);
+        when(profilingConfig.isAllocationSampling()).thenReturn(allocationSampling);
+        when(profilingConfig.getAllocationSamplingInterval()).thenReturn(ByteValue.of("64kb"));
+        when(profilingConfig.getAllocationHotspots()).thenReturn(3);
         when(profilingConfig.getIncludedClasses()).thenReturn(List.of(WildcardMatcher.valueOf(getClass().getName())));
         when(profilingConfig.isProfilingEnabled()).thenReturn(true);
         when(profilingConfig.getProfilingDuration()).thenReturn(TimeDuration.of("500ms"));
         when(profilingConfig.getProfilingInterval()).thenReturn(TimeDuration.of("500ms"));
         when(profilingConfig.getSamplingInterval()).thenReturn(TimeDuration.of("5ms"));
+        when(profilingConfig.isStreamingJfrParser()).thenReturn(streamingJfrParser);
+        when(profilingConfig.isContinuousProfiling()).thenReturn(continuousProfiling);
         tracer = MockTracer.createRealTracer(reporter, config);
         profiler = tracer.getLifecycleListener(ProfilingFactory.class).getProfiler();
         // ensure profiler is initialized
@@ -80,8 +95,10 @@ class SamplingProfilerTest {
         tracer.stop();
     }
 
-    @Test
-    void testProfileTransaction() throws Exception {
+    @ParameterizedTest
+    @CsvSource({"false, false", "true, false", "false, true"})
+    void testProfileTransaction(boolean streamingJfrParser, boolean continuousProfiling) throws Exception {
+        setUp(streamingJfrParser, continuousProfiling);
         Transaction transaction = tracer.startRootTransaction(null).withName("transaction");
         try (Scope scope = transaction.activateInScope()) {
             // makes sure that the rest will be captured by another profiling session
@@ -119,6 +136,75 @@ class SamplingProfilerTest {
         assertThat(inferredSpanD.get().isChildOf(inferredSpanC.get())).isTrue();
     }
 
+    @ParameterizedTest
+    @CsvSource({"false, false", "true, true"})
+    void testProfileAllocations(boolean streamingJfrParser, boolean continuousProfiling) throws Exception {
+        setUp(streamingJfrParser, continuousProfiling, true);
+        Transaction transaction = tracer.startRootTransaction(null).withName("transaction").withType("request");
+        try (Scope scope = transaction.activateInScope()) {
+            // spans more than one profiling session
+            long end = System.currentTimeMillis() + 1200;
+            while (System.currentTimeMillis() < end) {
+                allocate();
+            }
+        } finally {
+            transaction.end();
+        }
+
+        Labels transactionLabels = Labels.Mutable.of().transactionName("transaction").transactionType("request").immutableCopy();
+        Labels hotspotLabels = Labels.Mutable.of().transactionName("transaction").transactionType("request")
+            .add(AllocationSamples.HOTSPOT_LABEL, getClass().getName() + ".allocate").immutableCopy();
+        Map<Labels, Long> allocatedBytes = new HashMap<>();
+        await()
+            .pollDelay(10, TimeUnit.MILLISECONDS)
+            .timeout(5000, TimeUnit.MILLISECONDS)
+            .untilAsserted(() -> {
+                // like the serializer, reset the counters after reading them so that they can be summed up across polls
+                tracer.getMetricRegistry().report(metricSets -> metricSets.forEach((labels, metricSet) -> metricSet.getCounters().forEach((name, counter) -> {
+                    if (name.equals(AllocationSamples.ALLOCATED_BYTES) || name.equals(AllocationSamples.HOTSPOT_ALLOCATED_BYTES)) {
+                        allocatedBytes.merge(labels.immutableCopy(), counter.getAndSet(0), Long::sum);
+                    }
+                })));
+                assertThat(allocatedBytes.get(transactionLabels)).isNotNull().isPositive();
+                assertThat(allocatedBytes.get(hotspotLabels)).isNotNull().isPositive();
+            });
+        assertThat(allocatedBytes.get(hotspotLabels)).isLessThanOrEqualTo(allocatedBytes.get(transactionLabels));
+    }
+
+    @Test
+    void testAdaptSamplingInterval() {
+        // not in continuous mode, so that the processing thread doesn't concurrently adapt the sampling interval
+        setUp(false, false);
+        ProfilingConfiguration profilingConfig = tracer.getConfig(ProfilingConfiguration.class);
+        when(profilingConfig.getCpuBudget()).thenReturn(1.0);
+
+        // 4% CPU with a budget of 1% -> increase interval by a factor of 4
+        profiler.adaptSamplingInterval(10, 40_000_000, 1_000_000_000);
+        assertThat(profiler.getAdaptiveSamplingIntervalMs()).isEqualTo(40);
+
+        // 0.8% CPU is within the budget -> keep interval
+        profiler.adaptSamplingInterval(40, 8_000_000, 1_000_000_000);
+        assertThat(profiler.getAdaptiveSamplingIntervalMs()).isEqualTo(40);
+
+        // 0.2% CPU is less than half of the budget -> halve the interval
+        profiler.adaptSamplingInterval(40, 2_000_000, 1_000_000_000);
+        assertThat(profiler.getAdaptiveSamplingIntervalMs()).isEqualTo(20);
+
+        // never below the configured sampling interval
+        profiler.adaptSamplingInterval(6, 0, 1_000_000_000);
+        assertThat(profiler.getAdaptiveSamplingIntervalMs()).isEqualTo(5);
+
+        // never above 1s
+        profiler.adaptSamplingInterval(500, 500_000_000, 1_000_000_000);
+        assertThat(profiler.getAdaptiveSamplingIntervalMs()).isEqualTo(1000);
+    }
+
+    private void allocate() {
+        for (int i = 0; i < 100; i++) {
+            allocated = new byte[16 * 1024];
+        }
+    }
+
     private void aInferred(Transaction transaction) throws Exception {
         Span span = transaction.createSpan().withName("bExplicit").withType("test");
         try (Scope spanScope = span.activateInScope()) {
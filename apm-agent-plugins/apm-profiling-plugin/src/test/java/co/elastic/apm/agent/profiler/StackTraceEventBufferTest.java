@@ -0,0 +1,81 @@
+/*-
+ * #%L
+ * Elastic APM Java agent
+ * %%
+ * Copyright (C) 2018 - 2020 Elastic and contributors
+ * %%
+ * Licensed to Elasticsearch B.V. under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch B.V. licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+package co.elastic.apm.agent.profiler;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StackTraceEventBufferTest {
+
+    private final StackTraceEventBuffer buffer = new StackTraceEventBuffer();
+
+    @Test
+    void testSort() {
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        List<long[]> events = new ArrayList<>();
+        // more than the initial capacity
+        for (int i = 0; i < 5000; i++) {
+            // up to 10s after start, with some duplicate timestamps
+            long nanoTime = start + random.nextInt(10_000) * 1_000_000L;
+            events.add(new long[]{nanoTime, i, i % 7});
+            buffer.onCallTree(i % 7, i, nanoTime, i);
+        }
+
+        buffer.sort();
+
+        // stable sort
+        events.sort(Comparator.comparingLong(event -> event[0]));
+        assertThat(buffer.size()).isEqualTo(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertThat(buffer.getNanoTime(i)).isEqualTo(events.get(i)[0]);
+            assertThat(buffer.getStackTraceId(i)).isEqualTo(events.get(i)[1]);
+            assertThat(buffer.getThreadId(i)).isEqualTo(events.get(i)[2]);
+            assertThat(buffer.getAllocatedBytes(i)).isEqualTo(events.get(i)[1]);
+        }
+    }
+
+    @Test
+    void testSortSingleEvent() {
+        buffer.onCallTree(1, 2, 3, 0);
+        buffer.sort();
+        assertThat(buffer.size()).isEqualTo(1);
+        assertThat(buffer.getNanoTime(0)).isEqualTo(3);
+    }
+
+    @Test
+    void testClear() {
+        buffer.onCallTree(1, 2, 3, 0);
+        buffer.clear();
+        buffer.sort();
+        assertThat(buffer.size()).isZero();
+    }
+}
@@ -26,11 +26,16 @@ package co.elastic.apm.agent.profiler.asyncprofiler;
 
 import co.elastic.apm.agent.impl.transaction.StackFrame;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
+import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -40,19 +45,225 @@ import static org.assertj.core.api.Assertions.assertThat;
 class JfrParserTest {
 
     private static final int MAX_STACK_DEPTH = 4;
+    private static final long ALLOCATION_SAMPLING_INTERVAL = 512 * 1024;
+    private static final long TLAB_SIZE = 4 * 1024 * 1024;
+    private static final long SMALL_OBJECT_SIZE = 100;
+    private static final long LARGE_OBJECT_SIZE = 1_000_000;
+    private static final long HUGE_OBJECT_SIZE = 2_000_000;
 
     @Test
     void name() throws Exception {
         // using the smallest prime number possible for the buffer
         // should trigger most edge cases in the buffer being exhausted
+        assertStackTraces(new JfrParser(ByteBuffer.allocate(113), ByteBuffer.allocate(113)));
+    }
+
+    @Test
+    void testMemoryMapped() throws Exception {
+        // the file is larger than the buffer so that it's memory mapped
+        assertStackTraces(new JfrParser(ByteBuffer.allocate(113), ByteBuffer.allocate(113), true));
+    }
+
+    @Test
+    void testConsumeFlushedStackTraces(@TempDir Path tempDir) throws Exception {
         JfrParser jfrParser = new JfrParser(ByteBuffer.allocate(113), ByteBuffer.allocate(113));
+        File recording = getRecording();
+        byte[] bytes = Files.readAllBytes(recording.toPath());
+        List<Long> expectedThreadIds = new ArrayList<>();
+        jfrParser.parse(recording, List.of(), List.of());
+        jfrParser.consumeStackTraces((threadId, stackTraceId, nanoTime, allocatedBytes) -> expectedThreadIds.add(threadId));
+        jfrParser.resetState();
 
-        File file = Paths.get(JfrParserTest.class.getClassLoader().getResource("recording.jfr").toURI()).toFile();
+        // simulates async-profiler flushing the events in chunks which don't align with the events
+        File file = tempDir.resolve("recording.jfr").toFile();
+        List<Long> nativeThreadIds = new ArrayList<>();
+        long position = 0;
+        for (int length = 7; length < bytes.length; length += 331) {
+            Files.write(file.toPath(), Arrays.copyOf(bytes, length));
+            position = jfrParser.consumeFlushedStackTraces(file, position, (threadId, stackTraceId, nanoTime, allocatedBytes) -> nativeThreadIds.add(threadId));
+        }
+        assertThat(nativeThreadIds).isNotEmpty();
+        Files.write(file.toPath(), bytes);
+        position = jfrParser.consumeFlushedStackTraces(file, position, (threadId, stackTraceId, nanoTime, allocatedBytes) -> nativeThreadIds.add(threadId));
+
+        jfrParser.parse(file, List.of(), List.of());
+        List<Long> threadIds = new ArrayList<>();
+        for (Long nativeThreadId : nativeThreadIds) {
+            threadIds.add(jfrParser.resolveJavaThreadId(nativeThreadId));
+        }
+        jfrParser.consumeStackTraces(position, (threadId, stackTraceId, nanoTime, allocatedBytes) -> threadIds.add(threadId));
+        assertThat(threadIds).isEqualTo(expectedThreadIds);
+    }
+
+    @Test
+    void testFramesAreInternedAcrossFiles() throws Exception {
+        JfrParser jfrParser = new JfrParser();
+        List<StackFrame> firstParse = resolveAllStackFrames(jfrParser);
+        List<StackFrame> secondParse = resolveAllStackFrames(jfrParser);
+
+        assertThat(firstParse).isNotEmpty();
+        assertThat(secondParse).hasSameSizeAs(firstParse);
+        for (int i = 0; i < firstParse.size(); i++) {
+            assertThat(secondParse.get(i)).isSameAs(firstParse.get(i));
+        }
+    }
+
+    @Test
+    void testResolveTopFrame() throws Exception {
+        JfrParser jfrParser = new JfrParser();
+        jfrParser.parse(getRecording(), List.of(), List.of(caseSensitiveMatcher("co.elastic.apm.*")));
+        AtomicInteger topFrames = new AtomicInteger();
+        List<StackFrame> stackFrames = new ArrayList<>();
+        jfrParser.consumeStackTraces((threadId, stackTraceId, nanoTime, allocatedBytes) -> {
+            assertThat(allocatedBytes).isZero();
+            jfrParser.resolveStackTrace(stackTraceId, true, stackFrames, Integer.MAX_VALUE);
+            StackFrame topFrame = jfrParser.resolveTopFrame(stackTraceId, true);
+            if (stackFrames.isEmpty()) {
+                assertThat(topFrame).isNull();
+            } else {
+                topFrames.incrementAndGet();
+                assertThat(topFrame).isSameAs(stackFrames.get(0));
+            }
+            stackFrames.clear();
+        });
+        assertThat(topFrames.get()).isEqualTo(97);
+        jfrParser.resetState();
+    }
+
+    @Test
+    void testAllocationSamples(@TempDir Path tempDir) throws Exception {
+        JfrParser jfrParser = new JfrParser(ByteBuffer.allocate(113), ByteBuffer.allocate(113));
+        jfrParser.setAllocationSamplingInterval(ALLOCATION_SAMPLING_INTERVAL);
+        jfrParser.parse(createAllocationRecording(tempDir), List.of(), List.of(caseSensitiveMatcher("co.elastic.apm.*")));
+        List<Long> allocatedBytes = new ArrayList<>();
+        AtomicInteger stackTraces = new AtomicInteger();
+        List<StackFrame> stackFrames = new ArrayList<>();
+        jfrParser.consumeStackTraces((threadId, stackTraceId, nanoTime, bytes) -> {
+            allocatedBytes.add(bytes);
+            jfrParser.resolveStackTrace(stackTraceId, true, stackFrames, MAX_STACK_DEPTH);
+            if (!stackFrames.isEmpty()) {
+                stackTraces.incrementAndGet();
+            }
+            stackFrames.clear();
+        });
+        jfrParser.resetState();
+
+        assertThat(stackTraces.get()).isEqualTo(97);
+        assertThat(allocatedBytes).isEqualTo(getExpectedAllocatedBytes(97));
+    }
+
+    @Test
+    void testAllocationSamplesRecordedAsExecutionSamples() throws Exception {
+        // async-profiler 1.x writes the samples of the alloc event as execution samples
+        JfrParser jfrParser = new JfrParser();
+        jfrParser.setAllocationSamplingInterval(ALLOCATION_SAMPLING_INTERVAL);
+        jfrParser.parse(getRecording(), List.of(), List.of());
+        List<Long> allocatedBytes = new ArrayList<>();
+        jfrParser.consumeStackTraces((threadId, stackTraceId, nanoTime, bytes) -> allocatedBytes.add(bytes));
+        jfrParser.resetState();
+
+        assertThat(allocatedBytes).hasSize(97).containsOnly(ALLOCATION_SAMPLING_INTERVAL);
+    }
+
+    @Test
+    void testConsumeFlushedAllocationSamples(@TempDir Path tempDir) throws Exception {
+        JfrParser jfrParser = new JfrParser(ByteBuffer.allocate(113), ByteBuffer.allocate(113));
+        jfrParser.setAllocationSamplingInterval(ALLOCATION_SAMPLING_INTERVAL);
+        byte[] bytes = Files.readAllBytes(createAllocationRecording(tempDir).toPath());
+
+        File file = tempDir.resolve("streamed.jfr").toFile();
+        List<Long> allocatedBytes = new ArrayList<>();
+        long position = 0;
+        for (int length = 7; length < bytes.length; length += 331) {
+            Files.write(file.toPath(), Arrays.copyOf(bytes, length));
+            position = jfrParser.consumeFlushedStackTraces(file, position, (threadId, stackTraceId, nanoTime, allocated) -> allocatedBytes.add(allocated));
+        }
+        Files.write(file.toPath(), bytes);
+        jfrParser.consumeFlushedStackTraces(file, position, (threadId, stackTraceId, nanoTime, allocated) -> allocatedBytes.add(allocated));
+
+        assertThat(allocatedBytes).isEqualTo(getExpectedAllocatedBytes(97));
+    }
+
+    /**
+     * Allocations in a new TLAB are weighted by the sampling interval unless the object is larger,
+     * allocations outside of a TLAB by the size of the object.
+     * The TLAB is larger than all of these weights, so that weighting by its size would fail the assertions.
+     */
+    private static List<Long> getExpectedAllocatedBytes(int events) {
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < events; i++) {
+            long objectSize = getObjectSize(i);
+            expected.add(isInNewTlab(i) ? Math.max(ALLOCATION_SAMPLING_INTERVAL, objectSize) : objectSize);
+        }
+        return expected;
+    }
+
+    private static boolean isInNewTlab(int eventIndex) {
+        return eventIndex % 2 == 0;
+    }
+
+    private static long getObjectSize(int eventIndex) {
+        if (!isInNewTlab(eventIndex)) {
+            return HUGE_OBJECT_SIZE;
+        }
+        return eventIndex % 4 == 0 ? SMALL_OBJECT_SIZE : LARGE_OBJECT_SIZE;
+    }
+
+    /**
+     * Converts the execution samples of {@code recording.jfr} into the allocation samples async-profiler records with the {@code alloc} event,
+     * alternating between allocations in a new TLAB (event type 21, 52 bytes) and outside of a TLAB (event type 22, 44 bytes).
+     * Both start with the size, type, timestamp, thread id and stack trace id of an execution sample,
+     * followed by the class id and the size of the allocated object.
+     * Allocations in a new TLAB end with the size of the TLAB.
+     */
+    private static File createAllocationRecording(Path tempDir) throws Exception {
+        ByteBuffer original = ByteBuffer.wrap(Files.readAllBytes(getRecording().toPath()));
+        ByteBuffer converted = ByteBuffer.allocate(original.capacity() * 2);
+        // magic bytes, version and metadata offset
+        converted.put(original.array(), 0, 16);
+        int position = 16;
+        for (int eventIndex = 0; original.getInt(position + 4) == 20; eventIndex++) {
+            boolean inNewTlab = isInNewTlab(eventIndex);
+            converted.putInt(inNewTlab ? 52 : 44);
+            converted.putInt(inNewTlab ? 21 : 22);
+            // timestamp, thread id and stack trace id
+            converted.put(original.array(), position + 8, 20);
+            converted.putLong(42); // class id
+            converted.putLong(getObjectSize(eventIndex));
+            if (inNewTlab) {
+                converted.putLong(TLAB_SIZE);
+            }
+            position += original.getInt(position);
+        }
+        long offsetDelta = converted.position() - position;
+        converted.put(original.array(), position, original.capacity() - position);
+
+        // the metadata offset in the header and the checkpoint offset at the end of the metadata event are absolute
+        long metadataOffset = original.getLong(8) + offsetDelta;
+        converted.putLong(8, metadataOffset);
+        int checkpointOffsetPosition = (int) metadataOffset + converted.getInt((int) metadataOffset) - 8;
+        converted.putLong(checkpointOffsetPosition, converted.getLong(checkpointOffsetPosition) + offsetDelta);
+
+        File file = tempDir.resolve("allocations.jfr").toFile();
+        Files.write(file.toPath(), Arrays.copyOf(converted.array(), converted.position()));
+        return file;
+    }
+
+    private List<StackFrame> resolveAllStackFrames(JfrParser jfrParser) throws Exception {
+        jfrParser.parse(getRecording(), List.of(), List.of(caseSensitiveMatcher("co.elastic.apm.*")));
+        List<StackFrame> stackFrames = new ArrayList<>();
+        jfrParser.consumeStackTraces((threadId, stackTraceId, nanoTime, allocatedBytes) -> jfrParser.resolveStackTrace(stackTraceId, true, stackFrames, MAX_STACK_DEPTH));
+        jfrParser.resetState();
+        return stackFrames;
+    }
+
+    private void assertStackTraces(JfrParser jfrParser) throws Exception {
+        File file = getRecording();
 
         jfrParser.parse(file, List.of(), List.of(caseSensitiveMatcher("co.elastic.apm.*")));
         AtomicInteger stackTraces = new AtomicInteger();
         ArrayList<StackFrame> stackFrames = new ArrayList<>();
-        jfrParser.consumeStackTraces((threadId, stackTraceId, nanoTime) -> {
+        jfrParser.consumeStackTraces((threadId, stackTraceId, nanoTime, allocatedBytes) -> {
             jfrParser.resolveStackTrace(stackTraceId, true, stackFrames, MAX_STACK_DEPTH);
             if (!stackFrames.isEmpty()) {
                 stackTraces.incrementAndGet();
@@ -62,6 +273,11 @@ class JfrParserTest {
             stackFrames.clear();
         });
         assertThat(stackTraces.get()).isEqualTo(97);
+        jfrParser.resetState();
+    }
+
+    private static File getRecording() throws URISyntaxException {
+        return Paths.get(JfrParserTest.class.getClassLoader().getResource("recording.jfr").toURI()).toFile();
     }
 
 }
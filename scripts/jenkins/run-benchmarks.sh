@@ -75,6 +75,19 @@ function benchmark() {
     mv "${RESULT_FILE}.clean" ${RESULT_FILE}
 
     $JAVA_HOME/bin/java -cp apm-agent-benchmarks/target/benchmarks.jar co.elastic.apm.agent.benchmark.PostProcessBenchmarkResults ${RESULT_FILE} ${BULK_UPLOAD_FILE} ${COMMIT_UNIX}
+
+    # optionally fail if the overhead has regressed compared to a baseline in apm-agent-benchmarks/baselines
+    # the baselines are recorded from the instrumentation benchmarks, see apm-agent-benchmarks/baselines/README.md
+    if [ -n "${BASELINE_FILE:-}" ]
+    then
+        REGRESSION_RESULT_FILE=apm-agent-regression-results-${COMMIT_ISO_8601}.json
+        sudo -n cset proc --exec /benchmark -- \
+            $JAVA_HOME/bin/java -jar apm-agent-benchmarks/target/benchmarks.jar "co.elastic.apm.agent.benchmark.instrumentation.*" \
+            -prof gc \
+            -rf json \
+            -rff ${REGRESSION_RESULT_FILE}
+        $JAVA_HOME/bin/java -cp apm-agent-benchmarks/target/benchmarks.jar co.elastic.apm.agent.benchmark.regression.BenchmarkRegressionCheck compare ${REGRESSION_RESULT_FILE} ${BASELINE_FILE}
+    fi
 }
 
 function tearDown() {